@@ -4,353 +4,7591 @@ import java.awt.event.*;
 import java.util.*;
 
 class SupplyChainSystemGUI {
-    static ArrayList<Producer> producers = new ArrayList<>();
-    static ArrayList<FactoryExtended> factories = new ArrayList<>();
-    static ArrayList<Market> markets = new ArrayList<>();
-    static ArrayList<Customer> customers = new ArrayList<>();
+    // Appended to from the event thread, the domain worker and imports alike, and read from any thread
+    static EntityList<Producer> producers = new EntityList<>();
+    static EntityList<FactoryExtended> factories = new EntityList<>();
+    static EntityList<Market> markets = new EntityList<>();
+    static EntityList<Customer> customers = new EntityList<>();
 
-    static java.util.List<ProductDesign> allDesigns = new ArrayList<>();
-    
-    static Color backgroundColor = new Color(240, 240, 245);
-    static Color accentColor = new Color(70, 130, 180);
-    static Color lightAccentColor = new Color(173, 216, 230);
+    static EntityList<ProductDesign> allDesigns = new EntityList<>();
     
+    // Journal records after which the next periodic check writes a snapshot
+    static final long CHECKPOINT_RECORDS = 100_000;
+    static final int CHECKPOINT_CHECK_MILLIS = 10_000;
+
     public static void main(String[] args) {
+        TimedEventQueue.install();
         SwingUtilities.invokeLater(() -> {
-            setUpDemoData();
+            Journal journal = openJournal();
+            String scenario = System.getProperty("supplychain.scenario");
+            if (scenario != null) {
+                importScenario(scenario);
+                if (journal != null) {
+                    // Start the next run from a snapshot rather than a replay of every imported row
+                    checkpoint(journal);
+                }
+            } else if (journal == null || !journal.restored()) {
+                // The demo only seeds a fresh journal; afterwards state comes from the snapshot and replay
+                setUpDemoData();
+            }
+            if (journal != null) {
+                // Off the event thread, since the checkpoint waits for every trade under way to finish
+                new javax.swing.Timer(CHECKPOINT_CHECK_MILLIS, e -> {
+                    if (journal.recordsSinceCheckpoint() >= CHECKPOINT_RECORDS) {
+                        DomainExecutor.execute(() -> checkpoint(journal));
+                    }
+                }).start();
+            }
+            startOrderApi();
+            startReplenisher(cycle -> UiRefresh.changed());
+            startProduction(tick -> UiRefresh.changed());
             new MainFrame();
         });
     }
+
+    // Serves OrderApi beside the UI on the port named by -Dsupplychain.http.port, if any
+    static void startOrderApi() {
+        String port = System.getProperty("supplychain.http.port");
+        if (port == null) {
+            return;
+        }
+        try {
+            OrderApi api = OrderApi.start(Integer.parseInt(port));
+            System.out.println("Order API listening on http://127.0.0.1:" + api.port());
+        } catch (java.io.IOException | RuntimeException e) {
+            System.err.println("Order API disabled, could not listen on " + port + ": " + e);
+        }
+    }
+
+    // Runs replenishment cycles every -Dsupplychain.replenish.millis (1000 by default, 0 for never)
+    static void startReplenisher(java.util.function.Consumer<Replenisher.Cycle> listener) {
+        long millis = Long.getLong("supplychain.replenish.millis", 1000);
+        if (millis > 0) {
+            Replenisher.start(millis, listener);
+        }
+    }
+
+    // Runs production ticks every -Dsupplychain.production.millis (1000 by default, 0 for never)
+    static void startProduction(java.util.function.Consumer<ProductionScheduler.Tick> listener) {
+        long millis = Long.getLong("supplychain.production.millis", 1000);
+        if (millis > 0) {
+            ProductionScheduler.start(millis, listener);
+        }
+    }
+
+    // Opens the journal named by -Dsupplychain.journal ("none" turns journaling off), loading the
+    // snapshot beside it and replaying the log into the lists. Returns null if journaling is off or
+    // the files cannot be opened.
+    static Journal openJournal() {
+        return openJournal(System.getProperty("supplychain.journal", "supplychain.journal"));
+    }
+
+    static Journal openJournal(String path) {
+        if (path.equals("none")) {
+            return null;
+        }
+        try {
+            java.nio.file.Path journalPath = java.nio.file.Paths.get(path);
+            String name = journalPath.getFileName().toString().replaceFirst("\\.journal$", "");
+            Journal journal = Journal.open(journalPath, journalPath.resolveSibling(name + ".snapshot"), true);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                // Every session opens with a record of its own; anything beyond it is worth a snapshot
+                if (journal.recordsSinceCheckpoint() > 1) {
+                    checkpoint(journal);
+                }
+                try {
+                    journal.close();
+                } catch (java.io.IOException e) {
+                    System.err.println("Could not close journal: " + e.getMessage());
+                }
+            }));
+            return journal;
+        } catch (java.io.IOException | RuntimeException e) {
+            System.err.println("Journaling disabled, could not open " + path + ": " + e);
+            return null;
+        }
+    }
+
+    // Imports the scenario file named by -Dsupplychain.scenario on top of whatever was restored
+    static void importScenario(String path) {
+        long start = System.nanoTime();
+        try {
+            long rows = ScenarioImporter.importFile(java.nio.file.Paths.get(path));
+            System.out.println("Imported " + rows + " rows from " + path + " in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } catch (java.io.IOException | RuntimeException e) {
+            System.err.println("Could not import " + path + ": " + e.getMessage());
+        }
+    }
+
+    static void checkpoint(Journal journal) {
+        try {
+            journal.checkpoint();
+        } catch (java.io.IOException | RuntimeException e) {
+            System.err.println("Could not write snapshot: " + e);
+        }
+    }
     
     private static void setUpDemoData() {
-        // Set up demo producers
-        Producer p1 = new Producer("Farm", 1000);
-        p1.materials.put("Wood", 20);
-        p1.materials.put("Iron", 15);
-        p1.materials.put("Plastic", 30);
-        producers.add(p1);
-        
-        Producer p2 = new Producer("Mine", 1500);
-        p2.materials.put("Stone", 40);
-        p2.materials.put("Gold", 5);
-        p2.materials.put("Silver", 10);
-        producers.add(p2);
-        
-        // Set up demo factories
-        FactoryExtended f1 = new FactoryExtended("Furniture Factory", 2000);
-        ProductDesign chair = new ProductDesign("Chair", 50.0);
-        chair.addMaterial(new InputMaterial("Wood", 4));
-        f1.designs.add(chair);
-        factories.add(f1);
-        
-        FactoryExtended f2 = new FactoryExtended("Electronics Factory", 3000);
-        ProductDesign phone = new ProductDesign("Phone", 200.0);
-        phone.addMaterial(new InputMaterial("Plastic", 2));
-        phone.addMaterial(new InputMaterial("Gold", 1));
-        f2.designs.add(phone);
-        factories.add(f2);
-        
-        allDesigns.add(chair);
-        allDesigns.add(phone);
-        
-        // Set up demo markets
-        Market m1 = new Market("Downtown Mall", 5000);
-        markets.add(m1);
-        
-        Market m2 = new Market("Online Store", 4000);
-        markets.add(m2);
-        
-        // Set up demo customers
-        Customer c1 = new Customer("John", 500);
-        customers.add(c1);
-        
-        Customer c2 = new Customer("Alice", 800);
-        customers.add(c2);
+        Journal.enter();
+        try {
+            // Set up demo producers
+            Producer p1 = new Producer("Farm", 1000);
+            p1.setMaterial("Wood", 20);
+            p1.setMaterial("Iron", 15);
+            p1.setMaterial("Plastic", 30);
+            producers.add(p1);
+        
+            Producer p2 = new Producer("Mine", 1500);
+            p2.setMaterial("Stone", 40);
+            p2.setMaterial("Gold", 5);
+            p2.setMaterial("Silver", 10);
+            producers.add(p2);
+        
+            // Set up demo factories
+            FactoryExtended f1 = new FactoryExtended("Furniture Factory", 2000);
+            ProductDesign chair = new ProductDesign("Chair", 50.0);
+            chair.addMaterial(new InputMaterial("Wood", 4));
+            f1.addDesign(chair);
+            factories.add(f1);
+        
+            FactoryExtended f2 = new FactoryExtended("Electronics Factory", 3000);
+            ProductDesign board = new ProductDesign("Circuit Board", 80.0);
+            board.addMaterial(new InputMaterial("Plastic", 1));
+            board.addMaterial(new InputMaterial("Gold", 1));
+            ProductDesign phone = new ProductDesign("Phone", 200.0);
+            phone.addMaterial(new InputMaterial(board, 1));
+            phone.addMaterial(new InputMaterial("Plastic", 1));
+            f2.addDesign(board);
+            f2.addDesign(phone);
+            factories.add(f2);
+        
+            allDesigns.add(chair);
+            allDesigns.add(board);
+            allDesigns.add(phone);
+        
+            // Set up demo markets
+            Market m1 = new Market("Downtown Mall", 5000);
+            markets.add(m1);
+        
+            Market m2 = new Market("Online Store", 4000);
+            markets.add(m2);
+        
+            // Set up demo customers
+            Customer c1 = new Customer("John", 500);
+            customers.add(c1);
+        
+            Customer c2 = new Customer("Alice", 800);
+            customers.add(c2);
+        } finally {
+            Journal.exit();
+        }
     }
 }
 
 class Customer {
     String name;
-    double balance;
-    Map<String, Integer> inventory = new HashMap<>();
+    final Account balance;
+    Inventory inventory = new Inventory();
+    // The inventory is guarded by this customer's monitor
+    final long lockOrder = LockOrder.next();
+    int entityId = Journal.nextEntityId();
 
     public Customer(String name, double balance) {
         this.name = name;
-        this.balance = balance;
+        this.balance = new Account(Money.cents(balance));
+        Journal.created(Journal.CUSTOMER, entityId, name, this.balance.get());
     }
 
-    public void addProduct(String product, int amount) {
-        inventory.put(product, inventory.getOrDefault(product, 0) + amount);
-    }
-    
-    // Enhanced buyProduct method with proper error handling
-    public boolean buyProduct(String product, int amount, double price, Market market) {
-        if (!market.stock.containsKey(product)) {
-            JOptionPane.showMessageDialog(null, "Product not available in this market");
-            return false;
+    // Edits from EditCustomerDialog. The journal's balance still counts money escrowed in open bids,
+    // so the edit is journaled as the change it made rather than the new live balance.
+    public void update(String name, long balanceCents) {
+        Journal.enter();
+        try {
+            synchronized (this) {
+                this.name = name;
+                long change = balanceCents - balance.getAndSet(balanceCents);
+                Journal.Txn txn = Journal.begin();
+                if (txn != null) {
+                    txn.rename(entityId, name).delta(Journal.BALANCE, entityId, -1, change).commit();
+                }
+            }
+        } finally {
+            Journal.exit();
         }
-        
-        int availableStock = market.stock.getOrDefault(product, 0);
-        if (availableStock < amount) {
-            JOptionPane.showMessageDialog(null, "Not enough stock in market: requested " + amount + ", available " + availableStock);
-            return false;
+    }
+
+    public TradeResult removeProduct(String product, int amount) {
+        Journal.enter();
+        try {
+            long start = Metrics.start();
+            return Metrics.record(Metrics.CUSTOMER_DESTROY, destroy(product, amount), start);
+        } finally {
+            Journal.exit();
         }
+    }
 
-        double totalCost = amount * price;
-        if (balance < totalCost) {
-            JOptionPane.showMessageDialog(null, "Not enough balance: cost " + String.format("%.2f", totalCost) + 
-                               ", available " + String.format("%.2f", balance));
-            return false;
+    private synchronized TradeResult destroy(String product, int amount) {
+        int productId = Symbols.find(product);
+        if (amount <= 0) {
+            return TradeResult.INVALID_AMOUNT;
+        }
+        if (productId < 0 || inventory.get(productId) < amount) {
+            return TradeResult.INSUFFICIENT_STOCK;
+        }
+        if (inventory.add(productId, -amount) == 0) {
+            inventory.remove(productId);
         }
+        Journal.delta(Journal.CUSTOMER_INVENTORY, entityId, productId, -amount);
+        return TradeResult.OK;
+    }
 
-        // Complete successful purchase
-        balance -= totalCost;
-        market.balance += totalCost;  // Economic transfer - market receives payment
-        market.stock.put(product, availableStock - amount);
-        addProduct(product, amount);
-        return true;
+    public synchronized void addProduct(String product, int amount) {
+        inventory.add(product, amount);
+    }
+
+    public synchronized void addProduct(int productId, int amount) {
+        inventory.add(productId, amount);
+    }
+    
+    // Buys from a market through the headless trade engine; the caller decides how to report the result
+    public TradeResult buyProduct(String product, int amount, long price, Market market) {
+        long start = Metrics.start();
+        PurchaseEvent event = PurchaseEvent.start();
+        TradeResult result = Journal.durable(TradeEngine.purchase(this, market, product, amount, price));
+        event.finish(this, market, product, -1, amount, price, false, result);
+        return Metrics.record(Metrics.CUSTOMER_BUY, result, start);
+    }
+
+    public TradeResult buyProduct(int productId, int amount, long price, Market market) {
+        long start = Metrics.start();
+        PurchaseEvent event = PurchaseEvent.start();
+        TradeResult result = Journal.durable(TradeEngine.purchase(this, market, productId, amount, price));
+        event.finish(this, market, null, productId, amount, price, false, result);
+        return Metrics.record(Metrics.CUSTOMER_BUY, result, start);
+    }
+
+    // Buys every line of the basket or none of them, in one settlement however many markets it spans
+    public TradeResult checkout(Basket basket) {
+        long start = Metrics.start();
+        CheckoutEvent event = CheckoutEvent.start();
+        TradeResult result = Journal.durable(TradeEngine.checkout(this, basket));
+        event.finish(this, basket, result);
+        return Metrics.record(Metrics.CHECKOUT, result, start);
+    }
+
+    // Buys at up to limit per unit, waiting in the market's order book for whatever is not in stock
+    public TradeResult placeBid(String product, int amount, long limit, Market market) {
+        long start = Metrics.start();
+        PurchaseEvent event = PurchaseEvent.start();
+        TradeResult result = Journal.durable(TradeEngine.placeBid(this, market, product, amount, limit));
+        event.finish(this, market, product, -1, amount, limit, true, result);
+        return Metrics.record(Metrics.PLACE_BID, result, start);
+    }
+
+    public TradeResult cancelBids(String product, Market market) {
+        long start = Metrics.start();
+        BidCancelEvent event = BidCancelEvent.start();
+        TradeResult result = TradeEngine.cancelBids(this, market, product);
+        event.finish(this, market, product, result);
+        return Metrics.record(Metrics.CANCEL_BIDS, result, start);
     }
 
     public String toString() {
-        return name + " (Balance: " + String.format("%.2f", balance) + ")";
+        return name + " (Balance: " + balance.format() + ")";
     }
 }
 
 class Producer {
     String name;
-    double balance;
-    Map<String, Integer> materials = new HashMap<>();
+    final Account balance;
+    Inventory materials = new Inventory();
+    // Materials are guarded by this producer's monitor
+    final long lockOrder = LockOrder.next();
+    int entityId = Journal.nextEntityId();
     
     public Producer(String name, double balance) {
         this.name = name;
-        this.balance = balance;
+        this.balance = new Account(Money.cents(balance));
+        Journal.created(Journal.PRODUCER, entityId, name, this.balance.get());
+    }
+
+    public void setMaterial(String material, int quantity) {
+        Journal.enter();
+        try {
+            synchronized (this) {
+                int id = Symbols.id(material);
+                materials.set(id, quantity);
+                Journal.set(Journal.PRODUCER_MATERIAL, entityId, id, quantity);
+            }
+        } finally {
+            Journal.exit();
+        }
     }
     
     public String toString() {
-        return name + " (Balance: " + String.format("%.2f", balance) + ")";
+        return name + " (Balance: " + balance.format() + ")";
     }
 }
 
 class InputMaterial {
     String name;
+    int id;
     int amount;
+    // Set when this input is the output of another design rather than a raw material
+    ProductDesign component;
     
     public InputMaterial(String name, int amount) {
         this.name = name;
+        this.id = Symbols.id(name);
         this.amount = amount;
     }
+
+    public InputMaterial(ProductDesign component, int amount) {
+        this(component.name, amount);
+        this.component = component;
+    }
 }
 
 class ProductDesign {
     String name;
-    double cost;
+    int id;
+    long cost;  // per unit, in cents
     ArrayList<InputMaterial> materials = new ArrayList<>();
+    // Memoized explosion, owned by BillOfMaterials
+    volatile Bom bom;
+    int entityId = Journal.nextEntityId();
     
     public ProductDesign(String name, double cost) {
         this.name = name;
-        this.cost = cost;
+        this.id = Symbols.id(name);
+        this.cost = Money.cents(cost);
+        Journal.created(Journal.DESIGN, entityId, name, this.cost);
     }
     
     public void addMaterial(InputMaterial material) {
-        materials.add(material);
+        Journal.enter();
+        try {
+            if (material.component != null && (material.component == this || material.component.uses(this))) {
+                throw new IllegalArgumentException("Design " + name + " cannot contain itself");
+            }
+            materials.add(material);
+            BillOfMaterials.invalidate();
+            Journal.Txn txn = Journal.begin();
+            if (txn != null) {
+                txn.designMaterial(entityId, material.component == null ? material.id : -1,
+                        material.component != null ? material.component.entityId : -1, material.amount).commit();
+            }
+        } finally {
+            Journal.exit();
+        }
+    }
+
+    // Whether the design appears anywhere below this one
+    public boolean uses(ProductDesign design) {
+        for (InputMaterial material : materials) {
+            if (material.component == design || (material.component != null && material.component.uses(design))) {
+                return true;
+            }
+        }
+        return false;
     }
 }
 
 class InventoryItem {
     String name;
+    int id;
     int quantity;
+    // Position in the product's SupplierTree, maintained by the tree
+    int supplySlot;
     
     public InventoryItem(String name, int quantity) {
         this.name = name;
+        this.id = Symbols.id(name);
         this.quantity = quantity;
     }
 }
 
 class Factory {
     String name;
-    double balance;
+    final Account balance;
+    int entityId = Journal.nextEntityId();
     
     public Factory(String name, double balance) {
         this.name = name;
-        this.balance = balance;
+        this.balance = new Account(Money.cents(balance));
     }
     
     public String toString() {
-        return name + " (Balance: " + String.format("%.2f", balance) + ")";
+        return name + " (Balance: " + balance.format() + ")";
     }
 }
 
 class FactoryExtended extends Factory {
-    ArrayList<ProductDesign> designs = new ArrayList<>();
+    // Copy on write, since ticks, the replenisher and the order API iterate it without the lock
+    final java.util.concurrent.CopyOnWriteArrayList<ProductDesign> designs = new java.util.concurrent.CopyOnWriteArrayList<>();
+    // Unit cost in cents by product ID from the first design for it, replaced whole by addDesign
+    private volatile long[] designCosts = new long[0];
     Map<String, InventoryItem> products = new HashMap<>();
-    Map<String, Integer> materials = new HashMap<>();
+    Inventory materials = new Inventory();
+    // Products and materials are guarded by this factory's monitor
+    final long lockOrder = LockOrder.next();
+    // Manufacturing orders waiting for ProductionScheduler ticks
+    final JobQueue jobs = new JobQueue();
     
     public FactoryExtended(String name, double balance) {
         super(name, balance);
+        Journal.created(Journal.FACTORY, entityId, name, this.balance.get());
     }
     
     public void addMaterial(String material, int amount) {
-        materials.put(material, materials.getOrDefault(material, 0) + amount);
+        Journal.enter();
+        try {
+            synchronized (this) {
+                int id = Symbols.id(material);
+                materials.add(id, amount);
+                Journal.delta(Journal.FACTORY_MATERIAL, entityId, id, amount);
+            }
+        } finally {
+            Journal.exit();
+        }
     }
-    
-    public void manufacture(ProductDesign design, int amount) {
-        // Check if we have the materials
-        boolean canManufacture = true;
-        for (InputMaterial material : design.materials) {
-            int available = materials.getOrDefault(material.name, 0);
-            if (available < material.amount * amount) {
-                canManufacture = false;
-                JOptionPane.showMessageDialog(null, "Not enough " + material.name + ". Need " + (material.amount * amount) + ", have " + available);
-                break;
+
+    // Buys every line of the order from the producer, all or nothing, paying in one transfer
+    public TradeResult buyMaterials(Producer producer, MaterialOrder order) {
+        long start = Metrics.start();
+        return Metrics.record(Metrics.BUY_MATERIALS, Journal.durable(TradeEngine.sellMaterials(producer, this, order)), start);
+    }
+
+    public TradeResult buyMaterial(String material, int amount, long pricePerUnit, Producer producer) {
+        return buyMaterials(producer, new MaterialOrder().add(material, amount, pricePerUnit));
+    }
+
+    public void addDesign(ProductDesign design) {
+        Journal.enter();
+        try {
+            synchronized (this) {
+                int productId = Symbols.id(design.name);
+                if (!hasDesign(design.name)) {
+                    long[] costs = Arrays.copyOf(designCosts, Math.max(designCosts.length, productId + 1));
+                    costs[productId] = design.cost;
+                    designCosts = costs;
+                }
+                designs.add(design);
+                Journal.Txn txn = Journal.begin();
+                if (txn != null) {
+                    txn.factoryDesign(entityId, design.entityId).commit();
+                }
+                // Products made before the design existed were indexed without its cost
+                InventoryItem item = products.get(design.name);
+                if (item != null) {
+                    SupplyIndex.unregister(item);
+                    SupplyIndex.register(this, item, design.cost);
+                }
             }
+        } finally {
+            Journal.exit();
         }
-        
-        if (canManufacture) {
-            // Consume materials
-            for (InputMaterial material : design.materials) {
-                int current = materials.get(material.name);
-                materials.put(material.name, current - (material.amount * amount));
+    }
+
+    // Cost per unit in cents from the factory's design for the product, 0 if it has none
+    long unitCost(int productId) {
+        long[] costs = designCosts;
+        return productId >= 0 && productId < costs.length ? costs[productId] : 0;
+    }
+
+    private boolean hasDesign(String product) {
+        for (ProductDesign d : designs) {
+            if (d.name.equals(product)) {
+                return true;
             }
-            
-            // Create product
-            InventoryItem item = products.getOrDefault(design.name, new InventoryItem(design.name, 0));
+        }
+        return false;
+    }
+
+    // Adds finished products, registering the factory as a supplier the first time it holds one
+    public synchronized void addProduct(String product, int amount) {
+        InventoryItem item = products.get(product);
+        if (item == null) {
+            item = new InventoryItem(product, amount);
+            products.put(product, item);
+            SupplyIndex.register(this, item, MarketQueries.unitCost(this, product));
+        } else {
             item.quantity += amount;
-            products.put(design.name, item);
-            
-            JOptionPane.showMessageDialog(null, "Successfully manufactured " + amount + " " + design.name + "(s)!");
+            SupplyIndex.update(item);
+        }
+    }
+    
+    public TradeResult manufacture(ProductDesign design, int amount) {
+        long start = Metrics.start();
+        ManufactureEvent event = ManufactureEvent.start();
+        TradeResult result = Journal.durable(TradeEngine.manufacture(this, design, amount));
+        event.finish(this, design, amount, result);
+        return Metrics.record(Metrics.MANUFACTURE, result, start);
+    }
+
+    // Takes what amount units of the design need out of stock. Finished components the factory
+    // already holds are used first, and only the shortfall is built from their own inputs; with none
+    // in stock the memoized explosion gives the leaf materials directly. Returns what was taken, or
+    // null with nothing changed if a material runs short. A reservation must be followed by
+    // commitProduction or releaseMaterials.
+    public synchronized MaterialDraw reserveMaterials(ProductDesign design, int amount) {
+        if (amount <= 0) {
+            return null;
+        }
+        MaterialDraw draw = planMaterials(design, amount);
+        if (draw.shortage >= 0) {
+            return null;
+        }
+        for (int s = draw.materials.nextSlot(-1); s >= 0; s = draw.materials.nextSlot(s)) {
+            materials.add(draw.materials.keyAt(s), -draw.materials.quantityAt(s));
+        }
+        for (int s = draw.parts.nextSlot(-1); s >= 0; s = draw.parts.nextSlot(s)) {
+            InventoryItem item = products.get(Symbols.name(draw.parts.keyAt(s)));
+            item.quantity -= draw.parts.quantityAt(s);
+            SupplyIndex.update(item);
+        }
+        return draw;
+    }
+
+    // Puts a reservation back, e.g. when a reserved run is cancelled
+    public synchronized void releaseMaterials(MaterialDraw draw) {
+        for (int s = draw.materials.nextSlot(-1); s >= 0; s = draw.materials.nextSlot(s)) {
+            materials.add(draw.materials.keyAt(s), draw.materials.quantityAt(s));
+        }
+        for (int s = draw.parts.nextSlot(-1); s >= 0; s = draw.parts.nextSlot(s)) {
+            addProduct(Symbols.name(draw.parts.keyAt(s)), draw.parts.quantityAt(s));
+        }
+    }
+
+    // Turns a reservation into finished products
+    public synchronized void commitProduction(ProductDesign design, int amount) {
+        addProduct(design.name, amount);
+    }
+
+    // What amount units of the design would take from stock, without taking it; the draw's shortage
+    // names the first material that runs short, or is -1
+    public synchronized MaterialDraw planMaterials(ProductDesign design, int amount) {
+        MaterialDraw draw = new MaterialDraw();
+        Bom bom = BillOfMaterials.explode(design);
+        if (holdsComponents(bom)) {
+            draw(design, amount, draw);
+        } else {
+            for (int i = 0; i < bom.ids.length; i++) {
+                take(bom.ids[i], Math.multiplyExact((long) bom.amounts[i], amount), draw);
+            }
+        }
+        return draw;
+    }
+
+    // How many units of the design the current materials and finished components cover
+    public synchronized int maxProducible(ProductDesign design) {
+        Bom bom = BillOfMaterials.explode(design);
+        if (!holdsComponents(bom)) {
+            int max = Integer.MAX_VALUE;
+            for (int i = 0; i < bom.ids.length; i++) {
+                max = Math.min(max, materials.get(bom.ids[i]) / bom.amounts[i]);
+            }
+            return max;
+        }
+        // Components in stock make the need non-linear in the amount, so search for the largest
+        // amount that plans without a shortage
+        int low = 0;
+        int high = 1;
+        while (high < Integer.MAX_VALUE && planMaterials(design, high).shortage < 0) {
+            low = high;
+            high = high > Integer.MAX_VALUE / 2 ? Integer.MAX_VALUE : high * 2;
+        }
+        while (high - low > 1) {
+            int mid = low + (high - low) / 2;
+            if (planMaterials(design, mid).shortage < 0) {
+                low = mid;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private boolean holdsComponents(Bom bom) {
+        for (ProductDesign component : bom.components) {
+            InventoryItem item = products.get(component.name);
+            if (item != null && item.quantity > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Adds units of the design's inputs to the draw, finished components before their inputs
+    private void draw(ProductDesign design, long units, MaterialDraw draw) {
+        for (InputMaterial input : design.materials) {
+            long need = Math.multiplyExact((long) input.amount, units);
+            if (input.component == null) {
+                take(input.id, need, draw);
+                continue;
+            }
+            InventoryItem item = products.get(input.component.name);
+            long used = Math.min(need, item == null ? 0 : item.quantity - draw.parts.get(input.component.id));
+            if (used > 0) {
+                draw.parts.add(input.component.id, (int) used);
+            }
+            if (need > used) {
+                draw(input.component, need - used, draw);
+            }
+        }
+    }
+
+    private void take(int id, long need, MaterialDraw draw) {
+        long total = draw.materials.get(id) + need;
+        draw.materials.set(id, (int) Math.min(total, Integer.MAX_VALUE));
+        if (draw.shortage < 0 && materials.get(id) < total) {
+            draw.shortage = id;
         }
     }
 }
 
 class Market {
     String name;
-    double balance;
-    Map<String, Integer> stock = new HashMap<>();
-    Map<String, Double> prices = new HashMap<>();
+    final Account balance;
+    // Stock, prices and reorder levels, striped by product
+    StripedInventory stock = new StripedInventory(this);
+    // Stock stripes are locked in this order relative to other entities
+    final long lockOrder = LockOrder.next();
+    // Money of resting bids, held until they fill or are cancelled
+    final Account escrow = new Account(0);
+    // Bid books by product ID, each guarded by the product's stock stripe
+    private volatile OrderBook[] books = new OrderBook[0];
+    int entityId = Journal.nextEntityId();
     
     public Market(String name, double balance) {
         this.name = name;
-        this.balance = balance;
+        this.balance = new Account(Money.cents(balance));
+        Journal.created(Journal.MARKET, entityId, name, this.balance.get());
     }
     
-    // Enhanced buyProduct method with better error handling
-    public boolean buyProduct(String product, int amount, double pricePerUnit, FactoryExtended factory) {
-        if (!factory.products.containsKey(product)) {
-            JOptionPane.showMessageDialog(null, "Product not available from this factory");
-            return false;
-        }
+    // Restocks from a factory through the headless trade engine
+    public TradeResult buyProduct(String product, int amount, long pricePerUnit, FactoryExtended factory) {
+        long start = Metrics.start();
+        RestockEvent event = RestockEvent.start();
+        TradeResult result = Journal.durable(TradeEngine.restock(this, factory, product, amount, pricePerUnit));
+        event.finish(this, factory, product, amount, pricePerUnit, result);
+        return Metrics.record(Metrics.MARKET_BUY, result, start);
+    }
 
-        InventoryItem item = factory.products.get(product);
-        if (item.quantity < amount) {
-            JOptionPane.showMessageDialog(null, "Not enough stock: requested " + amount + ", available " + item.quantity);
-            return false;
+    public TradeResult setPrice(String product, long price) {
+        long start = Metrics.start();
+        return Metrics.record(Metrics.SET_PRICE, applyPrice(product, price), start);
+    }
+
+    private TradeResult applyPrice(String product, long price) {
+        Journal.enter();
+        try {
+            if (price <= 0) {
+                return TradeResult.INVALID_PRICE;
+            }
+            int productId = Symbols.id(product);
+            Inventory stripe = stock.stripeFor(productId);
+            BidFills fills;
+            synchronized (stripe) {
+                stock.setPrice(productId, price);
+                Journal.set(Journal.MARKET_PRICE, entityId, productId, price);
+                // A lower price can bring resting bids into range
+                fills = TradeEngine.matchBids(this, productId, stripe);
+                Catalog.refresh(this, productId, stripe.get(productId));
+            }
+            if (fills != null) {
+                fills.deliver(productId);
+            }
+            return TradeResult.OK;
+        } finally {
+            Journal.exit();
         }
+    }
 
-        double totalCost = amount * pricePerUnit;
-        if (balance < totalCost) {
-            JOptionPane.showMessageDialog(null, "Not enough balance: cost " + String.format("%.2f", totalCost) + 
-                           ", available " + String.format("%.2f", balance));
-            return false;
+    // Has the Replenisher top the product up to target whenever its stock falls to point or below;
+    // a target of 0 clears the level
+    public TradeResult setReorderLevel(String product, int point, int target) {
+        Journal.enter();
+        try {
+            if (point < 0 || (target != 0 && target <= point)) {
+                return TradeResult.INVALID_AMOUNT;
+            }
+            int productId = Symbols.id(product);
+            synchronized (stock.stripeFor(productId)) {
+                stock.setReorderLevel(productId, target == 0 ? 0 : point, target);
+                Journal.set(Journal.REORDER_LEVEL, entityId, productId, target == 0 ? 0 : (long) point << 32 | target);
+            }
+            return TradeResult.OK;
+        } finally {
+            Journal.exit();
         }
+    }
 
-        // Successful transaction logic
-        item.quantity -= amount;
-        balance -= totalCost;
-        factory.balance += totalCost; // Pay the factory (adding economic flow)
-        
-        // Update stock
-        stock.put(product, stock.getOrDefault(product, 0) + amount);
-        return true;
+    // Reorder point and target of the product, 0 if it has no level
+    public int getReorderPoint(String product) {
+        int id = Symbols.find(product);
+        return id >= 0 ? stock.reorderPoint(id) : 0;
     }
-    
-    // Enhanced setPrice method with validation
-    public boolean setPrice(String product, double price) {
-        if (price <= 0) {
-            JOptionPane.showMessageDialog(null, "Price must be greater than zero");
-            return false;
+
+    public int getReorderTarget(String product) {
+        int id = Symbols.find(product);
+        return id >= 0 ? stock.reorderTarget(id) : 0;
+    }
+
+    // Bid book for the product, or null if nobody has bid on it here
+    OrderBook book(int productId) {
+        OrderBook[] current = books;
+        return productId < current.length ? current[productId] : null;
+    }
+
+    OrderBook bookFor(int productId) {
+        OrderBook book = book(productId);
+        if (book != null) {
+            return book;
+        }
+        synchronized (this) {
+            OrderBook[] current = books;
+            if (productId >= current.length) {
+                current = Arrays.copyOf(current, Math.max(productId + 1, current.length * 2));
+            }
+            if (current[productId] == null) {
+                current[productId] = new OrderBook();
+            }
+            books = current;
+            return current[productId];
         }
-        prices.put(product, price);
-        return true;
     }
     
-    public double getPrice(String product) {
-        return prices.getOrDefault(product, 0.0);
+    // Unit price in cents, 0 if none is set
+    public long getPrice(String product) {
+        int id = Symbols.find(product);
+        return id >= 0 ? stock.price(id) : 0;
+    }
+
+    public long getPrice(int productId) {
+        return stock.price(productId);
     }
     
     public String toString() {
-        return name + " (Balance: " + String.format("%.2f", balance) + ")";
+        return name + " (Balance: " + balance.format() + ")";
     }
 }
 
-// Main UI Classes
-class MainFrame extends JFrame {
-    private JPanel contentPanel;
-    private JPanel navPanel;
-    private JPanel displayPanel;
-    
-    private JPanel producerPanel;
-    private JPanel factoryPanel;
-    private JPanel marketPanel;
-    private JPanel customerPanel;
-    
-    DefaultListModel<Producer> producerListModel = new DefaultListModel<>();
-    DefaultListModel<FactoryExtended> factoryListModel = new DefaultListModel<>();
-    DefaultListModel<Market> marketListModel = new DefaultListModel<>();
-    DefaultListModel<Customer> customerListModel = new DefaultListModel<>();
-    
-    JList<Producer> producerList;
-    JList<FactoryExtended> factoryList;
-    JList<Market> marketList;
-    JList<Customer> customerList;
-    
-    public MainFrame() {
-        setTitle("Supply Chain Management System");
-        setSize(900, 600);
-        setDefaultCloseOperation(EXIT_ON_CLOSE);
-        
-        try {
-            UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
-        } catch (Exception e) {
-            e.printStackTrace();
+// Money is held as a long number of cents. Amounts typed by users or written in the demo data are
+// converted once at the boundary; nothing in the trade path uses floating point.
+final class Money {
+    private Money() {
+    }
+
+    static long cents(double amount) {
+        return Math.round(amount * 100);
+    }
+
+    // "1234.50" style, matching the old %.2f output without going through String.format
+    static String format(long cents) {
+        long units = cents / 100;
+        int rest = (int) Math.abs(cents % 100);
+        StringBuilder sb = new StringBuilder(24);
+        if (cents < 0 && units == 0) {
+            sb.append('-');
         }
-        
-        contentPanel = new JPanel(new BorderLayout());
-        contentPanel.setBackground(SupplyChainSystemGUI.backgroundColor);
-        
-        setupNavigation();
-        setupContentPanels();
-        
-        add(contentPanel);
-        
-        // Populate list models
-        for (Producer p : SupplyChainSystemGUI.producers) {
-            producerListModel.addElement(p);
+        sb.append(units).append('.');
+        if (rest < 10) {
+            sb.append('0');
         }
-        
-        for (FactoryExtended f : SupplyChainSystemGUI.factories) {
-            factoryListModel.addElement(f);
+        return sb.append(rest).toString();
+    }
+}
+
+// Append-only list behind the static entity lists. Appends take the list's monitor; reads take no
+// lock and see every element up to the size they read, since an element is stored before the size
+// that covers it is published. Iterating while another thread appends therefore sees a growing
+// prefix and never fails. clear() is for resetting, while nothing else uses the list.
+final class EntityList<T> extends AbstractList<T> implements RandomAccess {
+    private volatile Object[] items = new Object[16];
+    private volatile int size;
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " of " + size);
         }
-        
-        for (Market m : SupplyChainSystemGUI.markets) {
-            marketListModel.addElement(m);
+        return (T) items[index];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public synchronized boolean add(T item) {
+        Object[] current = items;
+        if (size == current.length) {
+            current = Arrays.copyOf(current, size * 2);
+            items = current;
         }
-        
-        for (Customer c : SupplyChainSystemGUI.customers) {
-            customerListModel.addElement(c);
+        current[size] = item;
+        size++;
+        return true;
+    }
+
+    public synchronized void ensureCapacity(int capacity) {
+        if (capacity > items.length) {
+            items = Arrays.copyOf(items, capacity);
         }
-        
-        setLocationRelativeTo(null);
-        setVisible(true);
     }
-    
-    private void setupNavigation() {
-        navPanel = new JPanel(new GridLayout(4, 1, 5, 5));
-        navPanel.setBackground(SupplyChainSystemGUI.backgroundColor);
-        navPanel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
-        
-        JButton producersBtn = createGradientButton("Producers");
-        JButton factoriesBtn = createGradientButton("Factories");
-        JButton marketsBtn = createGradientButton("Markets");
+
+    @Override
+    public synchronized void clear() {
+        size = 0;
+        items = new Object[16];
+    }
+}
+
+// A balance in cents. Every update is a CAS on a single long, so concurrent trades never lose an
+// update and no lock is needed to move money.
+final class Account {
+    private static final java.lang.invoke.VarHandle CENTS;
+    static {
+        try {
+            CENTS = java.lang.invoke.MethodHandles.lookup().findVarHandle(Account.class, "cents", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private volatile long cents;
+    // Last formatted value; rebuilt only after the balance changes
+    private volatile Label label;
+
+    Account(long cents) {
+        this.cents = cents;
+    }
+
+    public long get() {
+        return cents;
+    }
+
+    public void set(long cents) {
+        this.cents = cents;
+    }
+
+    // Sets the balance and returns the one it replaced
+    public long getAndSet(long cents) {
+        return (long) CENTS.getAndSet(this, cents);
+    }
+
+    public void deposit(long amount) {
+        CENTS.getAndAdd(this, amount);
+    }
+
+    // Takes the amount out if the balance covers it; only a positive amount can be withdrawn
+    public boolean withdraw(long amount) {
+        if (amount <= 0) {
+            return false;
+        }
+        long current;
+        do {
+            current = cents;
+            if (current < amount) {
+                return false;
+            }
+        } while (!CENTS.compareAndSet(this, current, current - amount));
+        return true;
+    }
+
+    // Debits from and credits to. The debit is the CAS that decides the transfer; the credit follows
+    // and cannot fail, so money is never created or lost, only briefly in flight between the two.
+    // Like withdraw, refuses an amount that is not positive.
+    static boolean transfer(Account from, Account to, long amount) {
+        if (!from.withdraw(amount)) {
+            return false;
+        }
+        to.deposit(amount);
+        return true;
+    }
+
+    public String format() {
+        long current = cents;
+        Label cached = label;
+        if (cached == null || cached.cents != current) {
+            cached = new Label(current, Money.format(current));
+            label = cached;
+        }
+        return cached.text;
+    }
+
+    public String toString() {
+        return format();
+    }
+
+    private static final class Label {
+        final long cents;
+        final String text;
+
+        Label(long cents, String text) {
+            this.cents = cents;
+            this.text = text;
+        }
+    }
+}
+
+// Interns product and material names to dense int IDs, so inventories can be keyed by primitives
+// and hot paths never hash a String. IDs are never reused.
+final class Symbols {
+    private static final java.util.concurrent.ConcurrentHashMap<String, Integer> ids = new java.util.concurrent.ConcurrentHashMap<>();
+    private static volatile String[] names = new String[64];
+    private static volatile int count;
+
+    private Symbols() {
+    }
+
+    // ID for the name, assigning a new one on first use
+    static int id(String name) {
+        Integer id = ids.get(name);
+        return id != null ? id : intern(name);
+    }
+
+    // ID for the name, or -1 if it has never been seen; lookups must not grow the table
+    static int find(String name) {
+        Integer id = ids.get(name);
+        return id != null ? id : -1;
+    }
+
+    static String name(int id) {
+        return names[id];
+    }
+
+    static int count() {
+        return count;
+    }
+
+    private static synchronized int intern(String name) {
+        Integer existing = ids.get(name);
+        if (existing != null) {
+            return existing;
+        }
+        String[] table = names;
+        if (count == table.length) {
+            table = Arrays.copyOf(table, count * 2);
+        }
+        table[count] = name;
+        names = table;
+        ids.put(name, count);
+        return count++;
+    }
+}
+
+// Open-addressing hash table keyed by symbol ID, with linear probing and backward-shift deletion.
+// Subclasses keep their values in a parallel primitive array indexed by slot. Iterate with
+//     for (int s = table.nextSlot(-1); s >= 0; s = table.nextSlot(s)) { table.keyAt(s) ... }
+abstract class IdTable {
+    private static final int MIN_CAPACITY = 8;
+
+    // Shared by every empty table so that idle holders cost no arrays; the first insert grows away from it
+    private static final int[] NO_KEYS = new int[1];
+
+    // Stores id + 1 so that a zeroed slot means empty
+    private int[] keys = NO_KEYS;
+    private int mask;
+    private int size;
+
+    // Replaces the value array with a fresh one of the given capacity and returns the old one
+    abstract Object allocateValues(int capacity);
+
+    // Copies the value at from in the old array to slot to of the current one
+    abstract void copyValue(Object oldValues, int from, int to);
+
+    // Moves a value between slots of the current array and clears the source
+    abstract void moveValue(int from, int to);
+
+    abstract void clearValue(int slot);
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean contains(int id) {
+        return slotOf(id) >= 0;
+    }
+
+    public boolean contains(String name) {
+        int id = Symbols.find(name);
+        return id >= 0 && contains(id);
+    }
+
+    public int keyAt(int slot) {
+        return keys[slot] - 1;
+    }
+
+    public String nameAt(int slot) {
+        return Symbols.name(keys[slot] - 1);
+    }
+
+    // Next occupied slot after the given one, or -1
+    public int nextSlot(int slot) {
+        int[] k = keys;
+        for (int s = slot + 1; s < k.length; s++) {
+            if (k[s] != 0) {
+                return s;
+            }
+        }
+        return -1;
+    }
+
+    final int slotOf(int id) {
+        int key = id + 1;
+        int[] k = keys;
+        for (int s = hash(key) & mask; ; s = (s + 1) & mask) {
+            int found = k[s];
+            if (found == key) {
+                return s;
+            }
+            if (found == 0) {
+                return -1;
+            }
+        }
+    }
+
+    // Slot holding the ID, claiming an empty one (with a cleared value) if it is not present
+    final int insertSlot(int id) {
+        int key = id + 1;
+        for (int s = hash(key) & mask; ; s = (s + 1) & mask) {
+            int found = keys[s];
+            if (found == key) {
+                return s;
+            }
+            if (found == 0) {
+                if (size + 1 > (keys.length >> 1) + (keys.length >> 2)) {
+                    grow();
+                    return insertSlot(id);
+                }
+                keys[s] = key;
+                size++;
+                return s;
+            }
+        }
+    }
+
+    final void removeSlot(int slot) {
+        int[] k = keys;
+        int hole = slot;
+        for (int s = (slot + 1) & mask; k[s] != 0; s = (s + 1) & mask) {
+            int home = hash(k[s]) & mask;
+            // Shift back entries whose probe sequence passes through the hole
+            if (((s - home) & mask) >= ((s - hole) & mask)) {
+                k[hole] = k[s];
+                moveValue(s, hole);
+                hole = s;
+            }
+        }
+        k[hole] = 0;
+        clearValue(hole);
+        size--;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        int capacity = Math.max(MIN_CAPACITY, oldKeys.length << 1);
+        Object oldValues = allocateValues(capacity);
+        keys = new int[capacity];
+        mask = capacity - 1;
+        for (int from = 0; from < oldKeys.length; from++) {
+            int key = oldKeys[from];
+            if (key != 0) {
+                int to = hash(key) & mask;
+                while (keys[to] != 0) {
+                    to = (to + 1) & mask;
+                }
+                keys[to] = key;
+                copyValue(oldValues, from, to);
+            }
+        }
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
+
+// Quantities per product or material, stored in a primitive int[] with no boxing. An entry can
+// hold zero, which is distinct from being absent (a market that has sold out still lists the product).
+class Inventory extends IdTable {
+    private int[] quantities;
+
+    @Override
+    Object allocateValues(int capacity) {
+        int[] old = quantities;
+        quantities = new int[capacity];
+        return old;
+    }
+
+    @Override
+    void copyValue(Object oldValues, int from, int to) {
+        quantities[to] = ((int[]) oldValues)[from];
+    }
+
+    @Override
+    void moveValue(int from, int to) {
+        quantities[to] = quantities[from];
+        quantities[from] = 0;
+    }
+
+    @Override
+    void clearValue(int slot) {
+        quantities[slot] = 0;
+    }
+
+    public int get(int id) {
+        int slot = slotOf(id);
+        return slot >= 0 ? quantities[slot] : 0;
+    }
+
+    public int get(String name) {
+        int id = Symbols.find(name);
+        return id >= 0 ? get(id) : 0;
+    }
+
+    public int quantityAt(int slot) {
+        return quantities[slot];
+    }
+
+    void setQuantityAt(int slot, int quantity) {
+        quantities[slot] = quantity;
+    }
+
+    public void set(int id, int quantity) {
+        int slot = insertSlot(id);
+        quantities[slot] = quantity;
+    }
+
+    public void set(String name, int quantity) {
+        set(Symbols.id(name), quantity);
+    }
+
+    // Adds delta (which may be negative) and returns the new quantity
+    public int add(int id, int delta) {
+        int slot = insertSlot(id);
+        return quantities[slot] += delta;
+    }
+
+    public int add(String name, int delta) {
+        return add(Symbols.id(name), delta);
+    }
+
+    public void remove(int id) {
+        int slot = slotOf(id);
+        if (slot >= 0) {
+            removeSlot(slot);
+        }
+    }
+
+    public void remove(String name) {
+        int id = Symbols.find(name);
+        if (id >= 0) {
+            remove(id);
+        }
+    }
+}
+
+interface IdQuantityConsumer {
+    void accept(int id, int quantity);
+}
+
+interface ReorderLevelConsumer {
+    void accept(int id, int point, int target);
+}
+
+interface IdPriceConsumer {
+    void accept(int id, long price);
+}
+
+// Stock split by product ID into independently locked stripes, so purchases of different products
+// from the same market never contend. Each stripe is an Inventory that serves as its own monitor;
+// structural changes such as a first restock of a product only ever touch one stripe.
+class StripedInventory {
+    static final int STRIPES = 8;
+
+    private final Inventory[] stripes = new Inventory[STRIPES];
+    // Unit prices and reorder levels, each table guarded by the stock stripe of the same index
+    private final PriceTable[] prices = new PriceTable[STRIPES];
+    private final ReorderTable[] levels = new ReorderTable[STRIPES];
+    // Market whose catalog offers follow this stock
+    private final Market owner;
+
+    StripedInventory(Market owner) {
+        this.owner = owner;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Inventory();
+            prices[i] = new PriceTable();
+            levels[i] = new ReorderTable();
+        }
+    }
+
+    // The stripe owning the product; hold its monitor while touching it
+    Inventory stripeFor(int id) {
+        return stripes[stripeOf(id)];
+    }
+
+    // Index of the product's stripe; within one market, stripes are locked in this order
+    static int stripeOf(int id) {
+        return id & (STRIPES - 1);
+    }
+
+    public int get(int id) {
+        Inventory stripe = stripeFor(id);
+        synchronized (stripe) {
+            return stripe.get(id);
+        }
+    }
+
+    public int get(String name) {
+        int id = Symbols.find(name);
+        return id >= 0 ? get(id) : 0;
+    }
+
+    public boolean contains(int id) {
+        Inventory stripe = stripeFor(id);
+        synchronized (stripe) {
+            return stripe.contains(id);
+        }
+    }
+
+    public boolean contains(String name) {
+        int id = Symbols.find(name);
+        return id >= 0 && contains(id);
+    }
+
+    public void set(int id, int quantity) {
+        Journal.enter();
+        try {
+            Inventory stripe = stripeFor(id);
+            synchronized (stripe) {
+                int before = stripe.get(id);
+                stripe.set(id, quantity);
+                Journal.set(Journal.MARKET_STOCK, owner.entityId, id, quantity);
+                if ((before > 0) != (quantity > 0)) {
+                    Catalog.refresh(owner, id, quantity);
+                }
+                lowered(id, quantity);
+            }
+        } finally {
+            Journal.exit();
+        }
+    }
+
+    public void set(String name, int quantity) {
+        set(Symbols.id(name), quantity);
+    }
+
+    public int add(int id, int delta) {
+        Journal.enter();
+        try {
+            Inventory stripe = stripeFor(id);
+            synchronized (stripe) {
+                int after = stripe.add(id, delta);
+                Journal.delta(Journal.MARKET_STOCK, owner.entityId, id, delta);
+                if ((after - delta > 0) != (after > 0)) {
+                    Catalog.refresh(owner, id, after);
+                }
+                if (delta < 0) {
+                    lowered(id, after);
+                }
+                return after;
+            }
+        } finally {
+            Journal.exit();
+        }
+    }
+
+    public int add(String name, int delta) {
+        return add(Symbols.id(name), delta);
+    }
+
+    public int size() {
+        int size = 0;
+        for (Inventory stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    // Unit price in cents, 0 if none is set
+    public long price(int id) {
+        synchronized (stripeFor(id)) {
+            return prices[stripeOf(id)].get(id);
+        }
+    }
+
+    // Called with the product's stripe held
+    void setPrice(int id, long price) {
+        prices[stripeOf(id)].set(id, price);
+    }
+
+    // Visits every priced product, one stripe at a time under that stripe's lock
+    public void forEachPrice(IdPriceConsumer action) {
+        for (int i = 0; i < STRIPES; i++) {
+            PriceTable table = prices[i];
+            synchronized (stripes[i]) {
+                for (int s = table.nextSlot(-1); s >= 0; s = table.nextSlot(s)) {
+                    action.accept(table.keyAt(s), table.priceAt(s));
+                }
+            }
+        }
+    }
+
+    // Called with the product's stripe held
+    void setReorderLevel(int id, int point, int target) {
+        ReorderTable table = levels[id & (STRIPES - 1)];
+        table.set(id, point, target);
+        lowered(id, stripeFor(id).get(id));
+    }
+
+    public int reorderPoint(int id) {
+        synchronized (stripeFor(id)) {
+            return levels[id & (STRIPES - 1)].point(id);
+        }
+    }
+
+    public int reorderTarget(int id) {
+        synchronized (stripeFor(id)) {
+            return levels[id & (STRIPES - 1)].target(id);
+        }
+    }
+
+    // Queues the product with the Replenisher once its stock has fallen to the reorder point, unless
+    // it is already queued. Called with the product's stripe held after any sale out of it.
+    void lowered(int id, int quantity) {
+        ReorderTable table = levels[id & (STRIPES - 1)];
+        int slot = table.slotOf(id);
+        if (slot >= 0 && quantity <= table.pointAt(slot) && table.targetAt(slot) > 0 && !table.queuedAt(slot)) {
+            table.setQueuedAt(slot, true);
+            Replenisher.queue(owner, id);
+        }
+    }
+
+    // Units a queued product needs to reach its target, or 0 (dequeuing it) if it no longer needs any
+    int shortfall(int id) {
+        Inventory stripe = stripeFor(id);
+        synchronized (stripe) {
+            ReorderTable table = levels[id & (STRIPES - 1)];
+            int slot = table.slotOf(id);
+            int quantity = stripe.get(id);
+            if (slot < 0 || quantity > table.pointAt(slot) || table.targetAt(slot) == 0) {
+                if (slot >= 0) {
+                    table.setQueuedAt(slot, false);
+                }
+                return 0;
+            }
+            return table.targetAt(slot) - quantity;
+        }
+    }
+
+    // Dequeues a product after its restock landed, queueing it again if sales have already taken it
+    // back down to the reorder point
+    void replenished(int id) {
+        Inventory stripe = stripeFor(id);
+        synchronized (stripe) {
+            ReorderTable table = levels[id & (STRIPES - 1)];
+            int slot = table.slotOf(id);
+            if (slot >= 0) {
+                table.setQueuedAt(slot, false);
+                lowered(id, stripe.get(id));
+            }
+        }
+    }
+
+    // Visits every product with a reorder level, one stripe at a time under that stripe's lock
+    public void forEachReorderLevel(ReorderLevelConsumer action) {
+        for (int i = 0; i < STRIPES; i++) {
+            ReorderTable table = levels[i];
+            synchronized (stripes[i]) {
+                for (int s = table.nextSlot(-1); s >= 0; s = table.nextSlot(s)) {
+                    if (table.targetAt(s) > 0) {
+                        action.accept(table.keyAt(s), table.pointAt(s), table.targetAt(s));
+                    }
+                }
+            }
+        }
+    }
+
+    // Visits every entry, one stripe at a time under that stripe's lock
+    public void forEach(IdQuantityConsumer action) {
+        for (Inventory stripe : stripes) {
+            synchronized (stripe) {
+                for (int s = stripe.nextSlot(-1); s >= 0; s = stripe.nextSlot(s)) {
+                    action.accept(stripe.keyAt(s), stripe.quantityAt(s));
+                }
+            }
+        }
+    }
+}
+
+// Hands out a global acquisition order for entity locks. Anything that holds two entities' locks at
+// once takes the one with the lower order first, so concurrent trades can never deadlock. Several
+// stock stripes of one market are taken in StripedInventory.stripeOf order.
+final class LockOrder {
+    private static final java.util.concurrent.atomic.AtomicLong next = new java.util.concurrent.atomic.AtomicLong();
+
+    private LockOrder() {
+    }
+
+    static long next() {
+        return next.getAndIncrement();
+    }
+}
+
+// Unit prices per product, in cents, stored in a primitive long[]
+class PriceTable extends IdTable {
+    private long[] prices;
+
+    @Override
+    Object allocateValues(int capacity) {
+        long[] old = prices;
+        prices = new long[capacity];
+        return old;
+    }
+
+    @Override
+    void copyValue(Object oldValues, int from, int to) {
+        prices[to] = ((long[]) oldValues)[from];
+    }
+
+    @Override
+    void moveValue(int from, int to) {
+        prices[to] = prices[from];
+        prices[from] = 0;
+    }
+
+    @Override
+    void clearValue(int slot) {
+        prices[slot] = 0;
+    }
+
+    // Price for the product, 0 if none is set
+    public long get(int id) {
+        int slot = slotOf(id);
+        return slot >= 0 ? prices[slot] : 0;
+    }
+
+    public long get(String name) {
+        int id = Symbols.find(name);
+        return id >= 0 ? get(id) : 0;
+    }
+
+    public long priceAt(int slot) {
+        return prices[slot];
+    }
+
+    public void set(int id, long price) {
+        int slot = insertSlot(id);
+        prices[slot] = price;
+    }
+
+    public void set(String name, long price) {
+        set(Symbols.id(name), price);
+    }
+}
+
+// Reorder point and target per product, packed into a primitive long[] with a flag marking products
+// the Replenisher has queued. A cleared level keeps its slot so the flag outlives it.
+class ReorderTable extends IdTable {
+    private static final long QUEUED = 1L << 31;
+
+    // point << 32 | queued flag | target
+    private long[] levels;
+
+    @Override
+    Object allocateValues(int capacity) {
+        long[] old = levels;
+        levels = new long[capacity];
+        return old;
+    }
+
+    @Override
+    void copyValue(Object oldValues, int from, int to) {
+        levels[to] = ((long[]) oldValues)[from];
+    }
+
+    @Override
+    void moveValue(int from, int to) {
+        levels[to] = levels[from];
+        levels[from] = 0;
+    }
+
+    @Override
+    void clearValue(int slot) {
+        levels[slot] = 0;
+    }
+
+    public int point(int id) {
+        int slot = slotOf(id);
+        return slot >= 0 ? pointAt(slot) : 0;
+    }
+
+    public int target(int id) {
+        int slot = slotOf(id);
+        return slot >= 0 ? targetAt(slot) : 0;
+    }
+
+    public int pointAt(int slot) {
+        return (int) (levels[slot] >>> 32);
+    }
+
+    public int targetAt(int slot) {
+        return (int) (levels[slot] & (QUEUED - 1));
+    }
+
+    boolean queuedAt(int slot) {
+        return (levels[slot] & QUEUED) != 0;
+    }
+
+    void setQueuedAt(int slot, boolean queued) {
+        levels[slot] = queued ? levels[slot] | QUEUED : levels[slot] & ~QUEUED;
+    }
+
+    public void set(int id, int point, int target) {
+        int slot = insertSlot(id);
+        levels[slot] = (long) point << 32 | (levels[slot] & QUEUED) | target;
+    }
+}
+
+// One unit of a design flattened to leaf materials, with repeated materials merged
+final class Bom {
+    final int[] ids;
+    final int[] amounts;
+    // Every design below this one, each once
+    final ProductDesign[] components;
+    final long epoch;
+
+    Bom(int[] ids, int[] amounts, ProductDesign[] components, long epoch) {
+        this.ids = ids;
+        this.amounts = amounts;
+        this.components = components;
+        this.epoch = epoch;
+    }
+}
+
+// What one manufacturing run takes from a factory: finished components out of its products and
+// leaf materials out of its materials, both by ID
+final class MaterialDraw {
+    final Inventory parts = new Inventory();
+    final Inventory materials = new Inventory();
+    // First material the run is short of, or -1; materials then holds the whole need for it
+    int shortage = -1;
+}
+
+// Explodes nested designs into leaf material needs. Each design memoizes its explosion; any change to
+// a design bumps a global epoch, which invalidates every cached explosion at once. Designs change
+// rarely (from the UI), while explosions are read on every manufacture call.
+final class BillOfMaterials {
+    private static final java.util.concurrent.atomic.AtomicLong epoch = new java.util.concurrent.atomic.AtomicLong();
+
+    private BillOfMaterials() {
+    }
+
+    static void invalidate() {
+        epoch.incrementAndGet();
+    }
+
+    static Bom explode(ProductDesign design) {
+        long current = epoch.get();
+        Bom cached = design.bom;
+        if (cached != null && cached.epoch == current) {
+            return cached;
+        }
+
+        Inventory leaves = new Inventory();
+        ArrayList<ProductDesign> components = new ArrayList<>();
+        accumulate(design, 1, leaves, components, new ArrayList<>());
+        int[] ids = new int[leaves.size()];
+        int[] amounts = new int[ids.length];
+        int n = 0;
+        for (int s = leaves.nextSlot(-1); s >= 0; s = leaves.nextSlot(s)) {
+            ids[n] = leaves.keyAt(s);
+            amounts[n++] = leaves.quantityAt(s);
+        }
+        // Stamped with the epoch read before the walk, so a concurrent change forces a recompute
+        Bom bom = new Bom(ids, amounts, components.toArray(new ProductDesign[0]), current);
+        design.bom = bom;
+        return bom;
+    }
+
+    private static void accumulate(ProductDesign design, int multiplier, Inventory leaves,
+                                   ArrayList<ProductDesign> components, ArrayList<ProductDesign> path) {
+        if (path.contains(design)) {
+            throw new IllegalStateException("Design " + design.name + " contains itself");
+        }
+        path.add(design);
+        for (InputMaterial material : design.materials) {
+            int units = Math.multiplyExact(material.amount, multiplier);
+            if (material.component != null) {
+                if (!components.contains(material.component)) {
+                    components.add(material.component);
+                }
+                accumulate(material.component, units, leaves, components, path);
+            } else {
+                leaves.add(material.id, units);
+            }
+        }
+        path.remove(path.size() - 1);
+    }
+}
+
+// One factory's offer of a product in the supply index
+final class Supplier {
+    final FactoryExtended factory;
+    final InventoryItem item;
+    final long cost;
+
+    Supplier(FactoryExtended factory, InventoryItem item, long cost) {
+        this.factory = factory;
+        this.item = item;
+        this.cost = cost;
+    }
+}
+
+// The suppliers of one product ordered by unit cost, with a max-quantity segment tree over them, so
+// the cheapest factory holding at least n units is found by one root-to-leaf walk. Quantity changes
+// are O(log n) point updates. A new or removed supplier only marks the tree dirty; the next query
+// re-sorts once, so loading thousands of factories costs a single O(n log n) build.
+final class SupplierTree {
+    private static final Comparator<Supplier> CHEAPEST_FIRST =
+            Comparator.<Supplier>comparingLong(s -> s.cost).thenComparingLong(s -> s.factory.lockOrder);
+
+    private Supplier[] suppliers = new Supplier[4];
+    private int size;
+    private boolean dirty;
+    // max[1] is the root; leaf i lives at max[leaves + i]
+    private int[] max = new int[2];
+    private int leaves = 1;
+
+    synchronized void add(Supplier supplier) {
+        if (size == suppliers.length) {
+            suppliers = Arrays.copyOf(suppliers, size * 2);
+        }
+        suppliers[size++] = supplier;
+        dirty = true;
+    }
+
+    synchronized void remove(InventoryItem item) {
+        for (int i = 0; i < size; i++) {
+            if (suppliers[i].item == item) {
+                suppliers[i] = suppliers[--size];
+                suppliers[size] = null;
+                dirty = true;
+                return;
+            }
+        }
+    }
+
+    synchronized void update(InventoryItem item) {
+        if (dirty) {
+            // The rebuild reads every quantity fresh
+            return;
+        }
+        int node = leaves + item.supplySlot;
+        max[node] = item.quantity;
+        for (node >>= 1; node > 0; node >>= 1) {
+            max[node] = Math.max(max[2 * node], max[2 * node + 1]);
+        }
+    }
+
+    // Cheapest supplier with at least amount units, or null
+    synchronized Supplier cheapest(int amount) {
+        if (dirty) {
+            rebuild();
+        }
+        if (size == 0 || max[1] < amount) {
+            return null;
+        }
+        int node = 1;
+        while (node < leaves) {
+            node = max[2 * node] >= amount ? 2 * node : 2 * node + 1;
+        }
+        return suppliers[node - leaves];
+    }
+
+    private void rebuild() {
+        Arrays.sort(suppliers, 0, size, CHEAPEST_FIRST);
+        leaves = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+        max = new int[2 * leaves];
+        for (int i = 0; i < size; i++) {
+            suppliers[i].item.supplySlot = i;
+            max[leaves + i] = suppliers[i].item.quantity;
+        }
+        for (int node = leaves - 1; node > 0; node--) {
+            max[node] = Math.max(max[2 * node], max[2 * node + 1]);
+        }
+        dirty = false;
+    }
+}
+
+// Product ID -> SupplierTree for every factory product, kept current by the code paths that change
+// factory stock. Each tree's monitor is a leaf lock: it is taken under factory and stripe locks but
+// never waits on anything else.
+final class SupplyIndex {
+    private static volatile SupplierTree[] trees = new SupplierTree[64];
+
+    private SupplyIndex() {
+    }
+
+    static void register(FactoryExtended factory, InventoryItem item, long cost) {
+        tree(item.id).add(new Supplier(factory, item, cost));
+    }
+
+    static void unregister(InventoryItem item) {
+        tree(item.id).remove(item);
+    }
+
+    static void update(InventoryItem item) {
+        tree(item.id).update(item);
+    }
+
+    // Lowest-cost factory holding at least amount units of the product, or null
+    static Supplier cheapest(int productId, int amount) {
+        SupplierTree[] current = trees;
+        SupplierTree tree = productId < current.length ? current[productId] : null;
+        return tree != null ? tree.cheapest(amount) : null;
+    }
+
+    private static SupplierTree tree(int productId) {
+        SupplierTree[] current = trees;
+        if (productId < current.length && current[productId] != null) {
+            return current[productId];
+        }
+        synchronized (SupplyIndex.class) {
+            current = trees;
+            if (productId >= current.length) {
+                current = Arrays.copyOf(current, Math.max(productId + 1, current.length * 2));
+            }
+            if (current[productId] == null) {
+                current[productId] = new SupplierTree();
+            }
+            trees = current;
+            return current[productId];
+        }
+    }
+}
+
+// A market's standing offer of one product. It is listed in the catalog while the market has both
+// stock and a price for the product.
+final class Offer {
+    final Market market;
+    final int productId;
+    long price;
+    // Position in the product's OfferHeap
+    int index;
+    private volatile String label;
+
+    Offer(Market market, int productId) {
+        this.market = market;
+        this.productId = productId;
+    }
+
+    void reprice(long price) {
+        this.price = price;
+        label = market.name + " - " + Money.format(price);
+    }
+
+    public String toString() {
+        return label;
+    }
+}
+
+// Binary min-heap of one product's offers by (price, market lock order), with each offer tracking
+// its own index so a reprice or delisting is an O(log n) sift rather than a rebuild.
+final class OfferHeap {
+    private static final Comparator<Offer> CHEAPEST_FIRST =
+            Comparator.<Offer>comparingLong(o -> o.price).thenComparingLong(o -> o.market.lockOrder);
+
+    private final Map<Market, Offer> byMarket = new HashMap<>();
+    private Offer[] heap = new Offer[4];
+    private int size;
+
+    synchronized int size() {
+        return size;
+    }
+
+    // Lists the market's offer at the given price, or moves it if already listed
+    synchronized void put(Market market, int productId, long price) {
+        Offer offer = byMarket.get(market);
+        if (offer == null) {
+            offer = new Offer(market, productId);
+            offer.reprice(price);
+            byMarket.put(market, offer);
+            if (size == heap.length) {
+                heap = Arrays.copyOf(heap, size * 2);
+            }
+            offer.index = size;
+            heap[size++] = offer;
+            siftUp(offer.index);
+        } else if (offer.price != price) {
+            long old = offer.price;
+            offer.reprice(price);
+            if (price < old) {
+                siftUp(offer.index);
+            } else {
+                siftDown(offer.index);
+            }
+        }
+    }
+
+    synchronized void remove(Market market) {
+        Offer offer = byMarket.remove(market);
+        if (offer == null) {
+            return;
+        }
+        int i = offer.index;
+        Offer last = heap[--size];
+        heap[size] = null;
+        if (i < size) {
+            heap[i] = last;
+            last.index = i;
+            siftDown(i);
+            siftUp(last.index);
+        }
+    }
+
+    // Offers ranked from..from+count-1 by price. Walks the heap best-first, so a page costs
+    // O((from + count) log) regardless of how many markets list the product.
+    synchronized java.util.List<Offer> page(int from, int count) {
+        java.util.List<Offer> page = new ArrayList<>(Math.min(count, size));
+        if (size == 0 || count <= 0) {
+            return page;
+        }
+        PriorityQueue<Offer> frontier = new PriorityQueue<>(CHEAPEST_FIRST);
+        frontier.add(heap[0]);
+        for (int rank = 0; rank < from + count && !frontier.isEmpty(); rank++) {
+            Offer offer = frontier.poll();
+            if (rank >= from) {
+                page.add(offer);
+            }
+            int child = 2 * offer.index + 1;
+            if (child < size) {
+                frontier.add(heap[child]);
+            }
+            if (child + 1 < size) {
+                frontier.add(heap[child + 1]);
+            }
+        }
+        return page;
+    }
+
+    private void siftUp(int i) {
+        Offer offer = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >> 1;
+            if (CHEAPEST_FIRST.compare(offer, heap[parent]) >= 0) {
+                break;
+            }
+            heap[i] = heap[parent];
+            heap[i].index = i;
+            i = parent;
+        }
+        heap[i] = offer;
+        offer.index = i;
+    }
+
+    private void siftDown(int i) {
+        Offer offer = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && CHEAPEST_FIRST.compare(heap[child + 1], heap[child]) < 0) {
+                child++;
+            }
+            if (CHEAPEST_FIRST.compare(heap[child], offer) >= 0) {
+                break;
+            }
+            heap[i] = heap[child];
+            heap[i].index = i;
+            i = child;
+        }
+        heap[i] = offer;
+        offer.index = i;
+    }
+}
+
+// Cross-market catalog: product ID -> OfferHeap, maintained as market stock and prices change so the
+// shop never rescans markets. Stock only matters when it crosses zero, so the purchase path pays a
+// comparison unless it sells out. Callers hold the market's stripe lock for the product, which
+// orders updates to one offer; heap monitors are leaf locks.
+final class Catalog {
+    private static volatile OfferHeap[] heaps = new OfferHeap[64];
+
+    private Catalog() {
+    }
+
+    // Re-lists or delists the market's offer from its current price and the given quantity
+    static void refresh(Market market, int productId, int quantity) {
+        long price = market.getPrice(productId);
+        if (quantity > 0 && price > 0) {
+            heap(productId).put(market, productId, price);
+        } else {
+            OfferHeap heap = find(productId);
+            if (heap != null) {
+                heap.remove(market);
+            }
+        }
+    }
+
+    // Names of products offered by at least one market, in interning order
+    static java.util.List<String> products() {
+        OfferHeap[] current = heaps;
+        java.util.List<String> products = new ArrayList<>();
+        for (int id = 0; id < current.length; id++) {
+            if (current[id] != null && current[id].size() > 0) {
+                products.add(Symbols.name(id));
+            }
+        }
+        return products;
+    }
+
+    static int offerCount(int productId) {
+        OfferHeap heap = find(productId);
+        return heap != null ? heap.size() : 0;
+    }
+
+    // Offers for the product, cheapest first, starting at rank from
+    static java.util.List<Offer> offers(int productId, int from, int count) {
+        OfferHeap heap = find(productId);
+        return heap != null ? heap.page(from, count) : new ArrayList<>();
+    }
+
+    private static OfferHeap find(int productId) {
+        OfferHeap[] current = heaps;
+        return productId >= 0 && productId < current.length ? current[productId] : null;
+    }
+
+    private static OfferHeap heap(int productId) {
+        OfferHeap heap = find(productId);
+        if (heap != null) {
+            return heap;
+        }
+        synchronized (Catalog.class) {
+            OfferHeap[] current = heaps;
+            if (productId >= current.length) {
+                current = Arrays.copyOf(current, Math.max(productId + 1, current.length * 2));
+            }
+            if (current[productId] == null) {
+                current[productId] = new OfferHeap();
+            }
+            heaps = current;
+            return current[productId];
+        }
+    }
+}
+
+// Receives the executions of OrderBook.fill: owner's order took quantity at its own limit price
+interface FillSink {
+    void onFill(Object owner, int quantity, long price);
+}
+
+// Bid side of a limit order book with price-time priority. Orders live in parallel primitive
+// arrays recycled through a free list, and each price level is a FIFO threaded through those
+// arrays, so posting, cancelling and filling allocate nothing once the arrays have grown. Levels
+// are kept sorted ascending with the best bid last, which makes consuming the top of the book O(1).
+// Not thread-safe; TradeEngine guards each book with its market's stock stripe lock.
+final class OrderBook {
+    private static final int NONE = -1;
+
+    // Order slots
+    private long[] orderPrice = new long[16];
+    private int[] orderQuantity = new int[16];
+    private int[] orderNext = new int[16];
+    private int[] orderPrev = new int[16];
+    private int[] orderGeneration = new int[16];
+    private Object[] orderOwner = new Object[16];
+    private int orderSlots;
+    private int freeSlot = NONE;
+    private int orders;
+
+    // Price levels, ascending
+    private long[] levelPrice = new long[8];
+    private int[] levelHead = new int[8];
+    private int[] levelTail = new int[8];
+    private long[] levelQuantity = new long[8];
+    private int levels;
+
+    public int orders() {
+        return orders;
+    }
+
+    public int levels() {
+        return levels;
+    }
+
+    // Highest bid price, 0 if the book is empty
+    public long bestBid() {
+        return levels > 0 ? levelPrice[levels - 1] : 0;
+    }
+
+    // Quantity bid at exactly the price
+    public long quantityAt(long price) {
+        int level = findLevel(price);
+        return level >= 0 ? levelQuantity[level] : 0;
+    }
+
+    // Rests a bid behind every earlier bid at the same price and returns its order ID
+    public long bid(Object owner, int quantity, long price) {
+        int slot = allocate();
+        orderPrice[slot] = price;
+        orderQuantity[slot] = quantity;
+        orderOwner[slot] = owner;
+        orderNext[slot] = NONE;
+
+        int level = findLevel(price);
+        if (level < 0) {
+            level = insertLevel(-level - 1, price);
+        }
+        int tail = levelTail[level];
+        orderPrev[slot] = tail;
+        if (tail == NONE) {
+            levelHead[level] = slot;
+        } else {
+            orderNext[tail] = slot;
+        }
+        levelTail[level] = slot;
+        levelQuantity[level] += quantity;
+        orders++;
+        return ((long) orderGeneration[slot] << 32) | slot;
+    }
+
+    // Owner of a live order, or null once it has filled or been cancelled
+    public Object owner(long orderId) {
+        int slot = liveSlot(orderId);
+        return slot >= 0 ? orderOwner[slot] : null;
+    }
+
+    // Unfilled quantity of a live order, 0 once it is gone
+    public int quantity(long orderId) {
+        int slot = liveSlot(orderId);
+        return slot >= 0 ? orderQuantity[slot] : 0;
+    }
+
+    public long price(long orderId) {
+        int slot = liveSlot(orderId);
+        return slot >= 0 ? orderPrice[slot] : 0;
+    }
+
+    // Removes a live order and returns its unfilled quantity, 0 if it no longer exists
+    public int cancel(long orderId) {
+        int slot = liveSlot(orderId);
+        if (slot < 0) {
+            return 0;
+        }
+        int quantity = orderQuantity[slot];
+        int level = findLevel(orderPrice[slot]);
+        int prev = orderPrev[slot];
+        int next = orderNext[slot];
+        if (prev == NONE) {
+            levelHead[level] = next;
+        } else {
+            orderNext[prev] = next;
+        }
+        if (next == NONE) {
+            levelTail[level] = prev;
+        } else {
+            orderPrev[next] = prev;
+        }
+        levelQuantity[level] -= quantity;
+        if (levelHead[level] == NONE) {
+            removeLevel(level);
+        }
+        release(slot);
+        return quantity;
+    }
+
+    // Sells up to quantity into the bids priced at or above minPrice, best price first and oldest
+    // first within a price. Each execution is reported at the bid's price. Returns the amount sold.
+    public int fill(int quantity, long minPrice, FillSink sink) {
+        int remaining = quantity;
+        while (remaining > 0 && levels > 0 && levelPrice[levels - 1] >= minPrice) {
+            int level = levels - 1;
+            long price = levelPrice[level];
+            int slot = levelHead[level];
+            while (remaining > 0 && slot != NONE) {
+                int take = Math.min(remaining, orderQuantity[slot]);
+                sink.onFill(orderOwner[slot], take, price);
+                remaining -= take;
+                levelQuantity[level] -= take;
+                int next = orderNext[slot];
+                if (take == orderQuantity[slot]) {
+                    release(slot);
+                    slot = next;
+                } else {
+                    orderQuantity[slot] -= take;
+                }
+            }
+            levelHead[level] = slot;
+            if (slot == NONE) {
+                levels--;
+            } else {
+                orderPrev[slot] = NONE;
+            }
+        }
+        return quantity - remaining;
+    }
+
+    // Visits every resting order, best price first; used for per-owner housekeeping, not matching
+    public void forEachOrder(java.util.function.LongConsumer action) {
+        for (int level = levels - 1; level >= 0; level--) {
+            for (int slot = levelHead[level]; slot != NONE; slot = orderNext[slot]) {
+                action.accept(((long) orderGeneration[slot] << 32) | slot);
+            }
+        }
+    }
+
+    private int liveSlot(long orderId) {
+        int slot = (int) orderId;
+        if (slot < 0 || slot >= orderSlots || orderOwner[slot] == null
+                || orderGeneration[slot] != (int) (orderId >>> 32)) {
+            return NONE;
+        }
+        return slot;
+    }
+
+    private int allocate() {
+        int slot = freeSlot;
+        if (slot != NONE) {
+            freeSlot = orderNext[slot];
+            return slot;
+        }
+        if (orderSlots == orderPrice.length) {
+            int capacity = orderSlots * 2;
+            orderPrice = Arrays.copyOf(orderPrice, capacity);
+            orderQuantity = Arrays.copyOf(orderQuantity, capacity);
+            orderNext = Arrays.copyOf(orderNext, capacity);
+            orderPrev = Arrays.copyOf(orderPrev, capacity);
+            orderGeneration = Arrays.copyOf(orderGeneration, capacity);
+            orderOwner = Arrays.copyOf(orderOwner, capacity);
+        }
+        return orderSlots++;
+    }
+
+    // A new generation makes stale IDs of the slot's previous order miss
+    private void release(int slot) {
+        orderOwner[slot] = null;
+        orderGeneration[slot]++;
+        orderNext[slot] = freeSlot;
+        freeSlot = slot;
+        orders--;
+    }
+
+    // Level index of the price, or -(insertion point) - 1
+    private int findLevel(long price) {
+        int low = 0;
+        int high = levels - 1;
+        // Most activity is at the top of the book
+        if (high >= 0 && levelPrice[high] == price) {
+            return high;
+        }
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long p = levelPrice[mid];
+            if (p < price) {
+                low = mid + 1;
+            } else if (p > price) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -low - 1;
+    }
+
+    private int insertLevel(int at, long price) {
+        if (levels == levelPrice.length) {
+            int capacity = levels * 2;
+            levelPrice = Arrays.copyOf(levelPrice, capacity);
+            levelHead = Arrays.copyOf(levelHead, capacity);
+            levelTail = Arrays.copyOf(levelTail, capacity);
+            levelQuantity = Arrays.copyOf(levelQuantity, capacity);
+        }
+        int moved = levels - at;
+        System.arraycopy(levelPrice, at, levelPrice, at + 1, moved);
+        System.arraycopy(levelHead, at, levelHead, at + 1, moved);
+        System.arraycopy(levelTail, at, levelTail, at + 1, moved);
+        System.arraycopy(levelQuantity, at, levelQuantity, at + 1, moved);
+        levelPrice[at] = price;
+        levelHead[at] = NONE;
+        levelTail[at] = NONE;
+        levelQuantity[at] = 0;
+        levels++;
+        return at;
+    }
+
+    private void removeLevel(int level) {
+        int moved = levels - level - 1;
+        System.arraycopy(levelPrice, level + 1, levelPrice, level, moved);
+        System.arraycopy(levelHead, level + 1, levelHead, level, moved);
+        System.arraycopy(levelTail, level + 1, levelTail, level, moved);
+        System.arraycopy(levelQuantity, level + 1, levelQuantity, level, moved);
+        levels--;
+    }
+}
+
+// Collects one matching pass's fills so goods can be delivered after the stock stripe is released;
+// a customer's inventory lock must never be taken while holding a stripe out of lock order.
+final class BidFills implements FillSink {
+    private Customer[] customers = new Customer[4];
+    private int[] quantities = new int[4];
+    private long[] prices = new long[4];
+    private int count;
+    long proceeds;
+
+    @Override
+    public void onFill(Object owner, int quantity, long price) {
+        if (count == customers.length) {
+            customers = Arrays.copyOf(customers, count * 2);
+            quantities = Arrays.copyOf(quantities, count * 2);
+            prices = Arrays.copyOf(prices, count * 2);
+        }
+        customers[count] = (Customer) owner;
+        prices[count] = price;
+        quantities[count++] = quantity;
+        proceeds += quantity * price;
+    }
+
+    void log(Journal.Txn txn, Market market, int productId) {
+        for (int i = 0; i < count; i++) {
+            TradeEngine.logSale(txn, customers[i], market, productId, quantities[i], prices[i]);
+        }
+    }
+
+    void deliver(int productId) {
+        for (int i = 0; i < count; i++) {
+            customers[i].addProduct(productId, quantities[i]);
+        }
+    }
+}
+
+// A batch of material lines bought from one producer in a single settlement: the producer's stock
+// is checked and taken for every line, then one balance transfer pays for the whole order.
+final class MaterialOrder {
+    int[] ids = new int[4];
+    int[] amounts = new int[4];
+    long[] prices = new long[4];
+    int lines;
+
+    public MaterialOrder add(String material, int amount, long pricePerUnit) {
+        return add(Symbols.id(material), amount, pricePerUnit);
+    }
+
+    public MaterialOrder add(int materialId, int amount, long pricePerUnit) {
+        if (lines == ids.length) {
+            ids = Arrays.copyOf(ids, lines * 2);
+            amounts = Arrays.copyOf(amounts, lines * 2);
+            prices = Arrays.copyOf(prices, lines * 2);
+        }
+        ids[lines] = materialId;
+        amounts[lines] = amount;
+        prices[lines] = pricePerUnit;
+        lines++;
+        return this;
+    }
+
+    public int lines() {
+        return lines;
+    }
+
+    public boolean contains(int materialId) {
+        for (int i = 0; i < lines; i++) {
+            if (ids[i] == materialId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Sum of every line's cost, or -1 if it does not fit in a long
+    public long total() {
+        long total = 0;
+        for (int i = 0; i < lines; i++) {
+            long cost = TradeEngine.cost(amounts[i], prices[i]);
+            if (cost < 0 || total > Long.MAX_VALUE - cost) {
+                return -1;
+            }
+            total += cost;
+        }
+        return total;
+    }
+
+    public void clear() {
+        lines = 0;
+    }
+}
+
+// Restock lines that one factory sells in a Replenisher cycle, settled together
+final class RestockBatch {
+    Market[] markets = new Market[4];
+    int[] ids = new int[4];
+    int[] amounts = new int[4];
+    long[] prices = new long[4];
+    // Outcome of each line, filled in by TradeEngine.restockBatch
+    TradeResult[] results = new TradeResult[4];
+    int lines;
+
+    public RestockBatch add(Market market, int productId, int amount, long pricePerUnit) {
+        if (lines == ids.length) {
+            markets = Arrays.copyOf(markets, lines * 2);
+            ids = Arrays.copyOf(ids, lines * 2);
+            amounts = Arrays.copyOf(amounts, lines * 2);
+            prices = Arrays.copyOf(prices, lines * 2);
+            results = Arrays.copyOf(results, lines * 2);
+        }
+        markets[lines] = market;
+        ids[lines] = productId;
+        amounts[lines] = amount;
+        prices[lines] = pricePerUnit;
+        results[lines] = null;
+        lines++;
+        return this;
+    }
+
+    public int lines() {
+        return lines;
+    }
+}
+
+// Lines a customer buys from any number of markets, settled by TradeEngine.checkout as one
+// all-or-nothing trade. Filled and checked out by one thread at a time.
+final class Basket {
+    Market[] markets = new Market[4];
+    int[] ids = new int[4];
+    int[] amounts = new int[4];
+    long[] prices = new long[4];
+    int lines;
+    // The line that stopped the last checkout, or -1 if none did or the total was unaffordable
+    int failedLine = -1;
+
+    // A product no market has ever stocked is kept as -1 and fails the checkout as unknown
+    public Basket add(Market market, String product, int amount, long pricePerUnit) {
+        return add(market, Symbols.find(product), amount, pricePerUnit);
+    }
+
+    public Basket add(Market market, int productId, int amount, long pricePerUnit) {
+        if (lines == ids.length) {
+            markets = Arrays.copyOf(markets, lines * 2);
+            ids = Arrays.copyOf(ids, lines * 2);
+            amounts = Arrays.copyOf(amounts, lines * 2);
+            prices = Arrays.copyOf(prices, lines * 2);
+        }
+        markets[lines] = market;
+        ids[lines] = productId;
+        amounts[lines] = amount;
+        prices[lines] = pricePerUnit;
+        lines++;
+        return this;
+    }
+
+    public int lines() {
+        return lines;
+    }
+
+    // Sum of every line's cost, or -1 if it does not fit in a long
+    public long total() {
+        long total = 0;
+        for (int i = 0; i < lines; i++) {
+            long cost = TradeEngine.cost(amounts[i], prices[i]);
+            if (cost < 0 || total > Long.MAX_VALUE - cost) {
+                return -1;
+            }
+            total += cost;
+        }
+        return total;
+    }
+
+    public void clear() {
+        Arrays.fill(markets, 0, lines, null);
+        lines = 0;
+        failedLine = -1;
+    }
+}
+
+// Outcome of a domain transaction. The constants are shared, so rejecting a trade allocates nothing;
+// only the UI turns them into text.
+enum TradeResult {
+    OK("Success"),
+    UNKNOWN_PRODUCT("Product not available"),
+    INSUFFICIENT_STOCK("Not enough stock"),
+    INSUFFICIENT_BALANCE("Not enough balance"),
+    INSUFFICIENT_MATERIALS("Not enough materials"),
+    INVALID_AMOUNT("Amount must be greater than zero"),
+    INVALID_PRICE("Price must be greater than zero"),
+    BID_QUEUED("Bid placed; it fills as stock arrives");
+
+    final String message;
+
+    TradeResult(String message) {
+        this.message = message;
+    }
+
+    public boolean isOk() {
+        return this == OK || this == BID_QUEUED;
+    }
+}
+
+// Latency histogram in the manner of HdrHistogram. Values below 2^SUB_BUCKET_BITS are counted
+// exactly; above that each power of two is split into SUB_BUCKETS / 2 linear steps, so a value is
+// reported at most about 3% high, and the range from 1 ns to over a minute fits in 1024 counters.
+// Recording is one atomic increment and never blocks; readers see each counter exactly but not
+// all of them at one instant, which is fine for reporting.
+final class LatencyHistogram {
+    static final int SUB_BUCKET_BITS = 6;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Values of 2^MAX_BITS ns (about 69 s) and above share the top counter
+    static final int MAX_BITS = 36;
+    static final int COUNTERS = (MAX_BITS - SUB_BUCKET_BITS + 2) * (SUB_BUCKETS / 2);
+
+    private final java.util.concurrent.atomic.AtomicLongArray counts = new java.util.concurrent.atomic.AtomicLongArray(COUNTERS);
+    private final java.util.concurrent.atomic.AtomicLong max = new java.util.concurrent.atomic.AtomicLong();
+
+    void record(long nanos) {
+        counts.incrementAndGet(index(nanos));
+        long seen = max.get();
+        while (nanos > seen && !max.compareAndSet(seen, nanos)) {
+            seen = max.get();
+        }
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) Math.max(0, value);
+        }
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int index = shift * (SUB_BUCKETS / 2) + (int) (value >>> shift);
+        return Math.min(index, COUNTERS - 1);
+    }
+
+    // Largest value that lands in the counter
+    static long highestAt(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / (SUB_BUCKETS / 2) - 1;
+        long sub = index - shift * (SUB_BUCKETS / 2);
+        return ((sub + 1) << shift) - 1;
+    }
+
+    long count() {
+        long total = 0;
+        for (int i = 0; i < COUNTERS; i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    long max() {
+        return max.get();
+    }
+
+    // Values at the given fractions (ascending, e.g. 0.5, 0.99) of count recorded values, in one pass
+    long[] percentiles(long count, double... fractions) {
+        long[] values = new long[fractions.length];
+        long seen = 0;
+        int next = 0;
+        for (int i = 0; i < COUNTERS && next < fractions.length; i++) {
+            seen += counts.get(i);
+            while (next < fractions.length && seen >= Math.max(1, (long) Math.ceil(fractions[next] * count))) {
+                values[next++] = Math.min(highestAt(i), max.get());
+            }
+        }
+        return values;
+    }
+}
+
+// Counts and latency histograms for the domain operations behind the dialogs and the APIs, one per
+// operation and TradeResult, so a failure reason that turns slow or frequent stands out on its own.
+// Every count is the total of its histogram. Recording costs two nanoTime reads and an atomic
+// increment; -Dsupplychain.metrics=false turns it off. A histogram is created the first time its
+// pair is recorded.
+final class Metrics {
+    static final boolean ENABLED = !"false".equals(System.getProperty("supplychain.metrics"));
+
+    // Operations, indexing OPERATIONS
+    static final int CUSTOMER_BUY = 0;
+    static final int PLACE_BID = 1;
+    static final int CUSTOMER_DESTROY = 2;
+    static final int MARKET_BUY = 3;
+    static final int SET_PRICE = 4;
+    static final int MANUFACTURE = 5;
+    static final int BUY_MATERIALS = 6;
+    static final int DESTROY_MATERIALS = 7;
+    static final int DESTROY_PRODUCTS = 8;
+    static final int REPLENISH = 9;
+    static final int PRODUCTION = 10;
+    static final int CHECKOUT = 11;
+    static final int CANCEL_BIDS = 12;
+
+    static final String[] OPERATIONS = {
+            "Customer.buyProduct", "Customer.placeBid", "Customer.removeProduct", "Market.buyProduct",
+            "Market.setPrice", "Factory.manufacture", "Factory.buyMaterials", "Factory.destroyMaterials",
+            "Factory.destroyProducts", "Replenisher.restockBatch",
+            "ProductionScheduler.run", "Customer.checkout", "Customer.cancelBids"};
+    static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private static final TradeResult[] RESULTS = TradeResult.values();
+    private static final java.util.concurrent.atomic.AtomicReferenceArray<LatencyHistogram> histograms =
+            new java.util.concurrent.atomic.AtomicReferenceArray<>(OPERATIONS.length * RESULTS.length);
+
+    private Metrics() {}
+
+    static long start() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    // Records the operation's latency since start under its result, and passes the result on
+    static TradeResult record(int operation, TradeResult result, long start) {
+        if (ENABLED) {
+            long nanos = System.nanoTime() - start;
+            int slot = operation * RESULTS.length + result.ordinal();
+            LatencyHistogram histogram = histograms.get(slot);
+            if (histogram == null) {
+                histograms.compareAndSet(slot, null, new LatencyHistogram());
+                histogram = histograms.get(slot);
+            }
+            histogram.record(nanos);
+        }
+        return result;
+    }
+
+    // Starts every histogram over; recordings racing with the reset may land on either side
+    static void reset() {
+        for (int i = 0; i < histograms.length(); i++) {
+            histograms.set(i, null);
+        }
+    }
+
+    // One row per operation and result recorded so far
+    static final class Row {
+        final String operation;
+        final TradeResult result;
+        final long count;
+        final long[] percentiles;
+        final long max;
+
+        Row(String operation, TradeResult result, long count, long[] percentiles, long max) {
+            this.operation = operation;
+            this.result = result;
+            this.count = count;
+            this.percentiles = percentiles;
+            this.max = max;
+        }
+    }
+
+    static java.util.List<Row> rows() {
+        java.util.List<Row> rows = new ArrayList<>();
+        for (int op = 0; op < OPERATIONS.length; op++) {
+            for (TradeResult result : RESULTS) {
+                LatencyHistogram histogram = histograms.get(op * RESULTS.length + result.ordinal());
+                if (histogram == null) {
+                    continue;
+                }
+                long count = histogram.count();
+                if (count > 0) {
+                    rows.add(new Row(OPERATIONS[op], result, count, histogram.percentiles(count, PERCENTILES), histogram.max()));
+                }
+            }
+        }
+        return rows;
+    }
+
+    // The rows as a fixed-width table, for logs and headless runs
+    static String dump() {
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("%-26s %-22s %12s %9s %9s %9s %9s %9s%n",
+                "Operation", "Result", "Count", "p50", "p90", "p99", "p99.9", "Max"));
+        for (Row row : rows()) {
+            out.append(String.format("%-26s %-22s %12d %9s %9s %9s %9s %9s%n", row.operation, row.result, row.count,
+                    latency(row.percentiles[0]), latency(row.percentiles[1]), latency(row.percentiles[2]),
+                    latency(row.percentiles[3]), latency(row.max)));
+        }
+        return out.toString();
+    }
+
+    // 850 ns, 12.3 us, 4.56 ms, 1.20 s
+    static String latency(long nanos) {
+        if (nanos < 1_000) {
+            return nanos + " ns";
+        } else if (nanos < 1_000_000) {
+            return String.format("%.1f us", nanos / 1e3);
+        } else if (nanos < 1_000_000_000) {
+            return String.format("%.2f ms", nanos / 1e6);
+        }
+        return String.format("%.2f s", nanos / 1e9);
+    }
+}
+
+// Flight Recorder events for the domain and the UI, so a slow session can be profiled from an
+// always-on recording (-XX:StartFlightRecording) and broken down by operation and entity. Trades
+// run at millions a second, so by default only those slower than their threshold are written;
+// a .jfc or +supplychain.Purchase#threshold=0ms on -XX:StartFlightRecording records every one.
+// Each event is begun before the operation, ended after it, and filled in only if it will be
+// committed.
+@jdk.jfr.Name("supplychain.Purchase")
+@jdk.jfr.Label("Customer Purchase")
+@jdk.jfr.Category({"Supply Chain", "Trades"})
+@jdk.jfr.Threshold("20 us")
+final class PurchaseEvent extends jdk.jfr.Event {
+    @jdk.jfr.Label("Customer") String customer;
+    @jdk.jfr.Label("Market") String market;
+    @jdk.jfr.Label("Product") String product;
+    @jdk.jfr.Label("Amount") int amount;
+    @jdk.jfr.Label("Unit Price (cents)") long price;
+    @jdk.jfr.Label("Bid") boolean bid;
+    @jdk.jfr.Label("Result") String result;
+
+    static PurchaseEvent start() {
+        PurchaseEvent event = new PurchaseEvent();
+        event.begin();
+        return event;
+    }
+
+    // The product goes by name, or by ID when product is null
+    void finish(Customer customer, Market market, String product, int productId, int amount, long price, boolean bid,
+             TradeResult result) {
+        end();
+        if (shouldCommit()) {
+            this.customer = customer.name;
+            this.market = market.name;
+            this.product = product != null ? product : Symbols.name(productId);
+            this.amount = amount;
+            this.price = price;
+            this.bid = bid;
+            this.result = result.name();
+            commit();
+        }
+    }
+}
+
+@jdk.jfr.Name("supplychain.Restock")
+@jdk.jfr.Label("Market Restock")
+@jdk.jfr.Category({"Supply Chain", "Trades"})
+@jdk.jfr.Threshold("20 us")
+final class RestockEvent extends jdk.jfr.Event {
+    @jdk.jfr.Label("Market") String market;
+    @jdk.jfr.Label("Factory") String factory;
+    @jdk.jfr.Label("Product") String product;
+    @jdk.jfr.Label("Amount") int amount;
+    @jdk.jfr.Label("Unit Price (cents)") long price;
+    @jdk.jfr.Label("Result") String result;
+
+    static RestockEvent start() {
+        RestockEvent event = new RestockEvent();
+        event.begin();
+        return event;
+    }
+
+    void finish(Market market, FactoryExtended factory, String product, int amount, long price, TradeResult result) {
+        end();
+        if (shouldCommit()) {
+            this.market = market.name;
+            this.factory = factory.name;
+            this.product = product;
+            this.amount = amount;
+            this.price = price;
+            this.result = result.name();
+            commit();
+        }
+    }
+}
+
+@jdk.jfr.Name("supplychain.Checkout")
+@jdk.jfr.Label("Basket Checkout")
+@jdk.jfr.Category({"Supply Chain", "Trades"})
+@jdk.jfr.Threshold("20 us")
+final class CheckoutEvent extends jdk.jfr.Event {
+    @jdk.jfr.Label("Customer") String customer;
+    @jdk.jfr.Label("Lines") int lines;
+    @jdk.jfr.Label("Total (cents)") long total;
+    @jdk.jfr.Label("Failed Line") int failedLine;
+    @jdk.jfr.Label("Result") String result;
+
+    static CheckoutEvent start() {
+        CheckoutEvent event = new CheckoutEvent();
+        event.begin();
+        return event;
+    }
+
+    void finish(Customer customer, Basket basket, TradeResult result) {
+        end();
+        if (shouldCommit()) {
+            this.customer = customer.name;
+            this.lines = basket.lines;
+            this.total = basket.total();
+            this.failedLine = basket.failedLine;
+            this.result = result.name();
+            commit();
+        }
+    }
+}
+
+@jdk.jfr.Name("supplychain.BidCancel")
+@jdk.jfr.Label("Bid Cancel")
+@jdk.jfr.Category({"Supply Chain", "Trades"})
+@jdk.jfr.Threshold("20 us")
+final class BidCancelEvent extends jdk.jfr.Event {
+    @jdk.jfr.Label("Customer") String customer;
+    @jdk.jfr.Label("Market") String market;
+    @jdk.jfr.Label("Product") String product;
+    @jdk.jfr.Label("Result") String result;
+
+    static BidCancelEvent start() {
+        BidCancelEvent event = new BidCancelEvent();
+        event.begin();
+        return event;
+    }
+
+    void finish(Customer customer, Market market, String product, TradeResult result) {
+        end();
+        if (shouldCommit()) {
+            this.customer = customer.name;
+            this.market = market.name;
+            this.product = product;
+            this.result = result.name();
+            commit();
+        }
+    }
+}
+
+@jdk.jfr.Name("supplychain.Manufacture")
+@jdk.jfr.Label("Manufacture")
+@jdk.jfr.Category({"Supply Chain", "Production"})
+@jdk.jfr.Threshold("20 us")
+final class ManufactureEvent extends jdk.jfr.Event {
+    @jdk.jfr.Label("Factory") String factory;
+    @jdk.jfr.Label("Design") String design;
+    @jdk.jfr.Label("Amount") int amount;
+    @jdk.jfr.Label("Result") String result;
+
+    static ManufactureEvent start() {
+        ManufactureEvent event = new ManufactureEvent();
+        event.begin();
+        return event;
+    }
+
+    void finish(FactoryExtended factory, ProductDesign design, int amount, TradeResult result) {
+        end();
+        if (shouldCommit()) {
+            this.factory = factory.name;
+            this.design = design.name;
+            this.amount = amount;
+            this.result = result.name();
+            commit();
+        }
+    }
+}
+
+// Headless transaction core. Nothing here touches Swing, so trades can be driven from any thread and
+// the dialogs only render the returned TradeResult. A trade locks the stock stripe for its product
+// and the counterparty's goods, in LockOrder, so many customers can buy from the same market at once.
+// Money moves between Accounts by CAS and never needs a lock of its own.
+final class TradeEngine {
+    private TradeEngine() {
+    }
+
+    // Cost of amount units at a non-negative price, or -1 if it does not fit in a long
+    static long cost(long amount, long price) {
+        long high = Math.multiplyHigh(amount, price);
+        long low = amount * price;
+        return high == 0 && low >= 0 ? low : -1;
+    }
+
+    // Customer buys from a market's stock
+    static TradeResult purchase(Customer customer, Market market, String product, int amount, long price) {
+        int productId = Symbols.find(product);
+        if (productId < 0) {
+            return TradeResult.UNKNOWN_PRODUCT;
+        }
+        return purchase(customer, market, productId, amount, price);
+    }
+
+    static TradeResult purchase(Customer customer, Market market, int productId, int amount, long price) {
+        Journal.enter();
+        try {
+            if (amount <= 0) {
+                return TradeResult.INVALID_AMOUNT;
+            }
+            // Callers pass the market's price, which is 0 while the market has not priced the product
+            if (price <= 0) {
+                return TradeResult.INVALID_PRICE;
+            }
+            long cost = cost(amount, price);
+            if (cost < 0) {
+                return TradeResult.INVALID_AMOUNT;
+            }
+
+            Inventory stripe = market.stock.stripeFor(productId);
+            Object first = customer;
+            Object second = stripe;
+            if (market.lockOrder < customer.lockOrder) {
+                first = stripe;
+                second = customer;
+            }
+
+            synchronized (first) {
+                synchronized (second) {
+                    int slot = stripe.slotOf(productId);
+                    if (slot < 0) {
+                        return TradeResult.UNKNOWN_PRODUCT;
+                    }
+                    int available = stripe.quantityAt(slot);
+                    if (available < amount) {
+                        return TradeResult.INSUFFICIENT_STOCK;
+                    }
+
+                    if (!Account.transfer(customer.balance, market.balance, cost)) {
+                        return TradeResult.INSUFFICIENT_BALANCE;
+                    }
+
+                    stripe.setQuantityAt(slot, available - amount);
+                    if (available == amount) {
+                        Catalog.refresh(market, productId, 0);
+                    }
+                    market.stock.lowered(productId, available - amount);
+                    customer.inventory.add(productId, amount);
+                    Journal.Txn txn = Journal.begin();
+                    if (txn != null) {
+                        logSale(txn, customer, market, productId, amount, price);
+                        txn.commit();
+                    }
+                    return TradeResult.OK;
+                }
+            }
+        } finally {
+            Journal.exit();
+        }
+    }
+
+    // Customer buys every line of a basket, from any number of markets, as one trade: all of it
+    // goes through or none of it does. The customer and every stock stripe the basket touches are
+    // locked together in LockOrder, so baskets and single purchases can overlap any way without
+    // deadlocking. Each line's stock is taken in turn and put back if a later line falls short,
+    // then one withdrawal pays for everything and one journal record holds it.
+    static TradeResult checkout(Customer customer, Basket basket) {
+        Journal.enter();
+        try {
+            basket.failedLine = -1;
+            if (basket.lines == 0) {
+                return TradeResult.INVALID_AMOUNT;
+            }
+            for (int i = 0; i < basket.lines; i++) {
+                TradeResult invalid = basket.amounts[i] <= 0 ? TradeResult.INVALID_AMOUNT
+                        : basket.prices[i] <= 0 ? TradeResult.INVALID_PRICE
+                        : basket.ids[i] < 0 ? TradeResult.UNKNOWN_PRODUCT
+                        : null;
+                if (invalid != null) {
+                    basket.failedLine = i;
+                    return invalid;
+                }
+            }
+            long total = basket.total();
+            if (total < 0) {
+                return TradeResult.INVALID_AMOUNT;
+            }
+
+            // Every monitor to hold, keyed by lock order and then stripe; baskets are short, so an
+            // insertion sort that drops repeats is enough
+            int count = 1;
+            long[] keys = new long[basket.lines + 1];
+            Object[] locks = new Object[basket.lines + 1];
+            keys[0] = customer.lockOrder * StripedInventory.STRIPES;
+            locks[0] = customer;
+            for (int i = 0; i < basket.lines; i++) {
+                Market market = basket.markets[i];
+                long key = market.lockOrder * StripedInventory.STRIPES + StripedInventory.stripeOf(basket.ids[i]);
+                int at = count;
+                while (at > 0 && keys[at - 1] > key) {
+                    at--;
+                }
+                if (at > 0 && keys[at - 1] == key) {
+                    continue;
+                }
+                System.arraycopy(keys, at, keys, at + 1, count - at);
+                System.arraycopy(locks, at, locks, at + 1, count - at);
+                keys[at] = key;
+                locks[at] = market.stock.stripeFor(basket.ids[i]);
+                count++;
+            }
+            return settle(customer, basket, total, locks, count, 0);
+        } finally {
+            Journal.exit();
+        }
+    }
+
+    // Takes the next monitor, and settles the basket once all of them are held
+    private static TradeResult settle(Customer customer, Basket basket, long total, Object[] locks, int count, int held) {
+        if (held < count) {
+            synchronized (locks[held]) {
+                return settle(customer, basket, total, locks, count, held + 1);
+            }
+        }
+
+        // Stock left after each line, for the catalog and reorder hooks once the basket is paid for
+        int[] left = new int[basket.lines];
+        TradeResult result = TradeResult.OK;
+        int taken = 0;
+        for (; taken < basket.lines; taken++) {
+            Inventory stripe = basket.markets[taken].stock.stripeFor(basket.ids[taken]);
+            int slot = stripe.slotOf(basket.ids[taken]);
+            if (slot < 0) {
+                result = TradeResult.UNKNOWN_PRODUCT;
+                break;
+            }
+            int available = stripe.quantityAt(slot);
+            if (available < basket.amounts[taken]) {
+                result = TradeResult.INSUFFICIENT_STOCK;
+                break;
+            }
+            left[taken] = available - basket.amounts[taken];
+            stripe.setQuantityAt(slot, left[taken]);
+        }
+        if (result == TradeResult.OK && !customer.balance.withdraw(total)) {
+            result = TradeResult.INSUFFICIENT_BALANCE;
+        } else if (result != TradeResult.OK) {
+            basket.failedLine = taken;
+        }
+        if (result != TradeResult.OK) {
+            // Every stripe is still held, so nothing saw the stock that is put back
+            for (int i = taken - 1; i >= 0; i--) {
+                Inventory stripe = basket.markets[i].stock.stripeFor(basket.ids[i]);
+                int slot = stripe.slotOf(basket.ids[i]);
+                stripe.setQuantityAt(slot, stripe.quantityAt(slot) + basket.amounts[i]);
+            }
+            return result;
+        }
+
+        for (int i = 0; i < basket.lines; i++) {
+            Market market = basket.markets[i];
+            int productId = basket.ids[i];
+            market.balance.deposit(basket.amounts[i] * basket.prices[i]);
+            if (left[i] == 0) {
+                Catalog.refresh(market, productId, 0);
+            }
+            market.stock.lowered(productId, left[i]);
+            customer.inventory.add(productId, basket.amounts[i]);
+        }
+        Journal.Txn txn = Journal.begin();
+        if (txn != null) {
+            for (int i = 0; i < basket.lines; i++) {
+                logSale(txn, customer, basket.markets[i], basket.ids[i], basket.amounts[i], basket.prices[i]);
+            }
+            txn.commit();
+        }
+        return TradeResult.OK;
+    }
+
+    // Market restocks from a factory's finished products
+    static TradeResult restock(Market market, FactoryExtended factory, String product, int amount, long pricePerUnit) {
+        Journal.enter();
+        try {
+            if (amount <= 0) {
+                return TradeResult.INVALID_AMOUNT;
+            }
+            if (pricePerUnit < 0) {
+                return TradeResult.INVALID_PRICE;
+            }
+            long cost = cost(amount, pricePerUnit);
+            if (cost < 0) {
+                return TradeResult.INVALID_AMOUNT;
+            }
+
+            // Every product a factory holds was interned when its InventoryItem was created
+            int productId = Symbols.find(product);
+            if (productId < 0) {
+                return TradeResult.UNKNOWN_PRODUCT;
+            }
+
+            Inventory stripe = market.stock.stripeFor(productId);
+            Object first = factory;
+            Object second = stripe;
+            if (market.lockOrder < factory.lockOrder) {
+                first = stripe;
+                second = factory;
+            }
+
+            BidFills fills;
+            synchronized (first) {
+                synchronized (second) {
+                    InventoryItem item = factory.products.get(product);
+                    if (item == null) {
+                        return TradeResult.UNKNOWN_PRODUCT;
+                    }
+                    if (item.quantity < amount) {
+                        return TradeResult.INSUFFICIENT_STOCK;
+                    }
+
+                    if (cost > 0 && !Account.transfer(market.balance, factory.balance, cost)) {
+                        return TradeResult.INSUFFICIENT_BALANCE;
+                    }
+
+                    item.quantity -= amount;
+                    SupplyIndex.update(item);
+                    if (stripe.add(productId, amount) == amount) {
+                        Catalog.refresh(market, productId, amount);
+                    }
+                    Journal.Txn txn = Journal.begin();
+                    if (txn != null) {
+                        txn.delta(Journal.BALANCE, market.entityId, -1, -cost)
+                                .delta(Journal.BALANCE, factory.entityId, -1, cost)
+                                .delta(Journal.FACTORY_PRODUCT, factory.entityId, productId, -amount)
+                                .delta(Journal.MARKET_STOCK, market.entityId, productId, amount)
+                                .commit();
+                    }
+                    fills = matchBids(market, productId, stripe);
+                }
+            }
+            if (fills != null) {
+                fills.deliver(productId);
+            }
+            return TradeResult.OK;
+        } finally {
+            Journal.exit();
+        }
+    }
+
+    // Settles all the lines a factory sells in one replenishment cycle as a single trade. The
+    // factory's lock is taken once to hand over every line's goods and collect one payment; each
+    // line is then delivered under its own stock stripe, so no two entity locks are ever held
+    // together, and the whole batch is journaled as one record once it is paid for. Lines fail on
+    // their own: a market short of money or a product the factory ran out of only skips that line.
+    // Returns OK if any line went through, otherwise the first line's failure.
+    static TradeResult restockBatch(FactoryExtended factory, RestockBatch batch) {
+        Journal.enter();
+        try {
+            long total = 0;
+            int settled = 0;
+            synchronized (factory) {
+                for (int i = 0; i < batch.lines; i++) {
+                    int amount = batch.amounts[i];
+                    long cost = amount > 0 && batch.prices[i] >= 0 ? cost(amount, batch.prices[i]) : -1;
+                    InventoryItem item = factory.products.get(Symbols.name(batch.ids[i]));
+                    if (amount <= 0) {
+                        batch.results[i] = TradeResult.INVALID_AMOUNT;
+                    } else if (batch.prices[i] < 0) {
+                        batch.results[i] = TradeResult.INVALID_PRICE;
+                    } else if (cost < 0 || total > Long.MAX_VALUE - cost) {
+                        batch.results[i] = TradeResult.INVALID_AMOUNT;
+                    } else if (item == null) {
+                        batch.results[i] = TradeResult.UNKNOWN_PRODUCT;
+                    } else if (item.quantity < amount) {
+                        batch.results[i] = TradeResult.INSUFFICIENT_STOCK;
+                    } else if (cost > 0 && !batch.markets[i].balance.withdraw(cost)) {
+                        batch.results[i] = TradeResult.INSUFFICIENT_BALANCE;
+                    } else {
+                        item.quantity -= amount;
+                        SupplyIndex.update(item);
+                        total += cost;
+                        settled++;
+                        batch.results[i] = TradeResult.OK;
+                    }
+                }
+                factory.balance.deposit(total);
+            }
+            if (settled == 0) {
+                return batch.lines > 0 ? batch.results[0] : TradeResult.INVALID_AMOUNT;
+            }
+
+            // Committed before any line is delivered, as restock() does, so the bid fills a delivery
+            // triggers are journaled after the stock they sell
+            Journal.Txn txn = Journal.begin();
+            if (txn != null) {
+                txn.delta(Journal.BALANCE, factory.entityId, -1, total);
+                for (int i = 0; i < batch.lines; i++) {
+                    if (batch.results[i] == TradeResult.OK) {
+                        Market market = batch.markets[i];
+                        txn.delta(Journal.BALANCE, market.entityId, -1, -batch.amounts[i] * batch.prices[i])
+                                .delta(Journal.FACTORY_PRODUCT, factory.entityId, batch.ids[i], -batch.amounts[i])
+                                .delta(Journal.MARKET_STOCK, market.entityId, batch.ids[i], batch.amounts[i]);
+                    }
+                }
+                txn.commit();
+            }
+
+            for (int i = 0; i < batch.lines; i++) {
+                if (batch.results[i] != TradeResult.OK) {
+                    continue;
+                }
+                Market market = batch.markets[i];
+                int productId = batch.ids[i];
+                Inventory stripe = market.stock.stripeFor(productId);
+                BidFills fills;
+                synchronized (stripe) {
+                    if (stripe.add(productId, batch.amounts[i]) == batch.amounts[i]) {
+                        Catalog.refresh(market, productId, batch.amounts[i]);
+                    }
+                    fills = matchBids(market, productId, stripe);
+                }
+                if (fills != null) {
+                    fills.deliver(productId);
+                }
+            }
+            return TradeResult.OK;
+        } finally {
+            Journal.exit();
+        }
+    }
+
+    // Customer bids for a product. Resting bids that the market can already fill go first; then
+    // whatever stock is left at or below the limit is bought at the market's price, and the rest of
+    // the bid waits in the book. The whole bid is escrowed up front so a later fill never needs the
+    // customer's balance or lock.
+    static TradeResult placeBid(Customer customer, Market market, String product, int amount, long limit) {
+        Journal.enter();
+        try {
+            if (amount <= 0) {
+                return TradeResult.INVALID_AMOUNT;
+            }
+            if (limit <= 0) {
+                return TradeResult.INVALID_PRICE;
+            }
+            long escrow = cost(amount, limit);
+            if (escrow < 0) {
+                return TradeResult.INVALID_AMOUNT;
+            }
+            // A bid for a product nothing has ever named would hold its escrow forever
+            int productId = Symbols.find(product);
+            if (productId < 0) {
+                return TradeResult.UNKNOWN_PRODUCT;
+            }
+            if (!Account.transfer(customer.balance, market.escrow, escrow)) {
+                return TradeResult.INSUFFICIENT_BALANCE;
+            }
+
+            Inventory stripe = market.stock.stripeFor(productId);
+            BidFills fills;
+            int bought = 0;
+            synchronized (stripe) {
+                fills = matchBids(market, productId, stripe);
+                long ask = market.getPrice(productId);
+                int slot = stripe.slotOf(productId);
+                if (ask > 0 && ask <= limit && slot >= 0) {
+                    int available = stripe.quantityAt(slot);
+                    bought = Math.min(available, amount);
+                    if (bought > 0) {
+                        stripe.setQuantityAt(slot, available - bought);
+                        if (available == bought) {
+                            Catalog.refresh(market, productId, 0);
+                        }
+                        market.stock.lowered(productId, available - bought);
+                        Account.transfer(market.escrow, market.balance, bought * ask);
+                        Account.transfer(market.escrow, customer.balance, bought * (limit - ask));
+                        Journal.Txn txn = Journal.begin();
+                        if (txn != null) {
+                            logSale(txn, customer, market, productId, bought, ask);
+                            txn.commit();
+                        }
+                    }
+                }
+                if (bought < amount) {
+                    market.bookFor(productId).bid(customer, amount - bought, limit);
+                }
+            }
+            if (fills != null) {
+                fills.deliver(productId);
+            }
+            if (bought > 0) {
+                customer.addProduct(productId, bought);
+            }
+            return bought == amount ? TradeResult.OK : TradeResult.BID_QUEUED;
+        } finally {
+            Journal.exit();
+        }
+    }
+
+    // Withdraws all of the customer's resting bids for the product and refunds their escrow
+    static TradeResult cancelBids(Customer customer, Market market, String product) {
+        Journal.enter();
+        try {
+            int productId = Symbols.find(product);
+            OrderBook book = productId >= 0 ? market.book(productId) : null;
+            if (book == null) {
+                return TradeResult.UNKNOWN_PRODUCT;
+            }
+            synchronized (market.stock.stripeFor(productId)) {
+                long[] mine = new long[book.orders()];
+                int[] count = new int[1];
+                book.forEachOrder(orderId -> {
+                    if (book.owner(orderId) == customer) {
+                        mine[count[0]++] = orderId;
+                    }
+                });
+                for (int i = 0; i < count[0]; i++) {
+                    long price = book.price(mine[i]);
+                    Account.transfer(market.escrow, customer.balance, book.cancel(mine[i]) * price);
+                }
+            }
+            return TradeResult.OK;
+        } finally {
+            Journal.exit();
+        }
+    }
+
+    // Sells the market's stock into resting bids priced at or above its own price. Called with the
+    // product's stripe held; returns the fills to deliver once it is released, or null.
+    static BidFills matchBids(Market market, int productId, Inventory stripe) {
+        OrderBook book = market.book(productId);
+        long ask = market.getPrice(productId);
+        if (book == null || ask <= 0 || book.bestBid() < ask) {
+            return null;
+        }
+        int slot = stripe.slotOf(productId);
+        int available = slot >= 0 ? stripe.quantityAt(slot) : 0;
+        if (available == 0) {
+            return null;
+        }
+        BidFills fills = new BidFills();
+        int sold = book.fill(available, ask, fills);
+        stripe.setQuantityAt(slot, available - sold);
+        if (sold == available) {
+            Catalog.refresh(market, productId, 0);
+        }
+        market.stock.lowered(productId, available - sold);
+        Account.transfer(market.escrow, market.balance, fills.proceeds);
+        Journal.Txn txn = Journal.begin();
+        if (txn != null) {
+            fills.log(txn, market, productId);
+            txn.commit();
+        }
+        return fills;
+    }
+
+    // A completed sale as the journal sees it; bid escrow is booked as a payment at fill time
+    static void logSale(Journal.Txn txn, Customer customer, Market market, int productId, int amount, long price) {
+        txn.delta(Journal.BALANCE, customer.entityId, -1, -amount * price)
+                .delta(Journal.BALANCE, market.entityId, -1, amount * price)
+                .delta(Journal.MARKET_STOCK, market.entityId, productId, -amount)
+                .delta(Journal.CUSTOMER_INVENTORY, customer.entityId, productId, amount);
+    }
+
+    // Producer sells a batch of materials to a factory. Every line is taken from the producer before
+    // any money moves; a short line or an unaffordable total puts back what was taken.
+    static TradeResult sellMaterials(Producer producer, FactoryExtended factory, MaterialOrder order) {
+        Journal.enter();
+        try {
+            if (order.lines == 0) {
+                return TradeResult.INVALID_AMOUNT;
+            }
+            for (int i = 0; i < order.lines; i++) {
+                if (order.amounts[i] <= 0) {
+                    return TradeResult.INVALID_AMOUNT;
+                }
+                if (order.prices[i] < 0) {
+                    return TradeResult.INVALID_PRICE;
+                }
+            }
+            long total = order.total();
+            if (total < 0) {
+                return TradeResult.INVALID_AMOUNT;
+            }
+
+            Object first = producer;
+            Object second = factory;
+            if (factory.lockOrder < producer.lockOrder) {
+                first = factory;
+                second = producer;
+            }
+
+            synchronized (first) {
+                synchronized (second) {
+                    Inventory stock = producer.materials;
+                    int taken = 0;
+                    TradeResult result = TradeResult.OK;
+                    for (; taken < order.lines; taken++) {
+                        int slot = stock.slotOf(order.ids[taken]);
+                        if (slot < 0 || stock.quantityAt(slot) < order.amounts[taken]) {
+                            result = TradeResult.INSUFFICIENT_MATERIALS;
+                            break;
+                        }
+                        stock.setQuantityAt(slot, stock.quantityAt(slot) - order.amounts[taken]);
+                    }
+                    if (result.isOk() && total > 0 && !Account.transfer(factory.balance, producer.balance, total)) {
+                        result = TradeResult.INSUFFICIENT_BALANCE;
+                    }
+                    if (!result.isOk()) {
+                        for (int i = 0; i < taken; i++) {
+                            stock.add(order.ids[i], order.amounts[i]);
+                        }
+                        return result;
+                    }
+
+                    for (int i = 0; i < order.lines; i++) {
+                        factory.materials.add(order.ids[i], order.amounts[i]);
+                    }
+                    Journal.Txn txn = Journal.begin();
+                    if (txn != null) {
+                        txn.delta(Journal.BALANCE, factory.entityId, -1, -total)
+                                .delta(Journal.BALANCE, producer.entityId, -1, total);
+                        for (int i = 0; i < order.lines; i++) {
+                            txn.delta(Journal.PRODUCER_MATERIAL, producer.entityId, order.ids[i], -order.amounts[i])
+                                    .delta(Journal.FACTORY_MATERIAL, factory.entityId, order.ids[i], order.amounts[i]);
+                        }
+                        txn.commit();
+                    }
+                    return TradeResult.OK;
+                }
+            }
+        } finally {
+            Journal.exit();
+        }
+    }
+
+    static TradeResult manufacture(FactoryExtended factory, ProductDesign design, int amount) {
+        Journal.enter();
+        try {
+            if (amount <= 0) {
+                return TradeResult.INVALID_AMOUNT;
+            }
+
+            synchronized (factory) {
+                MaterialDraw draw = factory.reserveMaterials(design, amount);
+                if (draw == null) {
+                    return TradeResult.INSUFFICIENT_MATERIALS;
+                }
+                factory.commitProduction(design, amount);
+                Journal.Txn txn = Journal.begin();
+                if (txn != null) {
+                    for (int s = draw.materials.nextSlot(-1); s >= 0; s = draw.materials.nextSlot(s)) {
+                        txn.delta(Journal.FACTORY_MATERIAL, factory.entityId, draw.materials.keyAt(s), -draw.materials.quantityAt(s));
+                    }
+                    for (int s = draw.parts.nextSlot(-1); s >= 0; s = draw.parts.nextSlot(s)) {
+                        txn.delta(Journal.FACTORY_PRODUCT, factory.entityId, draw.parts.keyAt(s), -draw.parts.quantityAt(s));
+                    }
+                    txn.delta(Journal.FACTORY_PRODUCT, factory.entityId, design.id, amount).commit();
+                }
+                return TradeResult.OK;
+            }
+        } finally {
+            Journal.exit();
+        }
+    }
+
+    static TradeResult destroyMaterials(FactoryExtended factory, String material, int amount) {
+        Journal.enter();
+        try {
+            if (amount <= 0) {
+                return TradeResult.INVALID_AMOUNT;
+            }
+
+            synchronized (factory) {
+                int available = factory.materials.get(material);
+                if (amount > available) {
+                    return TradeResult.INSUFFICIENT_MATERIALS;
+                }
+
+                if (available > amount) {
+                    factory.materials.set(material, available - amount);
+                } else {
+                    factory.materials.remove(material);
+                }
+                Journal.set(Journal.FACTORY_MATERIAL, factory.entityId, Symbols.find(material), available - amount);
+                return TradeResult.OK;
+            }
+        } finally {
+            Journal.exit();
+        }
+    }
+
+    static TradeResult destroyProducts(FactoryExtended factory, String product, int amount) {
+        Journal.enter();
+        try {
+            if (amount <= 0) {
+                return TradeResult.INVALID_AMOUNT;
+            }
+
+            synchronized (factory) {
+                InventoryItem item = factory.products.get(product);
+                if (item == null) {
+                    return TradeResult.UNKNOWN_PRODUCT;
+                }
+                if (item.quantity < amount) {
+                    return TradeResult.INSUFFICIENT_STOCK;
+                }
+
+                item.quantity -= amount;
+                if (item.quantity == 0) {
+                    factory.products.remove(product);
+                    SupplyIndex.unregister(item);
+                } else {
+                    SupplyIndex.update(item);
+                }
+                Journal.delta(Journal.FACTORY_PRODUCT, factory.entityId, item.id, -amount);
+                return TradeResult.OK;
+            }
+        } finally {
+            Journal.exit();
+        }
+    }
+}
+
+// Headless lookups behind the market and shop dialogs, kept out of the Swing classes so they can be
+// benchmarked and reused without a display.
+final class MarketQueries {
+    private MarketQueries() {
+    }
+
+    // Cheapest factory holding at least amount units of the product, or null
+    static FactoryExtended findSupplier(String product, int amount) {
+        int productId = Symbols.find(product);
+        Supplier supplier = productId >= 0 ? SupplyIndex.cheapest(productId, amount) : null;
+        return supplier != null ? supplier.factory : null;
+    }
+
+    // Cost per unit in cents from the factory's design for the product, 0 if it has none
+    static long unitCost(FactoryExtended factory, String product) {
+        return factory.unitCost(Symbols.find(product));
+    }
+
+    static long unitCost(FactoryExtended factory, int productId) {
+        return factory.unitCost(productId);
+    }
+}
+
+// Keeps markets stocked without anyone opening the market dialog. A product with a reorder level is
+// queued the moment a sale takes its stock down to the reorder point, so a cycle visits only the
+// products that need stock and costs nothing for the markets that do not. Each cycle prices every
+// queued product's shortfall at the cheapest factory holding enough of it, then settles everything
+// bought from one factory as a single TradeEngine.restockBatch. A product no factory can supply, or
+// its market cannot pay for, stays queued for the next cycle.
+final class Replenisher {
+    private static final java.util.concurrent.ConcurrentLinkedQueue<Request> queue = new java.util.concurrent.ConcurrentLinkedQueue<>();
+    private static final java.util.concurrent.atomic.AtomicInteger queued = new java.util.concurrent.atomic.AtomicInteger();
+    private static final Object timerLock = new Object();
+    private static java.util.concurrent.ScheduledExecutorService timer;
+
+    private Replenisher() {}
+
+    // Called by the market's stock, which queues each product at most once until it is restocked
+    static void queue(Market market, int productId) {
+        queue.add(new Request(market, productId));
+        queued.incrementAndGet();
+    }
+
+    // Products waiting for the next cycle
+    static int queued() {
+        return queued.get();
+    }
+
+    // Restocks the products queued before the cycle started; ones queued meanwhile wait for the
+    // next. Cycles never overlap.
+    static synchronized Cycle cycle() {
+        Cycle cycle = new Cycle();
+        HashMap<FactoryExtended, RestockBatch> batches = new HashMap<>();
+        for (int n = queued.get(); n > 0; n--) {
+            Request request = queue.poll();
+            queued.decrementAndGet();
+            cycle.requests++;
+            int need = request.market.stock.shortfall(request.productId);
+            if (need == 0) {
+                continue;
+            }
+            Supplier supplier = SupplyIndex.cheapest(request.productId, need);
+            if (supplier == null) {
+                queue(request.market, request.productId);
+                cycle.deferred++;
+                continue;
+            }
+            batches.computeIfAbsent(supplier.factory, f -> new RestockBatch())
+                    .add(request.market, request.productId, need, supplier.cost);
+        }
+
+        for (Map.Entry<FactoryExtended, RestockBatch> entry : batches.entrySet()) {
+            RestockBatch batch = entry.getValue();
+            long start = Metrics.start();
+            Metrics.record(Metrics.REPLENISH, TradeEngine.restockBatch(entry.getKey(), batch), start);
+            cycle.settlements++;
+            for (int i = 0; i < batch.lines; i++) {
+                if (batch.results[i] == TradeResult.OK) {
+                    batch.markets[i].stock.replenished(batch.ids[i]);
+                    cycle.restocked++;
+                    cycle.units += batch.amounts[i];
+                } else {
+                    // Still marked as queued, so nothing else can have queued it meanwhile
+                    queue(batch.markets[i], batch.ids[i]);
+                    cycle.deferred++;
+                }
+            }
+        }
+        // One wait covers every settlement of the cycle
+        if (cycle.restocked > 0) {
+            Journal.durable(TradeResult.OK);
+        }
+        return cycle;
+    }
+
+    // Runs a cycle every periodMillis on a daemon thread, passing each one that restocked anything
+    // to the listener
+    static void start(long periodMillis, java.util.function.Consumer<Cycle> listener) {
+        synchronized (timerLock) {
+            if (timer != null) {
+                return;
+            }
+            timer = java.util.concurrent.Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "replenisher");
+                t.setDaemon(true);
+                return t;
+            });
+            timer.scheduleWithFixedDelay(() -> {
+                try {
+                    Cycle cycle = cycle();
+                    if (cycle.restocked > 0) {
+                        listener.accept(cycle);
+                    }
+                } catch (RuntimeException e) {
+                    System.err.println("Replenishment cycle failed: " + e);
+                }
+            }, periodMillis, periodMillis, java.util.concurrent.TimeUnit.MILLISECONDS);
+        }
+    }
+
+    static void stop() {
+        synchronized (timerLock) {
+            if (timer != null) {
+                timer.shutdown();
+                timer = null;
+            }
+        }
+    }
+
+    private static final class Request {
+        final Market market;
+        final int productId;
+
+        Request(Market market, int productId) {
+            this.market = market;
+            this.productId = productId;
+        }
+    }
+
+    // What one cycle did
+    static final class Cycle {
+        // Queued products visited, of which restocked got stock and deferred wait for the next cycle
+        int requests;
+        int restocked;
+        int deferred;
+        // One per factory sold from
+        int settlements;
+        long units;
+
+        @Override
+        public String toString() {
+            return requests + " queued, " + restocked + " restocked (" + units + " units) in "
+                    + settlements + " settlements, " + deferred + " deferred";
+        }
+    }
+}
+
+// A manufacturing order queued at a factory. It is built over as many production ticks as the
+// factory's capacity and materials need; produced and done are read by whoever queued it.
+final class ManufacturingJob {
+    final FactoryExtended factory;
+    final ProductDesign design;
+    final int amount;
+    // Higher runs first; equal priorities run in the order queued
+    final int priority;
+    final long sequence;
+    volatile int produced;
+    // Whether the last tick that reached the job found too few materials to build any of it
+    volatile boolean starved;
+
+    ManufacturingJob(FactoryExtended factory, ProductDesign design, int amount, int priority, long sequence) {
+        this.factory = factory;
+        this.design = design;
+        this.amount = amount;
+        this.priority = priority;
+        this.sequence = sequence;
+    }
+
+    boolean done() {
+        return produced == amount;
+    }
+
+    public String toString() {
+        return design.name + " " + produced + "/" + amount + " (priority " + priority + (starved ? ", waiting for materials)" : ")");
+    }
+}
+
+// A factory's queued jobs, highest priority first, and how many units it can build per tick.
+// Guarded by its own monitor, so queueing never waits on the factory's trades.
+final class JobQueue {
+    static final int DEFAULT_CAPACITY = 100;
+    private static final Comparator<ManufacturingJob> FIRST_TO_RUN =
+            Comparator.<ManufacturingJob>comparingInt(j -> -j.priority).thenComparingLong(j -> j.sequence);
+
+    private final PriorityQueue<ManufacturingJob> jobs = new PriorityQueue<>(FIRST_TO_RUN);
+    // Units built per tick over all of the factory's jobs
+    volatile int capacityPerTick = DEFAULT_CAPACITY;
+    // Whether the factory is on the scheduler's list of factories with work
+    boolean scheduled;
+
+    synchronized void add(ManufacturingJob job) {
+        jobs.add(job);
+    }
+
+    synchronized ManufacturingJob poll() {
+        return jobs.poll();
+    }
+
+    public synchronized int size() {
+        return jobs.size();
+    }
+
+    // Units still to build over every queued job
+    public synchronized long backlog() {
+        long units = 0;
+        for (ManufacturingJob job : jobs) {
+            units += job.amount - job.produced;
+        }
+        return units;
+    }
+
+    // The queued jobs in the order they will run
+    public synchronized java.util.List<ManufacturingJob> list() {
+        ArrayList<ManufacturingJob> list = new ArrayList<>(jobs);
+        list.sort(FIRST_TO_RUN);
+        return list;
+    }
+}
+
+// Builds queued manufacturing jobs a tick at a time. Each tick gives every factory with work its
+// capacity in units, spent on its jobs by priority; a job short of materials builds what they cover
+// and is passed over for the rest of the tick so it cannot hold up the jobs behind it. Factories
+// share nothing but the trade locks, so a tick runs them in parallel on a fork-join pool. Only
+// factories with queued jobs are visited: queueing a job at an idle factory puts it on the list,
+// and a tick drops it once its queue is empty.
+//
+// Queued jobs are not journaled, like resting bids; the production they have done so far is.
+final class ProductionScheduler {
+    // Factories run by one fork-join leaf
+    private static final int CHUNK = 8;
+
+    private static final java.util.concurrent.ConcurrentLinkedQueue<FactoryExtended> active = new java.util.concurrent.ConcurrentLinkedQueue<>();
+    private static final java.util.concurrent.atomic.AtomicLong nextSequence = new java.util.concurrent.atomic.AtomicLong();
+    private static final java.util.concurrent.atomic.AtomicInteger pending = new java.util.concurrent.atomic.AtomicInteger();
+    private static final Object timerLock = new Object();
+    private static java.util.concurrent.ScheduledExecutorService timer;
+
+    private ProductionScheduler() {}
+
+    static ManufacturingJob enqueue(FactoryExtended factory, ProductDesign design, int amount, int priority) {
+        if (amount <= 0) {
+            throw new IllegalArgumentException("Amount must be positive");
+        }
+        ManufacturingJob job = new ManufacturingJob(factory, design, amount, priority, nextSequence.getAndIncrement());
+        pending.incrementAndGet();
+        JobQueue queue = factory.jobs;
+        synchronized (queue) {
+            queue.add(job);
+            if (!queue.scheduled) {
+                queue.scheduled = true;
+                active.add(factory);
+            }
+        }
+        return job;
+    }
+
+    // Jobs queued and not yet done, over every factory
+    static int pending() {
+        return pending.get();
+    }
+
+    // Runs one tick on the common pool
+    static Tick tick() {
+        return tick(java.util.concurrent.ForkJoinPool.commonPool());
+    }
+
+    // Runs one tick over the factories with work when it starts; ticks never overlap
+    static Tick tick(java.util.concurrent.ForkJoinPool pool) {
+        return tick(pool, null);
+    }
+
+    // As above, over only the factories that only accepts, or all of them if it is null; the others
+    // keep their work for a later tick
+    static synchronized Tick tick(java.util.concurrent.ForkJoinPool pool, java.util.function.Predicate<FactoryExtended> only) {
+        ArrayList<FactoryExtended> working = new ArrayList<>();
+        ArrayList<FactoryExtended> skipped = new ArrayList<>();
+        for (FactoryExtended factory; (factory = active.poll()) != null; ) {
+            (only == null || only.test(factory) ? working : skipped).add(factory);
+        }
+        active.addAll(skipped);
+        int count = working.size();
+        FactoryExtended[] factories = working.toArray(new FactoryExtended[0]);
+        Tick tick = new Tick();
+        tick.factories = count;
+        if (count <= CHUNK) {
+            for (FactoryExtended factory : factories) {
+                run(factory, tick);
+            }
+        } else {
+            pool.invoke(new Run(factories, 0, count, tick));
+        }
+        // One wait covers every factory's production in the tick
+        if (tick.units.sum() > 0) {
+            Journal.durable(TradeResult.OK);
+        }
+        return tick;
+    }
+
+    // Spends one tick of the factory's capacity on its jobs
+    private static void run(FactoryExtended factory, Tick tick) {
+        long start = Metrics.start();
+        JobQueue queue = factory.jobs;
+        int budget = queue.capacityPerTick;
+        ArrayList<ManufacturingJob> passed = new ArrayList<>();
+        ManufacturingJob job;
+        while (budget > 0 && (job = queue.poll()) != null) {
+            int amount = Math.min(job.amount - job.produced, budget);
+            TradeResult result = TradeEngine.manufacture(factory, job.design, amount);
+            if (result == TradeResult.INSUFFICIENT_MATERIALS) {
+                amount = Math.min(amount, factory.maxProducible(job.design));
+                if (amount > 0) {
+                    result = TradeEngine.manufacture(factory, job.design, amount);
+                }
+            }
+            if (result.isOk()) {
+                job.produced += amount;
+                budget -= amount;
+                tick.units.add(amount);
+            }
+            job.starved = !result.isOk();
+            if (job.done()) {
+                pending.decrementAndGet();
+                tick.completed.increment();
+            } else {
+                passed.add(job);
+            }
+        }
+        synchronized (queue) {
+            for (ManufacturingJob waiting : passed) {
+                queue.add(waiting);
+                if (waiting.starved) {
+                    tick.starved.increment();
+                }
+            }
+            if (queue.size() > 0) {
+                active.add(factory);
+            } else {
+                queue.scheduled = false;
+            }
+        }
+        Metrics.record(Metrics.PRODUCTION, TradeResult.OK, start);
+    }
+
+    // Runs a tick every periodMillis on a daemon thread, passing each one that built anything to
+    // the listener
+    static void start(long periodMillis, java.util.function.Consumer<Tick> listener) {
+        synchronized (timerLock) {
+            if (timer != null) {
+                return;
+            }
+            timer = java.util.concurrent.Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "production");
+                t.setDaemon(true);
+                return t;
+            });
+            timer.scheduleWithFixedDelay(() -> {
+                try {
+                    Tick tick = tick();
+                    if (tick.units.sum() > 0) {
+                        listener.accept(tick);
+                    }
+                } catch (RuntimeException e) {
+                    System.err.println("Production tick failed: " + e);
+                }
+            }, periodMillis, periodMillis, java.util.concurrent.TimeUnit.MILLISECONDS);
+        }
+    }
+
+    static void stop() {
+        synchronized (timerLock) {
+            if (timer != null) {
+                timer.shutdown();
+                timer = null;
+            }
+        }
+    }
+
+    // What one tick did; filled in concurrently by the factories' leaves
+    static final class Tick {
+        int factories;
+        final java.util.concurrent.atomic.LongAdder units = new java.util.concurrent.atomic.LongAdder();
+        final java.util.concurrent.atomic.LongAdder completed = new java.util.concurrent.atomic.LongAdder();
+        // Jobs left waiting for materials
+        final java.util.concurrent.atomic.LongAdder starved = new java.util.concurrent.atomic.LongAdder();
+
+        @Override
+        public String toString() {
+            return factories + " factories built " + units.sum() + " units, " + completed.sum()
+                    + " jobs done, " + starved.sum() + " waiting for materials";
+        }
+    }
+
+    private static final class Run extends java.util.concurrent.RecursiveAction {
+        private final FactoryExtended[] factories;
+        private final int from;
+        private final int to;
+        private final Tick tick;
+
+        Run(FactoryExtended[] factories, int from, int to, Tick tick) {
+            this.factories = factories;
+            this.from = from;
+            this.to = to;
+            this.tick = tick;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= CHUNK) {
+                for (int i = from; i < to; i++) {
+                    run(factories[i], tick);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new Run(factories, from, mid, tick), new Run(factories, mid, to, tick));
+        }
+    }
+}
+
+// Min-cost flow by successive shortest paths with Johnson potentials, in primal-dual form: each
+// phase runs Dijkstra on reduced costs, then pushes a blocking flow through every edge that lies on
+// some shortest path, so the number of phases is the number of distinct path costs rather than the
+// number of augmenting paths. Dijkstra stops once the sink is settled and caps the potential of
+// every node it did not settle at the sink's distance, which keeps all reduced costs non-negative.
+// Edge costs must be non-negative. Edges live in parallel primitive arrays; edge e's reverse is e ^ 1.
+final class MinCostFlow {
+    static final long INFINITE = Long.MAX_VALUE / 4;
+
+    private final int nodes;
+    private final int[] head;
+    private int[] next = new int[16];
+    private int[] to = new int[16];
+    private long[] capacity = new long[16];
+    private long[] cost = new long[16];
+    private int edges;
+
+    private final long[] potential;
+    private final long[] distance;
+    private final boolean[] settled;
+    private final int[] level;
+    private final int[] cursor;
+    private final int[] queue;
+    // Lazy binary heap of (distance, node) for Dijkstra
+    private long[] heapKeys = new long[16];
+    private int[] heapNodes = new int[16];
+    private int heapSize;
+    private long totalCost;
+
+    MinCostFlow(int nodes) {
+        this.nodes = nodes;
+        head = new int[nodes];
+        Arrays.fill(head, -1);
+        potential = new long[nodes];
+        distance = new long[nodes];
+        settled = new boolean[nodes];
+        level = new int[nodes];
+        cursor = new int[nodes];
+        queue = new int[nodes];
+    }
+
+    // Adds an edge and returns its index, for reading its flow back
+    int addEdge(int from, int target, long edgeCapacity, long edgeCost) {
+        if (edgeCost < 0) {
+            throw new IllegalArgumentException("Negative edge cost " + edgeCost);
+        }
+        if (edges + 2 > to.length) {
+            int grown = to.length * 2;
+            next = Arrays.copyOf(next, grown);
+            to = Arrays.copyOf(to, grown);
+            capacity = Arrays.copyOf(capacity, grown);
+            cost = Arrays.copyOf(cost, grown);
+        }
+        int e = edges;
+        link(e, from, target, edgeCapacity, edgeCost);
+        link(e + 1, target, from, 0, -edgeCost);
+        edges += 2;
+        return e;
+    }
+
+    private void link(int e, int from, int target, long edgeCapacity, long edgeCost) {
+        to[e] = target;
+        capacity[e] = edgeCapacity;
+        cost[e] = edgeCost;
+        next[e] = head[from];
+        head[from] = e;
+    }
+
+    long flow(int edge) {
+        return capacity[edge ^ 1];
+    }
+
+    // Total cost of the flow sent so far
+    long cost() {
+        return totalCost;
+    }
+
+    // Sends up to limit units from source to sink at least cost and returns how many went
+    long solve(int source, int sink, long limit) {
+        long sent = 0;
+        while (sent < limit && shortestPaths(source, sink)) {
+            long unitCost = potential[sink] - potential[source];
+            while (sent < limit && levels(source, sink)) {
+                System.arraycopy(head, 0, cursor, 0, nodes);
+                long pushed;
+                while (sent < limit && (pushed = push(source, sink, limit - sent)) > 0) {
+                    sent += pushed;
+                    totalCost += pushed * unitCost;
+                }
+            }
+        }
+        return sent;
+    }
+
+    // Dijkstra on reduced costs, then folds the distances into the potentials. False if the sink
+    // cannot be reached.
+    private boolean shortestPaths(int source, int sink) {
+        Arrays.fill(distance, INFINITE);
+        Arrays.fill(settled, false);
+        distance[source] = 0;
+        heapSize = 0;
+        heapPush(0, source);
+        while (heapSize > 0) {
+            long d = heapKeys[0];
+            int u = heapPop();
+            if (settled[u] || d > distance[u]) {
+                continue;
+            }
+            settled[u] = true;
+            if (u == sink) {
+                break;
+            }
+            for (int e = head[u]; e >= 0; e = next[e]) {
+                if (capacity[e] > 0) {
+                    int v = to[e];
+                    long nd = d + cost[e] + potential[u] - potential[v];
+                    if (nd < distance[v]) {
+                        distance[v] = nd;
+                        heapPush(nd, v);
+                    }
+                }
+            }
+        }
+        if (!settled[sink]) {
+            return false;
+        }
+        long cap = distance[sink];
+        for (int v = 0; v < nodes; v++) {
+            potential[v] += settled[v] ? distance[v] : cap;
+        }
+        return true;
+    }
+
+    // Breadth-first levels over the edges with spare capacity and zero reduced cost
+    private boolean levels(int source, int sink) {
+        Arrays.fill(level, -1);
+        level[source] = 0;
+        int read = 0;
+        int write = 0;
+        queue[write++] = source;
+        while (read < write) {
+            int u = queue[read++];
+            for (int e = head[u]; e >= 0; e = next[e]) {
+                int v = to[e];
+                if (capacity[e] > 0 && level[v] < 0 && cost[e] + potential[u] - potential[v] == 0) {
+                    level[v] = level[u] + 1;
+                    queue[write++] = v;
+                }
+            }
+        }
+        return level[sink] >= 0;
+    }
+
+    // One augmenting path along increasing levels, resuming each node's edge scan where it stopped
+    private long push(int u, int sink, long limit) {
+        if (u == sink) {
+            return limit;
+        }
+        for (; cursor[u] >= 0; cursor[u] = next[cursor[u]]) {
+            int e = cursor[u];
+            int v = to[e];
+            if (capacity[e] > 0 && level[v] == level[u] + 1 && cost[e] + potential[u] - potential[v] == 0) {
+                long pushed = push(v, sink, Math.min(limit, capacity[e]));
+                if (pushed > 0) {
+                    capacity[e] -= pushed;
+                    capacity[e ^ 1] += pushed;
+                    return pushed;
+                }
+            }
+        }
+        return 0;
+    }
+
+    private void heapPush(long key, int node) {
+        if (heapSize == heapKeys.length) {
+            heapKeys = Arrays.copyOf(heapKeys, heapSize * 2);
+            heapNodes = Arrays.copyOf(heapNodes, heapSize * 2);
+        }
+        int i = heapSize++;
+        while (i > 0) {
+            int parent = (i - 1) >> 1;
+            if (heapKeys[parent] <= key) {
+                break;
+            }
+            heapKeys[i] = heapKeys[parent];
+            heapNodes[i] = heapNodes[parent];
+            i = parent;
+        }
+        heapKeys[i] = key;
+        heapNodes[i] = node;
+    }
+
+    private int heapPop() {
+        int top = heapNodes[0];
+        long key = heapKeys[--heapSize];
+        int node = heapNodes[heapSize];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && heapKeys[child + 1] < heapKeys[child]) {
+                child++;
+            }
+            if (heapKeys[child] >= key) {
+                break;
+            }
+            heapKeys[i] = heapKeys[child];
+            heapNodes[i] = heapNodes[child];
+            i = child;
+        }
+        heapKeys[i] = key;
+        heapNodes[i] = node;
+        return top;
+    }
+}
+
+// Routes aggregate customer demand for each product across factories and markets at the least total
+// cost, as a min-cost flow:
+//
+//   source  -> factory f   f's stock of the product         at f's unit cost
+//   factory -> hub         unbounded
+//   hub     -> market m    m's restock room
+//   source  -> market m    m's stock, already on the shelf  free
+//   market m -> customers  unbounded                        at m's price
+//
+// with the product's demand drawn out at the customers. Any factory can restock any market at the
+// same cost, so a single hub stands in for the factory-by-market edges and keeps each network linear
+// in the number of markets. A market takes part once it prices the product; its restock room is its
+// reorder target less its stock if it has one, and otherwise the whole demand, in either case no
+// more than its balance buys at the cheapest factory's cost plus the markup restocks pay.
+//
+// Products are independent networks. route() reads every product's inputs on each call but only
+// re-solves the products whose demand or inputs changed since the last call, in parallel on the
+// pool; an unchanged product gets its previous route back.
+final class DemandRouter {
+    private static final int SOURCE = 0;
+    private static final int SINK = 1;
+    private static final int HUB = 2;
+    private static final int FIRST_NODE = 3;
+
+    private final java.util.List<FactoryExtended> factories;
+    private final java.util.List<Market> markets;
+    private final java.util.concurrent.ForkJoinPool pool;
+    // Percent over unit cost that restocks pay factories, read on every call to route()
+    int markup;
+    // Last route by product ID
+    private Route[] routes = new Route[0];
+    private long solved;
+    private long reused;
+
+    DemandRouter(java.util.List<FactoryExtended> factories, java.util.List<Market> markets,
+                 java.util.concurrent.ForkJoinPool pool) {
+        this.factories = factories;
+        this.markets = markets;
+        this.pool = pool;
+    }
+
+    // Routes on the demo lists on the common pool
+    static DemandRouter ofDemo() {
+        return new DemandRouter(SupplyChainSystemGUI.factories, SupplyChainSystemGUI.markets,
+                java.util.concurrent.ForkJoinPool.commonPool());
+    }
+
+    // Products solved afresh and products whose previous route was still valid, over every call
+    long solved() {
+        return solved;
+    }
+
+    long reused() {
+        return reused;
+    }
+
+    // A route for each product, serving demand[i] units of productIds[i]
+    Route[] route(int[] productIds, int[] demand) {
+        Route[] result = new Route[productIds.length];
+        for (int id : productIds) {
+            if (id >= routes.length) {
+                routes = Arrays.copyOf(routes, Math.max(id + 1, routes.length * 2));
+            }
+        }
+        java.util.concurrent.ForkJoinTask<?>[] tasks = new java.util.concurrent.ForkJoinTask<?>[productIds.length];
+        for (int i = 0; i < productIds.length; i++) {
+            int index = i;
+            tasks[i] = java.util.concurrent.ForkJoinTask.adapt(() -> {
+                result[index] = route(productIds[index], demand[index]);
+            });
+        }
+        pool.invoke(java.util.concurrent.ForkJoinTask.adapt(() -> java.util.concurrent.ForkJoinTask.invokeAll(tasks)));
+        for (int i = 0; i < productIds.length; i++) {
+            Route previous = routes[productIds[i]];
+            if (result[i] == previous) {
+                reused++;
+            } else {
+                solved++;
+                routes[productIds[i]] = result[i];
+            }
+        }
+        return result;
+    }
+
+    private Route route(int productId, int demand) {
+        Route route = new Route(productId, demand, markup, factories, markets);
+        Route previous = routes[productId];
+        if (previous != null && previous.sameInputs(route)) {
+            return previous;
+        }
+        route.solve();
+        return route;
+    }
+
+    // One product's inputs as read, and the least-cost way to serve its demand from them
+    static final class Route {
+        final int productId;
+        final int demand;
+        final FactoryExtended[] factories;
+        final int[] supply;
+        final long[] costs;
+        final Market[] markets;
+        final int[] stock;
+        final long[] prices;
+        final int[] room;
+
+        // Per market, units sold to customers and units restocked for them
+        int[] sold;
+        int[] restocked;
+        // Restock lines, as factory and market indexes and units
+        int[] lineFactory = new int[4];
+        int[] lineMarket = new int[4];
+        int[] lineUnits = new int[4];
+        int lines;
+        // Units served, at most the demand, and what customers and restocks cost for them
+        long served;
+        long cost;
+
+        Route(int productId, int demand, int markup, java.util.List<FactoryExtended> allFactories,
+              java.util.List<Market> allMarkets) {
+            this.productId = productId;
+            this.demand = demand;
+            String product = Symbols.name(productId);
+
+            ArrayList<FactoryExtended> holding = new ArrayList<>();
+            int[] supply = new int[allFactories.size()];
+            long[] costs = new long[allFactories.size()];
+            long cheapest = Long.MAX_VALUE;
+            for (FactoryExtended f : allFactories) {
+                int quantity;
+                synchronized (f) {
+                    InventoryItem item = f.products.get(product);
+                    quantity = item != null ? item.quantity : 0;
+                }
+                if (quantity > 0) {
+                    supply[holding.size()] = quantity;
+                    costs[holding.size()] = MarketQueries.unitCost(f, productId);
+                    cheapest = Math.min(cheapest, costs[holding.size()]);
+                    holding.add(f);
+                }
+            }
+            factories = holding.toArray(new FactoryExtended[0]);
+            this.supply = Arrays.copyOf(supply, factories.length);
+            this.costs = Arrays.copyOf(costs, factories.length);
+
+            ArrayList<Market> pricing = new ArrayList<>();
+            int[] stock = new int[allMarkets.size()];
+            long[] prices = new long[allMarkets.size()];
+            int[] room = new int[allMarkets.size()];
+            for (Market m : allMarkets) {
+                long price = m.getPrice(productId);
+                if (price <= 0) {
+                    continue;
+                }
+                int n = pricing.size();
+                stock[n] = m.stock.get(productId);
+                prices[n] = price;
+                int target = m.stock.reorderTarget(productId);
+                long space = target > 0 ? Math.max(0, target - stock[n]) : demand;
+                long paid = cheapest + cheapest * markup / 100;
+                if (factories.length > 0 && paid > 0) {
+                    space = Math.min(space, m.balance.get() / paid);
+                }
+                room[n] = (int) space;
+                pricing.add(m);
+            }
+            markets = pricing.toArray(new Market[0]);
+            this.stock = Arrays.copyOf(stock, markets.length);
+            this.prices = Arrays.copyOf(prices, markets.length);
+            this.room = Arrays.copyOf(room, markets.length);
+        }
+
+        boolean sameInputs(Route other) {
+            return demand == other.demand && Arrays.equals(factories, other.factories)
+                    && Arrays.equals(supply, other.supply) && Arrays.equals(costs, other.costs)
+                    && Arrays.equals(markets, other.markets) && Arrays.equals(stock, other.stock)
+                    && Arrays.equals(prices, other.prices) && Arrays.equals(room, other.room);
+        }
+
+        void solve() {
+            int marketBase = FIRST_NODE + factories.length;
+            MinCostFlow flow = new MinCostFlow(marketBase + markets.length);
+            int[] factoryEdges = new int[factories.length];
+            for (int f = 0; f < factories.length; f++) {
+                factoryEdges[f] = flow.addEdge(SOURCE, FIRST_NODE + f, supply[f], costs[f]);
+                flow.addEdge(FIRST_NODE + f, HUB, MinCostFlow.INFINITE, 0);
+            }
+            int[] restockEdges = new int[markets.length];
+            int[] sellEdges = new int[markets.length];
+            for (int m = 0; m < markets.length; m++) {
+                flow.addEdge(SOURCE, marketBase + m, stock[m], 0);
+                restockEdges[m] = flow.addEdge(HUB, marketBase + m, room[m], 0);
+                sellEdges[m] = flow.addEdge(marketBase + m, SINK, MinCostFlow.INFINITE, prices[m]);
+            }
+            served = flow.solve(SOURCE, SINK, demand);
+            cost = flow.cost();
+
+            sold = new int[markets.length];
+            restocked = new int[markets.length];
+            for (int m = 0; m < markets.length; m++) {
+                sold[m] = (int) flow.flow(sellEdges[m]);
+                restocked[m] = (int) flow.flow(restockEdges[m]);
+            }
+            // The hub makes every factory interchangeable, so any pairing of factory output with
+            // market restocks is a least-cost one; fill markets from factories in order
+            int f = 0;
+            long left = factories.length > 0 ? flow.flow(factoryEdges[0]) : 0;
+            for (int m = 0; m < markets.length; m++) {
+                int need = restocked[m];
+                while (need > 0) {
+                    while (left == 0) {
+                        left = flow.flow(factoryEdges[++f]);
+                    }
+                    int units = (int) Math.min(need, left);
+                    addLine(f, m, units);
+                    need -= units;
+                    left -= units;
+                }
+            }
+        }
+
+        private void addLine(int factory, int market, int units) {
+            if (lines == lineUnits.length) {
+                lineFactory = Arrays.copyOf(lineFactory, lines * 2);
+                lineMarket = Arrays.copyOf(lineMarket, lines * 2);
+                lineUnits = Arrays.copyOf(lineUnits, lines * 2);
+            }
+            lineFactory[lines] = factory;
+            lineMarket[lines] = market;
+            lineUnits[lines] = units;
+            lines++;
+        }
+    }
+}
+
+// Discrete-time driver that moves goods through the chain without the UI. Each tick runs five
+// phases in order: producers extract materials, factories buy the materials they run low on,
+// factories manufacture (queued ProductionScheduler jobs first), markets restock from the cheapest
+// factory that has enough, and customers shop at home markets; with a DemandRouter, markets restock
+// and customers shop along its least-cost plan instead. Within a phase every
+// entity's work is independent apart from the trade locks it already takes, so each phase is split
+// into index ranges and run on a fork-join pool; the phase boundary is the only barrier.
+final class Simulation {
+    // Entities handled by one fork-join leaf
+    static final int CHUNK = 1024;
+
+    final java.util.List<Producer> producers;
+    final java.util.List<FactoryExtended> factories;
+    final java.util.List<Market> markets;
+    final java.util.List<Customer> customers;
+    final java.util.concurrent.ForkJoinPool pool;
+
+    // Policy knobs, read at the start of each phase
+    int producerYield = 50;
+    // Factories reorder a material below this level, one batched order per producer
+    int materialReorderPoint = 100;
+    int materialReorderQuantity = 200;
+    long materialPrice = 10;
+    int productionPerTick = 20;
+    int reorderPoint = 10;
+    int reorderQuantity = 50;
+    // A customer shops on roughly one tick in this many
+    int shoppingInterval = 4;
+    // Percent over unit cost that markets pay factories and charge customers
+    int factoryMarkup = 25;
+    int marketMarkup = 50;
+    // When set, the tick's expected customer demand is routed across factories and markets at least
+    // cost: markets restock along the plan, one settlement per factory, instead of each reordering
+    // on its own, and customers buy each product at a market drawn in proportion to the units the
+    // plan sells there, instead of at their home market
+    DemandRouter router;
+
+    final java.util.concurrent.atomic.LongAdder produced = new java.util.concurrent.atomic.LongAdder();
+    final java.util.concurrent.atomic.LongAdder procured = new java.util.concurrent.atomic.LongAdder();
+    final java.util.concurrent.atomic.LongAdder manufactured = new java.util.concurrent.atomic.LongAdder();
+    final java.util.concurrent.atomic.LongAdder restocked = new java.util.concurrent.atomic.LongAdder();
+    final java.util.concurrent.atomic.LongAdder sold = new java.util.concurrent.atomic.LongAdder();
+    final java.util.concurrent.atomic.LongAdder missedSales = new java.util.concurrent.atomic.LongAdder();
+    // Units on routed restock lines that did not settle
+    final java.util.concurrent.atomic.LongAdder missedRestocks = new java.util.concurrent.atomic.LongAdder();
+
+    private String[] products = new String[0];
+    private int[] productIds = new int[0];
+    private int lastDesignCount = -1;
+    private long tick;
+    // The router's plan for the tick, parallel to productIds, and per product the running total of
+    // units it sells at each of the route's markets; null without a router
+    private DemandRouter.Route[] plan;
+    private int[][] planSales;
+    // This simulation's factories, so its production ticks leave every other factory's jobs to
+    // their own scheduler; the list only grows, so new ones are added from ownCount on
+    private final Set<FactoryExtended> own = Collections.newSetFromMap(new IdentityHashMap<>());
+    private int ownCount;
+
+    Simulation(java.util.List<Producer> producers, java.util.List<FactoryExtended> factories,
+               java.util.List<Market> markets, java.util.List<Customer> customers,
+               java.util.concurrent.ForkJoinPool pool) {
+        this.producers = producers;
+        this.factories = factories;
+        this.markets = markets;
+        this.customers = customers;
+        this.pool = pool;
+    }
+
+    // Simulates the demo lists on the common pool
+    static Simulation ofDemo() {
+        return new Simulation(SupplyChainSystemGUI.producers, SupplyChainSystemGUI.factories,
+                SupplyChainSystemGUI.markets, SupplyChainSystemGUI.customers,
+                java.util.concurrent.ForkJoinPool.commonPool());
+    }
+
+    long tick() {
+        return tick;
+    }
+
+    void run(int ticks) {
+        for (int i = 0; i < ticks; i++) {
+            step();
+        }
+    }
+
+    void step() {
+        refreshProducts();
+        forEach(producers.size(), this::produce);
+        forEach(factories.size(), this::procure);
+        for (int size = factories.size(); ownCount < size; ownCount++) {
+            own.add(factories.get(ownCount));
+        }
+        manufactured.add(ProductionScheduler.tick(pool, own::contains).units.sum());
+        forEach(factories.size(), this::manufacture);
+        if (router != null) {
+            routeRestock();
+        } else {
+            forEach(markets.size(), this::restock);
+        }
+        forEach(customers.size(), this::shop);
+        tick++;
+    }
+
+    private void produce(int index) {
+        Journal.enter();
+        try {
+            Producer producer = producers.get(index);
+            synchronized (producer) {
+                Inventory materials = producer.materials;
+                Journal.Txn txn = Journal.begin();
+                for (int s = materials.nextSlot(-1); s >= 0; s = materials.nextSlot(s)) {
+                    materials.setQuantityAt(s, materials.quantityAt(s) + producerYield);
+                    produced.add(producerYield);
+                    if (txn != null) {
+                        txn.delta(Journal.PRODUCER_MATERIAL, producer.entityId, materials.keyAt(s), producerYield);
+                    }
+                }
+                if (txn != null && txn.size > 0) {
+                    txn.commit();
+                }
+            }
+        } finally {
+            Journal.exit();
+        }
+    }
+
+    private void procure(int index) {
+        FactoryExtended factory = factories.get(index);
+        MaterialOrder order = null;
+        for (Producer producer : producers) {
+            for (ProductDesign design : factory.designs) {
+                Bom bom = BillOfMaterials.explode(design);
+                for (int i = 0; i < bom.ids.length; i++) {
+                    int id = bom.ids[i];
+                    if (order != null && order.contains(id)) {
+                        continue;
+                    }
+                    int amount;
+                    synchronized (factory) {
+                        if (factory.materials.get(id) >= materialReorderPoint) {
+                            continue;
+                        }
+                    }
+                    synchronized (producer) {
+                        amount = Math.min(materialReorderQuantity, producer.materials.get(id));
+                    }
+                    if (amount > 0) {
+                        if (order == null) {
+                            order = new MaterialOrder();
+                        }
+                        order.add(id, amount, materialPrice);
+                    }
+                }
+            }
+            if (order != null && order.lines() > 0) {
+                long units = 0;
+                for (int i = 0; i < order.lines(); i++) {
+                    units += order.amounts[i];
+                }
+                if (TradeEngine.sellMaterials(producer, factory, order).isOk()) {
+                    procured.add(units);
+                }
+                order.clear();
+            }
+        }
+    }
+
+    private void manufacture(int index) {
+        FactoryExtended factory = factories.get(index);
+        for (ProductDesign design : factory.designs) {
+            int amount = Math.min(productionPerTick, factory.maxProducible(design));
+            if (amount > 0 && TradeEngine.manufacture(factory, design, amount).isOk()) {
+                manufactured.add(amount);
+            }
+        }
+    }
+
+    private void restock(int index) {
+        Market market = markets.get(index);
+        for (int p = 0; p < productIds.length; p++) {
+            if (market.stock.get(productIds[p]) > reorderPoint) {
+                continue;
+            }
+            FactoryExtended factory = MarketQueries.findSupplier(products[p], reorderQuantity);
+            if (factory == null) {
+                continue;
+            }
+            long cost = MarketQueries.unitCost(factory, productIds[p]);
+            long price = cost + cost * factoryMarkup / 100;
+            if (market.buyProduct(products[p], reorderQuantity, price, factory).isOk()) {
+                restocked.add(reorderQuantity);
+                if (market.getPrice(productIds[p]) == 0) {
+                    market.setPrice(products[p], Math.max(1, price + price * marketMarkup / 100));
+                }
+            }
+        }
+    }
+
+    private void routeRestock() {
+        plan = null;
+        if (productIds.length == 0) {
+            return;
+        }
+        priceUnpriced();
+        // Customers shop once per shoppingInterval ticks, spread evenly over the products
+        int[] demand = new int[productIds.length];
+        Arrays.fill(demand, Math.max(1, customers.size() / shoppingInterval / productIds.length));
+        router.markup = factoryMarkup;
+        DemandRouter.Route[] routes = router.route(productIds, demand);
+        int[][] sales = new int[routes.length][];
+        for (int p = 0; p < routes.length; p++) {
+            sales[p] = new int[routes[p].markets.length];
+            int total = 0;
+            for (int m = 0; m < sales[p].length; m++) {
+                total += routes[p].sold[m];
+                sales[p][m] = total;
+            }
+        }
+        plan = routes;
+        planSales = sales;
+        HashMap<FactoryExtended, RestockBatch> batches = new HashMap<>();
+        for (DemandRouter.Route route : routes) {
+            for (int i = 0; i < route.lines; i++) {
+                long cost = route.costs[route.lineFactory[i]];
+                batches.computeIfAbsent(route.factories[route.lineFactory[i]], f -> new RestockBatch())
+                        .add(route.markets[route.lineMarket[i]], route.productId, route.lineUnits[i],
+                                cost + cost * factoryMarkup / 100);
+            }
+        }
+        for (Map.Entry<FactoryExtended, RestockBatch> entry : batches.entrySet()) {
+            RestockBatch batch = entry.getValue();
+            TradeEngine.restockBatch(entry.getKey(), batch);
+            for (int i = 0; i < batch.lines; i++) {
+                (batch.results[i] == TradeResult.OK ? restocked : missedRestocks).add(batch.amounts[i]);
+            }
+        }
+    }
+
+    // The router leaves out markets without a price, so first give each unpriced product the price
+    // restock() would set, from the cheapest of this simulation's factories holding any of it
+    private void priceUnpriced() {
+        long[] cheapest = null;
+        for (Market market : markets) {
+            for (int p = 0; p < productIds.length; p++) {
+                if (market.getPrice(productIds[p]) > 0) {
+                    continue;
+                }
+                if (cheapest == null) {
+                    cheapest = cheapestCosts();
+                }
+                if (cheapest[p] != Long.MAX_VALUE) {
+                    long price = cheapest[p] + cheapest[p] * factoryMarkup / 100;
+                    market.setPrice(products[p], Math.max(1, price + price * marketMarkup / 100));
+                }
+            }
+        }
+    }
+
+    // Per product, the lowest unit cost among factories holding some, or Long.MAX_VALUE if none does
+    private long[] cheapestCosts() {
+        long[] cheapest = new long[products.length];
+        Arrays.fill(cheapest, Long.MAX_VALUE);
+        for (FactoryExtended factory : factories) {
+            for (int p = 0; p < products.length; p++) {
+                int quantity;
+                synchronized (factory) {
+                    InventoryItem item = factory.products.get(products[p]);
+                    quantity = item != null ? item.quantity : 0;
+                }
+                if (quantity > 0) {
+                    cheapest[p] = Math.min(cheapest[p], MarketQueries.unitCost(factory, productIds[p]));
+                }
+            }
+        }
+        return cheapest;
+    }
+
+    private void shop(int index) {
+        long roll = mix(index * 0x9E3779B97F4A7C15L + tick);
+        if (productIds.length == 0 || markets.isEmpty() || Long.remainderUnsigned(roll, shoppingInterval) != 0) {
+            return;
+        }
+        Customer customer = customers.get(index);
+        int p = (int) Long.remainderUnsigned(roll >>> 40, productIds.length);
+        int productId = productIds[p];
+        Market market = plan != null ? plannedMarket(p, roll) : null;
+        if (market == null) {
+            // Customers mostly shop at a home market, so neighbouring customers in a chunk share one
+            // market's stock and prices; an occasional trip elsewhere keeps every market in play.
+            int marketIndex = (roll >>> 8 & 7) == 0
+                    ? (int) Long.remainderUnsigned(roll >>> 11, markets.size())
+                    : (int) ((long) index * markets.size() / customers.size());
+            market = markets.get(marketIndex);
+        }
+        long price = market.getPrice(productId);
+        if (price > 0 && customer.buyProduct(productId, 1, price, market).isOk()) {
+            sold.increment();
+        } else {
+            missedSales.increment();
+        }
+    }
+
+    // A market the plan sells product p at, drawn in proportion to its planned sales, or null if
+    // the plan sells none
+    private Market plannedMarket(int p, long roll) {
+        int[] sales = planSales[p];
+        int total = sales.length > 0 ? sales[sales.length - 1] : 0;
+        if (total == 0) {
+            return null;
+        }
+        // The first market whose running total passes the drawn unit
+        int unit = (int) Long.remainderUnsigned(roll >>> 11, total);
+        int low = 0;
+        int high = sales.length - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sales[mid] > unit) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return plan[p].markets[low];
+    }
+
+    // Products any factory can make; the design lists are only scanned when their total changes
+    private void refreshProducts() {
+        int designs = 0;
+        for (FactoryExtended f : factories) {
+            designs += f.designs.size();
+        }
+        if (designs == lastDesignCount) {
+            return;
+        }
+        LinkedHashSet<String> names = new LinkedHashSet<>();
+        for (FactoryExtended f : factories) {
+            for (ProductDesign d : f.designs) {
+                names.add(d.name);
+            }
+        }
+        products = names.toArray(new String[0]);
+        productIds = new int[products.length];
+        for (int i = 0; i < products.length; i++) {
+            productIds[i] = Symbols.id(products[i]);
+        }
+        lastDesignCount = designs;
+    }
+
+    private void forEach(int count, java.util.function.IntConsumer action) {
+        if (count <= CHUNK) {
+            for (int i = 0; i < count; i++) {
+                action.accept(i);
+            }
+        } else {
+            pool.invoke(new Phase(action, 0, count));
+        }
+    }
+
+    // SplitMix64 finalizer; gives each (customer, tick) an independent, reproducible roll
+    static long mix(long x) {
+        x = (x ^ (x >>> 30)) * 0xBF58476D1CE4E5B9L;
+        x = (x ^ (x >>> 27)) * 0x94D049BB133111EBL;
+        return x ^ (x >>> 31);
+    }
+
+    private static final class Phase extends java.util.concurrent.RecursiveAction {
+        private final java.util.function.IntConsumer action;
+        private final int from;
+        private final int to;
+
+        Phase(java.util.function.IntConsumer action, int from, int to) {
+            this.action = action;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= CHUNK) {
+                for (int i = from; i < to; i++) {
+                    action.accept(i);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new Phase(action, from, mid), new Phase(action, mid, to));
+        }
+    }
+}
+
+// Append-only binary log of every state change, written through memory-mapped segments of the
+// journal file. Each committed transaction is one record, [int length][int crc32][ops], where an op
+// is a tag byte followed by fixed fields. A trade stages its ops in a thread-local Txn without any
+// shared lock, then copies them into the mapped segment under the journal's monitor while still
+// holding its own entity locks, so records touching the same entity appear in the order they took
+// effect. Balance and quantity changes are logged as deltas, which commute, so trades on disjoint
+// entities may land in either order. A flusher thread forces written pages in groups; with
+// synchronous commits a trade returns once the group holding its record is durable, so many
+// concurrent trades share one msync.
+//
+// Resting bids are not journaled: their escrow is booked as a payment only when a bid fills, so a
+// restart drops the open bids and leaves the money with the customers.
+//
+// A checkpoint writes a Snapshot and restarts the log. Each session record carries the epoch of the
+// snapshot it continues, so records left over from before a checkpoint are skipped on replay.
+final class Journal {
+    static final int SEGMENT_SIZE = 64 << 20;
+    // Length word marking the unused tail of a segment
+    private static final int SKIP = -1;
+    private static final long FLUSH_INTERVAL_NANOS = 1_000_000;
+
+    // Entity kinds
+    static final byte PRODUCER = 1;
+    static final byte FACTORY = 2;
+    static final byte MARKET = 3;
+    static final byte CUSTOMER = 4;
+    static final byte DESIGN = 5;
+
+    // Fields changed by DELTA and SET ops
+    static final byte BALANCE = 1;
+    static final byte MARKET_STOCK = 2;
+    static final byte MARKET_PRICE = 3;
+    static final byte CUSTOMER_INVENTORY = 4;
+    static final byte PRODUCER_MATERIAL = 5;
+    static final byte FACTORY_MATERIAL = 6;
+    static final byte FACTORY_PRODUCT = 7;
+    // Set only, to point << 32 | target
+    static final byte REORDER_LEVEL = 8;
+
+    // Op tags
+    static final byte OP_SESSION = 'N';
+    static final byte OP_SYMBOL = 'S';
+    static final byte OP_CREATE = 'C';
+    static final byte OP_DESIGN_MATERIAL = 'M';
+    static final byte OP_FACTORY_DESIGN = 'F';
+    static final byte OP_DELTA = 'D';
+    static final byte OP_SET = 'V';
+    static final byte OP_RENAME = 'R';
+
+    static volatile Journal current;
+
+    private static final java.util.concurrent.atomic.AtomicInteger nextEntityId = new java.util.concurrent.atomic.AtomicInteger();
+    private static final ThreadLocal<Txn> txns = ThreadLocal.withInitial(Txn::new);
+    // Held shared from before a change is made until its record is appended, and exclusively by a
+    // checkpoint, so a snapshot never holds a change whose record lands in the log after it
+    // Whether this thread is inside batch(), leaving durable() waits to its end
+    private static final ThreadLocal<Boolean> batching = ThreadLocal.withInitial(() -> false);
+    private static final java.util.concurrent.locks.ReentrantReadWriteLock quiesce =
+            new java.util.concurrent.locks.ReentrantReadWriteLock();
+
+    private final java.nio.channels.FileChannel channel;
+    private final boolean syncCommits;
+    // Where checkpoints go, or null if this journal never checkpoints
+    private final java.nio.file.Path snapshotPath;
+    private final ArrayList<java.nio.MappedByteBuffer> segments = new ArrayList<>();
+    // Symbol definitions written ahead of the record that first uses them in this session
+    private final Txn prelude = new Txn();
+    private boolean[] symbolWritten = new boolean[64];
+    private final java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+    private final Object durableLock = new Object();
+    // Held while forcing pages; taken before the journal's own monitor
+    private final Object flushLock = new Object();
+    private final Thread flusher;
+    private long position;
+    private long epoch;
+    private boolean snapshotLoaded;
+    private long replayedRecords;
+    private long records;
+    // Bytes written before the last restart. written and durable count from the first session, so
+    // they only ever grow and a committer waiting across a checkpoint is still released.
+    private long base;
+    private volatile long written;
+    private volatile long durable;
+    private volatile boolean closed;
+
+    private Journal(java.nio.channels.FileChannel channel, boolean syncCommits, java.nio.file.Path snapshotPath) {
+        this.channel = channel;
+        this.syncCommits = syncCommits;
+        this.snapshotPath = snapshotPath;
+        this.flusher = new Thread(this::flushLoop, "journal-flusher");
+        flusher.setDaemon(true);
+    }
+
+    // Replays the file into the static entity lists, then journals every later change to it
+    static Journal open(java.nio.file.Path path, boolean syncCommits) throws java.io.IOException {
+        return open(path, null, syncCommits);
+    }
+
+    // Loads the snapshot if there is one and replays the log recorded since it
+    static Journal open(java.nio.file.Path path, java.nio.file.Path snapshotPath, boolean syncCommits) throws java.io.IOException {
+        Snapshot snapshot = snapshotPath != null && java.nio.file.Files.exists(snapshotPath) ? Snapshot.load(snapshotPath) : null;
+        java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(path,
+                java.nio.file.StandardOpenOption.CREATE, java.nio.file.StandardOpenOption.READ,
+                java.nio.file.StandardOpenOption.WRITE);
+        Journal journal = new Journal(channel, syncCommits, snapshotPath);
+        if (snapshot != null) {
+            journal.epoch = snapshot.epoch;
+            journal.snapshotLoaded = true;
+        }
+        journal.replay(snapshot);
+        journal.flusher.start();
+        current = journal;
+        journal.begin0().session(journal.epoch).commit();
+        return journal;
+    }
+
+    long replayedRecords() {
+        return replayedRecords;
+    }
+
+    // Whether opening found any earlier state, in a snapshot or in the log
+    boolean restored() {
+        return snapshotLoaded || replayedRecords > 0;
+    }
+
+    synchronized long recordsSinceCheckpoint() {
+        return records;
+    }
+
+    // Writes a snapshot of the current state and restarts the log after it, so the next open loads
+    // the snapshot and replays only what follows. Every change waits at enter() while the snapshot is
+    // written, and every change already under way is appended first, so the snapshot and the log
+    // split at one point. The caller must not be inside enter().
+    void checkpoint() throws java.io.IOException {
+        if (snapshotPath == null) {
+            throw new IllegalStateException("Journal was opened without a snapshot file");
+        }
+        java.nio.file.Path temp = snapshotPath.resolveSibling(snapshotPath.getFileName() + ".tmp");
+        quiesce.writeLock().lock();
+        try {
+            Snapshot.write(temp, epoch + 1);
+            synchronized (flushLock) {
+                synchronized (this) {
+                    java.nio.file.Files.move(temp, snapshotPath, java.nio.file.StandardCopyOption.ATOMIC_MOVE,
+                            java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+                    // Release anyone still waiting on a record the snapshot now holds
+                    flush();
+                    epoch++;
+                    restart();
+                    begin0().session(epoch).commit();
+                }
+            }
+        } finally {
+            quiesce.writeLock().unlock();
+        }
+    }
+
+    // Brackets a change and the append of its record, before any entity lock is taken. Changes run
+    // side by side; only a checkpoint waits for them, and holds off new ones while it writes.
+    static void enter() {
+        quiesce.readLock().lock();
+    }
+
+    static void exit() {
+        quiesce.readLock().unlock();
+    }
+
+    // Runs batch with durable() returning at once on this thread, then waits once for everything
+    // written so far, so many trades cost one sync. Called outside enter(), so the wait never holds
+    // up a checkpoint.
+    static void batch(Runnable batch) {
+        if (batching.get()) {
+            batch.run();
+            return;
+        }
+        batching.set(true);
+        try {
+            batch.run();
+        } finally {
+            batching.set(false);
+            Journal journal = current;
+            if (journal != null && journal.syncCommits) {
+                journal.awaitDurable(journal.written);
+            }
+        }
+    }
+
+    // Flushes everything written and stops journaling
+    void close() throws java.io.IOException {
+        if (current == this) {
+            current = null;
+        }
+        closed = true;
+        java.util.concurrent.locks.LockSupport.unpark(flusher);
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    static int nextEntityId() {
+        return nextEntityId.getAndIncrement();
+    }
+
+    // One past the highest entity ID handed out so far
+    static int entityIdLimit() {
+        return nextEntityId.get();
+    }
+
+    // Keeps new entities from reusing IDs below the limit, e.g. ones a snapshot was loaded with
+    static void reserveEntityIds(int limit) {
+        nextEntityId.accumulateAndGet(limit, Math::max);
+    }
+
+    // The calling thread's staging buffer for a new record, or null when journaling is off
+    static Txn begin() {
+        Journal journal = current;
+        return journal != null ? journal.begin0() : null;
+    }
+
+    private Txn begin0() {
+        Txn txn = txns.get();
+        txn.reset(this);
+        return txn;
+    }
+
+    // Passes the result through, first waiting for the record of a successful trade to be durable
+    // when commits are synchronous
+    static TradeResult durable(TradeResult result) {
+        Journal journal = current;
+        if (journal != null && journal.syncCommits && result.isOk() && !batching.get()) {
+            journal.awaitDurable(journal.written);
+        }
+        return result;
+    }
+
+    static void created(byte kind, int entity, String name, long value) {
+        Txn txn = begin();
+        if (txn != null) {
+            txn.create(kind, entity, name, value).commit();
+        }
+    }
+
+    static void delta(byte field, int entity, int symbol, long value) {
+        Txn txn = begin();
+        if (txn != null) {
+            txn.delta(field, entity, symbol, value).commit();
+        }
+    }
+
+    static void set(byte field, int entity, int symbol, long value) {
+        Txn txn = begin();
+        if (txn != null) {
+            txn.set(field, entity, symbol, value).commit();
+        }
+    }
+
+    private synchronized void append(Txn txn) {
+        prelude.size = 0;
+        for (int i = 0; i < txn.symbolCount; i++) {
+            int id = txn.symbols[i];
+            if (id >= symbolWritten.length) {
+                symbolWritten = Arrays.copyOf(symbolWritten, Math.max(id + 1, symbolWritten.length * 2));
+            }
+            if (!symbolWritten[id]) {
+                symbolWritten[id] = true;
+                prelude.symbol(id, Symbols.name(id));
+            }
+        }
+
+        int length = prelude.size + txn.size;
+        if (length + 8 > SEGMENT_SIZE) {
+            throw new IllegalStateException("Journal record of " + length + " bytes exceeds a segment");
+        }
+        long pos = position;
+        int offset = (int) (pos % SEGMENT_SIZE);
+        if (offset + 8 + length > SEGMENT_SIZE) {
+            if (offset + 4 <= SEGMENT_SIZE) {
+                segment(pos).putInt(offset, SKIP);
+            }
+            pos += SEGMENT_SIZE - offset;
+            offset = 0;
+        }
+        java.nio.MappedByteBuffer segment = segment(pos);
+        segment.put(offset + 8, prelude.bytes, 0, prelude.size);
+        segment.put(offset + 8 + prelude.size, txn.bytes, 0, txn.size);
+        crc.reset();
+        crc.update(prelude.bytes, 0, prelude.size);
+        crc.update(txn.bytes, 0, txn.size);
+        segment.putInt(offset + 4, (int) crc.getValue());
+        // The length goes last; until it is set the record reads as the end of the log
+        segment.putInt(offset, length);
+        position = pos + 8 + length;
+        written = base + position;
+        records++;
+    }
+
+    private synchronized java.nio.MappedByteBuffer segment(long pos) {
+        int index = (int) (pos / SEGMENT_SIZE);
+        try {
+            while (segments.size() <= index) {
+                segments.add(channel.map(java.nio.channels.FileChannel.MapMode.READ_WRITE,
+                        (long) segments.size() * SEGMENT_SIZE, SEGMENT_SIZE));
+            }
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+        return segments.get(index);
+    }
+
+    private void awaitDurable(long target) {
+        if (durable >= target) {
+            return;
+        }
+        java.util.concurrent.locks.LockSupport.unpark(flusher);
+        synchronized (durableLock) {
+            while (durable < target) {
+                try {
+                    durableLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void flushLoop() {
+        while (!closed) {
+            if (durable == written) {
+                java.util.concurrent.locks.LockSupport.parkNanos(this, FLUSH_INTERVAL_NANOS);
+            } else {
+                flush();
+            }
+        }
+        flush();
+    }
+
+    // Forces every segment page between the durable and written positions in one pass
+    private void flush() {
+        synchronized (flushLock) {
+            long upTo = written;
+            long from = durable - base;
+            long target = upTo - base;
+            if (target > from) {
+                for (long index = from / SEGMENT_SIZE; index <= (target - 1) / SEGMENT_SIZE; index++) {
+                    int start = index == from / SEGMENT_SIZE ? (int) (from % SEGMENT_SIZE) : 0;
+                    int end = index == (target - 1) / SEGMENT_SIZE ? (int) ((target - 1) % SEGMENT_SIZE) + 1 : SEGMENT_SIZE;
+                    segment(index * SEGMENT_SIZE).force(start, end - start);
+                }
+            }
+            synchronized (durableLock) {
+                durable = upTo;
+                durableLock.notifyAll();
+            }
+        }
+    }
+
+    // Empties the log after a checkpoint. The cleared first segment is forced before anything new is
+    // written to it, so a crash can never leave a new record followed by old ones.
+    private void restart() throws java.io.IOException {
+        java.nio.MappedByteBuffer first = segment(0);
+        int end = (int) Math.min(position, SEGMENT_SIZE);
+        byte[] zeros = new byte[64 << 10];
+        for (int offset = 0; offset < end; offset += zeros.length) {
+            first.put(offset, zeros, 0, Math.min(zeros.length, end - offset));
+        }
+        first.force(0, Math.max(end, 8));
+        while (segments.size() > 1) {
+            segments.remove(segments.size() - 1);
+        }
+        channel.truncate(SEGMENT_SIZE);
+        // Symbol definitions went with the old records
+        Arrays.fill(symbolWritten, false);
+        // Everything written is durable, as the caller flushed it
+        base = written;
+        position = 0;
+        records = 0;
+    }
+
+    // Applies the valid prefix of the log and positions the writer after it. A torn record fails its
+    // checksum and ends the replay; whatever follows it is cleared so it can never be read later.
+    private void replay(Snapshot snapshot) throws java.io.IOException {
+        Replay replay = snapshot != null ? new Replay(snapshot.entities, snapshot.epoch) : new Replay(new Object[64], 0);
+        long fileSize = channel.size();
+        long pos = 0;
+        while (pos + 8 <= fileSize) {
+            int offset = (int) (pos % SEGMENT_SIZE);
+            if (offset + 8 > SEGMENT_SIZE) {
+                pos += SEGMENT_SIZE - offset;
+                continue;
+            }
+            java.nio.MappedByteBuffer segment = segment(pos);
+            int length = segment.getInt(offset);
+            if (length == SKIP) {
+                pos += SEGMENT_SIZE - offset;
+                continue;
+            }
+            if (length <= 0 || offset + 8 + length > SEGMENT_SIZE) {
+                break;
+            }
+            java.nio.ByteBuffer payload = segment.slice(offset + 8, length);
+            crc.reset();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != segment.getInt(offset + 4)) {
+                break;
+            }
+            replay.apply(payload);
+            replayedRecords++;
+            pos += 8 + length;
+        }
+
+        java.nio.MappedByteBuffer tail = segment(pos);
+        byte[] zeros = new byte[64 << 10];
+        for (int offset = (int) (pos % SEGMENT_SIZE); offset < SEGMENT_SIZE; offset += zeros.length) {
+            tail.put(offset, zeros, 0, Math.min(zeros.length, SEGMENT_SIZE - offset));
+        }
+        int keep = (int) (pos / SEGMENT_SIZE) + 1;
+        while (segments.size() > keep) {
+            segments.remove(segments.size() - 1);
+        }
+        channel.truncate((long) keep * SEGMENT_SIZE);
+        position = pos;
+        written = pos;
+        durable = pos;
+    }
+
+    // One record being staged by a thread. Symbol IDs are process-local, so the ones an op uses are
+    // collected and defined in the log ahead of the record the first time each session uses them.
+    static final class Txn {
+        byte[] bytes = new byte[256];
+        int size;
+        int[] symbols = new int[8];
+        int symbolCount;
+        private Journal journal;
+
+        void reset(Journal journal) {
+            this.journal = journal;
+            size = 0;
+            symbolCount = 0;
+        }
+
+        // Starts a session continuing the snapshot of the given epoch
+        Txn session(long epoch) {
+            putByte(OP_SESSION);
+            putLong(epoch);
+            return this;
+        }
+
+        Txn symbol(int id, String name) {
+            putByte(OP_SYMBOL);
+            putInt(id);
+            putString(name);
+            return this;
+        }
+
+        Txn create(byte kind, int entity, String name, long value) {
+            putByte(OP_CREATE);
+            putByte(kind);
+            putInt(entity);
+            putLong(value);
+            putString(name);
+            return this;
+        }
+
+        // A raw material (component -1) or a sub-design (material -1) of a design
+        Txn designMaterial(int design, int material, int component, int amount) {
+            putByte(OP_DESIGN_MATERIAL);
+            putInt(design);
+            putSymbol(material);
+            putInt(component);
+            putInt(amount);
+            return this;
+        }
+
+        Txn factoryDesign(int factory, int design) {
+            putByte(OP_FACTORY_DESIGN);
+            putInt(factory);
+            putInt(design);
+            return this;
+        }
+
+        Txn delta(byte field, int entity, int symbol, long value) {
+            putByte(OP_DELTA);
+            putByte(field);
+            putInt(entity);
+            putSymbol(symbol);
+            putLong(value);
+            return this;
+        }
+
+        Txn set(byte field, int entity, int symbol, long value) {
+            putByte(OP_SET);
+            putByte(field);
+            putInt(entity);
+            putSymbol(symbol);
+            putLong(value);
+            return this;
+        }
+
+        Txn rename(int entity, String name) {
+            putByte(OP_RENAME);
+            putInt(entity);
+            putString(name);
+            return this;
+        }
+
+        void commit() {
+            journal.append(this);
+        }
+
+        private void putSymbol(int id) {
+            if (id >= 0) {
+                if (symbolCount == symbols.length) {
+                    symbols = Arrays.copyOf(symbols, symbolCount * 2);
+                }
+                symbols[symbolCount++] = id;
+            }
+            putInt(id);
+        }
+
+        private void putByte(int b) {
+            ensure(1);
+            bytes[size++] = (byte) b;
+        }
+
+        private void putInt(int v) {
+            ensure(4);
+            bytes[size++] = (byte) (v >>> 24);
+            bytes[size++] = (byte) (v >>> 16);
+            bytes[size++] = (byte) (v >>> 8);
+            bytes[size++] = (byte) v;
+        }
+
+        private void putLong(long v) {
+            putInt((int) (v >>> 32));
+            putInt((int) v);
+        }
+
+        private void putString(String s) {
+            byte[] utf8 = s.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+            putInt(utf8.length);
+            ensure(utf8.length);
+            System.arraycopy(utf8, 0, bytes, size, utf8.length);
+            size += utf8.length;
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(size + extra, bytes.length * 2));
+            }
+        }
+    }
+
+    // Rebuilds entities from journaled ops on top of what the snapshot loaded. Entity IDs are kept so
+    // later sessions' records still resolve; symbol IDs are remapped per session.
+    private static final class Replay {
+        private Object[] entities;
+        private int[] symbols = new int[64];
+        private final long epoch;
+        // Inside a session from before the snapshot, whose changes it already holds
+        private boolean skipping;
+
+        Replay(Object[] entities, long epoch) {
+            this.entities = entities;
+            this.epoch = epoch;
+            Arrays.fill(symbols, -1);
+        }
+
+        void apply(java.nio.ByteBuffer in) {
+            while (in.hasRemaining()) {
+                byte op = in.get();
+                if (skipping && op != OP_SESSION) {
+                    return;
+                }
+                switch (op) {
+                    case OP_SESSION: {
+                        long session = in.getLong();
+                        if (session > epoch) {
+                            throw new IllegalStateException("Journal continues snapshot " + session
+                                    + " but the snapshot loaded is " + (epoch == 0 ? "missing" : "epoch " + epoch));
+                        }
+                        skipping = session < epoch;
+                        Arrays.fill(symbols, -1);
+                        break;
+                    }
+                    case OP_SYMBOL: {
+                        int id = in.getInt();
+                        if (id >= symbols.length) {
+                            int old = symbols.length;
+                            symbols = Arrays.copyOf(symbols, Math.max(id + 1, old * 2));
+                            Arrays.fill(symbols, old, symbols.length, -1);
+                        }
+                        symbols[id] = Symbols.id(readString(in));
+                        break;
+                    }
+                    case OP_CREATE: {
+                        byte kind = in.get();
+                        int id = in.getInt();
+                        long value = in.getLong();
+                        create(kind, id, readString(in), value);
+                        break;
+                    }
+                    case OP_DESIGN_MATERIAL: {
+                        ProductDesign design = (ProductDesign) entities[in.getInt()];
+                        int material = symbol(in.getInt());
+                        int component = in.getInt();
+                        int amount = in.getInt();
+                        design.addMaterial(component >= 0
+                                ? new InputMaterial((ProductDesign) entities[component], amount)
+                                : new InputMaterial(Symbols.name(material), amount));
+                        break;
+                    }
+                    case OP_FACTORY_DESIGN: {
+                        FactoryExtended factory = (FactoryExtended) entities[in.getInt()];
+                        factory.addDesign((ProductDesign) entities[in.getInt()]);
+                        break;
+                    }
+                    case OP_DELTA:
+                    case OP_SET: {
+                        byte field = in.get();
+                        Object entity = entities[in.getInt()];
+                        int symbol = symbol(in.getInt());
+                        long value = in.getLong();
+                        if (op == OP_DELTA) {
+                            applyDelta(field, entity, symbol, value);
+                        } else {
+                            applySet(field, entity, symbol, value);
+                        }
+                        break;
+                    }
+                    case OP_RENAME: {
+                        Object entity = entities[in.getInt()];
+                        String name = readString(in);
+                        if (entity instanceof Customer) {
+                            ((Customer) entity).name = name;
+                        } else if (entity instanceof Market) {
+                            ((Market) entity).name = name;
+                        } else if (entity instanceof Producer) {
+                            ((Producer) entity).name = name;
+                        } else if (entity instanceof Factory) {
+                            ((Factory) entity).name = name;
+                        }
+                        break;
+                    }
+                    default:
+                        throw new IllegalStateException("Corrupt journal: unknown op " + op);
+                }
+            }
+        }
+
+        private void create(byte kind, int id, String name, long value) {
+            Object entity;
+            switch (kind) {
+                case PRODUCER: {
+                    Producer p = new Producer(name, 0);
+                    p.balance.set(value);
+                    p.entityId = id;
+                    SupplyChainSystemGUI.producers.add(p);
+                    entity = p;
+                    break;
+                }
+                case FACTORY: {
+                    FactoryExtended f = new FactoryExtended(name, 0);
+                    f.balance.set(value);
+                    f.entityId = id;
+                    SupplyChainSystemGUI.factories.add(f);
+                    entity = f;
+                    break;
+                }
+                case MARKET: {
+                    Market m = new Market(name, 0);
+                    m.balance.set(value);
+                    m.entityId = id;
+                    SupplyChainSystemGUI.markets.add(m);
+                    entity = m;
+                    break;
+                }
+                case CUSTOMER: {
+                    Customer c = new Customer(name, 0);
+                    c.balance.set(value);
+                    c.entityId = id;
+                    SupplyChainSystemGUI.customers.add(c);
+                    entity = c;
+                    break;
+                }
+                case DESIGN: {
+                    ProductDesign d = new ProductDesign(name, 0);
+                    d.cost = value;
+                    d.entityId = id;
+                    SupplyChainSystemGUI.allDesigns.add(d);
+                    entity = d;
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Corrupt journal: unknown entity kind " + kind);
+            }
+            if (id >= entities.length) {
+                entities = Arrays.copyOf(entities, Math.max(id + 1, entities.length * 2));
+            }
+            entities[id] = entity;
+            // New entities must not reuse a journaled ID
+            reserveEntityIds(id + 1);
+        }
+
+        private static void applyDelta(byte field, Object entity, int symbol, long value) {
+            switch (field) {
+                case BALANCE:
+                    balanceOf(entity).deposit(value);
+                    break;
+                case MARKET_STOCK:
+                    ((Market) entity).stock.add(symbol, (int) value);
+                    break;
+                case CUSTOMER_INVENTORY: {
+                    Customer c = (Customer) entity;
+                    if (c.inventory.add(symbol, (int) value) == 0) {
+                        c.inventory.remove(symbol);
+                    }
+                    break;
+                }
+                case PRODUCER_MATERIAL:
+                    ((Producer) entity).materials.add(symbol, (int) value);
+                    break;
+                case FACTORY_MATERIAL:
+                    ((FactoryExtended) entity).materials.add(symbol, (int) value);
+                    break;
+                case FACTORY_PRODUCT:
+                    ((FactoryExtended) entity).addProduct(Symbols.name(symbol), (int) value);
+                    break;
+                default:
+                    throw new IllegalStateException("Corrupt journal: unknown field " + field);
+            }
+        }
+
+        private static void applySet(byte field, Object entity, int symbol, long value) {
+            switch (field) {
+                case BALANCE:
+                    balanceOf(entity).set(value);
+                    break;
+                case MARKET_STOCK:
+                    ((Market) entity).stock.set(symbol, (int) value);
+                    break;
+                case MARKET_PRICE:
+                    ((Market) entity).setPrice(Symbols.name(symbol), value);
+                    break;
+                case REORDER_LEVEL:
+                    ((Market) entity).setReorderLevel(Symbols.name(symbol), (int) (value >>> 32), (int) value);
+                    break;
+                case CUSTOMER_INVENTORY:
+                    if (value == 0) {
+                        ((Customer) entity).inventory.remove(symbol);
+                    } else {
+                        ((Customer) entity).inventory.set(symbol, (int) value);
+                    }
+                    break;
+                case PRODUCER_MATERIAL:
+                    ((Producer) entity).materials.set(symbol, (int) value);
+                    break;
+                case FACTORY_MATERIAL:
+                    if (value == 0) {
+                        ((FactoryExtended) entity).materials.remove(symbol);
+                    } else {
+                        ((FactoryExtended) entity).materials.set(symbol, (int) value);
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("Corrupt journal: unknown field " + field);
+            }
+        }
+
+        private static Account balanceOf(Object entity) {
+            if (entity instanceof Customer) {
+                return ((Customer) entity).balance;
+            } else if (entity instanceof Market) {
+                return ((Market) entity).balance;
+            } else if (entity instanceof Producer) {
+                return ((Producer) entity).balance;
+            }
+            return ((Factory) entity).balance;
+        }
+
+        private int symbol(int journaled) {
+            return journaled >= 0 ? symbols[journaled] : -1;
+        }
+
+        private static String readString(java.nio.ByteBuffer in) {
+            byte[] utf8 = new byte[in.getInt()];
+            in.get(utf8);
+            return new String(utf8, java.nio.charset.StandardCharsets.UTF_8);
+        }
+    }
+}
+
+// Compact binary image of every entity, written at journal checkpoints so that startup loads it and
+// replays only the log recorded since. Every string, entity names as well as product and material
+// names, is stored once in a string table and referenced by index. The file is read back through a
+// read-only mapping, bulk-copying the string table and decoding the rest in place:
+//
+//   header     magic, version, epoch, entity ID limit
+//   strings    count, total bytes, end offset of each string, then the UTF-8 bytes
+//   designs    id, name, cost, whether it is listed in allDesigns
+//   inputs     per design: count, then material name (or -1) and component design ID (or -1), amount
+//   producers  id, name, balance, materials
+//   factories  id, name, balance, design IDs, materials, products
+//   markets    id, name, balance, stock, prices, reorder levels
+//   customers  id, name, balance, inventory
+//
+// Each section starts with its count, and each quantity list with its length followed by name and
+// value pairs; a reorder level is a name, point and target. Resting bids are left out, as in the
+// journal: their escrow is added back to the bidding customer's balance.
+final class Snapshot {
+    private static final int MAGIC = 0x53435348;  // "SCSH"
+    private static final int VERSION = 2;
+
+    final long epoch;
+    // Loaded entities by entity ID, for resolving journal records
+    final Object[] entities;
+
+    private Snapshot(long epoch, Object[] entities) {
+        this.epoch = epoch;
+        this.entities = entities;
+    }
+
+    // Writes the static entity lists to the file and forces it to disk. Each entity is read under its
+    // own lock; the result is only a consistent cut if nothing trades meanwhile, which
+    // Journal.checkpoint ensures.
+    static void write(java.nio.file.Path path, long epoch) throws java.io.IOException {
+        Writer out = new Writer();
+        Map<Customer, Long> escrow = new HashMap<>();
+        for (Market m : SupplyChainSystemGUI.markets) {
+            for (int productId = 0; productId < Symbols.count(); productId++) {
+                OrderBook book = m.book(productId);
+                if (book != null) {
+                    synchronized (m.stock.stripeFor(productId)) {
+                        book.forEachOrder(orderId -> escrow.merge((Customer) book.owner(orderId),
+                                book.quantity(orderId) * book.price(orderId), Long::sum));
+                    }
+                }
+            }
+        }
+
+        // Factories and components can use designs that were never listed in allDesigns
+        LinkedHashSet<ProductDesign> designs = new LinkedHashSet<>(SupplyChainSystemGUI.allDesigns);
+        for (FactoryExtended f : SupplyChainSystemGUI.factories) {
+            synchronized (f) {
+                designs.addAll(f.designs);
+            }
+        }
+        ArrayDeque<ProductDesign> pending = new ArrayDeque<>(designs);
+        while (!pending.isEmpty()) {
+            for (InputMaterial m : pending.poll().materials) {
+                if (m.component != null && designs.add(m.component)) {
+                    pending.add(m.component);
+                }
+            }
+        }
+        int listed = SupplyChainSystemGUI.allDesigns.size();
+        out.putInt(designs.size());
+        for (ProductDesign d : designs) {
+            out.entity(d.entityId, d.name);
+            out.putLong(d.cost);
+            out.putInt(listed-- > 0 ? 1 : 0);
+        }
+        for (ProductDesign d : designs) {
+            out.putInt(d.materials.size());
+            for (InputMaterial m : d.materials) {
+                out.putInt(m.component == null ? out.symbol(m.id) : -1);
+                out.putInt(m.component != null ? m.component.entityId : -1);
+                out.putInt(m.amount);
+            }
+        }
+
+        out.putInt(SupplyChainSystemGUI.producers.size());
+        for (Producer p : SupplyChainSystemGUI.producers) {
+            synchronized (p) {
+                out.entity(p.entityId, p.name);
+                out.putLong(p.balance.get());
+                out.inventory(p.materials);
+            }
+        }
+
+        out.putInt(SupplyChainSystemGUI.factories.size());
+        for (FactoryExtended f : SupplyChainSystemGUI.factories) {
+            synchronized (f) {
+                out.entity(f.entityId, f.name);
+                out.putLong(f.balance.get());
+                out.putInt(f.designs.size());
+                for (ProductDesign d : f.designs) {
+                    out.putInt(d.entityId);
+                }
+                out.inventory(f.materials);
+                out.putInt(f.products.size());
+                for (InventoryItem item : f.products.values()) {
+                    out.putInt(out.symbol(item.id));
+                    out.putInt(item.quantity);
+                }
+            }
+        }
+
+        out.putInt(SupplyChainSystemGUI.markets.size());
+        for (Market m : SupplyChainSystemGUI.markets) {
+            out.entity(m.entityId, m.name);
+            out.putLong(m.balance.get());
+            out.putInt(m.stock.size());
+            m.stock.forEach((id, quantity) -> {
+                out.putInt(out.symbol(id));
+                out.putInt(quantity);
+            });
+            ArrayList<long[]> prices = new ArrayList<>();
+            m.stock.forEachPrice((id, price) -> prices.add(new long[] {id, price}));
+            out.putInt(prices.size());
+            for (long[] price : prices) {
+                out.putInt(out.symbol((int) price[0]));
+                out.putLong(price[1]);
+            }
+            ArrayList<int[]> levels = new ArrayList<>();
+            m.stock.forEachReorderLevel((id, point, target) -> levels.add(new int[] {id, point, target}));
+            out.putInt(levels.size());
+            for (int[] level : levels) {
+                out.putInt(out.symbol(level[0]));
+                out.putInt(level[1]);
+                out.putInt(level[2]);
+            }
+        }
+
+        out.putInt(SupplyChainSystemGUI.customers.size());
+        for (Customer c : SupplyChainSystemGUI.customers) {
+            synchronized (c) {
+                out.entity(c.entityId, c.name);
+                out.putLong(c.balance.get() + escrow.getOrDefault(c, 0L));
+                out.inventory(c.inventory);
+            }
+        }
+
+        out.writeTo(path, epoch);
+    }
+
+    // Rebuilds the entities into the static lists, which must be empty. Journaling must be off
+    // (Journal.open loads the snapshot before it starts writing).
+    static Snapshot load(java.nio.file.Path path) throws java.io.IOException {
+        java.nio.MappedByteBuffer in;
+        try (java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(path, java.nio.file.StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new java.io.IOException("Snapshot " + path + " is larger than 2GB");
+            }
+            in = channel.map(java.nio.channels.FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+            throw new java.io.IOException(path + " is not a snapshot of this version");
+        }
+        long epoch = in.getLong();
+        Object[] entities = new Object[in.getInt()];
+        Reader strings = new Reader(in);
+
+        ProductDesign[] designs = new ProductDesign[in.getInt()];
+        for (int i = 0; i < designs.length; i++) {
+            int id = in.getInt();
+            ProductDesign d = new ProductDesign(strings.string(in.getInt()), 0);
+            d.cost = in.getLong();
+            d.entityId = id;
+            entities[id] = d;
+            designs[i] = d;
+            if (in.getInt() != 0) {
+                SupplyChainSystemGUI.allDesigns.add(d);
+            }
+        }
+        for (ProductDesign d : designs) {
+            for (int n = in.getInt(); n > 0; n--) {
+                int material = in.getInt();
+                int component = in.getInt();
+                int amount = in.getInt();
+                d.addMaterial(component >= 0
+                        ? new InputMaterial((ProductDesign) entities[component], amount)
+                        : new InputMaterial(strings.string(material), amount));
+            }
+        }
+
+        for (int n = in.getInt(); n > 0; n--) {
+            int id = in.getInt();
+            Producer p = new Producer(strings.string(in.getInt()), 0);
+            p.balance.set(in.getLong());
+            p.entityId = id;
+            for (int k = in.getInt(); k > 0; k--) {
+                p.materials.set(strings.symbol(in.getInt()), in.getInt());
+            }
+            entities[id] = p;
+            SupplyChainSystemGUI.producers.add(p);
+        }
+
+        for (int n = in.getInt(); n > 0; n--) {
+            int id = in.getInt();
+            FactoryExtended f = new FactoryExtended(strings.string(in.getInt()), 0);
+            f.balance.set(in.getLong());
+            f.entityId = id;
+            for (int k = in.getInt(); k > 0; k--) {
+                f.addDesign((ProductDesign) entities[in.getInt()]);
+            }
+            for (int k = in.getInt(); k > 0; k--) {
+                f.materials.set(strings.symbol(in.getInt()), in.getInt());
+            }
+            for (int k = in.getInt(); k > 0; k--) {
+                f.addProduct(strings.string(in.getInt()), in.getInt());
+            }
+            entities[id] = f;
+            SupplyChainSystemGUI.factories.add(f);
+        }
+
+        for (int n = in.getInt(); n > 0; n--) {
+            int id = in.getInt();
+            Market m = new Market(strings.string(in.getInt()), 0);
+            m.balance.set(in.getLong());
+            m.entityId = id;
+            for (int k = in.getInt(); k > 0; k--) {
+                m.stock.set(strings.symbol(in.getInt()), in.getInt());
+            }
+            for (int k = in.getInt(); k > 0; k--) {
+                m.setPrice(strings.string(in.getInt()), in.getLong());
+            }
+            for (int k = in.getInt(); k > 0; k--) {
+                m.setReorderLevel(strings.string(in.getInt()), in.getInt(), in.getInt());
+            }
+            entities[id] = m;
+            SupplyChainSystemGUI.markets.add(m);
+        }
+
+        int customers = in.getInt();
+        SupplyChainSystemGUI.customers.ensureCapacity(SupplyChainSystemGUI.customers.size() + customers);
+        for (int n = customers; n > 0; n--) {
+            int id = in.getInt();
+            Customer c = new Customer(strings.string(in.getInt()), 0);
+            c.balance.set(in.getLong());
+            c.entityId = id;
+            for (int k = in.getInt(); k > 0; k--) {
+                c.inventory.set(strings.symbol(in.getInt()), in.getInt());
+            }
+            entities[id] = c;
+            SupplyChainSystemGUI.customers.add(c);
+        }
+
+        Journal.reserveEntityIds(entities.length);
+        return new Snapshot(epoch, entities);
+    }
+
+    // Buffers the sections while interning strings, since the string table goes ahead of them
+    private static final class Writer {
+        private java.nio.ByteBuffer body = java.nio.ByteBuffer.allocate(1 << 16);
+        private java.nio.ByteBuffer utf8 = java.nio.ByteBuffer.allocate(1 << 16);
+        private final Map<String, Integer> indexes = new HashMap<>();
+        private int[] ends = new int[256];
+        // String index by symbol ID, offset by one so that 0 means not yet interned
+        private int[] symbolIndexes = new int[Symbols.count()];
+        private int entityLimit = Journal.entityIdLimit();
+
+        void putInt(int v) {
+            body = ensure(body, 4);
+            body.putInt(v);
+        }
+
+        void putLong(long v) {
+            body = ensure(body, 8);
+            body.putLong(v);
+        }
+
+        void entity(int id, String name) {
+            entityLimit = Math.max(entityLimit, id + 1);
+            putInt(id);
+            putInt(string(name));
+        }
+
+        void inventory(Inventory inventory) {
+            putInt(inventory.size());
+            for (int s = inventory.nextSlot(-1); s >= 0; s = inventory.nextSlot(s)) {
+                putInt(symbol(inventory.keyAt(s)));
+                putInt(inventory.quantityAt(s));
+            }
+        }
+
+        int symbol(int id) {
+            if (id >= symbolIndexes.length) {
+                symbolIndexes = Arrays.copyOf(symbolIndexes, Math.max(id + 1, symbolIndexes.length * 2));
+            }
+            if (symbolIndexes[id] == 0) {
+                symbolIndexes[id] = string(Symbols.name(id)) + 1;
+            }
+            return symbolIndexes[id] - 1;
+        }
+
+        int string(String s) {
+            Integer index = indexes.get(s);
+            if (index != null) {
+                return index;
+            }
+            int next = indexes.size();
+            byte[] bytes = s.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+            utf8 = ensure(utf8, bytes.length);
+            utf8.put(bytes);
+            if (next == ends.length) {
+                ends = Arrays.copyOf(ends, next * 2);
+            }
+            ends[next] = utf8.position();
+            indexes.put(s, next);
+            return next;
+        }
+
+        private static java.nio.ByteBuffer ensure(java.nio.ByteBuffer buffer, int extra) {
+            if (buffer.remaining() >= extra) {
+                return buffer;
+            }
+            java.nio.ByteBuffer grown = java.nio.ByteBuffer.allocate(Math.max(buffer.position() + extra, buffer.capacity() * 2));
+            return grown.put(buffer.flip());
+        }
+
+        void writeTo(java.nio.file.Path path, long epoch) throws java.io.IOException {
+            java.nio.ByteBuffer header = java.nio.ByteBuffer.allocate(32 + indexes.size() * 4);
+            header.putInt(MAGIC).putInt(VERSION).putLong(epoch).putInt(entityLimit);
+            header.putInt(indexes.size()).putInt(utf8.position());
+            header.asIntBuffer().put(ends, 0, indexes.size());
+            header.position(header.position() + indexes.size() * 4).flip();
+            java.nio.ByteBuffer[] parts = {header, utf8.flip(), body.flip()};
+            try (java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(path,
+                    java.nio.file.StandardOpenOption.CREATE, java.nio.file.StandardOpenOption.WRITE,
+                    java.nio.file.StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (parts[2].hasRemaining()) {
+                    channel.write(parts);
+                }
+                channel.force(true);
+            }
+        }
+    }
+
+    // String table of a mapped snapshot
+    private static final class Reader {
+        private final String[] strings;
+        // Symbol ID by string index, offset by one so that 0 means not yet interned
+        private final int[] symbols;
+
+        Reader(java.nio.ByteBuffer in) {
+            int count = in.getInt();
+            byte[] utf8 = new byte[in.getInt()];
+            int[] ends = new int[count];
+            in.asIntBuffer().get(ends);
+            in.position(in.position() + count * 4);
+            in.get(utf8);
+            strings = new String[count];
+            symbols = new int[count];
+            int start = 0;
+            for (int i = 0; i < count; i++) {
+                strings[i] = new String(utf8, start, ends[i] - start, java.nio.charset.StandardCharsets.UTF_8);
+                start = ends[i];
+            }
+        }
+
+        String string(int index) {
+            return strings[index];
+        }
+
+        int symbol(int index) {
+            if (symbols[index] == 0) {
+                symbols[index] = Symbols.id(strings[index]) + 1;
+            }
+            return symbols[index] - 1;
+        }
+    }
+}
+
+// Streams a scenario file into the static entity lists. A scenario is either CSV, one record per row
+// with its type first, or JSON Lines (.jsonl, .ndjson or .json), one flat object per line with a
+// "type" key and the fields below by name. Blank lines and lines starting with # are skipped.
+//
+//   producer,name,balance              material,producer,material,quantity
+//   design,name,cost                   input,design,material,amount
+//   component,design,component,amount  factory,name,balance
+//   factory_design,factory,design      market,name,balance
+//   stock,market,product,quantity      price,market,product,price
+//   customer,name,balance              reorder,market,product,point,target
+//   capacity,factory,units             units a factory builds per production tick
+//
+// Order rows trade through the domain model as they are applied, as the dialogs would, and count
+// towards outcome(); a rejected order is an outcome, not an error. Under a synced journal a chunk's
+// orders wait for one sync after the chunk rather than one each. A buy of a product the
+// market stocks but has not priced comes back INVALID_PRICE rather than selling for nothing:
+//
+//   buy,customer,market,product,amount        at the market's current price
+//   bid,customer,market,product,amount,limit
+//   restock,market,factory,product,amount     at the factory's unit cost
+//   manufacture,factory,design,amount
+//
+// Job rows queue manufacturing with the ProductionScheduler, to be built over later ticks; they are
+// not orders and have no outcome:
+//
+//   job,factory,design,amount,priority
+//
+// Money is in currency units, as typed into the dialogs. A row may only refer to entities defined on
+// earlier rows or already in the lists; if a name repeats, the latest definition is the one found.
+// Customers are indexed only once an order refers to one, so importing millions of them keeps no
+// index unless it is needed.
+//
+// The file is read in chunks of lines. Pool threads parse each chunk, while the reading thread
+// applies finished chunks strictly in file order, constructing their entities as it goes, so entity
+// IDs, symbols and references come out exactly as in a serial read and no row past a bad one is
+// ever journaled. Only parsing is parallel: building the collections in parallel as well would
+// hand out entity IDs and journal records out of file order, and a failed chunk's entities would
+// already exist. At most a fixed window of chunks is in flight, which bounds memory whatever the
+// size of the file. A bad row stops the import with its line number; the rows before it stay
+// imported.
+final class ScenarioImporter {
+    // Lines parsed by one pool task
+    static final int CHUNK_LINES = 4096;
+
+    // Row types, indexing TYPES and FIELDS
+    private static final byte PRODUCER = 0;
+    private static final byte MATERIAL = 1;
+    private static final byte DESIGN = 2;
+    private static final byte INPUT = 3;
+    private static final byte COMPONENT = 4;
+    private static final byte FACTORY = 5;
+    private static final byte FACTORY_DESIGN = 6;
+    private static final byte MARKET = 7;
+    private static final byte STOCK = 8;
+    private static final byte PRICE = 9;
+    private static final byte CUSTOMER = 10;
+    private static final byte BUY = 11;
+    private static final byte BID = 12;
+    private static final byte RESTOCK = 13;
+    private static final byte MANUFACTURE = 14;
+    private static final byte REORDER = 15;
+    private static final byte CAPACITY = 16;
+    private static final byte JOB = 17;
+    // A blank or comment line
+    private static final byte SKIP = -1;
+
+    private static final String[] TYPES = {
+            "producer", "material", "design", "input", "component", "factory", "factory_design",
+            "market", "stock", "price", "customer", "buy", "bid", "restock", "manufacture", "reorder", "capacity", "job"};
+    private static final String[][] FIELDS = {
+            {"name", "balance"},
+            {"producer", "material", "quantity"},
+            {"name", "cost"},
+            {"design", "material", "amount"},
+            {"design", "component", "amount"},
+            {"name", "balance"},
+            {"factory", "design"},
+            {"name", "balance"},
+            {"market", "product", "quantity"},
+            {"market", "product", "price"},
+            {"name", "balance"},
+            {"customer", "market", "product", "amount"},
+            {"customer", "market", "product", "amount", "limit"},
+            {"market", "factory", "product", "amount"},
+            {"factory", "design", "amount"},
+            {"market", "product", "point", "target"},
+            {"factory", "units"},
+            {"factory", "design", "amount", "priority"}};
+
+    private final java.util.concurrent.ForkJoinPool pool;
+    private final int window;
+    private final Map<String, Producer> producers = new HashMap<>();
+    private final Map<String, ProductDesign> designs = new HashMap<>();
+    private final Map<String, FactoryExtended> factories = new HashMap<>();
+    private final Map<String, Market> markets = new HashMap<>();
+    // Built on the first order row
+    private Map<String, Customer> customers;
+    private long rows;
+    private long orders;
+    private final long[] outcomes = new long[TradeResult.values().length];
+
+    ScenarioImporter(java.util.concurrent.ForkJoinPool pool) {
+        this.pool = pool;
+        this.window = Math.max(2, pool.getParallelism() * 2);
+        for (Producer p : SupplyChainSystemGUI.producers) {
+            producers.put(p.name, p);
+        }
+        for (ProductDesign d : SupplyChainSystemGUI.allDesigns) {
+            designs.put(d.name, d);
+        }
+        for (FactoryExtended f : SupplyChainSystemGUI.factories) {
+            factories.put(f.name, f);
+        }
+        for (Market m : SupplyChainSystemGUI.markets) {
+            markets.put(m.name, m);
+        }
+    }
+
+    // Imports the file on the common pool and returns the number of rows applied
+    static long importFile(java.nio.file.Path path) throws java.io.IOException {
+        return new ScenarioImporter(java.util.concurrent.ForkJoinPool.commonPool()).read(path);
+    }
+
+    // Order rows applied so far, over every file read
+    long orders() {
+        return orders;
+    }
+
+    // Order rows applied so far that came back with this result
+    long outcome(TradeResult result) {
+        return outcomes[result.ordinal()];
+    }
+
+    // Applies the file and returns the number of its rows applied
+    long read(java.nio.file.Path path) throws java.io.IOException {
+        long before = rows;
+        String file = path.getFileName().toString();
+        boolean json = file.endsWith(".jsonl") || file.endsWith(".ndjson") || file.endsWith(".json");
+        ArrayDeque<java.util.concurrent.Future<Chunk>> inFlight = new ArrayDeque<>();
+        try (java.io.BufferedReader in = java.nio.file.Files.newBufferedReader(path, java.nio.charset.StandardCharsets.UTF_8)) {
+            int line = 1;
+            boolean more = true;
+            while (more || !inFlight.isEmpty()) {
+                if (more) {
+                    String[] lines = new String[CHUNK_LINES];
+                    int count = 0;
+                    while (count < CHUNK_LINES && (lines[count] = in.readLine()) != null) {
+                        count++;
+                    }
+                    more = count == CHUNK_LINES;
+                    if (count > 0) {
+                        Chunk chunk = new Chunk(lines, count, line, json);
+                        inFlight.add(pool.submit(chunk::parse, chunk));
+                        line += count;
+                    }
+                }
+                // Past the window, or once the file is read, wait for the oldest chunk
+                if (!inFlight.isEmpty() && (!more || inFlight.size() >= window)) {
+                    apply(await(inFlight.poll()));
+                }
+            }
+            return rows - before;
+        } finally {
+            for (java.util.concurrent.Future<Chunk> pending : inFlight) {
+                pending.cancel(false);
+            }
+        }
+    }
+
+    private static Chunk await(java.util.concurrent.Future<Chunk> future) throws java.io.IOException {
+        try {
+            return future.get();
+        } catch (java.util.concurrent.ExecutionException e) {
+            Throwable cause = e.getCause();
+            // Fork-join rethrows a copy of the worker's exception that wraps the original
+            if (cause.getCause() != null && cause.getCause().getClass() == cause.getClass()) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new java.io.IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new java.io.InterruptedIOException("Scenario import interrupted");
+        }
+    }
+
+    // Adds the chunk's entities to the lists and applies its references, in row order, as one change
+    // that a checkpoint sees all or none of. The chunk's orders are made durable together once it is
+    // applied, so a checkpoint never waits behind a sync per order.
+    private void apply(Chunk chunk) {
+        Journal.batch(() -> applyRows(chunk));
+    }
+
+    private void applyRows(Chunk chunk) {
+        Journal.enter();
+        try {
+            for (int i = 0; i < chunk.parsed; i++) {
+                int line = chunk.firstLine + i;
+                String first = chunk.first[i];
+                String second = chunk.second[i];
+                int quantity = (int) chunk.values[i];
+                switch (chunk.types[i]) {
+                    case SKIP:
+                        continue;
+                    case PRODUCER: {
+                        Producer p = new Producer(first, chunk.amounts[i]);
+                        SupplyChainSystemGUI.producers.add(p);
+                        producers.put(p.name, p);
+                        break;
+                    }
+                    case MATERIAL:
+                        find(producers, first, "producer", line).setMaterial(second, quantity);
+                        break;
+                    case DESIGN: {
+                        ProductDesign d = new ProductDesign(first, chunk.amounts[i]);
+                        SupplyChainSystemGUI.allDesigns.add(d);
+                        designs.put(d.name, d);
+                        break;
+                    }
+                    case INPUT:
+                    case COMPONENT: {
+                        ProductDesign design = find(designs, first, "design", line);
+                        try {
+                            design.addMaterial(chunk.types[i] == INPUT
+                                    ? new InputMaterial(second, quantity)
+                                    : new InputMaterial(find(designs, second, "design", line), quantity));
+                        } catch (IllegalArgumentException e) {
+                            throw new IllegalArgumentException("Line " + line + ": " + e.getMessage());
+                        }
+                        break;
+                    }
+                    case FACTORY: {
+                        FactoryExtended f = new FactoryExtended(first, chunk.amounts[i]);
+                        SupplyChainSystemGUI.factories.add(f);
+                        factories.put(f.name, f);
+                        break;
+                    }
+                    case FACTORY_DESIGN:
+                        find(factories, first, "factory", line).addDesign(find(designs, second, "design", line));
+                        break;
+                    case MARKET: {
+                        Market m = new Market(first, chunk.amounts[i]);
+                        SupplyChainSystemGUI.markets.add(m);
+                        markets.put(m.name, m);
+                        break;
+                    }
+                    case STOCK:
+                        find(markets, first, "market", line).stock.set(second, quantity);
+                        break;
+                    case PRICE:
+                        find(markets, first, "market", line).setPrice(second, chunk.values[i]);
+                        break;
+                    case CUSTOMER: {
+                        Customer c = new Customer(first, chunk.amounts[i]);
+                        SupplyChainSystemGUI.customers.add(c);
+                        if (customers != null) {
+                            customers.put(c.name, c);
+                        }
+                        break;
+                    }
+                    case BUY: {
+                        Market m = find(markets, second, "market", line);
+                        String product = chunk.third[i];
+                        count(customer(first, line).buyProduct(product, quantity, m.getPrice(product), m));
+                        break;
+                    }
+                    case BID:
+                        count(customer(first, line).placeBid(chunk.third[i], quantity, chunk.limits[i],
+                                find(markets, second, "market", line)));
+                        break;
+                    case RESTOCK: {
+                        FactoryExtended f = find(factories, second, "factory", line);
+                        String product = chunk.third[i];
+                        count(find(markets, first, "market", line).buyProduct(product, quantity, MarketQueries.unitCost(f, product), f));
+                        break;
+                    }
+                    case MANUFACTURE:
+                        count(find(factories, first, "factory", line).manufacture(find(designs, second, "design", line), quantity));
+                        break;
+                    case REORDER:
+                        find(markets, first, "market", line).setReorderLevel(second, quantity, (int) chunk.limits[i]);
+                        break;
+                    case CAPACITY:
+                        find(factories, first, "factory", line).jobs.capacityPerTick = quantity;
+                        break;
+                    case JOB:
+                        ProductionScheduler.enqueue(find(factories, first, "factory", line),
+                                find(designs, second, "design", line), quantity, (int) chunk.limits[i]);
+                        break;
+                }
+                rows++;
+            }
+            if (chunk.failure != null) {
+                throw chunk.failure;
+            }
+        } finally {
+            Journal.exit();
+        }
+    }
+
+    private void count(TradeResult result) {
+        orders++;
+        outcomes[result.ordinal()]++;
+    }
+
+    private Customer customer(String name, int line) {
+        if (customers == null) {
+            customers = new HashMap<>();
+            for (Customer c : SupplyChainSystemGUI.customers) {
+                customers.put(c.name, c);
+            }
+        }
+        return find(customers, name, "customer", line);
+    }
+
+    private static <T> T find(Map<String, T> byName, String name, String kind, int line) {
+        T found = byName.get(name);
+        if (found == null) {
+            throw new IllegalArgumentException("Line " + line + ": unknown " + kind + " " + name);
+        }
+        return found;
+    }
+
+    // A run of lines parsed into columns: names, numbers and, for a row that defines an entity, its
+    // name and balance or cost, so apply() has nothing left to check but references.
+    private static final class Chunk {
+        final String[] lines;
+        final int count;
+        final int firstLine;
+        final boolean json;
+        final byte[] types;
+        final String[] first;
+        final String[] second;
+        // The product of a buy, bid or restock
+        final String[] third;
+        // Quantity, or price in cents
+        final long[] values;
+        // A bid's limit in cents, a reorder target or a job's priority
+        final long[] limits;
+        // An entity's balance or cost, in currency units as its constructor takes them
+        final double[] amounts;
+        // Rows parsed before the first bad one, and what was wrong with it
+        int parsed;
+        IllegalArgumentException failure;
+
+        Chunk(String[] lines, int count, int firstLine, boolean json) {
+            this.lines = lines;
+            this.count = count;
+            this.firstLine = firstLine;
+            this.json = json;
+            types = new byte[count];
+            first = new String[count];
+            second = new String[count];
+            third = new String[count];
+            values = new long[count];
+            limits = new long[count];
+            amounts = new double[count];
+        }
+
+        void parse() {
+            String[] fields = new String[6];
+            for (int i = 0; i < count; i++) {
+                String line = lines[i];
+                lines[i] = null;
+                if (line.isBlank() || line.startsWith("#")) {
+                    types[i] = SKIP;
+                    parsed++;
+                    continue;
+                }
+                try {
+                    byte type = json ? splitJson(line, fields) : splitCsv(line, fields);
+                    types[i] = type;
+                    build(i, type, fields);
+                } catch (IllegalArgumentException e) {
+                    failure = new IllegalArgumentException("Line " + (firstLine + i) + ": " + e.getMessage());
+                    return;
+                }
+                parsed++;
+            }
+        }
+
+        private void build(int i, byte type, String[] fields) {
+            switch (type) {
+                case PRODUCER:
+                case FACTORY:
+                case MARKET:
+                case CUSTOMER:
+                    first[i] = name(fields[1]);
+                    amounts[i] = money(fields[2], "balance");
+                    break;
+                case DESIGN:
+                    first[i] = name(fields[1]);
+                    amounts[i] = money(fields[2], "cost");
+                    break;
+                case FACTORY_DESIGN:
+                    first[i] = name(fields[1]);
+                    second[i] = name(fields[2]);
+                    break;
+                case PRICE: {
+                    first[i] = name(fields[1]);
+                    second[i] = name(fields[2]);
+                    double price = money(fields[3], "price");
+                    if (price <= 0) {
+                        throw new IllegalArgumentException("price must be positive");
+                    }
+                    values[i] = Money.cents(price);
+                    break;
+                }
+                case REORDER: {
+                    first[i] = name(fields[1]);
+                    second[i] = name(fields[2]);
+                    values[i] = quantity(fields[3], "point", false);
+                    limits[i] = quantity(fields[4], "target", true);
+                    if (limits[i] <= values[i]) {
+                        throw new IllegalArgumentException("target must be above point");
+                    }
+                    break;
+                }
+                case CAPACITY:
+                    first[i] = name(fields[1]);
+                    values[i] = quantity(fields[2], "units", true);
+                    break;
+                case JOB:
+                    first[i] = name(fields[1]);
+                    second[i] = name(fields[2]);
+                    values[i] = quantity(fields[3], "amount", true);
+                    try {
+                        limits[i] = Integer.parseInt(fields[4]);
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("invalid priority " + fields[4]);
+                    }
+                    break;
+                case BID: {
+                    double limit = money(fields[5], "limit");
+                    if (limit <= 0) {
+                        throw new IllegalArgumentException("limit must be positive");
+                    }
+                    limits[i] = Money.cents(limit);
+                }
+                // fall through
+                case BUY:
+                case RESTOCK:
+                    first[i] = name(fields[1]);
+                    second[i] = name(fields[2]);
+                    third[i] = name(fields[3]);
+                    values[i] = quantity(fields[4], "amount", true);
+                    break;
+                default:
+                    first[i] = name(fields[1]);
+                    second[i] = name(fields[2]);
+                    values[i] = quantity(fields[3], FIELDS[type][2], type == INPUT || type == COMPONENT || type == MANUFACTURE);
+                    break;
+            }
+        }
+
+        private static String name(String field) {
+            if (field.isEmpty()) {
+                throw new IllegalArgumentException("empty name");
+            }
+            return field;
+        }
+
+        private static double money(String field, String what) {
+            double amount;
+            try {
+                amount = Double.parseDouble(field);
+            } catch (NumberFormatException e) {
+                amount = Double.NaN;
+            }
+            if (Double.isNaN(amount) || Double.isInfinite(amount)) {
+                throw new IllegalArgumentException("invalid " + what + " " + field);
+            }
+            if (amount < 0) {
+                throw new IllegalArgumentException(what + " cannot be negative");
+            }
+            return amount;
+        }
+
+        private static int quantity(String field, String what, boolean positive) {
+            int quantity;
+            try {
+                quantity = Integer.parseInt(field);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("invalid " + what + " " + field);
+            }
+            if (quantity < 0 || (positive && quantity == 0)) {
+                throw new IllegalArgumentException(what + " must be " + (positive ? "positive" : "at least 0"));
+            }
+            return quantity;
+        }
+
+        private static byte type(String name) {
+            for (byte t = 0; t < TYPES.length; t++) {
+                if (TYPES[t].equals(name)) {
+                    return t;
+                }
+            }
+            throw new IllegalArgumentException("unknown record type " + name);
+        }
+
+        // Splits a CSV row into fields, the type first; quoted fields may hold commas and "" for a quote
+        private static byte splitCsv(String line, String[] fields) {
+            int count = 0;
+            int pos = 0;
+            int length = line.length();
+            while (true) {
+                if (count == fields.length) {
+                    throw new IllegalArgumentException("too many fields");
+                }
+                StringBuilder quoted = null;
+                int start = pos;
+                if (pos < length && line.charAt(pos) == '"') {
+                    quoted = new StringBuilder();
+                    pos++;
+                    while (true) {
+                        if (pos >= length) {
+                            throw new IllegalArgumentException("unterminated quote");
+                        }
+                        char c = line.charAt(pos++);
+                        if (c == '"') {
+                            if (pos < length && line.charAt(pos) == '"') {
+                                quoted.append('"');
+                                pos++;
+                            } else {
+                                break;
+                            }
+                        } else {
+                            quoted.append(c);
+                        }
+                    }
+                    if (pos < length && line.charAt(pos) != ',') {
+                        throw new IllegalArgumentException("text after closing quote");
+                    }
+                } else {
+                    while (pos < length && line.charAt(pos) != ',') {
+                        pos++;
+                    }
+                }
+                fields[count++] = quoted != null ? quoted.toString() : line.substring(start, pos).trim();
+                if (pos >= length) {
+                    break;
+                }
+                pos++;
+            }
+            byte type = type(fields[0]);
+            if (count != FIELDS[type].length + 1) {
+                throw new IllegalArgumentException(TYPES[type] + " needs " + String.join(", ", FIELDS[type]));
+            }
+            return type;
+        }
+
+        // Reads a flat JSON object, putting the type in fields[0] and the other values in FIELDS order
+        private static byte splitJson(String line, String[] fields) {
+            JsonCursor in = new JsonCursor(line);
+            String[] keys = new String[8];
+            String[] values = new String[8];
+            int count = 0;
+            in.expect('{');
+            if (!in.peek('}')) {
+                do {
+                    if (count == keys.length) {
+                        throw new IllegalArgumentException("too many fields");
+                    }
+                    keys[count] = in.string();
+                    in.expect(':');
+                    values[count++] = in.value();
+                } while (in.next(','));
+            }
+            in.expect('}');
+            in.end();
+
+            String typeName = null;
+            for (int k = 0; k < count; k++) {
+                if (keys[k].equals("type")) {
+                    typeName = values[k];
+                }
+            }
+            if (typeName == null) {
+                throw new IllegalArgumentException("missing type");
+            }
+            byte type = type(typeName);
+            fields[0] = typeName;
+            String[] names = FIELDS[type];
+            for (int f = 0; f < names.length; f++) {
+                fields[f + 1] = null;
+                for (int k = 0; k < count; k++) {
+                    if (keys[k].equals(names[f])) {
+                        fields[f + 1] = values[k];
+                    }
+                }
+                if (fields[f + 1] == null) {
+                    throw new IllegalArgumentException(typeName + " needs " + names[f]);
+                }
+            }
+            return type;
+        }
+    }
+
+    // Just enough of JSON for one flat object: string keys, and string, number or literal values
+    private static final class JsonCursor {
+        private final String text;
+        private int pos;
+
+        JsonCursor(String text) {
+            this.text = text;
+        }
+
+        void expect(char c) {
+            if (!next(c)) {
+                throw new IllegalArgumentException("expected " + c + " at column " + (pos + 1));
+            }
+        }
+
+        boolean next(char c) {
+            if (peek(c)) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        boolean peek(char c) {
+            skipSpace();
+            return pos < text.length() && text.charAt(pos) == c;
+        }
+
+        void end() {
+            skipSpace();
+            if (pos < text.length()) {
+                throw new IllegalArgumentException("text after object at column " + (pos + 1));
+            }
+        }
+
+        // A string value as is, or the raw text of a number or literal
+        String value() {
+            if (peek('"')) {
+                return string();
+            }
+            if (peek('{') || peek('[')) {
+                throw new IllegalArgumentException("nested value at column " + (pos + 1));
+            }
+            int start = pos;
+            while (pos < text.length() && ",} \t".indexOf(text.charAt(pos)) < 0) {
+                pos++;
+            }
+            if (start == pos) {
+                throw new IllegalArgumentException("missing value at column " + (pos + 1));
+            }
+            return text.substring(start, pos);
+        }
+
+        String string() {
+            expect('"');
+            StringBuilder out = null;
+            int start = pos;
+            while (true) {
+                if (pos >= text.length()) {
+                    throw new IllegalArgumentException("unterminated string");
+                }
+                char c = text.charAt(pos++);
+                if (c == '"') {
+                    return out == null ? text.substring(start, pos - 1) : out.toString();
+                }
+                if (c != '\\') {
+                    if (out != null) {
+                        out.append(c);
+                    }
+                    continue;
+                }
+                if (out == null) {
+                    out = new StringBuilder(text.substring(start, pos - 1));
+                }
+                if (pos >= text.length()) {
+                    throw new IllegalArgumentException("unterminated string");
+                }
+                char escaped = text.charAt(pos++);
+                switch (escaped) {
+                    case 'b':
+                        out.append('\b');
+                        break;
+                    case 'f':
+                        out.append('\f');
+                        break;
+                    case 'n':
+                        out.append('\n');
+                        break;
+                    case 'r':
+                        out.append('\r');
+                        break;
+                    case 't':
+                        out.append('\t');
+                        break;
+                    case 'u':
+                        if (pos + 4 > text.length()) {
+                            throw new IllegalArgumentException("bad \\u escape");
+                        }
+                        try {
+                            out.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw new IllegalArgumentException("bad \\u escape");
+                        }
+                        pos += 4;
+                        break;
+                    default:
+                        out.append(escaped);
+                }
+            }
+        }
+
+        private void skipSpace() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+    }
+}
+
+// Headless entry point for nightly reconciliations and load tests:
+//
+//   java -cp app/target/classes BatchRunner <scenario> <orders> [report]
+//
+// Imports the scenario, then applies the order stream, a file of ScenarioImporter order rows, in
+// file order and at full speed. Every entity's final balance and inventory go to the report as CSV,
+// or to standard output without one, and throughput goes to standard error. Nothing on this path
+// touches Swing or AWT, so no display is needed. Journaling is off unless -Dsupplychain.journal
+// names a file.
+final class BatchRunner {
+    private BatchRunner() {}
+
+    public static void main(String[] args) {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("Usage: BatchRunner <scenario> <orders> [report]");
+            System.exit(2);
+        }
+        SupplyChainSystemGUI.openJournal(System.getProperty("supplychain.journal", "none"));
+        ScenarioImporter importer = new ScenarioImporter(java.util.concurrent.ForkJoinPool.commonPool());
+        try {
+            long start = System.nanoTime();
+            long rows = importer.read(java.nio.file.Paths.get(args[0]));
+            long imported = System.nanoTime();
+            System.err.println("Scenario: " + rows + " rows in " + millis(imported - start) + " ms, "
+                    + rate(rows, imported - start) + " rows/s");
+
+            long orderRows = importer.read(java.nio.file.Paths.get(args[1]));
+            long applied = System.nanoTime();
+            System.err.println("Orders: " + importer.orders() + " of " + orderRows + " rows in "
+                    + millis(applied - imported) + " ms, " + rate(importer.orders(), applied - imported) + " orders/s");
+            for (TradeResult result : TradeResult.values()) {
+                if (importer.outcome(result) > 0) {
+                    System.err.println("  " + result + ": " + importer.outcome(result));
+                }
+            }
+            // Queued jobs are built out, as long as each tick still builds something
+            if (ProductionScheduler.pending() > 0) {
+                long productionStart = System.nanoTime();
+                int ticks = 0;
+                long units = 0;
+                long built;
+                do {
+                    built = ProductionScheduler.tick().units.sum();
+                    units += built;
+                    ticks++;
+                } while (built > 0 && ProductionScheduler.pending() > 0);
+                applied = System.nanoTime();
+                System.err.println("Production: " + units + " units in " + ticks + " ticks, "
+                        + ProductionScheduler.pending() + " jobs left, in " + millis(applied - productionStart) + " ms");
+            }
+            // Reorder levels set by the scenario get one settling cycle once the orders are in
+            if (Replenisher.queued() > 0) {
+                long cycleStart = System.nanoTime();
+                Replenisher.Cycle cycle = Replenisher.cycle();
+                applied = System.nanoTime();
+                System.err.println("Replenished: " + cycle + " in " + millis(applied - cycleStart) + " ms");
+            }
+
+            java.io.Writer out = args.length == 3
+                    ? java.nio.file.Files.newBufferedWriter(java.nio.file.Paths.get(args[2]), java.nio.charset.StandardCharsets.UTF_8)
+                    : new java.io.BufferedWriter(new java.io.OutputStreamWriter(System.out, java.nio.charset.StandardCharsets.UTF_8), 1 << 16);
+            long lines;
+            try {
+                lines = writeReport(out);
+            } finally {
+                if (args.length == 3) {
+                    out.close();
+                } else {
+                    out.flush();
+                }
+            }
+            System.err.println("Report: " + lines + " lines in " + millis(System.nanoTime() - applied) + " ms");
+            System.err.print(Metrics.dump());
+        } catch (java.io.IOException | RuntimeException e) {
+            System.err.println("Batch failed: " + e);
+            System.exit(1);
+        }
+    }
+
+    // One line per entity with its balance, then one per item it holds:
+    //
+    //   producer,name,balance        producer_material,producer,material,quantity
+    //   factory,name,balance         factory_material,factory,material,quantity
+    //                                factory_product,factory,product,quantity
+    //   market,name,balance          market_stock,market,product,quantity,price
+    //   customer,name,balance        customer_product,customer,product,quantity
+    //
+    // Factory products are sorted by name; everything else is in list and inventory order, which is
+    // the same on every run of the same input.
+    static long writeReport(java.io.Writer out) throws java.io.IOException {
+        long lines = 0;
+        StringBuilder line = new StringBuilder(256);
+        for (Producer p : SupplyChainSystemGUI.producers) {
+            lines += entity(out, line, "producer", p.name, p.balance);
+            lines += inventory(out, line, "producer_material", p.name, p.materials);
+        }
+        for (FactoryExtended f : SupplyChainSystemGUI.factories) {
+            lines += entity(out, line, "factory", f.name, f.balance);
+            lines += inventory(out, line, "factory_material", f.name, f.materials);
+            for (Map.Entry<String, InventoryItem> product : new TreeMap<>(f.products).entrySet()) {
+                line.setLength(0);
+                line.append("factory_product,").append(csv(f.name)).append(',').append(csv(product.getKey()))
+                        .append(',').append(product.getValue().quantity).append('\n');
+                out.append(line);
+                lines++;
+            }
+        }
+        for (Market m : SupplyChainSystemGUI.markets) {
+            lines += entity(out, line, "market", m.name, m.balance);
+            StringBuilder stock = new StringBuilder();
+            long[] count = {0};
+            m.stock.forEach((id, quantity) -> {
+                stock.append("market_stock,").append(csv(m.name)).append(',').append(csv(Symbols.name(id)))
+                        .append(',').append(quantity).append(',').append(Money.format(m.getPrice(id))).append('\n');
+                count[0]++;
+            });
+            out.append(stock);
+            lines += count[0];
+        }
+        for (Customer c : SupplyChainSystemGUI.customers) {
+            lines += entity(out, line, "customer", c.name, c.balance);
+            lines += inventory(out, line, "customer_product", c.name, c.inventory);
+        }
+        return lines;
+    }
+
+    private static int entity(java.io.Writer out, StringBuilder line, String kind, String name, Account balance)
+            throws java.io.IOException {
+        line.setLength(0);
+        line.append(kind).append(',').append(csv(name)).append(',').append(balance.format()).append('\n');
+        out.append(line);
+        return 1;
+    }
+
+    private static int inventory(java.io.Writer out, StringBuilder line, String kind, String owner, Inventory inventory)
+            throws java.io.IOException {
+        int lines = 0;
+        for (int s = inventory.nextSlot(-1); s >= 0; s = inventory.nextSlot(s)) {
+            line.setLength(0);
+            line.append(kind).append(',').append(csv(owner)).append(',').append(csv(inventory.nameAt(s)))
+                    .append(',').append(inventory.quantityAt(s)).append('\n');
+            out.append(line);
+            lines++;
+        }
+        return lines;
+    }
+
+    // Quoted as ScenarioImporter reads it when the name holds a comma, quote or line break
+    private static String csv(String field) {
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == ',' || c == '"' || c == '\n' || c == '\r') {
+                return '"' + field.replace("\"", "\"\"") + '"';
+            }
+        }
+        return field;
+    }
+
+    private static long millis(long nanos) {
+        return nanos / 1_000_000;
+    }
+
+    private static long rate(long count, long nanos) {
+        return nanos > 0 ? (long) (count * 1e9 / nanos) : 0;
+    }
+}
+
+// Local HTTP API for placing orders without the UI, served by the JDK's built-in server on the
+// loopback interface only. Parameters come in the query string or a form-encoded body, and every
+// answer is a small JSON object:
+//
+//   POST /orders/buy          customer, market, product, amount     at the market's current price
+//   POST /orders/checkout     customer, then market.N, product.N, amount.N for N = 0, 1, ...
+//                             as one all-or-nothing basket, each line at its market's current price
+//   POST /orders/restock      market, product, amount [, factory]   from the cheapest supplier if no factory is named
+//   POST /orders/manufacture  factory, design, amount
+//   GET  /inventory           one of producer, factory, market or customer, by name
+//   GET  /metrics             Metrics.dump(), as plain text
+//
+// A trade the domain rejects answers 409 with its TradeResult, a bad parameter 400 and an unknown
+// name 404. The server's dispatcher thread multiplexes every connection, so an idle keep-alive
+// connection holds no thread. Handlers wait on the trade locks and, under a synced journal as in
+// main, on Journal.durable for every trade that succeeds. One group commit syncs every waiting
+// record, so a waiting handler costs a sync only while nothing else is waiting. With the journal on
+// OrderApiLoad served no more with 8 or 16 threads per core than with 2, so the pool stays at 2 per
+// core; -Dsupplychain.http.threads sets it for a disk whose syncs are slow enough that more waiters
+// per sync pay. JDK 17 has no virtual threads.
+final class OrderApi {
+    static final int THREADS_PER_CORE = 2;
+    // Connections waiting to be accepted; bursts of new clients queue here rather than being refused
+    static final int BACKLOG = 16_384;
+    static final int MAX_BODY = 64 * 1024;
+
+    private final com.sun.net.httpserver.HttpServer server;
+    private final java.util.concurrent.ExecutorService handlers;
+    private final NameIndex<Producer> producers = new NameIndex<>(SupplyChainSystemGUI.producers, p -> p.name);
+    private final NameIndex<FactoryExtended> factories = new NameIndex<>(SupplyChainSystemGUI.factories, f -> f.name);
+    private final NameIndex<Market> markets = new NameIndex<>(SupplyChainSystemGUI.markets, m -> m.name);
+    private final NameIndex<Customer> customers = new NameIndex<>(SupplyChainSystemGUI.customers, c -> c.name);
+
+    // Headless server: java -cp app/target/classes OrderApi [port] [scenario]
+    public static void main(String[] args) throws java.io.IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        Journal journal = SupplyChainSystemGUI.openJournal();
+        if (args.length > 1) {
+            SupplyChainSystemGUI.importScenario(args[1]);
+            if (journal != null) {
+                SupplyChainSystemGUI.checkpoint(journal);
+            }
+        }
+        if (journal != null) {
+            // As in the UI, a snapshot once enough records build up, so a long run's log and the
+            // next start's replay stay short
+            java.util.concurrent.Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "checkpoint");
+                thread.setDaemon(true);
+                return thread;
+            }).scheduleWithFixedDelay(() -> {
+                if (journal.recordsSinceCheckpoint() >= SupplyChainSystemGUI.CHECKPOINT_RECORDS) {
+                    SupplyChainSystemGUI.checkpoint(journal);
+                }
+            }, SupplyChainSystemGUI.CHECKPOINT_CHECK_MILLIS, SupplyChainSystemGUI.CHECKPOINT_CHECK_MILLIS,
+                    java.util.concurrent.TimeUnit.MILLISECONDS);
+        }
+        OrderApi api = start(port);
+        SupplyChainSystemGUI.startReplenisher(cycle -> {});
+        SupplyChainSystemGUI.startProduction(tick -> {});
+        System.out.println("Order API listening on http://127.0.0.1:" + api.port());
+    }
+
+    static OrderApi start(int port) throws java.io.IOException {
+        // The JDK server closes keep-alive connections beyond this many idle ones (200 by default);
+        // read once, when the server classes load
+        if (System.getProperty("sun.net.httpserver.maxIdleConnections") == null) {
+            System.setProperty("sun.net.httpserver.maxIdleConnections", "100000");
+        }
+        return new OrderApi(port);
+    }
+
+    private OrderApi(int port) throws java.io.IOException {
+        server = com.sun.net.httpserver.HttpServer.create(
+                new java.net.InetSocketAddress(java.net.InetAddress.getLoopbackAddress(), port), BACKLOG);
+        int threads = Integer.getInteger("supplychain.http.threads", Runtime.getRuntime().availableProcessors() * THREADS_PER_CORE);
+        java.util.concurrent.atomic.AtomicInteger next = new java.util.concurrent.atomic.AtomicInteger();
+        handlers = java.util.concurrent.Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "order-api-" + next.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(handlers);
+        server.createContext("/orders/buy", exchange -> handle(exchange, "POST", this::buy));
+        server.createContext("/orders/checkout", exchange -> handle(exchange, "POST", this::checkout));
+        server.createContext("/orders/restock", exchange -> handle(exchange, "POST", this::restock));
+        server.createContext("/orders/manufacture", exchange -> handle(exchange, "POST", this::manufacture));
+        server.createContext("/inventory", exchange -> handle(exchange, "GET", this::inventory));
+        server.createContext("/metrics", exchange -> {
+            byte[] bytes = Metrics.dump().getBytes(java.nio.charset.StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (java.io.OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        });
+        server.start();
+    }
+
+    int port() {
+        return server.getAddress().getPort();
+    }
+
+    void stop() {
+        server.stop(0);
+        handlers.shutdown();
+    }
+
+    private String buy(Map<String, String> params) {
+        Customer customer = find(customers, params, "customer");
+        Market market = find(markets, params, "market");
+        String product = text(params, "product");
+        int amount = amount(params);
+        return trade(customer.buyProduct(product, amount, market.getPrice(product), market));
+    }
+
+    private String checkout(Map<String, String> params) {
+        Customer customer = find(customers, params, "customer");
+        Basket basket = new Basket();
+        for (int n = 0; params.containsKey("market." + n); n++) {
+            Market market = find(markets, params, "market." + n);
+            String product = text(params, "product." + n);
+            int amount = amount(params, "amount." + n);
+            basket.add(market, product, amount, market.getPrice(product));
+        }
+        if (basket.lines() == 0) {
+            throw new ApiException(400, error("missing market.0"));
+        }
+        TradeResult result = customer.checkout(basket);
+        if (!result.isOk() && basket.failedLine >= 0) {
+            throw new ApiException(409, "{\"result\":\"" + result + "\",\"message\":\"" + result.message
+                    + "\",\"line\":" + basket.failedLine + "}");
+        }
+        return trade(result);
+    }
+
+    private String restock(Map<String, String> params) {
+        Market market = find(markets, params, "market");
+        String product = text(params, "product");
+        int amount = amount(params);
+        FactoryExtended factory = params.containsKey("factory")
+                ? find(factories, params, "factory")
+                : MarketQueries.findSupplier(product, amount);
+        if (factory == null) {
+            throw new ApiException(409, "{\"result\":\"" + TradeResult.INSUFFICIENT_STOCK
+                    + "\",\"message\":\"No factory has enough stock\"}");
+        }
+        return trade(market.buyProduct(product, amount, MarketQueries.unitCost(factory, product), factory));
+    }
+
+    private String manufacture(Map<String, String> params) {
+        FactoryExtended factory = find(factories, params, "factory");
+        String name = text(params, "design");
+        int amount = amount(params);
+        for (ProductDesign design : factory.designs.toArray(new ProductDesign[0])) {
+            if (design.name.equals(name)) {
+                return trade(factory.manufacture(design, amount));
+            }
+        }
+        throw new ApiException(404, error("unknown design " + name));
+    }
+
+    private String inventory(Map<String, String> params) {
+        StringBuilder json = new StringBuilder(256);
+        if (params.containsKey("producer")) {
+            Producer p = find(producers, params, "producer");
+            entity(json, p.name, p.balance).append(",\"materials\":");
+            items(json, p, p.materials);
+        } else if (params.containsKey("factory")) {
+            FactoryExtended f = find(factories, params, "factory");
+            entity(json, f.name, f.balance).append(",\"materials\":");
+            items(json, f, f.materials);
+            json.append(",\"products\":{");
+            synchronized (f) {
+                for (Map.Entry<String, InventoryItem> product : f.products.entrySet()) {
+                    quote(json, product.getKey()).append(':').append(product.getValue().quantity).append(',');
+                }
+            }
+            close(json, '}');
+        } else if (params.containsKey("market")) {
+            Market m = find(markets, params, "market");
+            entity(json, m.name, m.balance).append(",\"stock\":{");
+            m.stock.forEach((id, quantity) -> quote(json, Symbols.name(id)).append(":{\"quantity\":").append(quantity)
+                    .append(",\"price\":\"").append(Money.format(m.getPrice(id))).append("\"},"));
+            close(json, '}');
+        } else if (params.containsKey("customer")) {
+            Customer c = find(customers, params, "customer");
+            entity(json, c.name, c.balance).append(",\"products\":");
+            items(json, c, c.inventory);
+        } else {
+            throw new ApiException(400, error("name a producer, factory, market or customer"));
+        }
+        return json.append('}').toString();
+    }
+
+    private static StringBuilder entity(StringBuilder json, String name, Account balance) {
+        json.append("{\"name\":");
+        return quote(json, name).append(",\"balance\":\"").append(balance.format()).append('"');
+    }
+
+    // Read under the owner's lock, which every trade touching its inventory holds
+    private static void items(StringBuilder json, Object owner, Inventory inventory) {
+        json.append('{');
+        synchronized (owner) {
+            for (int s = inventory.nextSlot(-1); s >= 0; s = inventory.nextSlot(s)) {
+                quote(json, inventory.nameAt(s)).append(':').append(inventory.quantityAt(s)).append(',');
+            }
+        }
+        close(json, '}');
+    }
+
+    // Drops a trailing comma and closes the object or array
+    private static void close(StringBuilder json, char bracket) {
+        if (json.charAt(json.length() - 1) == ',') {
+            json.setLength(json.length() - 1);
+        }
+        json.append(bracket);
+    }
+
+    private static String trade(TradeResult result) {
+        String json = "{\"result\":\"" + result + "\",\"message\":\"" + result.message + "\"}";
+        if (!result.isOk()) {
+            throw new ApiException(409, json);
+        }
+        return json;
+    }
+
+    private static <T> T find(NameIndex<T> index, Map<String, String> params, String kind) {
+        String name = text(params, kind);
+        T found = index.get(name);
+        if (found == null) {
+            throw new ApiException(404, error("unknown " + kind + " " + name));
+        }
+        return found;
+    }
+
+    private static String text(Map<String, String> params, String name) {
+        String value = params.get(name);
+        if (value == null || value.isEmpty()) {
+            throw new ApiException(400, error("missing " + name));
+        }
+        return value;
+    }
+
+    private static int amount(Map<String, String> params) {
+        return amount(params, "amount");
+    }
+
+    private static int amount(Map<String, String> params, String name) {
+        String value = text(params, name);
+        try {
+            int amount = Integer.parseInt(value);
+            if (amount > 0) {
+                return amount;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new ApiException(400, error(name + " must be a positive whole number"));
+    }
+
+    private static String error(String message) {
+        return quote(new StringBuilder("{\"error\":"), message).append('}').toString();
+    }
+
+    private static StringBuilder quote(StringBuilder json, String text) {
+        json.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        return json.append('"');
+    }
+
+    private static void handle(com.sun.net.httpserver.HttpExchange exchange, String method,
+                               java.util.function.Function<Map<String, String>, String> handler) throws java.io.IOException {
+        int status = 200;
+        String body;
+        try {
+            if (!exchange.getRequestMethod().equals(method)) {
+                exchange.getResponseHeaders().set("Allow", method);
+                throw new ApiException(405, error("use " + method));
+            }
+            body = handler.apply(params(exchange));
+        } catch (ApiException e) {
+            status = e.status;
+            body = e.body;
+        } catch (RuntimeException e) {
+            System.err.println("Order API request " + exchange.getRequestURI() + " failed: " + e);
+            status = 500;
+            body = error(String.valueOf(e));
+        }
+        byte[] bytes = body.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (java.io.OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    // Query string and form body together; a body value wins over the query's
+    private static Map<String, String> params(com.sun.net.httpserver.HttpExchange exchange) throws java.io.IOException {
+        Map<String, String> params = new HashMap<>();
+        decode(exchange.getRequestURI().getRawQuery(), params);
+        if (exchange.getRequestMethod().equals("POST")) {
+            byte[] body = exchange.getRequestBody().readNBytes(MAX_BODY + 1);
+            if (body.length > MAX_BODY) {
+                throw new ApiException(413, error("body over " + MAX_BODY + " bytes"));
+            }
+            decode(new String(body, java.nio.charset.StandardCharsets.UTF_8), params);
+        }
+        return params;
+    }
+
+    private static void decode(String form, Map<String, String> params) {
+        if (form == null || form.isEmpty()) {
+            return;
+        }
+        try {
+            for (String pair : form.split("&")) {
+                int eq = pair.indexOf('=');
+                String key = eq < 0 ? pair : pair.substring(0, eq);
+                String value = eq < 0 ? "" : pair.substring(eq + 1);
+                params.put(java.net.URLDecoder.decode(key, java.nio.charset.StandardCharsets.UTF_8),
+                        java.net.URLDecoder.decode(value, java.nio.charset.StandardCharsets.UTF_8));
+            }
+        } catch (IllegalArgumentException e) {
+            throw new ApiException(400, error("malformed parameters"));
+        }
+    }
+
+    // A finished answer other than 200, thrown out of a handler
+    private static final class ApiException extends RuntimeException {
+        final int status;
+        final String body;
+
+        ApiException(int status, String body) {
+            super(null, null, false, false);
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    // Name to entity over one of the static lists, which only ever grow. Rows appended since the last
+    // lookup are indexed on a miss; a rename is picked up by a full rebuild, at most once a second so
+    // lookups of unknown names cannot keep the index rebuilding.
+    static final class NameIndex<T> {
+        static final long REBUILD_NANOS = 1_000_000_000L;
+
+        private final java.util.List<T> list;
+        private final java.util.function.Function<T, String> nameOf;
+        private volatile java.util.concurrent.ConcurrentHashMap<String, T> byName = new java.util.concurrent.ConcurrentHashMap<>();
+        private int indexed;
+        private long rebuiltAt = System.nanoTime() - REBUILD_NANOS;
+
+        NameIndex(java.util.List<T> list, java.util.function.Function<T, String> nameOf) {
+            this.list = list;
+            this.nameOf = nameOf;
+        }
+
+        T get(String name) {
+            T found = byName.get(name);
+            if (found != null && nameOf.apply(found).equals(name)) {
+                return found;
+            }
+            synchronized (this) {
+                for (int size = list.size(); indexed < size; indexed++) {
+                    T row = list.get(indexed);
+                    byName.put(nameOf.apply(row), row);
+                }
+                found = byName.get(name);
+                if (found != null && nameOf.apply(found).equals(name)) {
+                    return found;
+                }
+                long now = System.nanoTime();
+                if (now - rebuiltAt < REBUILD_NANOS) {
+                    return null;
+                }
+                rebuiltAt = now;
+                java.util.concurrent.ConcurrentHashMap<String, T> rebuilt = new java.util.concurrent.ConcurrentHashMap<>();
+                int size = list.size();
+                for (int i = 0; i < size; i++) {
+                    T row = list.get(i);
+                    rebuilt.put(nameOf.apply(row), row);
+                }
+                indexed = size;
+                byName = rebuilt;
+                return rebuilt.get(name);
+            }
+        }
+    }
+}
+
+// Main UI Classes
+
+// Colours shared by the windows. Kept apart from SupplyChainSystemGUI, whose entity lists the
+// headless BatchRunner uses, so that loading those lists loads nothing from AWT.
+final class Theme {
+    static Color backgroundColor = new Color(240, 240, 245);
+    static Color accentColor = new Color(70, 130, 180);
+    static Color lightAccentColor = new Color(173, 216, 230);
+
+    private Theme() {}
+}
+
+// Flight Recorder events from the UI side; see PurchaseEvent
+// A read of the cross-market catalog behind ShopDialog: the product list, or a page of offers
+@jdk.jfr.Name("supplychain.CatalogLoad")
+@jdk.jfr.Label("Catalog Load")
+@jdk.jfr.Category({"Supply Chain", "UI"})
+final class CatalogLoadEvent extends jdk.jfr.Event {
+    @jdk.jfr.Label("Customer") String customer;
+    @jdk.jfr.Label("Product") @jdk.jfr.Description("Empty when the product list was loaded") String product;
+    @jdk.jfr.Label("First Row") int from;
+    @jdk.jfr.Label("Rows Loaded") int rows;
+
+    static CatalogLoadEvent start() {
+        CatalogLoadEvent event = new CatalogLoadEvent();
+        event.begin();
+        return event;
+    }
+
+    void finish(Customer customer, String product, int from, int rows) {
+        end();
+        if (shouldCommit()) {
+            this.customer = customer.name;
+            this.product = product;
+            this.from = from;
+            this.rows = rows;
+            commit();
+        }
+    }
+}
+
+// One event dispatched on the event thread that took longer than the threshold, which covers every
+// listener of every dialog without wrapping each one
+@jdk.jfr.Name("supplychain.UiDispatch")
+@jdk.jfr.Label("Slow UI Event")
+@jdk.jfr.Category({"Supply Chain", "UI"})
+@jdk.jfr.Threshold("20 ms")
+final class UiDispatchEvent extends jdk.jfr.Event {
+    @jdk.jfr.Label("Event") String event;
+    @jdk.jfr.Label("Source") @jdk.jfr.Description("Text of the button or menu item, else its class") String source;
+    @jdk.jfr.Label("Window") String window;
+
+    void finish(AWTEvent dispatched) {
+        end();
+        if (shouldCommit()) {
+            event = dispatched.getClass().getSimpleName() + " " + dispatched.getID();
+            Object from = dispatched.getSource();
+            source = from instanceof AbstractButton ? ((AbstractButton) from).getText() : from.getClass().getName();
+            Window owner = from instanceof Window ? (Window) from
+                    : from instanceof Component ? SwingUtilities.getWindowAncestor((Component) from) : null;
+            window = owner instanceof Dialog ? ((Dialog) owner).getTitle()
+                    : owner instanceof Frame ? ((Frame) owner).getTitle() : null;
+            commit();
+        }
+    }
+}
+
+// Event queue that times every dispatch for UiDispatchEvent
+final class TimedEventQueue extends EventQueue {
+    // Called from main rather than written there, so that verifying SupplyChainSystemGUI, whose
+    // lists BatchRunner uses, does not load AWT
+    static void install() {
+        Toolkit.getDefaultToolkit().getSystemEventQueue().push(new TimedEventQueue());
+    }
+
+    @Override
+    protected void dispatchEvent(AWTEvent event) {
+        UiDispatchEvent timing = new UiDispatchEvent();
+        timing.begin();
+        super.dispatchEvent(event);
+        timing.finish(event);
+    }
+}
+
+// Carries work from other threads onto the event thread, at most one batch per frame. Results are
+// posted one by one and each runs once, in order. Labels are not posted at all: changed() asks
+// every registered refresher (entity lists, open dialogs' labels) to re-read the state on the next
+// frame, so a balance moved by a thousand trades within a frame is formatted and set once.
+final class UiRefresh {
+    static final int FRAME_MILLIS = 16;
+
+    private static final Object lock = new Object();
+    private static final ArrayList<Runnable> results = new ArrayList<>();
+    // Registered and run on the event thread only
+    private static final ArrayList<Runnable> refreshers = new ArrayList<>();
+    private static boolean changed;
+    private static boolean scheduled;
+    private static long lastFlush;
+    private static final javax.swing.Timer timer = new javax.swing.Timer(FRAME_MILLIS, e -> flush());
+
+    static {
+        timer.setRepeats(false);
+    }
+
+    private UiRefresh() {}
+
+    static void post(Runnable result) {
+        synchronized (lock) {
+            results.add(result);
+            schedule();
+        }
+    }
+
+    static void changed() {
+        synchronized (lock) {
+            changed = true;
+            schedule();
+        }
+    }
+
+    static void onChange(Runnable refresher) {
+        refreshers.add(refresher);
+    }
+
+    static void removeOnChange(Runnable refresher) {
+        refreshers.remove(refresher);
+    }
+
+    // Called holding the lock; the first post after a flush waits out the rest of its frame
+    private static void schedule() {
+        if (!scheduled) {
+            scheduled = true;
+            long wait = lastFlush + FRAME_MILLIS - System.currentTimeMillis();
+            timer.setInitialDelay((int) Math.max(0, Math.min(wait, FRAME_MILLIS)));
+            timer.restart();
+        }
+    }
+
+    // Refreshers before results, so a message box opened by a result shows over current figures.
+    // A modal result runs a nested event loop, so the queue is emptied before any of it runs.
+    private static void flush() {
+        Runnable[] done;
+        boolean refresh;
+        synchronized (lock) {
+            done = results.toArray(new Runnable[0]);
+            results.clear();
+            refresh = changed;
+            changed = false;
+            scheduled = false;
+            lastFlush = System.currentTimeMillis();
+        }
+        if (refresh) {
+            for (Runnable refresher : refreshers.toArray(new Runnable[0])) {
+                refresher.run();
+            }
+        }
+        for (Runnable result : done) {
+            result.run();
+        }
+    }
+}
+
+// Runs the UI's domain operations off the event thread. There is one worker, so operations run
+// one at a time in the order they were asked for, as they did on the event thread. That orders
+// them only among themselves: the simulation, the order API, the replenisher and production
+// trade on their own threads meanwhile, through the same locks, and a checkpoint run here waits
+// for all of their changes in Journal.checkpoint.
+final class DomainExecutor {
+    private static final java.util.concurrent.ExecutorService worker =
+            java.util.concurrent.Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "domain-worker");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private DomainExecutor() {}
+
+    // Runs work on the worker and hands its result to done on the event thread. The trigger, if
+    // any, is disabled until then so the same action cannot be queued twice; a failure is shown
+    // in place of done.
+    static <T> void submit(JComponent trigger, java.util.function.Supplier<T> work, java.util.function.Consumer<T> done) {
+        if (trigger != null) {
+            trigger.setEnabled(false);
+        }
+        worker.execute(() -> {
+            Runnable result;
+            try {
+                T value = work.get();
+                result = () -> done.accept(value);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                result = () -> JOptionPane.showMessageDialog(trigger, "Operation failed: " + e.getMessage());
+            }
+            Runnable deliver = result;
+            UiRefresh.post(() -> {
+                if (trigger != null) {
+                    trigger.setEnabled(true);
+                }
+                deliver.run();
+            });
+            UiRefresh.changed();
+        });
+    }
+
+    static void execute(Runnable work) {
+        submit(null, () -> {
+            work.run();
+            return null;
+        }, result -> {});
+    }
+}
+
+// List model reading rows straight from one of the static entity lists, so nothing is copied and a
+// row costs nothing until it is painted. A painted row's label is kept in a small cache indexed by
+// row and rebuilt only once the entity's name or balance has changed. The model's size moves only
+// through add and sync, each firing one event for exactly the rows added or removed.
+class EntityListModel<T> extends AbstractListModel<T> {
+    // Direct-mapped by row index; far more rows than fit on a screen
+    private static final int LABEL_CACHE = 512;
+
+    private final java.util.List<T> rows;
+    private final java.util.function.Function<T, String> nameOf;
+    private final java.util.function.Function<T, Account> balanceOf;
+    // Rows announced to listeners so far
+    private int size;
+
+    private final Object[] labelRows = new Object[LABEL_CACHE];
+    private final String[] labelNames = new String[LABEL_CACHE];
+    private final long[] labelCents = new long[LABEL_CACHE];
+    private final String[] labels = new String[LABEL_CACHE];
+
+    EntityListModel(java.util.List<T> rows, java.util.function.Function<T, String> nameOf,
+                    java.util.function.Function<T, Account> balanceOf) {
+        this.rows = rows;
+        this.nameOf = nameOf;
+        this.balanceOf = balanceOf;
+        this.size = rows.size();
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public T getElementAt(int index) {
+        return index < rows.size() ? rows.get(index) : null;
+    }
+
+    // "name (Balance: 12.34)", formatted only when the row is new to its cache slot or has changed
+    String labelAt(int index) {
+        T row = getElementAt(index);
+        if (row == null) {
+            return "";
+        }
+        int slot = index & (LABEL_CACHE - 1);
+        String name = nameOf.apply(row);
+        long cents = balanceOf.apply(row).get();
+        if (labelRows[slot] != row || labelNames[slot] != name || labelCents[slot] != cents) {
+            labelRows[slot] = row;
+            labelNames[slot] = name;
+            labelCents[slot] = cents;
+            labels[slot] = name + " (Balance: " + Money.format(cents) + ")";
+        }
+        return labels[slot];
+    }
+
+    // Appends to the backing list and announces the row
+    void add(T row) {
+        rows.add(row);
+        sync();
+    }
+
+    // Announces rows appended to or removed from the end of the backing list since the last event
+    void sync() {
+        int now = rows.size();
+        if (now > size) {
+            int from = size;
+            size = now;
+            fireIntervalAdded(this, from, now - 1);
+        } else if (now < size) {
+            int to = size - 1;
+            size = now;
+            fireIntervalRemoved(this, now, to);
+        }
+    }
+}
+
+// Paints an EntityListModel row from its cached label, in the accent colours when selected
+class EntityCellRenderer extends DefaultListCellRenderer {
+    // Sizes the cells of every entity list
+    static final String SAMPLE_LABEL = "Downtown Electronics Market (Balance: 10000000.00)";
+
+    @Override
+    public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
+        if (index >= 0 && list.getModel() instanceof EntityListModel) {
+            value = ((EntityListModel<?>) list.getModel()).labelAt(index);
+        }
+        Component c = super.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
+        if (isSelected) {
+            c.setBackground(Theme.accentColor);
+            c.setForeground(Color.WHITE);
+        } else {
+            c.setBackground(list.getBackground());
+            c.setForeground(list.getForeground());
+        }
+        return c;
+    }
+}
+
+// Metrics.rows() as a table, re-read on refresh()
+class MetricsTableModel extends javax.swing.table.AbstractTableModel {
+    private static final String[] COLUMNS = {"Operation", "Result", "Count", "p50", "p90", "p99", "p99.9", "Max"};
+
+    private java.util.List<Metrics.Row> rows = new ArrayList<>();
+
+    void refresh() {
+        rows = Metrics.rows();
+        fireTableDataChanged();
+    }
+
+    @Override
+    public int getRowCount() {
+        return rows.size();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMNS.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMNS[column];
+    }
+
+    @Override
+    public Object getValueAt(int rowIndex, int column) {
+        Metrics.Row row = rows.get(rowIndex);
+        switch (column) {
+            case 0:
+                return row.operation;
+            case 1:
+                return row.result;
+            case 2:
+                return row.count;
+            case 7:
+                return Metrics.latency(row.max);
+            default:
+                return Metrics.latency(row.percentiles[column - 3]);
+        }
+    }
+}
+
+class MainFrame extends JFrame {
+    private JPanel contentPanel;
+    private JPanel navPanel;
+    private JPanel displayPanel;
+    
+    private JPanel producerPanel;
+    private JPanel factoryPanel;
+    private JPanel marketPanel;
+    private JPanel customerPanel;
+    private JPanel diagnosticsPanel;
+    
+    EntityListModel<Producer> producerListModel = new EntityListModel<>(SupplyChainSystemGUI.producers, p -> p.name, p -> p.balance);
+    EntityListModel<FactoryExtended> factoryListModel = new EntityListModel<>(SupplyChainSystemGUI.factories, f -> f.name, f -> f.balance);
+    EntityListModel<Market> marketListModel = new EntityListModel<>(SupplyChainSystemGUI.markets, m -> m.name, m -> m.balance);
+    EntityListModel<Customer> customerListModel = new EntityListModel<>(SupplyChainSystemGUI.customers, c -> c.name, c -> c.balance);
+    
+    JList<Producer> producerList;
+    JList<FactoryExtended> factoryList;
+    JList<Market> marketList;
+    JList<Customer> customerList;
+    
+    // Pause between simulation ticks started from the UI, so the lists can be watched moving
+    static final int SIMULATION_PAUSE_MILLIS = 100;
+    // The UI's simulation routes demand through a DemandRouter; -Dsupplychain.simulation.router=false
+    // has each market restock and each customer shop on its own instead
+    static final boolean ROUTED_SIMULATION = !"false".equals(System.getProperty("supplychain.simulation.router"));
+    static final int DIAGNOSTICS_REFRESH_MILLIS = 1000;
+    private Thread simulation;
+    
+    public MainFrame() {
+        setTitle("Supply Chain Management System");
+        setSize(900, 600);
+        setDefaultCloseOperation(EXIT_ON_CLOSE);
+        
+        try {
+            UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        
+        contentPanel = new JPanel(new BorderLayout());
+        contentPanel.setBackground(Theme.backgroundColor);
+        
+        setupNavigation();
+        setupContentPanels();
+        
+        add(contentPanel);
+        
+        // Trades, simulation ticks and imports off the event thread land here once per frame
+        UiRefresh.onChange(this::refreshLists);
+        
+        setLocationRelativeTo(null);
+        setVisible(true);
+    }
+    
+    // Picks up rows appended by an import and balances moved by trades
+    private void refreshLists() {
+        producerListModel.sync();
+        factoryListModel.sync();
+        marketListModel.sync();
+        customerListModel.sync();
+        producerList.repaint();
+        factoryList.repaint();
+        marketList.repaint();
+        customerList.repaint();
+    }
+    
+    private void setupNavigation() {
+        navPanel = new JPanel(new GridLayout(7, 1, 5, 5));
+        navPanel.setBackground(Theme.backgroundColor);
+        navPanel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+        
+        JButton producersBtn = createGradientButton("Producers");
+        JButton factoriesBtn = createGradientButton("Factories");
+        JButton marketsBtn = createGradientButton("Markets");
         JButton customersBtn = createGradientButton("Customers");
         
         producersBtn.addActionListener(e -> showPanel("producers"));
@@ -358,14 +7596,80 @@ class MainFrame extends JFrame {
         marketsBtn.addActionListener(e -> showPanel("markets"));
         customersBtn.addActionListener(e -> showPanel("customers"));
         
+        JButton diagnosticsBtn = createGradientButton("Diagnostics");
+        diagnosticsBtn.addActionListener(e -> showPanel("diagnostics"));
+        
+        JButton simulateBtn = createGradientButton("Run Simulation");
+        JButton importBtn = createGradientButton("Import Scenario");
+        
+        simulateBtn.addActionListener(e -> toggleSimulation(simulateBtn));
+        importBtn.addActionListener(e -> importScenario(importBtn));
+        
         navPanel.add(producersBtn);
         navPanel.add(factoriesBtn);
         navPanel.add(marketsBtn);
         navPanel.add(customersBtn);
+        navPanel.add(diagnosticsBtn);
+        navPanel.add(simulateBtn);
+        navPanel.add(importBtn);
         
         contentPanel.add(navPanel, BorderLayout.WEST);
     }
     
+    // Steps the simulation on a thread of its own until pressed again; the UI keeps trading
+    // alongside it
+    private void toggleSimulation(JButton button) {
+        if (simulation != null) {
+            simulation.interrupt();
+            simulation = null;
+            button.setText("Run Simulation");
+            return;
+        }
+        simulation = new Thread(() -> {
+            Simulation sim = Simulation.ofDemo();
+            if (ROUTED_SIMULATION) {
+                sim.router = DemandRouter.ofDemo();
+            }
+            while (!Thread.currentThread().isInterrupted()) {
+                sim.step();
+                UiRefresh.changed();
+                try {
+                    Thread.sleep(SIMULATION_PAUSE_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "simulation");
+        simulation.setDaemon(true);
+        simulation.start();
+        button.setText("Stop Simulation");
+    }
+    
+    // Imports a scenario file on the domain worker, then snapshots it like a -Dsupplychain.scenario
+    // import at startup
+    private void importScenario(JButton button) {
+        JFileChooser chooser = new JFileChooser(".");
+        if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        java.nio.file.Path path = chooser.getSelectedFile().toPath();
+        long start = System.nanoTime();
+        DomainExecutor.submit(button, () -> {
+            long rows;
+            try {
+                rows = ScenarioImporter.importFile(path);
+            } catch (java.io.IOException e) {
+                throw new java.io.UncheckedIOException(e);
+            }
+            Journal journal = Journal.current;
+            if (journal != null) {
+                SupplyChainSystemGUI.checkpoint(journal);
+            }
+            return rows;
+        }, rows -> JOptionPane.showMessageDialog(this, "Imported " + rows + " rows from " + path.getFileName()
+                + " in " + (System.nanoTime() - start) / 1_000_000 + " ms"));
+    }
+    
     private JButton createGradientButton(String text) {
         JButton button = new JButton(text) {
             @Override
@@ -373,8 +7677,8 @@ class MainFrame extends JFrame {
                 if (!isOpaque() && getBorder() instanceof javax.swing.plaf.UIResource) {
                     Graphics2D g2 = (Graphics2D) g.create();
                     g2.setPaint(new GradientPaint(
-                        0, 0, SupplyChainSystemGUI.accentColor,
-                        0, getHeight(), SupplyChainSystemGUI.lightAccentColor));
+                        0, 0, Theme.accentColor,
+                        0, getHeight(), Theme.lightAccentColor));
                     g2.fillRoundRect(0, 0, getWidth(), getHeight(), 10, 10);
                     g2.dispose();
                 }
@@ -399,13 +7703,14 @@ class MainFrame extends JFrame {
     
     private void setupContentPanels() {
         displayPanel = new JPanel(new CardLayout());
-        displayPanel.setBackground(SupplyChainSystemGUI.backgroundColor);
+        displayPanel.setBackground(Theme.backgroundColor);
         
         // Producer Panel
         setupProducerPanel();
         setupFactoryPanel();
         setupMarketPanel();
         setupCustomerPanel();
+        setupDiagnosticsPanel();
         
         contentPanel.add(displayPanel, BorderLayout.CENTER);
         
@@ -415,35 +7720,20 @@ class MainFrame extends JFrame {
     
     private void setupProducerPanel() {
         producerPanel = new JPanel(new BorderLayout());
-        producerPanel.setBackground(SupplyChainSystemGUI.backgroundColor);
+        producerPanel.setBackground(Theme.backgroundColor);
         producerPanel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
         
         JLabel titleLabel = new JLabel("Producers");
         titleLabel.setFont(new Font("Arial", Font.BOLD, 20));
-        titleLabel.setForeground(SupplyChainSystemGUI.accentColor);
+        titleLabel.setForeground(Theme.accentColor);
         
-        producerList = new JList<>(producerListModel);
-        producerList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
-        producerList.setCellRenderer(new DefaultListCellRenderer() {
-            @Override
-            public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
-                Component c = super.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
-                if (isSelected) {
-                    c.setBackground(SupplyChainSystemGUI.accentColor);
-                    c.setForeground(Color.WHITE);
-                } else {
-                    c.setBackground(list.getBackground());
-                    c.setForeground(list.getForeground());
-                }
-                return c;
-            }
-        });
+        producerList = createEntityList(producerListModel);
         
         JScrollPane listScroller = new JScrollPane(producerList);
         
         // Buttons panel
         JPanel buttonPanel = new JPanel();
-        buttonPanel.setBackground(SupplyChainSystemGUI.backgroundColor);
+        buttonPanel.setBackground(Theme.backgroundColor);
         
         JButton inventoryBtn = new JButton("View Inventory");
         JButton editBtn = new JButton("Edit Producer");
@@ -473,61 +7763,51 @@ class MainFrame extends JFrame {
     
     private void setupFactoryPanel() {
         factoryPanel = new JPanel(new BorderLayout());
-        factoryPanel.setBackground(SupplyChainSystemGUI.backgroundColor);
+        factoryPanel.setBackground(Theme.backgroundColor);
         factoryPanel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
         
         JLabel titleLabel = new JLabel("Factories");
         titleLabel.setFont(new Font("Arial", Font.BOLD, 20));
-        titleLabel.setForeground(SupplyChainSystemGUI.accentColor);
+        titleLabel.setForeground(Theme.accentColor);
         
-        factoryList = new JList<>(factoryListModel);
-        factoryList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
-        factoryList.setCellRenderer(new DefaultListCellRenderer() {
-            @Override
-            public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
-                Component c = super.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
-                if (isSelected) {
-                    c.setBackground(SupplyChainSystemGUI.accentColor);
-                    c.setForeground(Color.WHITE);
-                } else {
-                    c.setBackground(list.getBackground());
-                    c.setForeground(list.getForeground());
-                }
-                return c;
-            }
-        });
+        factoryList = createEntityList(factoryListModel);
         
         JScrollPane listScroller = new JScrollPane(factoryList);
         
         // Buttons panel
         JPanel buttonPanel = new JPanel();
-        buttonPanel.setBackground(SupplyChainSystemGUI.backgroundColor);
+        buttonPanel.setBackground(Theme.backgroundColor);
         
         JButton inventoryBtn = new JButton("View Inventory");
         JButton manufacturBtn = new JButton("Manufacture");
+        JButton materialsBtn = new JButton("Buy Materials");
         JButton designBtn = new JButton("Create Design");
         JButton editBtn = new JButton("Edit Factory");
         
         inventoryBtn.addActionListener(e -> {
             FactoryExtended selected = factoryList.getSelectedValue();
             if (selected != null) {
-                // Show inventory dialog
-                // First for materials
-                JOptionPane.showMessageDialog(this, "Materials Inventory:\n" + 
-                                          formatInventory(selected.materials),
-                                          selected.name + " Materials",
-                                          JOptionPane.INFORMATION_MESSAGE);
-                
-                // Then for products
+                // Copied under the factory's lock, since trades and production change both tables
+                // off the event thread
+                String materials;
                 StringBuilder products = new StringBuilder();
-                for (Map.Entry<String, InventoryItem> entry : selected.products.entrySet()) {
-                    products.append(entry.getKey()).append(": ").append(entry.getValue().quantity).append("\n");
+                synchronized (selected) {
+                    materials = formatInventory(selected.materials);
+                    for (Map.Entry<String, InventoryItem> entry : selected.products.entrySet()) {
+                        products.append(entry.getKey()).append(": ").append(entry.getValue().quantity).append("\n");
+                    }
                 }
                 
                 if (products.length() == 0) {
                     products.append("No products in inventory.");
                 }
                 
+                // Show inventory dialog, first for materials, then for products
+                JOptionPane.showMessageDialog(this, "Materials Inventory:\n" + 
+                                          materials,
+                                          selected.name + " Materials",
+                                          JOptionPane.INFORMATION_MESSAGE);
+                
                 JOptionPane.showMessageDialog(this, "Products Inventory:\n" + 
                                           products.toString(),
                                           selected.name + " Products",
@@ -544,6 +7824,15 @@ class MainFrame extends JFrame {
             }
         });
         
+        materialsBtn.addActionListener(e -> {
+            FactoryExtended selected = factoryList.getSelectedValue();
+            if (selected != null) {
+                JDialog dialog = new BuyMaterialsDialog(this, selected);
+                dialog.setVisible(true);
+                factoryList.repaint();
+            }
+        });
+        
         designBtn.addActionListener(e -> {
             FactoryExtended selected = factoryList.getSelectedValue();
             if (selected != null) {
@@ -559,6 +7848,7 @@ class MainFrame extends JFrame {
         
         buttonPanel.add(inventoryBtn);
         buttonPanel.add(manufacturBtn);
+        buttonPanel.add(materialsBtn);
         buttonPanel.add(designBtn);
         buttonPanel.add(editBtn);
         
@@ -571,35 +7861,20 @@ class MainFrame extends JFrame {
     
     private void setupMarketPanel() {
         marketPanel = new JPanel(new BorderLayout());
-        marketPanel.setBackground(SupplyChainSystemGUI.backgroundColor);
+        marketPanel.setBackground(Theme.backgroundColor);
         marketPanel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
         
         JLabel titleLabel = new JLabel("Markets");
         titleLabel.setFont(new Font("Arial", Font.BOLD, 20));
-        titleLabel.setForeground(SupplyChainSystemGUI.accentColor);
+        titleLabel.setForeground(Theme.accentColor);
         
-        marketList = new JList<>(marketListModel);
-        marketList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
-        marketList.setCellRenderer(new DefaultListCellRenderer() {
-            @Override
-            public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
-                Component c = super.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
-                if (isSelected) {
-                    c.setBackground(SupplyChainSystemGUI.accentColor);
-                    c.setForeground(Color.WHITE);
-                } else {
-                    c.setBackground(list.getBackground());
-                    c.setForeground(list.getForeground());
-                }
-                return c;
-            }
-        });
+        marketList = createEntityList(marketListModel);
         
         JScrollPane listScroller = new JScrollPane(marketList);
         
         // Buttons panel
         JPanel buttonPanel = new JPanel();
-        buttonPanel.setBackground(SupplyChainSystemGUI.backgroundColor);
+        buttonPanel.setBackground(Theme.backgroundColor);
         
         JButton inventoryBtn = new JButton("View Inventory");
         JButton editBtn = new JButton("Edit Market");
@@ -610,13 +7885,12 @@ class MainFrame extends JFrame {
             if (selected != null) {
                 // Show inventory dialog
                 StringBuilder inventory = new StringBuilder();
-                for (Map.Entry<String, Integer> entry : selected.stock.entrySet()) {
-                    String priceStr = selected.prices.containsKey(entry.getKey()) ? 
-                                    String.format("%.2f", selected.prices.get(entry.getKey())) : 
-                                    "Not set";
-                    inventory.append(entry.getKey()).append(": ").append(entry.getValue())
+                selected.stock.forEach((id, quantity) -> {
+                    long price = selected.getPrice(id);
+                    String priceStr = price > 0 ? Money.format(price) : "Not set";
+                    inventory.append(Symbols.name(id)).append(": ").append(quantity)
                              .append(" (Price: ").append(priceStr).append(")\n");
-                }
+                });
                 
                 if (inventory.length() == 0) {
                     inventory.append("No products in inventory.");
@@ -657,35 +7931,20 @@ class MainFrame extends JFrame {
     
     private void setupCustomerPanel() {
         customerPanel = new JPanel(new BorderLayout());
-        customerPanel.setBackground(SupplyChainSystemGUI.backgroundColor);
+        customerPanel.setBackground(Theme.backgroundColor);
         customerPanel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
         
         JLabel titleLabel = new JLabel("Customers");
         titleLabel.setFont(new Font("Arial", Font.BOLD, 20));
-        titleLabel.setForeground(SupplyChainSystemGUI.accentColor);
+        titleLabel.setForeground(Theme.accentColor);
         
-        customerList = new JList<>(customerListModel);
-        customerList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
-        customerList.setCellRenderer(new DefaultListCellRenderer() {
-            @Override
-            public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
-                Component c = super.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
-                if (isSelected) {
-                    c.setBackground(SupplyChainSystemGUI.accentColor);
-                    c.setForeground(Color.WHITE);
-                } else {
-                    c.setBackground(list.getBackground());
-                    c.setForeground(list.getForeground());
-                }
-                return c;
-            }
-        });
+        customerList = createEntityList(customerListModel);
         
         JScrollPane listScroller = new JScrollPane(customerList);
         
         // Buttons panel
         JPanel buttonPanel = new JPanel();
-        buttonPanel.setBackground(SupplyChainSystemGUI.backgroundColor);
+        buttonPanel.setBackground(Theme.backgroundColor);
         
         JButton inventoryBtn = new JButton("View Inventory");
         JButton shopBtn = new JButton("Shop");
@@ -729,15 +7988,68 @@ class MainFrame extends JFrame {
         displayPanel.add(customerPanel, "customers");
     }
     
+    // Latency and outcome of every domain operation since start or the last reset, re-read once a
+    // second while showing
+    private void setupDiagnosticsPanel() {
+        diagnosticsPanel = new JPanel(new BorderLayout());
+        diagnosticsPanel.setBackground(Theme.backgroundColor);
+        diagnosticsPanel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+        
+        JLabel titleLabel = new JLabel("Diagnostics");
+        titleLabel.setFont(new Font("Arial", Font.BOLD, 20));
+        titleLabel.setForeground(Theme.accentColor);
+        
+        MetricsTableModel model = new MetricsTableModel();
+        JTable table = new JTable(model);
+        table.setFillsViewportHeight(true);
+        
+        JPanel buttonPanel = new JPanel();
+        buttonPanel.setBackground(Theme.backgroundColor);
+        
+        JButton resetBtn = new JButton("Reset");
+        resetBtn.addActionListener(e -> {
+            Metrics.reset();
+            model.refresh();
+        });
+        buttonPanel.add(resetBtn);
+        
+        new javax.swing.Timer(DIAGNOSTICS_REFRESH_MILLIS, e -> {
+            if (diagnosticsPanel.isShowing()) {
+                model.refresh();
+            }
+        }).start();
+        
+        diagnosticsPanel.add(titleLabel, BorderLayout.NORTH);
+        diagnosticsPanel.add(new JScrollPane(table), BorderLayout.CENTER);
+        diagnosticsPanel.add(buttonPanel, BorderLayout.SOUTH);
+        
+        displayPanel.add(diagnosticsPanel, "diagnostics");
+    }
+    
+    // Cells get a fixed size from a sample label, since otherwise JList sizes itself by rendering
+    // every row
+    private <T> JList<T> createEntityList(EntityListModel<T> model) {
+        JList<T> list = new JList<>(model);
+        list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        EntityCellRenderer renderer = new EntityCellRenderer();
+        list.setCellRenderer(renderer);
+        Dimension cell = renderer.getListCellRendererComponent(list, EntityCellRenderer.SAMPLE_LABEL, -1, false, false)
+                .getPreferredSize();
+        list.setFixedCellHeight(cell.height);
+        list.setFixedCellWidth(cell.width);
+        return list;
+    }
+    
     private void showPanel(String name) {
         CardLayout cl = (CardLayout) displayPanel.getLayout();
         cl.show(displayPanel, name);
     }
     
-    private String formatInventory(Map<String, Integer> inventory) {
+    // The caller holds the lock of the inventory's owner
+    private String formatInventory(Inventory inventory) {
         StringBuilder sb = new StringBuilder();
-        for (Map.Entry<String, Integer> entry : inventory.entrySet()) {
-            sb.append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
+        for (int s = inventory.nextSlot(-1); s >= 0; s = inventory.nextSlot(s)) {
+            sb.append(inventory.nameAt(s)).append(": ").append(inventory.quantityAt(s)).append("\n");
         }
         
         if (sb.length() == 0) {
@@ -755,18 +8067,21 @@ class InventoryDialog extends JDialog {
         setLocationRelativeTo(parent);
         
         JPanel panel = new JPanel(new BorderLayout());
-        panel.setBackground(SupplyChainSystemGUI.backgroundColor);
+        panel.setBackground(Theme.backgroundColor);
         panel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
         
         DefaultListModel<String> model = new DefaultListModel<>();
-        for (Map.Entry<String, Integer> entry : producer.materials.entrySet()) {
-            model.addElement(entry.getKey() + ": " + entry.getValue());
+        // The producer's lock guards its materials, which sales and the simulation change
+        synchronized (producer) {
+            for (int s = producer.materials.nextSlot(-1); s >= 0; s = producer.materials.nextSlot(s)) {
+                model.addElement(producer.materials.nameAt(s) + ": " + producer.materials.quantityAt(s));
+            }
         }
         
         JList<String> list = new JList<>(model);
         JScrollPane scrollPane = new JScrollPane(list);
         
-        JLabel balanceLabel = new JLabel("Balance: " + String.format("%.2f", producer.balance));
+        JLabel balanceLabel = new JLabel("Balance: " + producer.balance.format());
         
         panel.add(scrollPane, BorderLayout.CENTER);
         panel.add(balanceLabel, BorderLayout.SOUTH);
@@ -778,11 +8093,11 @@ class InventoryDialog extends JDialog {
 class ManufactureDialog extends JDialog {
     public ManufactureDialog(JFrame parent, FactoryExtended factory) {
         super(parent, "Manufacture: " + factory.name, true);
-        setSize(400, 300);
+        setSize(450, 340);
         setLocationRelativeTo(parent);
         
         JPanel panel = new JPanel(new BorderLayout());
-        panel.setBackground(SupplyChainSystemGUI.backgroundColor);
+        panel.setBackground(Theme.backgroundColor);
         panel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
         
         JComboBox<ProductDesign> designSelector = new JComboBox<>();
@@ -794,24 +8109,66 @@ class ManufactureDialog extends JDialog {
             @Override
             public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
                 if (value instanceof ProductDesign) {
-                    value = ((ProductDesign) value).name + " (Cost: " + ((ProductDesign) value).cost + ")";
+                    value = ((ProductDesign) value).name + " (Cost: " + Money.format(((ProductDesign) value).cost) + ")";
                 }
                 return super.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
             }
         });
         
-        JPanel inputPanel = new JPanel(new GridLayout(2, 2, 5, 5));
-        inputPanel.setBackground(SupplyChainSystemGUI.backgroundColor);
+        JPanel inputPanel = new JPanel(new GridLayout(5, 2, 5, 5));
+        inputPanel.setBackground(Theme.backgroundColor);
         
         JLabel amountLabel = new JLabel("Amount: ");
         JTextField amountField = new JTextField("1");
+        JLabel capacityLabel = new JLabel("0");
+        JTextField priorityField = new JTextField("0");
+        JLabel queueLabel = new JLabel(factory.jobs.size() + " jobs, " + factory.jobs.backlog() + " units ("
+                + factory.jobs.capacityPerTick + " per tick)");
+        
+        designSelector.addActionListener(e -> {
+            ProductDesign selected = (ProductDesign) designSelector.getSelectedItem();
+            if (selected != null) {
+                capacityLabel.setText(String.valueOf(factory.maxProducible(selected)));
+            }
+        });
+        if (designSelector.getItemCount() > 0) {
+            capacityLabel.setText(String.valueOf(factory.maxProducible(designSelector.getItemAt(0))));
+        }
         
         inputPanel.add(new JLabel("Design: "));
         inputPanel.add(designSelector);
+        inputPanel.add(new JLabel("Can build: "));
+        inputPanel.add(capacityLabel);
         inputPanel.add(amountLabel);
         inputPanel.add(amountField);
+        inputPanel.add(new JLabel("Queue priority: "));
+        inputPanel.add(priorityField);
+        inputPanel.add(new JLabel("Queued: "));
+        inputPanel.add(queueLabel);
         
         JButton manufactureBtn = new JButton("Manufacture");
+        JButton queueBtn = new JButton("Add to Queue");
+        
+        // Queued jobs are built by production ticks as capacity and materials allow
+        queueBtn.addActionListener(e -> {
+            ProductDesign selected = (ProductDesign) designSelector.getSelectedItem();
+            if (selected != null) {
+                try {
+                    int amount = Integer.parseInt(amountField.getText());
+                    int priority = Integer.parseInt(priorityField.getText());
+                    if (amount > 0) {
+                        DomainExecutor.submit(queueBtn, () -> ProductionScheduler.enqueue(factory, selected, amount, priority), job -> {
+                            JOptionPane.showMessageDialog(this, "Queued " + amount + " " + selected.name + "(s) at priority " + priority);
+                            dispose();
+                        });
+                    } else {
+                        JOptionPane.showMessageDialog(this, "Amount must be greater than 0.");
+                    }
+                } catch (NumberFormatException ex) {
+                    JOptionPane.showMessageDialog(this, "Please enter whole numbers for amount and priority.");
+                }
+            }
+        });
         
         manufactureBtn.addActionListener(e -> {
             ProductDesign selected = (ProductDesign) designSelector.getSelectedItem();
@@ -819,8 +8176,28 @@ class ManufactureDialog extends JDialog {
                 try {
                     int amount = Integer.parseInt(amountField.getText());
                     if (amount > 0) {
-                        factory.manufacture(selected, amount);
-                        dispose();
+                        // The failure message, or null once built
+                        DomainExecutor.submit(manufactureBtn, () -> {
+                            TradeResult result = factory.manufacture(selected, amount);
+                            if (result.isOk()) {
+                                return null;
+                            } else if (result == TradeResult.INSUFFICIENT_MATERIALS) {
+                                MaterialDraw draw = factory.planMaterials(selected, amount);
+                                if (draw.shortage >= 0) {
+                                    return "Not enough " + Symbols.name(draw.shortage) + ". Need " + draw.materials.get(draw.shortage)
+                                            + ", have " + factory.materials.get(draw.shortage);
+                                }
+                                return "Not enough materials. At most " + factory.maxProducible(selected) + " can be built.";
+                            }
+                            return result.message;
+                        }, failure -> {
+                            if (failure == null) {
+                                JOptionPane.showMessageDialog(this, "Successfully manufactured " + amount + " " + selected.name + "(s)!");
+                                dispose();
+                            } else {
+                                JOptionPane.showMessageDialog(this, failure);
+                            }
+                        });
                     } else {
                         JOptionPane.showMessageDialog(this, "Amount must be greater than 0.");
                     }
@@ -830,8 +8207,100 @@ class ManufactureDialog extends JDialog {
             }
         });
         
+        JPanel buttonPanel = new JPanel(new GridLayout(1, 2, 5, 5));
+        buttonPanel.setBackground(Theme.backgroundColor);
+        buttonPanel.add(manufactureBtn);
+        buttonPanel.add(queueBtn);
+        
         panel.add(inputPanel, BorderLayout.CENTER);
-        panel.add(manufactureBtn, BorderLayout.SOUTH);
+        panel.add(buttonPanel, BorderLayout.SOUTH);
+        
+        add(panel);
+    }
+}
+
+class BuyMaterialsDialog extends JDialog {
+    public BuyMaterialsDialog(JFrame parent, FactoryExtended factory) {
+        super(parent, "Buy Materials: " + factory.name, true);
+        setSize(450, 350);
+        setLocationRelativeTo(parent);
+        
+        JPanel panel = new JPanel(new BorderLayout(5, 5));
+        panel.setBackground(Theme.backgroundColor);
+        panel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+        
+        JComboBox<Producer> producerSelector = new JComboBox<>();
+        for (Producer p : SupplyChainSystemGUI.producers) {
+            producerSelector.addItem(p);
+        }
+        
+        // One row per material the producer holds: amount and unit price to buy at
+        JPanel linesPanel = new JPanel(new GridLayout(0, 3, 5, 5));
+        linesPanel.setBackground(Theme.backgroundColor);
+        java.util.List<Integer> lineIds = new ArrayList<>();
+        java.util.List<JTextField> amountFields = new ArrayList<>();
+        java.util.List<JTextField> priceFields = new ArrayList<>();
+        
+        Runnable showLines = () -> {
+            linesPanel.removeAll();
+            lineIds.clear();
+            amountFields.clear();
+            priceFields.clear();
+            linesPanel.add(new JLabel("Material (available)"));
+            linesPanel.add(new JLabel("Amount"));
+            linesPanel.add(new JLabel("Price"));
+            Producer producer = (Producer) producerSelector.getSelectedItem();
+            if (producer != null) {
+                for (int s = producer.materials.nextSlot(-1); s >= 0; s = producer.materials.nextSlot(s)) {
+                    JTextField amountField = new JTextField("0");
+                    JTextField priceField = new JTextField("1.00");
+                    linesPanel.add(new JLabel(producer.materials.nameAt(s) + " (" + producer.materials.quantityAt(s) + ")"));
+                    linesPanel.add(amountField);
+                    linesPanel.add(priceField);
+                    lineIds.add(producer.materials.keyAt(s));
+                    amountFields.add(amountField);
+                    priceFields.add(priceField);
+                }
+            }
+            linesPanel.revalidate();
+            linesPanel.repaint();
+        };
+        producerSelector.addActionListener(e -> showLines.run());
+        showLines.run();
+        
+        JButton buyBtn = new JButton("Buy");
+        buyBtn.addActionListener(e -> {
+            Producer producer = (Producer) producerSelector.getSelectedItem();
+            if (producer == null) return;
+            MaterialOrder order = new MaterialOrder();
+            try {
+                for (int i = 0; i < lineIds.size(); i++) {
+                    int amount = Integer.parseInt(amountFields.get(i).getText().trim());
+                    if (amount > 0) {
+                        order.add(lineIds.get(i), amount, Money.cents(Double.parseDouble(priceFields.get(i).getText().trim())));
+                    }
+                }
+            } catch (NumberFormatException ex) {
+                JOptionPane.showMessageDialog(this, "Please enter valid numbers for amounts and prices.");
+                return;
+            }
+            if (order.lines() == 0) {
+                JOptionPane.showMessageDialog(this, "Enter an amount for at least one material.");
+                return;
+            }
+            DomainExecutor.submit(buyBtn, () -> factory.buyMaterials(producer, order), result -> {
+                if (result.isOk()) {
+                    JOptionPane.showMessageDialog(this, "Bought " + order.lines() + " material(s) for " + Money.format(order.total()) + ".");
+                    dispose();
+                } else {
+                    JOptionPane.showMessageDialog(this, result.message);
+                }
+            });
+        });
+        
+        panel.add(producerSelector, BorderLayout.NORTH);
+        panel.add(new JScrollPane(linesPanel), BorderLayout.CENTER);
+        panel.add(buyBtn, BorderLayout.SOUTH);
         
         add(panel);
     }
@@ -844,11 +8313,11 @@ class CreateDesignDialog extends JDialog {
         setLocationRelativeTo(parent);
         
         JPanel panel = new JPanel(new BorderLayout());
-        panel.setBackground(SupplyChainSystemGUI.backgroundColor);
+        panel.setBackground(Theme.backgroundColor);
         panel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
         
         JPanel inputPanel = new JPanel(new GridLayout(3, 2, 5, 5));
-        inputPanel.setBackground(SupplyChainSystemGUI.backgroundColor);
+        inputPanel.setBackground(Theme.backgroundColor);
         
         JTextField nameField = new JTextField();
         JTextField costField = new JTextField();
@@ -866,7 +8335,7 @@ class CreateDesignDialog extends JDialog {
             public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
                 if (value instanceof InputMaterial) {
                     InputMaterial im = (InputMaterial) value;
-                    value = im.name + " (x" + im.amount + ")";
+                    value = im.name + " (x" + im.amount + ")" + (im.component != null ? " [design]" : "");
                 }
                 return super.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
             }
@@ -875,11 +8344,11 @@ class CreateDesignDialog extends JDialog {
         JScrollPane materialsScroller = new JScrollPane(materialsList);
         
         JPanel materialsPanel = new JPanel(new BorderLayout());
-        materialsPanel.setBackground(SupplyChainSystemGUI.backgroundColor);
+        materialsPanel.setBackground(Theme.backgroundColor);
         materialsPanel.setBorder(BorderFactory.createTitledBorder("Materials"));
         
         JPanel addMaterialPanel = new JPanel(new GridLayout(1, 4, 5, 5));
-        addMaterialPanel.setBackground(SupplyChainSystemGUI.backgroundColor);
+        addMaterialPanel.setBackground(Theme.backgroundColor);
         
         JTextField materialNameField = new JTextField();
         JTextField materialAmountField = new JTextField("1");
@@ -895,7 +8364,15 @@ class CreateDesignDialog extends JDialog {
                 try {
                     int amount = Integer.parseInt(materialAmountField.getText());
                     if (amount > 0) {
-                        InputMaterial material = new InputMaterial(name, amount);
+                        // Naming an existing design makes it a sub-assembly of the new one
+                        ProductDesign component = null;
+                        for (ProductDesign d : SupplyChainSystemGUI.allDesigns) {
+                            if (d.name.equals(name)) {
+                                component = d;
+                                break;
+                            }
+                        }
+                        InputMaterial material = component != null ? new InputMaterial(component, amount) : new InputMaterial(name, amount);
                         materialsModel.addElement(material);
                         materialNameField.setText("");
                         materialAmountField.setText("1");
@@ -932,16 +8409,25 @@ class CreateDesignDialog extends JDialog {
                     return;
                 }
                 
-                ProductDesign design = new ProductDesign(name, cost);
-                for (int i = 0; i < materialsModel.size(); i++) {
-                    design.addMaterial(materialsModel.getElementAt(i));
-                }
-                
-                factory.designs.add(design);
-                SupplyChainSystemGUI.allDesigns.add(design);
-                
-                JOptionPane.showMessageDialog(this, "Design created successfully!");
-                dispose();
+                InputMaterial[] materials = new InputMaterial[materialsModel.size()];
+                materialsModel.copyInto(materials);
+                DomainExecutor.submit(createBtn, () -> {
+                    Journal.enter();
+                    try {
+                        ProductDesign design = new ProductDesign(name, cost);
+                        for (InputMaterial material : materials) {
+                            design.addMaterial(material);
+                        }
+                        factory.addDesign(design);
+                        SupplyChainSystemGUI.allDesigns.add(design);
+                        return design;
+                    } finally {
+                        Journal.exit();
+                    }
+                }, design -> {
+                    JOptionPane.showMessageDialog(this, "Design created successfully!");
+                    dispose();
+                });
                 
             } catch (NumberFormatException ex) {
                 JOptionPane.showMessageDialog(this, "Please enter a valid number for cost.");
@@ -963,7 +8449,7 @@ class AddMarketDialog extends JDialog {
         setLocationRelativeTo(parent);
         
         JPanel panel = new JPanel(new GridLayout(3, 2, 5, 5));
-        panel.setBackground(SupplyChainSystemGUI.backgroundColor);
+        panel.setBackground(Theme.backgroundColor);
         panel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
         
         JTextField nameField = new JTextField();
@@ -990,11 +8476,17 @@ class AddMarketDialog extends JDialog {
                     return;
                 }
                 
-                Market market = new Market(name, balance);
-                SupplyChainSystemGUI.markets.add(market);
-                ((MainFrame) parent).marketListModel.addElement(market);
-                
-                dispose();
+                // The market list picks up the new row on the refresh that follows
+                DomainExecutor.submit(addBtn, () -> {
+                    Journal.enter();
+                    try {
+                        Market market = new Market(name, balance);
+                        SupplyChainSystemGUI.markets.add(market);
+                        return market;
+                    } finally {
+                        Journal.exit();
+                    }
+                }, market -> dispose());
                 
             } catch (NumberFormatException ex) {
                 JOptionPane.showMessageDialog(this, "Please enter a valid number for balance.");
@@ -1011,11 +8503,11 @@ class AddMarketDialog extends JDialog {
 class EditMarketDialog extends JDialog {
     public EditMarketDialog(JFrame parent, Market market) {
         super(parent, "Edit Market: " + market.name, true);
-        setSize(700, 500);
+        setSize(700, 580);
         setLocationRelativeTo(parent);
         
         JPanel mainPanel = new JPanel(new BorderLayout());
-        mainPanel.setBackground(SupplyChainSystemGUI.backgroundColor);
+        mainPanel.setBackground(Theme.backgroundColor);
         
         EditMarketPanel panel = new EditMarketPanel(this, market);
         mainPanel.add(panel);
@@ -1027,45 +8519,50 @@ class EditMarketDialog extends JDialog {
 class EditMarketPanel extends JPanel {
     JDialog parent;
     Market market;
-    ArrayList<FactoryExtended> factories = SupplyChainSystemGUI.factories;
+    java.util.List<FactoryExtended> factories = SupplyChainSystemGUI.factories;
     
     JComboBox<String> productSelector;
     JLabel stockLabel;
     JLabel priceLabel;
+    JLabel reorderLabel;
     JLabel balanceLabel;
+    private final Runnable refresher = this::refreshLabels;
     
     public EditMarketPanel(JDialog parent, Market market) {
         this.parent = parent;
         this.market = market;
         
         setLayout(new BorderLayout());
-        setBackground(SupplyChainSystemGUI.backgroundColor);
+        setBackground(Theme.backgroundColor);
         setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
         
         // Market Info Panel
         JPanel infoPanel = new JPanel(new GridLayout(2, 2, 5, 5));
-        infoPanel.setBackground(SupplyChainSystemGUI.backgroundColor);
+        infoPanel.setBackground(Theme.backgroundColor);
         
         infoPanel.add(new JLabel("Market Name: "));
         infoPanel.add(new JLabel(market.name));
         
-        balanceLabel = new JLabel("Balance: " + String.format("%.2f", market.balance));
+        balanceLabel = new JLabel("Balance: " + market.balance.format());
         infoPanel.add(new JLabel("Balance: "));
         infoPanel.add(balanceLabel);
         
         // Product Selection
-        JPanel selectionPanel = new JPanel(new GridLayout(3, 2, 5, 5));
-        selectionPanel.setBackground(SupplyChainSystemGUI.backgroundColor);
+        JPanel selectionPanel = new JPanel(new GridLayout(4, 2, 5, 5));
+        selectionPanel.setBackground(Theme.backgroundColor);
         selectionPanel.setBorder(BorderFactory.createTitledBorder("Product Information"));
         
         productSelector = new JComboBox<>();
-        for (String product : market.stock.keySet()) {
-            productSelector.addItem(product);
-        }
+        market.stock.forEach((id, quantity) -> productSelector.addItem(Symbols.name(id)));
         
         for (FactoryExtended factory : factories) {
-            for (String product : factory.products.keySet()) {
-                if (!market.stock.containsKey(product)) {
+            // Copied under the factory's lock, which guards its products against trades and production
+            java.util.List<String> held;
+            synchronized (factory) {
+                held = new ArrayList<>(factory.products.keySet());
+            }
+            for (String product : held) {
+                if (!market.stock.contains(product)) {
                     productSelector.addItem(product);
                 }
             }
@@ -1073,17 +8570,9 @@ class EditMarketPanel extends JPanel {
         
         stockLabel = new JLabel("Stock: 0");
         priceLabel = new JLabel("Price: 0.00");
+        reorderLabel = new JLabel("None");
         
-        productSelector.addActionListener(e -> {
-            String selected = (String) productSelector.getSelectedItem();
-            if (selected != null) {
-                int stock = market.stock.getOrDefault(selected, 0);
-                stockLabel.setText("Stock: " + stock);
-                
-                double price = market.prices.getOrDefault(selected, 0.0);
-                priceLabel.setText("Price: " + String.format("%.2f", price));
-            }
-        });
+        productSelector.addActionListener(e -> refreshLabels());
         
         selectionPanel.add(new JLabel("Product: "));
         selectionPanel.add(productSelector);
@@ -1091,10 +8580,12 @@ class EditMarketPanel extends JPanel {
         selectionPanel.add(stockLabel);
         selectionPanel.add(new JLabel("Price: "));
         selectionPanel.add(priceLabel);
+        selectionPanel.add(new JLabel("Reorder Level: "));
+        selectionPanel.add(reorderLabel);
         
         // Buy Panel
         JPanel buyPanel = new JPanel();
-        buyPanel.setBackground(SupplyChainSystemGUI.backgroundColor);
+        buyPanel.setBackground(Theme.backgroundColor);
         buyPanel.setBorder(BorderFactory.createTitledBorder("Buy Products"));
         
         JLabel amountLabel = new JLabel("Amount: ");
@@ -1107,7 +8598,7 @@ class EditMarketPanel extends JPanel {
         
         // Price Panel
         JPanel pricePanel = new JPanel();
-        pricePanel.setBackground(SupplyChainSystemGUI.backgroundColor);
+        pricePanel.setBackground(Theme.backgroundColor);
         pricePanel.setBorder(BorderFactory.createTitledBorder("Set Price"));
         
         JLabel setPriceLabel = new JLabel("Price: ");
@@ -1118,6 +8609,21 @@ class EditMarketPanel extends JPanel {
         pricePanel.add(priceField);
         pricePanel.add(updatePriceButton);
         
+        // Reorder Panel
+        JPanel reorderPanel = new JPanel();
+        reorderPanel.setBackground(Theme.backgroundColor);
+        reorderPanel.setBorder(BorderFactory.createTitledBorder("Automatic Restock"));
+        
+        JTextField pointField = new JTextField("10", 4);
+        JTextField targetField = new JTextField("50", 4);
+        JButton reorderButton = new JButton("Set Reorder Level");
+        
+        reorderPanel.add(new JLabel("When at or below: "));
+        reorderPanel.add(pointField);
+        reorderPanel.add(new JLabel("Fill to: "));
+        reorderPanel.add(targetField);
+        reorderPanel.add(reorderButton);
+        
         // Buy button action
         buyButton.addActionListener(e -> {
             String selected = (String) productSelector.getSelectedItem();
@@ -1133,41 +8639,31 @@ class EditMarketPanel extends JPanel {
                     return;
                 }
                 
-                // Try to find factory that can sell
-                boolean purchaseSuccessful = false;
-                for (FactoryExtended f : factories) {
-                    InventoryItem item = f.products.get(selected);
-                    if (item != null && item.quantity >= amount) {
-                        // Find cost per unit
-                        double costPerUnit = 0;
-                        for (ProductDesign d : f.designs) {
-                            if (d.name.equals(selected)) {
-                                costPerUnit = d.cost;
-                                break;
-                            }
-                        }
-                        
-                        // Use the enhanced market.buyProduct with better error handling
-                        boolean success = market.buyProduct(selected, amount, costPerUnit, f);
-                        if (success) {
-                            // Update UI
-                            balanceLabel.setText("Balance: " + String.format("%.2f", market.balance));
-                            
-                            // Refresh product selection to update stock display
-                            productSelector.setSelectedItem(selected);
-                            
-                            // Show simple success message
-                            JOptionPane.showMessageDialog(parent, "Purchase successful!");
-                            
-                            purchaseSuccessful = true;
-                            break;
-                        }
+                // The failure message, or null once bought
+                DomainExecutor.submit(buyButton, () -> {
+                    // Try to find factory that can sell
+                    FactoryExtended f = MarketQueries.findSupplier(selected, amount);
+                    if (f == null) {
+                        return "Could not find a factory with enough stock.";
                     }
-                }
-                
-                if (!purchaseSuccessful) {
-                    JOptionPane.showMessageDialog(parent, "Could not find a factory with enough stock.");
-                }
+
+                    long costPerUnit = MarketQueries.unitCost(f, selected);
+                    TradeResult result = market.buyProduct(selected, amount, costPerUnit, f);
+                    if (result.isOk()) {
+                        return null;
+                    } else if (result == TradeResult.INSUFFICIENT_BALANCE) {
+                        return "Not enough balance: cost " + Money.format(amount * costPerUnit) +
+                               ", available " + market.balance.format();
+                    }
+                    return result.message;
+                }, failure -> {
+                    if (failure == null) {
+                        // Show simple success message
+                        JOptionPane.showMessageDialog(parent, "Purchase successful!");
+                    } else {
+                        JOptionPane.showMessageDialog(parent, failure);
+                    }
+                });
                 
             } catch (NumberFormatException ex) {
                 JOptionPane.showMessageDialog(parent, "Please enter a valid number for amount.");
@@ -1185,29 +8681,58 @@ class EditMarketPanel extends JPanel {
             try {
                 double price = Double.parseDouble(priceField.getText());
                 
-                // Use enhanced setPrice with better validation
-                boolean success = market.setPrice(selected, price);
-                if (success) {
-                    JOptionPane.showMessageDialog(parent, "Price updated for " + selected + " to " + price);
-                    // Update the price label
-                    priceLabel.setText("Price: " + String.format("%.2f", price));
-                }
+                long cents = Money.cents(price);
+                DomainExecutor.submit(updatePriceButton, () -> market.setPrice(selected, cents), result -> {
+                    if (result.isOk()) {
+                        JOptionPane.showMessageDialog(parent, "Price updated for " + selected + " to " + Money.format(cents));
+                    } else {
+                        JOptionPane.showMessageDialog(parent, result.message);
+                    }
+                });
             } catch (NumberFormatException ex) {
                 JOptionPane.showMessageDialog(parent, "Please enter a valid number for price.");
             }
         });
         
+        // Reorder level button action; a target of 0 turns automatic restocking off
+        reorderButton.addActionListener(e -> {
+            String selected = (String) productSelector.getSelectedItem();
+            if (selected == null) {
+                JOptionPane.showMessageDialog(parent, "Please select a product first.");
+                return;
+            }
+            
+            try {
+                int point = Integer.parseInt(pointField.getText());
+                int target = Integer.parseInt(targetField.getText());
+                
+                DomainExecutor.submit(reorderButton, () -> market.setReorderLevel(selected, point, target), result -> {
+                    if (!result.isOk()) {
+                        JOptionPane.showMessageDialog(parent, "Fill-to level must be above the reorder point.");
+                    } else if (target == 0) {
+                        JOptionPane.showMessageDialog(parent, "Automatic restock turned off for " + selected);
+                    } else {
+                        JOptionPane.showMessageDialog(parent, selected + " will be restocked to " + target +
+                                " whenever stock falls to " + point);
+                    }
+                });
+            } catch (NumberFormatException ex) {
+                JOptionPane.showMessageDialog(parent, "Please enter whole numbers for the reorder level.");
+            }
+        });
+        
         // Main Layout
         JPanel centerPanel = new JPanel(new BorderLayout());
-        centerPanel.setBackground(SupplyChainSystemGUI.backgroundColor);
+        centerPanel.setBackground(Theme.backgroundColor);
         
         centerPanel.add(selectionPanel, BorderLayout.NORTH);
         
-        JPanel actionsPanel = new JPanel(new GridLayout(2, 1));
-        actionsPanel.setBackground(SupplyChainSystemGUI.backgroundColor);
+        JPanel actionsPanel = new JPanel(new GridLayout(3, 1));
+        actionsPanel.setBackground(Theme.backgroundColor);
         
         actionsPanel.add(buyPanel);
         actionsPanel.add(pricePanel);
+        actionsPanel.add(reorderPanel);
         
         centerPanel.add(actionsPanel, BorderLayout.CENTER);
         
@@ -1219,6 +8744,36 @@ class EditMarketPanel extends JPanel {
             productSelector.setSelectedIndex(0);
         }
     }
+    
+    // Balance, and stock and price of the selected product, as they are now. Trades from other
+    // threads move them too, so a refresh is queued on every change and coalesced to one per frame.
+    void refreshLabels() {
+        balanceLabel.setText("Balance: " + market.balance.format());
+        String selected = (String) productSelector.getSelectedItem();
+        if (selected != null) {
+            int stock = market.stock.get(selected);
+            stockLabel.setText("Stock: " + stock);
+            
+            long price = market.getPrice(selected);
+            priceLabel.setText("Price: " + Money.format(price));
+            
+            int target = market.getReorderTarget(selected);
+            reorderLabel.setText(target == 0 ? "None"
+                    : "At " + market.getReorderPoint(selected) + ", fill to " + target);
+        }
+    }
+    
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        UiRefresh.onChange(refresher);
+    }
+    
+    @Override
+    public void removeNotify() {
+        UiRefresh.removeOnChange(refresher);
+        super.removeNotify();
+    }
 }
 
 class EditCustomerDialog extends JDialog {
@@ -1228,11 +8783,11 @@ class EditCustomerDialog extends JDialog {
         setLocationRelativeTo(parent);
         
         JPanel panel = new JPanel(new GridLayout(3, 2, 5, 5));
-        panel.setBackground(SupplyChainSystemGUI.backgroundColor);
+        panel.setBackground(Theme.backgroundColor);
         panel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
         
         JTextField nameField = new JTextField(customer.name);
-        JTextField balanceField = new JTextField(String.format("%.2f", customer.balance));
+        JTextField balanceField = new JTextField(customer.balance.format());
         
         panel.add(new JLabel("Name: "));
         panel.add(nameField);
@@ -1255,13 +8810,11 @@ class EditCustomerDialog extends JDialog {
                     return;
                 }
                 
-                customer.name = name;
-                customer.balance = balance;
-                
-                // Update the list model to reflect changes
-                ((MainFrame) parent).customerList.repaint();
-                
-                dispose();
+                // The customer list repaints on the refresh that follows
+                DomainExecutor.submit(updateBtn, () -> {
+                    customer.update(name, Money.cents(balance));
+                    return null;
+                }, result -> dispose());
                 
             } catch (NumberFormatException ex) {
                 JOptionPane.showMessageDialog(this, "Please enter a valid number for balance.");
@@ -1282,18 +8835,18 @@ class CustomerInventoryDialog extends JDialog {
         setLocationRelativeTo(parent);
         
         JPanel panel = new JPanel(new BorderLayout());
-        panel.setBackground(SupplyChainSystemGUI.backgroundColor);
+        panel.setBackground(Theme.backgroundColor);
         panel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
         
         DefaultListModel<String> model = new DefaultListModel<>();
-        for (Map.Entry<String, Integer> entry : customer.inventory.entrySet()) {
-            model.addElement(entry.getKey() + ": " + entry.getValue());
+        for (int s = customer.inventory.nextSlot(-1); s >= 0; s = customer.inventory.nextSlot(s)) {
+            model.addElement(customer.inventory.nameAt(s) + ": " + customer.inventory.quantityAt(s));
         }
         
         JList<String> list = new JList<>(model);
         JScrollPane scrollPane = new JScrollPane(list);
         
-        JLabel balanceLabel = new JLabel("Balance: " + String.format("%.2f", customer.balance));
+        JLabel balanceLabel = new JLabel("Balance: " + customer.balance.format());
         
         panel.add(scrollPane, BorderLayout.CENTER);
         panel.add(balanceLabel, BorderLayout.SOUTH);
@@ -1303,57 +8856,81 @@ class CustomerInventoryDialog extends JDialog {
 }
 
 class ShopDialog extends JDialog {
+    // Offers fetched from the catalog at a time, cheapest first
+    static final int OFFER_PAGE = 50;
+
     Customer customer;
-    Map<String, Market> productMarketMap = new HashMap<>();
     JComboBox<String> productSelector;
+    JComboBox<Offer> offerSelector;
+    JButton moreOffersBtn;
     JLabel stockLabel;
     JLabel priceLabel;
     JLabel balanceLabel;
+    JTextField limitField = new JTextField(5);
+    int productId = -1;
+    // Lines added so far, at the prices shown when they were added; checked out at current prices
+    Basket basket = new Basket();
+    DefaultListModel<String> basketLines = new DefaultListModel<>();
+    JLabel basketTotalLabel = new JLabel("Total: 0.00");
+    private final Runnable refresher = this::refreshLabels;
     
     public ShopDialog(JFrame parent, Customer customer) {
         super(parent, "Shop: " + customer.name, true);
-        setSize(400, 250);
+        setSize(820, 320);
         setLocationRelativeTo(parent);
         
         this.customer = customer;
         
         JPanel panel = new JPanel(new BorderLayout());
-        panel.setBackground(SupplyChainSystemGUI.backgroundColor);
+        panel.setBackground(Theme.backgroundColor);
         panel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
         
         // Customer Info
         JPanel customerPanel = new JPanel(new GridLayout(1, 2));
-        customerPanel.setBackground(SupplyChainSystemGUI.backgroundColor);
+        customerPanel.setBackground(Theme.backgroundColor);
         
-        balanceLabel = new JLabel("Balance: " + String.format("%.2f", customer.balance));
+        balanceLabel = new JLabel("Balance: " + customer.balance.format());
         customerPanel.add(new JLabel("Customer: " + customer.name));
         customerPanel.add(balanceLabel);
         
         // Product selector
-        JPanel selectorPanel = new JPanel(new GridLayout(3, 2, 5, 5));
-        selectorPanel.setBackground(SupplyChainSystemGUI.backgroundColor);
+        JPanel selectorPanel = new JPanel(new GridLayout(4, 2, 5, 5));
+        selectorPanel.setBackground(Theme.backgroundColor);
         
         productSelector = new JComboBox<>();
         populateProductSelector();
         
+        offerSelector = new JComboBox<>();
+        moreOffersBtn = new JButton("More");
+        JPanel offerPanel = new JPanel(new BorderLayout(5, 0));
+        offerPanel.setBackground(Theme.backgroundColor);
+        offerPanel.add(offerSelector, BorderLayout.CENTER);
+        offerPanel.add(moreOffersBtn, BorderLayout.EAST);
+        
         stockLabel = new JLabel("Stock: 0");
         priceLabel = new JLabel("Price: 0.00");
         
         productSelector.addActionListener(e -> {
             String selected = (String) productSelector.getSelectedItem();
-            if (selected != null) {
-                Market m = productMarketMap.get(selected);
-                String product = selected.split(" \\(")[0];
-                int stock = m.stock.getOrDefault(product, 0);
-                double price = m.getPrice(product);
-                
-                stockLabel.setText("Stock: " + stock);
-                priceLabel.setText("Price: " + String.format("%.2f", price));
+            productId = selected != null ? Symbols.find(selected) : -1;
+            offerSelector.removeAllItems();
+            loadOffers();
+        });
+        
+        moreOffersBtn.addActionListener(e -> loadOffers());
+        
+        offerSelector.addActionListener(e -> {
+            refreshLabels();
+            Offer offer = (Offer) offerSelector.getSelectedItem();
+            if (offer != null) {
+                limitField.setText(Money.format(offer.market.getPrice(offer.productId)));
             }
         });
         
         selectorPanel.add(new JLabel("Product: "));
         selectorPanel.add(productSelector);
+        selectorPanel.add(new JLabel("Market: "));
+        selectorPanel.add(offerPanel);
         selectorPanel.add(new JLabel("Stock: "));
         selectorPanel.add(stockLabel);
         selectorPanel.add(new JLabel("Price: "));
@@ -1361,22 +8938,30 @@ class ShopDialog extends JDialog {
         
         // Buy Panel
         JPanel buyPanel = new JPanel();
-        buyPanel.setBackground(SupplyChainSystemGUI.backgroundColor);
+        buyPanel.setBackground(Theme.backgroundColor);
         
         JLabel amountLabel = new JLabel("Amount: ");
         JTextField amountField = new JTextField("1", 5);
         JButton buyBtn = new JButton("Buy");
+        JButton bidBtn = new JButton("Bid");
+        JButton cancelBidsBtn = new JButton("Cancel Bids");
+        JButton addToBasketBtn = new JButton("Add to Basket");
         
         buyPanel.add(amountLabel);
         buyPanel.add(amountField);
         buyPanel.add(buyBtn);
+        buyPanel.add(addToBasketBtn);
+        buyPanel.add(new JLabel("Limit: "));
+        buyPanel.add(limitField);
+        buyPanel.add(bidBtn);
+        buyPanel.add(cancelBidsBtn);
         
         // Buy Button Action
         buyBtn.addActionListener(e -> {
-            String selected = (String) productSelector.getSelectedItem();
-            if (selected == null) return;
-            Market m = productMarketMap.get(selected);
-            String product = selected.split(" \\(")[0];
+            Offer offer = (Offer) offerSelector.getSelectedItem();
+            if (offer == null) return;
+            Market m = offer.market;
+            String product = Symbols.name(offer.productId);
 
             try {
                 int amount = Integer.parseInt(amountField.getText());
@@ -1385,31 +8970,132 @@ class ShopDialog extends JDialog {
                     return;
                 }
                 
-                double price = m.getPrice(product);
-                if (price <= 0) {
-                    JOptionPane.showMessageDialog(this, "Price not set for this product. Please contact the market manager.");
-                    return;
-                }
-                
-                // Use our enhanced Customer buyProduct method
-                boolean success = customer.buyProduct(product, amount, price, m);
-                if (success) {
-                    // Update UI after successful purchase
-                    balanceLabel.setText("Balance: " + String.format("%.2f", customer.balance));
-                    int newStock = m.stock.getOrDefault(product, 0);
-                    stockLabel.setText("Stock: " + newStock);
+                // The failure message, or null once bought
+                DomainExecutor.submit(buyBtn, () -> {
+                    long price = m.getPrice(product);
+                    if (price <= 0) {
+                        return "Price not set for this product. Please contact the market manager.";
+                    }
                     
-                    // Show success message
-                    JOptionPane.showMessageDialog(this, "Purchase successful!");
+                    TradeResult result = customer.buyProduct(product, amount, price, m);
+                    if (result.isOk()) {
+                        return null;
+                    } else if (result == TradeResult.INSUFFICIENT_STOCK) {
+                        return "Not enough stock in market: requested " + amount + ", available " + m.stock.get(product);
+                    } else if (result == TradeResult.INSUFFICIENT_BALANCE) {
+                        return "Not enough balance: cost " + Money.format(amount * price) +
+                               ", available " + customer.balance.format();
+                    }
+                    return result.message;
+                }, failure -> JOptionPane.showMessageDialog(this, failure == null ? "Purchase successful!" : failure));
+            } catch (NumberFormatException ex) {
+                JOptionPane.showMessageDialog(this, "Please enter a valid number for the amount.");
+            }
+        });
+        
+        // Bid Button Action
+        bidBtn.addActionListener(e -> {
+            Offer offer = (Offer) offerSelector.getSelectedItem();
+            if (offer == null) return;
+            Market m = offer.market;
+            String product = Symbols.name(offer.productId);
+
+            try {
+                int amount = Integer.parseInt(amountField.getText());
+                long limit = Money.cents(Double.parseDouble(limitField.getText()));
+                DomainExecutor.submit(bidBtn, () -> customer.placeBid(product, amount, limit, m),
+                        result -> JOptionPane.showMessageDialog(this, result == TradeResult.OK ? "Bid filled!" : result.message));
+            } catch (NumberFormatException ex) {
+                JOptionPane.showMessageDialog(this, "Please enter valid numbers for the amount and limit.");
+            }
+        });
+        
+        cancelBidsBtn.addActionListener(e -> {
+            Offer offer = (Offer) offerSelector.getSelectedItem();
+            if (offer == null) return;
+            DomainExecutor.submit(cancelBidsBtn, () -> customer.cancelBids(Symbols.name(offer.productId), offer.market), result -> {});
+        });
+        
+        // Basket: lines from any markets, bought together or not at all
+        JPanel basketPanel = new JPanel(new BorderLayout(0, 5));
+        basketPanel.setBackground(Theme.backgroundColor);
+        basketPanel.setBorder(BorderFactory.createTitledBorder("Basket"));
+        basketPanel.setPreferredSize(new Dimension(280, 0));
+        JButton checkoutBtn = new JButton("Checkout");
+        JButton clearBasketBtn = new JButton("Clear");
+        JPanel basketButtons = new JPanel();
+        basketButtons.setBackground(Theme.backgroundColor);
+        basketButtons.add(basketTotalLabel);
+        basketButtons.add(checkoutBtn);
+        basketButtons.add(clearBasketBtn);
+        basketPanel.add(new JScrollPane(new JList<>(basketLines)), BorderLayout.CENTER);
+        basketPanel.add(basketButtons, BorderLayout.SOUTH);
+        
+        addToBasketBtn.addActionListener(e -> {
+            Offer offer = (Offer) offerSelector.getSelectedItem();
+            if (offer == null) return;
+            try {
+                int amount = Integer.parseInt(amountField.getText());
+                if (amount <= 0) {
+                    JOptionPane.showMessageDialog(this, "Amount must be greater than zero.");
+                    return;
                 }
+                long price = offer.market.getPrice(offer.productId);
+                basket.add(offer.market, offer.productId, amount, price);
+                basketLines.addElement(amount + " x " + Symbols.name(offer.productId) + " from " + offer.market.name
+                        + " at " + Money.format(price));
+                basketTotalLabel.setText("Total: " + Money.format(basket.total()));
             } catch (NumberFormatException ex) {
                 JOptionPane.showMessageDialog(this, "Please enter a valid number for the amount.");
             }
         });
         
+        clearBasketBtn.addActionListener(e -> clearBasket());
+        
+        checkoutBtn.addActionListener(e -> {
+            if (basket.lines() == 0) return;
+            // Read on the event thread; the worker prices its own copy
+            Market[] markets = Arrays.copyOf(basket.markets, basket.lines());
+            int[] ids = Arrays.copyOf(basket.ids, basket.lines());
+            int[] amounts = Arrays.copyOf(basket.amounts, basket.lines());
+            
+            // The failure message, or null once everything is bought
+            DomainExecutor.submit(checkoutBtn, () -> {
+                Basket priced = new Basket();
+                for (int i = 0; i < ids.length; i++) {
+                    long price = markets[i].getPrice(ids[i]);
+                    if (price <= 0) {
+                        return "Price not set for " + Symbols.name(ids[i]) + " at " + markets[i].name + ".";
+                    }
+                    priced.add(markets[i], ids[i], amounts[i], price);
+                }
+                
+                TradeResult result = customer.checkout(priced);
+                if (result.isOk()) {
+                    return null;
+                } else if (result == TradeResult.INSUFFICIENT_BALANCE) {
+                    return "Not enough balance: basket costs " + Money.format(priced.total()) +
+                           ", available " + customer.balance.format();
+                } else if (priced.failedLine >= 0) {
+                    int line = priced.failedLine;
+                    return result.message + ": " + amounts[line] + " x " + Symbols.name(ids[line]) + " from "
+                            + markets[line].name + ". Nothing was bought.";
+                }
+                return result.message;
+            }, failure -> {
+                if (failure == null) {
+                    clearBasket();
+                    JOptionPane.showMessageDialog(this, "Checkout successful!");
+                } else {
+                    JOptionPane.showMessageDialog(this, failure);
+                }
+            });
+        });
+        
         panel.add(customerPanel, BorderLayout.NORTH);
         panel.add(selectorPanel, BorderLayout.CENTER);
         panel.add(buyPanel, BorderLayout.SOUTH);
+        panel.add(basketPanel, BorderLayout.EAST);
         
         add(panel);
         
@@ -1419,17 +9105,57 @@ class ShopDialog extends JDialog {
         }
     }
     
+    void clearBasket() {
+        basket.clear();
+        basketLines.clear();
+        basketTotalLabel.setText("Total: 0.00");
+    }
+    
+    // Balance, and stock and price at the selected offer, as they are now; kept current like
+    // EditMarketPanel's
+    void refreshLabels() {
+        balanceLabel.setText("Balance: " + customer.balance.format());
+        Offer offer = (Offer) offerSelector.getSelectedItem();
+        if (offer != null) {
+            int stock = offer.market.stock.get(offer.productId);
+            long price = offer.market.getPrice(offer.productId);
+            
+            stockLabel.setText("Stock: " + stock);
+            priceLabel.setText("Price: " + Money.format(price));
+        }
+    }
+    
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        UiRefresh.onChange(refresher);
+    }
+    
+    @Override
+    public void removeNotify() {
+        UiRefresh.removeOnChange(refresher);
+        super.removeNotify();
+    }
+    
     private void populateProductSelector() {
-        for (Market m : SupplyChainSystemGUI.markets) {
-            for (Map.Entry<String, Integer> entry : m.stock.entrySet()) {
-                String product = entry.getKey();
-                if (entry.getValue() > 0 && m.getPrice(product) > 0) {
-                    String item = product + " (" + m.name + ")";
-                    productSelector.addItem(item);
-                    productMarketMap.put(item, m);
-                }
-            }
+        CatalogLoadEvent event = CatalogLoadEvent.start();
+        java.util.List<String> products = Catalog.products();
+        for (String product : products) {
+            productSelector.addItem(product);
+        }
+        event.finish(customer, "", 0, products.size());
+    }
+
+    // Appends the next page of the selected product's offers
+    private void loadOffers() {
+        CatalogLoadEvent event = CatalogLoadEvent.start();
+        int loaded = offerSelector.getItemCount();
+        java.util.List<Offer> page = Catalog.offers(productId, loaded, OFFER_PAGE);
+        for (Offer offer : page) {
+            offerSelector.addItem(offer);
         }
+        moreOffersBtn.setEnabled(offerSelector.getItemCount() < Catalog.offerCount(productId));
+        event.finish(customer, productId >= 0 ? Symbols.name(productId) : "", loaded, page.size());
     }
 }
 
@@ -1440,17 +9166,17 @@ class DestroyByProductDialog extends JDialog {
         setLocationRelativeTo(parent);
         
         JPanel panel = new JPanel(new BorderLayout());
-        panel.setBackground(SupplyChainSystemGUI.backgroundColor);
+        panel.setBackground(Theme.backgroundColor);
         panel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
         
         // Product selector
         JComboBox<String> productSelector = new JComboBox<>();
-        for (String product : customer.inventory.keySet()) {
-            productSelector.addItem(product + " (" + customer.inventory.get(product) + ")");
+        for (int s = customer.inventory.nextSlot(-1); s >= 0; s = customer.inventory.nextSlot(s)) {
+            productSelector.addItem(customer.inventory.nameAt(s) + " (" + customer.inventory.quantityAt(s) + ")");
         }
         
         JPanel inputPanel = new JPanel(new GridLayout(2, 2, 5, 5));
-        inputPanel.setBackground(SupplyChainSystemGUI.backgroundColor);
+        inputPanel.setBackground(Theme.backgroundColor);
         
         JLabel amountLabel = new JLabel("Amount: ");
         JTextField amountField = new JTextField("1");
@@ -1468,28 +9194,26 @@ class DestroyByProductDialog extends JDialog {
                 String product = selected.split(" \\(")[0];
                 try {
                     int amount = Integer.parseInt(amountField.getText());
-                    int available = customer.inventory.getOrDefault(product, 0);
                     
                     if (amount <= 0) {
                         JOptionPane.showMessageDialog(this, "Amount must be greater than 0.");
                         return;
                     }
                     
-                    if (amount > available) {
-                        JOptionPane.showMessageDialog(this, "Not enough products. Have " + available + ", trying to destroy " + amount);
-                        return;
-                    }
-                    
-                    // Destroy products
-                    int newAmount = available - amount;
-                    if (newAmount > 0) {
-                        customer.inventory.put(product, newAmount);
-                    } else {
-                        customer.inventory.remove(product);
-                    }
-                    
-                    JOptionPane.showMessageDialog(this, "Successfully destroyed " + amount + " " + product + "(s).");
-                    dispose();
+                    // Destroy products; the failure message, or null once destroyed
+                    DomainExecutor.submit(destroyBtn, () -> {
+                        if (customer.removeProduct(product, amount).isOk()) {
+                            return null;
+                        }
+                        return "Not enough products. Have " + customer.inventory.get(product) + ", trying to destroy " + amount;
+                    }, failure -> {
+                        if (failure == null) {
+                            JOptionPane.showMessageDialog(this, "Successfully destroyed " + amount + " " + product + "(s).");
+                            dispose();
+                        } else {
+                            JOptionPane.showMessageDialog(this, failure);
+                        }
+                    });
                     
                 } catch (NumberFormatException ex) {
                     JOptionPane.showMessageDialog(this, "Please enter a valid number for amount.");
@@ -1505,35 +9229,14 @@ class DestroyByProductDialog extends JDialog {
 }
 
 class FactoryPanelHelper {
-    public static void destroyMaterials(FactoryExtended factory, String material, int amount) {
-        int available = factory.materials.getOrDefault(material, 0);
-        if (amount > available) {
-            JOptionPane.showMessageDialog(null, "Not enough materials. Have " + available + ", trying to destroy " + amount);
-            return;
-        }
-        
-        int newAmount = available - amount;
-        if (newAmount > 0) {
-            factory.materials.put(material, newAmount);
-        } else {
-            factory.materials.remove(material);
-        }
-        
-        JOptionPane.showMessageDialog(null, "Successfully destroyed " + amount + " " + material + ".");
+    // Both helpers are headless; callers render the returned TradeResult
+    public static TradeResult destroyMaterials(FactoryExtended factory, String material, int amount) {
+        long start = Metrics.start();
+        return Metrics.record(Metrics.DESTROY_MATERIALS, TradeEngine.destroyMaterials(factory, material, amount), start);
     }
     
-    public static void destroyProducts(FactoryExtended factory, String product, int amount) {
-        InventoryItem item = factory.products.get(product);
-        if (item == null || item.quantity < amount) {
-            JOptionPane.showMessageDialog(null, "Not enough products to destroy.");
-            return;
-        }
-        
-        item.quantity -= amount;
-        if (item.quantity == 0) {
-            factory.products.remove(product);
-        }
-        
-        JOptionPane.showMessageDialog(null, "Successfully destroyed " + amount + " " + product + "(s).");
+    public static TradeResult destroyProducts(FactoryExtended factory, String product, int amount) {
+        long start = Metrics.start();
+        return Metrics.record(Metrics.DESTROY_PRODUCTS, TradeEngine.destroyProducts(factory, product, amount), start);
     }
 }
\ No newline at end of file
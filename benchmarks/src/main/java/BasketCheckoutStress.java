@@ -0,0 +1,117 @@
+import java.util.concurrent.atomic.LongAdder;
+
+// Many threads check out random baskets over a few markets at once, so their lines overlap in
+// every order, while other threads make single purchases against the same stock, which runs out
+// so that many baskets fail part way. Each thread has customers of its own, so after every
+// checkout it checks that the customer got all of the basket and paid its total, or got nothing
+// and paid nothing. StressHarness fails the run if checkouts stop completing, as a lock-order
+// deadlock would make them, and the totals show no stock or money was created or lost. Exits with
+// status 1 on any violation.
+//
+//   java -cp benchmarks/target/benchmarks.jar BasketCheckoutStress [markets] [threads] [seconds]
+public class BasketCheckoutStress {
+    private static final int PRODUCTS = 16;
+    private static final int CUSTOMERS_PER_THREAD = 8;
+    private static final int MAX_LINES = 12;
+    private static final int STOCK = 50_000;
+    private static final long PRICE = 100;
+
+    public static void main(String[] args) throws InterruptedException {
+        int marketCount = StressHarness.intArg(args, 0, 8);
+        int threads = StressHarness.intArg(args, 1, StressHarness.defaultThreads());
+        long seconds = StressHarness.longArg(args, 2, 5);
+
+        String[] products = new String[PRODUCTS];
+        for (int i = 0; i < PRODUCTS; i++) {
+            products[i] = "Basket product " + i;
+        }
+        Market[] markets = new Market[marketCount];
+        for (int i = 0; i < marketCount; i++) {
+            markets[i] = new Market("Market " + i, 0);
+            for (String product : products) {
+                markets[i].stock.set(product, STOCK);
+                markets[i].setPrice(product, PRICE);
+            }
+        }
+        Customer[] customers = new Customer[threads * CUSTOMERS_PER_THREAD];
+        for (int i = 0; i < customers.length; i++) {
+            customers[i] = new Customer("Customer " + i, 1e9);
+        }
+        FactoryExtended[] factories = new FactoryExtended[0];
+        StressHarness.Totals before = new StressHarness.Totals(markets, factories, customers, products);
+
+        LongAdder checkouts = new LongAdder();
+        LongAdder failedCheckouts = new LongAdder();
+        LongAdder linesBought = new LongAdder();
+        LongAdder purchases = new LongAdder();
+        LongAdder violations = new LongAdder();
+        Basket[] baskets = new Basket[threads];
+        for (int t = 0; t < threads; t++) {
+            baskets[t] = new Basket();
+        }
+        StressHarness.run(threads, seconds, (thread, random) -> {
+            Customer customer = customers[thread * CUSTOMERS_PER_THREAD + random.nextInt(CUSTOMERS_PER_THREAD)];
+            if (thread % 4 == 3) {
+                Market market = markets[random.nextInt(marketCount)];
+                if (customer.buyProduct(products[random.nextInt(PRODUCTS)], 1, PRICE, market).isOk()) {
+                    purchases.increment();
+                }
+                return;
+            }
+            Basket basket = baskets[thread];
+            basket.clear();
+            int lines = 2 + random.nextInt(MAX_LINES - 1);
+            for (int i = 0; i < lines; i++) {
+                basket.add(markets[random.nextInt(marketCount)], products[random.nextInt(PRODUCTS)],
+                        1 + random.nextInt(8), PRICE);
+            }
+            long balanceBefore = customer.balance.get();
+            long heldBefore = units(customer, basket);
+            TradeResult result = customer.checkout(basket);
+            long bought = units(customer, basket) - heldBefore;
+            long paid = balanceBefore - customer.balance.get();
+            if (result.isOk()) {
+                checkouts.increment();
+                linesBought.add(lines);
+            } else {
+                failedCheckouts.increment();
+            }
+            if (result.isOk() ? bought != ordered(basket) || paid != basket.total() : bought != 0 || paid != 0) {
+                violations.increment();
+            }
+        }, null);
+
+        StressHarness.Totals after = new StressHarness.Totals(markets, factories, customers, products);
+
+        System.out.printf("%d markets, %d threads, %d s: %d baskets checked out (%.1f lines each), %d rejected, "
+                        + "%d single purchases%n",
+                marketCount, threads, seconds, checkouts.sum(), (double) linesBought.sum() / Math.max(1, checkouts.sum()),
+                failedCheckouts.sum(), purchases.sum());
+        boolean conserved = after.conserves(before);
+        System.out.println("Checkouts that were not all or nothing " + violations.sum());
+        StressHarness.verdict(conserved && violations.sum() == 0,
+                "stock or money not conserved, or a checkout was not all or nothing");
+    }
+
+    // Units the customer holds of every product in the basket, counted once per line
+    private static long units(Customer customer, Basket basket) {
+        long units = 0;
+        for (int i = 0; i < basket.lines(); i++) {
+            units += customer.inventory.get(Symbols.name(basket.ids[i]));
+        }
+        return units;
+    }
+
+    // Units the basket asks for, weighted like units() so a product on several lines counts for each
+    private static long ordered(Basket basket) {
+        long units = 0;
+        for (int i = 0; i < basket.lines(); i++) {
+            for (int j = 0; j < basket.lines(); j++) {
+                if (basket.ids[i] == basket.ids[j]) {
+                    units += basket.amounts[j];
+                }
+            }
+        }
+        return units;
+    }
+}
@@ -0,0 +1,56 @@
+// Shared fixtures for the workloads. Quantities and balances are large enough that a measurement
+// run never exhausts stock or money, so every operation takes the successful path.
+final class BenchEconomy {
+    static final int PRODUCTS = 64;
+    static final int PRODUCTS_PER_HOLDER = 4;
+    static final int PLENTY = 1 << 30;
+    static final double RICH = 1e15;
+
+    static final String[] PRODUCT_NAMES = new String[PRODUCTS];
+    static {
+        for (int i = 0; i < PRODUCTS; i++) {
+            PRODUCT_NAMES[i] = "Product " + i;
+        }
+    }
+
+    private BenchEconomy() {
+    }
+
+    // Product an entity trades in; entity i holds products i .. i + PRODUCTS_PER_HOLDER - 1
+    static String productFor(int entity) {
+        return PRODUCT_NAMES[entity % PRODUCTS];
+    }
+
+    static Market[] stockedMarkets(int count) {
+        Market[] markets = new Market[count];
+        for (int i = 0; i < count; i++) {
+            Market m = new Market("Market " + i, RICH);
+            for (int k = 0; k < PRODUCTS_PER_HOLDER; k++) {
+                String product = productFor(i + k);
+                m.stock.set(product, PLENTY);
+                m.setPrice(product, 100);
+            }
+            markets[i] = m;
+        }
+        return markets;
+    }
+
+    static FactoryExtended[] stockedFactories(int count) {
+        FactoryExtended[] factories = new FactoryExtended[count];
+        for (int i = 0; i < count; i++) {
+            FactoryExtended f = new FactoryExtended("Factory " + i, RICH);
+            for (int k = 0; k < PRODUCTS_PER_HOLDER; k++) {
+                String product = productFor(i + k);
+                f.addDesign(new ProductDesign(product, 1.0));
+                f.addProduct(product, PLENTY);
+            }
+            factories[i] = f;
+        }
+        return factories;
+    }
+
+    // Advances a round-robin cursor over count entities
+    static int next(int cursor, int count) {
+        return cursor + 1 == count ? 0 : cursor + 1;
+    }
+}
@@ -0,0 +1,83 @@
+import java.util.concurrent.atomic.LongAdder;
+
+// Hammers Customer.buyProduct and Market.buyProduct from many threads against a handful of shared
+// markets and factories, with bids resting, filling and being cancelled among them, then checks
+// that no unit of stock and no unit of money was created or lost; money still escrowed for resting
+// bids counts. Exits with status 1 if conservation is violated.
+//
+//   java -cp benchmarks/target/benchmarks.jar ConcurrentPurchaseStress [threads] [seconds]
+public class ConcurrentPurchaseStress {
+    private static final int CUSTOMERS = 10_000;
+    private static final int MARKETS = 4;
+    private static final int FACTORIES = 4;
+    private static final int PRODUCTS = 16;
+    private static final int INITIAL_STOCK = 1_000_000;
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = StressHarness.intArg(args, 0, StressHarness.defaultThreads());
+        long seconds = StressHarness.longArg(args, 1, 5);
+
+        String[] products = new String[PRODUCTS];
+        for (int i = 0; i < PRODUCTS; i++) {
+            products[i] = "Stress product " + i;
+        }
+
+        Market[] markets = new Market[MARKETS];
+        for (int i = 0; i < MARKETS; i++) {
+            markets[i] = new Market("Market " + i, 1_000_000);
+            // Half of the catalog starts out missing, so the first restock of a product inserts into a stripe
+            for (int p = 0; p < PRODUCTS / 2; p++) {
+                markets[i].stock.set(products[p], INITIAL_STOCK);
+            }
+            // Priced within the bid limits, so some bids fill at once and restocks fill others
+            for (String product : products) {
+                markets[i].setPrice(product, 300);
+            }
+        }
+        FactoryExtended[] factories = new FactoryExtended[FACTORIES];
+        for (int i = 0; i < FACTORIES; i++) {
+            factories[i] = new FactoryExtended("Factory " + i, 0);
+            for (String product : products) {
+                factories[i].addProduct(product, INITIAL_STOCK);
+            }
+        }
+        Customer[] customers = new Customer[CUSTOMERS];
+        for (int i = 0; i < CUSTOMERS; i++) {
+            customers[i] = new Customer("Customer " + i, 10_000);
+        }
+
+        StressHarness.Totals before = new StressHarness.Totals(markets, factories, customers, products);
+
+        LongAdder purchases = new LongAdder();
+        LongAdder restocks = new LongAdder();
+        LongAdder rejected = new LongAdder();
+        LongAdder bids = new LongAdder();
+        StressHarness.run(threads, seconds, (thread, random) -> {
+            String product = products[random.nextInt(PRODUCTS)];
+            Market market = markets[random.nextInt(MARKETS)];
+            TradeResult result;
+            int roll = random.nextInt(40);
+            if (roll == 0) {
+                customers[random.nextInt(CUSTOMERS)].cancelBids(product, market);
+            } else if (roll < 3) {
+                // Limits either side of the price, so some bids fill at once and the rest wait
+                customers[random.nextInt(CUSTOMERS)].placeBid(product, 1 + random.nextInt(3), 250 + random.nextInt(100), market);
+                bids.increment();
+            } else if (roll < 7) {
+                result = market.buyProduct(product, 1 + random.nextInt(50), 200, factories[random.nextInt(FACTORIES)]);
+                (result.isOk() ? restocks : rejected).increment();
+            } else {
+                Customer customer = customers[random.nextInt(CUSTOMERS)];
+                result = customer.buyProduct(product, 1 + random.nextInt(3), 300, market);
+                (result.isOk() ? purchases : rejected).increment();
+            }
+        }, null);
+
+        StressHarness.Totals after = new StressHarness.Totals(markets, factories, customers, products);
+
+        System.out.printf("%d threads, %d s: %d purchases, %d restocks, %d bids, %d rejected (%.0f trades/s)%n",
+                threads, seconds, purchases.sum(), restocks.sum(), bids.sum(), rejected.sum(),
+                (purchases.sum() + restocks.sum() + bids.sum() + rejected.sum()) / (double) seconds);
+        StressHarness.verdict(after.conserves(before), "stock or money was not conserved");
+    }
+}
@@ -0,0 +1,24 @@
+import supplychain.bench.Workload;
+
+// Customer i buys one unit from market i
+public class CustomerBuyWorkload implements Workload {
+    private Customer[] customers;
+    private Market[] markets;
+    private int cursor;
+
+    @Override
+    public void setUp(int entities) {
+        markets = BenchEconomy.stockedMarkets(entities);
+        customers = new Customer[entities];
+        for (int i = 0; i < entities; i++) {
+            customers[i] = new Customer("Customer " + i, BenchEconomy.RICH);
+        }
+    }
+
+    @Override
+    public long run() {
+        int i = cursor;
+        cursor = BenchEconomy.next(i, customers.length);
+        return customers[i].buyProduct(BenchEconomy.productFor(i), 1, 100, markets[i]).ordinal();
+    }
+}
@@ -0,0 +1,206 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+// Checks DemandRouter against a greedy reference on random small economies, where taking the
+// cheapest next unit is optimal because every restock costs its factory's price plus its market's,
+// then times routing a large economy: a full solve, ticks where every product changed, and ticks
+// where only one product did. Last, a routed Simulation runs over markets that start with no prices
+// and little money: it must price them, restock them, sell to customers along the plan, and never
+// plan a restock a market cannot pay for at the factory markup. Exits with status 1 if any route's
+// cost or units served differ from the reference, its restock lines do not add up to its restocked
+// units, or the simulation fails any of those.
+//
+//   java -cp benchmarks/target/benchmarks.jar DemandRoutingCheck [markets] [ticks]
+public class DemandRoutingCheck {
+    private static final int PRODUCTS = 8;
+    private static final int FACTORIES = 16;
+
+    public static void main(String[] args) {
+        int marketCount = StressHarness.intArg(args, 0, 10_000);
+        int ticks = StressHarness.intArg(args, 1, 50);
+
+        int mismatches = 0;
+        Random random = new Random(42);
+        for (int trial = 0; trial < 500; trial++) {
+            mismatches += checkSmall(random, trial) ? 0 : 1;
+        }
+        System.out.println("500 random economies checked against the greedy reference, " + mismatches + " mismatched");
+
+        String[] names = new String[PRODUCTS];
+        int[] productIds = new int[PRODUCTS];
+        for (int p = 0; p < PRODUCTS; p++) {
+            names[p] = "Routed product " + p;
+            productIds[p] = Symbols.id(names[p]);
+        }
+        List<FactoryExtended> factories = new ArrayList<>();
+        for (int i = 0; i < FACTORIES; i++) {
+            FactoryExtended f = new FactoryExtended("Factory " + i, 0);
+            for (String name : names) {
+                f.addDesign(new ProductDesign(name, 1.0 + random.nextInt(20)));
+                f.addProduct(name, 5_000 + random.nextInt(5_000));
+            }
+            factories.add(f);
+        }
+        List<Market> markets = new ArrayList<>();
+        for (int i = 0; i < marketCount; i++) {
+            Market m = new Market("Market " + i, 1e6);
+            for (String name : names) {
+                m.stock.set(name, random.nextInt(20));
+                m.setPrice(name, 2_500 + 100 * random.nextInt(30));
+                m.setReorderLevel(name, 5, 40);
+            }
+            markets.add(m);
+        }
+        int[] demand = new int[PRODUCTS];
+        Arrays.fill(demand, marketCount * 2);
+
+        DemandRouter router = new DemandRouter(factories, markets, ForkJoinPool.commonPool());
+        long start = System.nanoTime();
+        DemandRouter.Route[] routes = router.route(productIds, demand);
+        long full = System.nanoTime() - start;
+        long served = 0;
+        for (DemandRouter.Route route : routes) {
+            served += route.served;
+        }
+
+        // Each tick a few customers buy every product, so every network changes
+        long changedNanos = 0;
+        for (int t = 0; t < ticks; t++) {
+            for (String name : names) {
+                Market m = markets.get(random.nextInt(marketCount));
+                m.stock.add(name, m.stock.get(name) > 0 ? -1 : 1);
+            }
+            start = System.nanoTime();
+            router.route(productIds, demand);
+            changedNanos += System.nanoTime() - start;
+        }
+        // Each tick only one product moves; the other networks are read and reused
+        long oneNanos = 0;
+        long reusedBefore = router.reused();
+        for (int t = 0; t < ticks; t++) {
+            Market m = markets.get(random.nextInt(marketCount));
+            m.setPrice(names[0], m.getPrice(names[0]) + 1);
+            start = System.nanoTime();
+            router.route(productIds, demand);
+            oneNanos += System.nanoTime() - start;
+        }
+
+        System.out.printf("%d markets, %d factories, %d products: full solve %.1f ms, %d of %d units served%n",
+                marketCount, FACTORIES, PRODUCTS, full / 1e6, served, (long) PRODUCTS * demand[0]);
+        System.out.printf("every product changed: %.2f ms per tick; one product changed: %.2f ms per tick, %d routes reused%n",
+                changedNanos / 1e6 / ticks, oneNanos / 1e6 / ticks, router.reused() - reusedBefore);
+
+        Simulation simulation = routedSimulation();
+        long restocked = simulation.restocked.sum();
+        long missed = simulation.missedRestocks.sum();
+        long sold = simulation.sold.sum();
+        System.out.println("Routed simulation over unpriced markets: " + restocked + " units restocked, "
+                + missed + " planned but not paid for, " + sold + " sold");
+        StressHarness.verdict(mismatches == 0 && restocked > 0 && missed == 0 && sold > 0,
+                mismatches + " economies routed differently from the reference, or the routed simulation "
+                        + "restocked or sold nothing or planned restocks it could not pay for");
+    }
+
+    // A few routed ticks over markets that start empty and unpriced, with too little money to fill
+    // their room, so the plan's restocks are capped by what they can pay
+    private static Simulation routedSimulation() {
+        List<FactoryExtended> factories = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            FactoryExtended f = new FactoryExtended("Simulated factory " + i, 0);
+            f.addDesign(new ProductDesign("Simulated product", 2.0 + i));
+            f.addProduct("Simulated product", 500);
+            factories.add(f);
+        }
+        List<Market> markets = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            markets.add(new Market("Simulated market " + i, 20));
+        }
+        List<Customer> customers = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            customers.add(new Customer("Simulated customer " + i, 1e3));
+        }
+        Simulation simulation = new Simulation(new ArrayList<>(), factories, markets, customers, ForkJoinPool.commonPool());
+        simulation.router = new DemandRouter(factories, markets, ForkJoinPool.commonPool());
+        simulation.run(5);
+        return simulation;
+    }
+
+    // Routes one random economy and compares it with taking the cheapest remaining unit each time
+    private static boolean checkSmall(Random random, int trial) {
+        String name = "Checked product " + trial;
+        int productId = Symbols.id(name);
+        List<FactoryExtended> factories = new ArrayList<>();
+        for (int i = 0, n = 1 + random.nextInt(5); i < n; i++) {
+            FactoryExtended f = new FactoryExtended("Small factory " + i, 0);
+            f.addDesign(new ProductDesign(name, random.nextInt(10)));
+            f.addProduct(name, random.nextInt(60));
+            factories.add(f);
+        }
+        List<Market> markets = new ArrayList<>();
+        for (int i = 0, n = 1 + random.nextInt(12); i < n; i++) {
+            Market m = new Market("Small market " + i, random.nextInt(5_000));
+            m.stock.set(name, random.nextInt(15));
+            m.setPrice(name, 1 + random.nextInt(1_000));
+            if (random.nextBoolean()) {
+                m.setReorderLevel(name, 0, 1 + random.nextInt(40));
+            }
+            markets.add(m);
+        }
+        int demand = 1 + random.nextInt(200);
+        DemandRouter.Route route = new DemandRouter(factories, markets, ForkJoinPool.commonPool())
+                .route(new int[] {productId}, new int[] {demand})[0];
+
+        // Greedy over the same inputs: the cheaper of the cheapest shelf unit and the cheapest
+        // factory's unit restocked into the cheapest market with room
+        int[] shelf = route.stock.clone();
+        int[] room = route.room.clone();
+        int[] supply = route.supply.clone();
+        long cost = 0;
+        int served = 0;
+        while (served < demand) {
+            int bestShelf = -1;
+            int bestRoom = -1;
+            int bestFactory = -1;
+            for (int m = 0; m < shelf.length; m++) {
+                if (shelf[m] > 0 && (bestShelf < 0 || route.prices[m] < route.prices[bestShelf])) {
+                    bestShelf = m;
+                }
+                if (room[m] > 0 && (bestRoom < 0 || route.prices[m] < route.prices[bestRoom])) {
+                    bestRoom = m;
+                }
+            }
+            for (int f = 0; f < supply.length; f++) {
+                if (supply[f] > 0 && (bestFactory < 0 || route.costs[f] < route.costs[bestFactory])) {
+                    bestFactory = f;
+                }
+            }
+            long restockCost = bestRoom >= 0 && bestFactory >= 0 ? route.prices[bestRoom] + route.costs[bestFactory] : Long.MAX_VALUE;
+            if (bestShelf >= 0 && route.prices[bestShelf] <= restockCost) {
+                shelf[bestShelf]--;
+                cost += route.prices[bestShelf];
+            } else if (restockCost != Long.MAX_VALUE) {
+                room[bestRoom]--;
+                supply[bestFactory]--;
+                cost += restockCost;
+            } else {
+                break;
+            }
+            served++;
+        }
+
+        int lineUnits = 0;
+        for (int i = 0; i < route.lines; i++) {
+            lineUnits += route.lineUnits[i];
+        }
+        int restocked = Arrays.stream(route.restocked).sum();
+        boolean ok = route.served == served && route.cost == cost && lineUnits == restocked;
+        if (!ok) {
+            System.out.println("Economy " + trial + ": router served " + route.served + " for " + route.cost
+                    + ", reference " + served + " for " + cost + ", restock lines " + lineUnits + " of " + restocked);
+        }
+        return ok;
+    }
+}
@@ -0,0 +1,101 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.LongAdder;
+
+// Runs synchronously committed purchases from many threads against a fresh journal, reporting the
+// throughput and mean latency that group commit gives, while the main thread checkpoints every
+// CHECKPOINT_MILLIS until the last second. Then loads the last snapshot and replays the journal
+// into empty lists and checks every customer and market came back with the same balance and stock,
+// which fails if that checkpoint split a trade between the snapshot and the log. Exits with status 1
+// on a mismatch.
+//
+//   java -cp benchmarks/target/benchmarks.jar JournalStress [threads] [seconds] [journal file]
+public class JournalStress {
+    private static final int CUSTOMERS = 10_000;
+    private static final int MARKETS = 4;
+    private static final int PRODUCTS = 16;
+    private static final long CHECKPOINT_MILLIS = 50;
+
+    public static void main(String[] args) throws Exception {
+        int threads = StressHarness.intArg(args, 0, StressHarness.defaultThreads());
+        long seconds = StressHarness.longArg(args, 1, 5);
+        Path path = args.length > 2 ? Path.of(args[2]) : Files.createTempFile("journal-stress", ".journal");
+        Path snapshot = path.resolveSibling(path.getFileName() + ".snapshot");
+        Files.deleteIfExists(path);
+        Files.deleteIfExists(snapshot);
+
+        Journal journal = Journal.open(path, snapshot, true);
+        String[] products = new String[PRODUCTS];
+        for (int i = 0; i < PRODUCTS; i++) {
+            products[i] = "Journal product " + i;
+        }
+        Market[] markets = new Market[MARKETS];
+        for (int i = 0; i < MARKETS; i++) {
+            markets[i] = new Market("Market " + i, 0);
+            for (String product : products) {
+                markets[i].stock.set(product, 1_000_000);
+                markets[i].setPrice(product, 150);
+            }
+            SupplyChainSystemGUI.markets.add(markets[i]);
+        }
+        Customer[] customers = new Customer[CUSTOMERS];
+        for (int i = 0; i < CUSTOMERS; i++) {
+            customers[i] = new Customer("Customer " + i, 1_000_000);
+            SupplyChainSystemGUI.customers.add(customers[i]);
+        }
+
+        LongAdder trades = new LongAdder();
+        LongAdder latencyNanos = new LongAdder();
+        long[] checkpoints = new long[1];
+        long lastCheckpoint = System.nanoTime() + (seconds - 1) * 1_000_000_000L;
+        StressHarness.run(threads, seconds, (thread, random) -> {
+            long begin = System.nanoTime();
+            Customer customer = customers[random.nextInt(CUSTOMERS)];
+            customer.buyProduct(products[random.nextInt(PRODUCTS)], 1, 150, markets[random.nextInt(MARKETS)]);
+            latencyNanos.add(System.nanoTime() - begin);
+            trades.increment();
+        }, () -> {
+            try {
+                Thread.sleep(CHECKPOINT_MILLIS);
+                if (System.nanoTime() < lastCheckpoint) {
+                    journal.checkpoint();
+                    checkpoints[0]++;
+                }
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        journal.close();
+
+        System.out.printf("%d threads, %d s: %d durable trades (%.0f trades/s, mean latency %.1f us), %d checkpoints%n",
+                threads, seconds, trades.sum(), trades.sum() / (double) seconds,
+                latencyNanos.sum() / 1000.0 / Math.max(1, trades.sum()), checkpoints[0]);
+
+        SupplyChainSystemGUI.markets.clear();
+        SupplyChainSystemGUI.customers.clear();
+        long begin = System.nanoTime();
+        Journal replayed = Journal.open(path, snapshot, false);
+        System.out.printf("Loaded the snapshot and replayed %d records in %.0f ms%n", replayed.replayedRecords(),
+                (System.nanoTime() - begin) / 1e6);
+        replayed.close();
+        Files.deleteIfExists(path);
+        Files.deleteIfExists(snapshot);
+
+        boolean ok = SupplyChainSystemGUI.customers.size() == CUSTOMERS && SupplyChainSystemGUI.markets.size() == MARKETS;
+        for (int i = 0; ok && i < CUSTOMERS; i++) {
+            Customer live = customers[i];
+            Customer back = SupplyChainSystemGUI.customers.get(i);
+            ok = live.balance.get() == back.balance.get() && live.inventory.size() == back.inventory.size();
+            for (String product : products) {
+                ok &= live.inventory.get(product) == back.inventory.get(product);
+            }
+        }
+        for (int i = 0; ok && i < MARKETS; i++) {
+            ok = markets[i].balance.get() == SupplyChainSystemGUI.markets.get(i).balance.get();
+            for (String product : products) {
+                ok &= markets[i].stock.get(product) == SupplyChainSystemGUI.markets.get(i).stock.get(product);
+            }
+        }
+        StressHarness.verdict(ok, "replayed state differs from the live state");
+    }
+}
@@ -0,0 +1,18 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// CustomerBuyWorkload with the journal on and asynchronous commits: the cost a trade pays to stage
+// and append its record, without waiting for the flush.
+public class JournaledBuyWorkload extends CustomerBuyWorkload {
+    @Override
+    public void setUp(int entities) {
+        try {
+            Path path = Files.createTempFile("journaled-buy", ".journal");
+            path.toFile().deleteOnExit();
+            Journal.open(path, false);
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+        super.setUp(entities);
+    }
+}
@@ -0,0 +1,32 @@
+import supplychain.bench.Workload;
+
+// Factory i manufactures one unit of a two-material design
+public class ManufactureWorkload implements Workload {
+    private FactoryExtended[] factories;
+    private ProductDesign[] designs;
+    private int cursor;
+
+    @Override
+    public void setUp(int entities) {
+        factories = new FactoryExtended[entities];
+        designs = new ProductDesign[entities];
+        for (int i = 0; i < entities; i++) {
+            FactoryExtended f = new FactoryExtended("Factory " + i, BenchEconomy.RICH);
+            ProductDesign design = new ProductDesign(BenchEconomy.productFor(i), 1.0);
+            design.addMaterial(new InputMaterial("Wood", 2));
+            design.addMaterial(new InputMaterial("Iron", 1));
+            f.addDesign(design);
+            f.addMaterial("Wood", BenchEconomy.PLENTY);
+            f.addMaterial("Iron", BenchEconomy.PLENTY);
+            factories[i] = f;
+            designs[i] = design;
+        }
+    }
+
+    @Override
+    public long run() {
+        int i = cursor;
+        cursor = BenchEconomy.next(i, factories.length);
+        return factories[i].manufacture(designs[i], 1).ordinal();
+    }
+}
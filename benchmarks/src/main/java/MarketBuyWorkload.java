@@ -0,0 +1,21 @@
+import supplychain.bench.Workload;
+
+// Market i restocks one unit from factory i
+public class MarketBuyWorkload implements Workload {
+    private Market[] markets;
+    private FactoryExtended[] factories;
+    private int cursor;
+
+    @Override
+    public void setUp(int entities) {
+        factories = BenchEconomy.stockedFactories(entities);
+        markets = BenchEconomy.stockedMarkets(entities);
+    }
+
+    @Override
+    public long run() {
+        int i = cursor;
+        cursor = BenchEconomy.next(i, markets.length);
+        return markets[i].buyProduct(BenchEconomy.productFor(i), 1, 100, factories[i]).ordinal();
+    }
+}
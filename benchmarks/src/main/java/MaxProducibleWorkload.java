@@ -0,0 +1,34 @@
+import supplychain.bench.Workload;
+
+// Planner query: how many units of a three-material design factory i can build right now
+public class MaxProducibleWorkload implements Workload {
+    private FactoryExtended[] factories;
+    private ProductDesign[] designs;
+    private int cursor;
+
+    @Override
+    public void setUp(int entities) {
+        factories = new FactoryExtended[entities];
+        designs = new ProductDesign[entities];
+        for (int i = 0; i < entities; i++) {
+            FactoryExtended f = new FactoryExtended("Factory " + i, BenchEconomy.RICH);
+            ProductDesign design = new ProductDesign(BenchEconomy.productFor(i), 1.0);
+            design.addMaterial(new InputMaterial("Wood", 4));
+            design.addMaterial(new InputMaterial("Iron", 2));
+            design.addMaterial(new InputMaterial("Plastic", 1));
+            f.addDesign(design);
+            f.addMaterial("Wood", 1000 + i);
+            f.addMaterial("Iron", 700);
+            f.addMaterial("Plastic", 900);
+            factories[i] = f;
+            designs[i] = design;
+        }
+    }
+
+    @Override
+    public long run() {
+        int i = cursor;
+        cursor = BenchEconomy.next(i, factories.length);
+        return factories[i].maxProducible(designs[i]);
+    }
+}
@@ -0,0 +1,41 @@
+import supplychain.bench.Workload;
+
+// Factory i manufactures one unit of a three-level design (device <- module <- board <- materials),
+// which exercises the memoized bill-of-materials explosion
+public class NestedManufactureWorkload implements Workload {
+    private FactoryExtended[] factories;
+    private ProductDesign[] designs;
+    private int cursor;
+
+    @Override
+    public void setUp(int entities) {
+        ProductDesign board = new ProductDesign("Board", 1.0);
+        board.addMaterial(new InputMaterial("Copper", 2));
+        board.addMaterial(new InputMaterial("Plastic", 1));
+        ProductDesign module = new ProductDesign("Module", 1.0);
+        module.addMaterial(new InputMaterial(board, 2));
+        module.addMaterial(new InputMaterial("Gold", 1));
+
+        factories = new FactoryExtended[entities];
+        designs = new ProductDesign[entities];
+        for (int i = 0; i < entities; i++) {
+            FactoryExtended f = new FactoryExtended("Factory " + i, BenchEconomy.RICH);
+            ProductDesign device = new ProductDesign(BenchEconomy.productFor(i), 1.0);
+            device.addMaterial(new InputMaterial(module, 2));
+            device.addMaterial(new InputMaterial("Plastic", 1));
+            f.addDesign(device);
+            f.addMaterial("Copper", BenchEconomy.PLENTY);
+            f.addMaterial("Plastic", BenchEconomy.PLENTY);
+            f.addMaterial("Gold", BenchEconomy.PLENTY);
+            factories[i] = f;
+            designs[i] = device;
+        }
+    }
+
+    @Override
+    public long run() {
+        int i = cursor;
+        cursor = BenchEconomy.next(i, factories.length);
+        return factories[i].manufacture(designs[i], 1).ordinal();
+    }
+}
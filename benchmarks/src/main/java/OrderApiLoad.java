@@ -0,0 +1,167 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+
+// Holds many keep-alive connections open against an in-process OrderApi and keeps one purchase in
+// flight on each, from a single selector thread, then reports requests per second and the status
+// codes seen. With "journal" every purchase also waits for its record to be synced, as under
+// OrderApi.main, in a journal in a temporary directory. Exits with status 1 if a connection fails
+// or any answer is not 200 or 409.
+//
+//   java -cp benchmarks/target/benchmarks.jar OrderApiLoad [connections] [seconds] [journal]
+//
+// Both ends live in this process, so each connection costs two file descriptors.
+public class OrderApiLoad {
+    private static final int MARKETS = 64;
+    private static final int CUSTOMERS = 100_000;
+
+    public static void main(String[] args) throws IOException {
+        int connections = StressHarness.intArg(args, 0, 5_000);
+        long seconds = StressHarness.longArg(args, 1, 10);
+        boolean journaled = args.length > 2 && args[2].equals("journal");
+
+        if (journaled) {
+            Path dir = Files.createTempDirectory("order-api-load");
+            Journal.open(dir.resolve("load.journal"), dir.resolve("load.snapshot"), true);
+        }
+
+        for (Market m : BenchEconomy.stockedMarkets(MARKETS)) {
+            SupplyChainSystemGUI.markets.add(m);
+        }
+        for (int i = 0; i < CUSTOMERS; i++) {
+            SupplyChainSystemGUI.customers.add(new Customer("Customer " + i, BenchEconomy.RICH));
+        }
+        OrderApi api = OrderApi.start(0);
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", api.port());
+
+        Selector selector = Selector.open();
+        Connection[] open = new Connection[connections];
+        long connectStart = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            SocketChannel channel = SocketChannel.open();
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.configureBlocking(false);
+            channel.connect(address);
+            open[i] = new Connection(i, channel);
+            channel.register(selector, SelectionKey.OP_CONNECT, open[i]);
+        }
+
+        long[] statuses = new long[600];
+        long completed = 0;
+        long failures = 0;
+        long connected = 0;
+        long measureStart = 0;
+        long deadline = Long.MAX_VALUE;
+        while (System.nanoTime() < deadline) {
+            selector.select(100);
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                Connection c = (Connection) key.attachment();
+                try {
+                    if (key.isConnectable()) {
+                        c.channel.finishConnect();
+                        if (++connected == connections) {
+                            System.out.printf("%d connections open in %d ms%n", connections,
+                                    (System.nanoTime() - connectStart) / 1_000_000);
+                            measureStart = System.nanoTime();
+                            deadline = measureStart + seconds * 1_000_000_000L;
+                        }
+                        c.send(key);
+                    } else if (key.isWritable()) {
+                        c.flush(key);
+                    } else if (key.isReadable()) {
+                        int status = c.read();
+                        if (status < 0) {
+                            failures++;
+                            key.cancel();
+                            c.channel.close();
+                        } else if (status > 0) {
+                            if (measureStart > 0) {
+                                statuses[Math.min(status, statuses.length - 1)]++;
+                                completed++;
+                            }
+                            c.send(key);
+                        }
+                    }
+                } catch (IOException e) {
+                    failures++;
+                    key.cancel();
+                    c.channel.close();
+                }
+            }
+        }
+        double elapsed = (System.nanoTime() - measureStart) / 1e9;
+        api.stop();
+
+        System.out.printf("%d connections, %d s%s: %d requests (%.0f requests/s), %d connections failed%n",
+                connections, seconds, journaled ? ", synced journal" : "", completed, completed / elapsed, failures);
+        boolean ok = failures == 0;
+        for (int status = 0; status < statuses.length; status++) {
+            if (statuses[status] > 0) {
+                System.out.println("  " + status + ": " + statuses[status]);
+                ok &= status == 200 || status == 409;
+            }
+        }
+        StressHarness.verdict(ok, "a connection failed or an answer was not 200 or 409");
+    }
+
+    // One keep-alive connection buying one unit per request, from its own customer and market
+    private static final class Connection {
+        final SocketChannel channel;
+        final ByteBuffer request;
+        final ByteBuffer response = ByteBuffer.allocate(4096);
+
+        Connection(int index, SocketChannel channel) {
+            this.channel = channel;
+            int market = index % MARKETS;
+            String query = "customer=Customer+" + (index % CUSTOMERS) + "&market=Market+" + market
+                    + "&product=" + BenchEconomy.productFor(market).replace(' ', '+') + "&amount=1";
+            byte[] bytes = ("POST /orders/buy?" + query + " HTTP/1.1\r\nHost: localhost\r\nContent-Length: 0\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII);
+            request = ByteBuffer.wrap(bytes);
+        }
+
+        void send(SelectionKey key) throws IOException {
+            request.rewind();
+            flush(key);
+        }
+
+        void flush(SelectionKey key) throws IOException {
+            channel.write(request);
+            key.interestOps(request.hasRemaining() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        // The status once a whole response has arrived, 0 while it is partial, -1 if the server closed
+        int read() throws IOException {
+            if (channel.read(response) < 0) {
+                return -1;
+            }
+            String text = new String(response.array(), 0, response.position(), StandardCharsets.US_ASCII);
+            int headerEnd = text.indexOf("\r\n\r\n");
+            if (headerEnd < 0) {
+                return 0;
+            }
+            int length = 0;
+            for (String line : text.substring(0, headerEnd).split("\r\n")) {
+                if (line.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                    length = Integer.parseInt(line.substring(15).trim());
+                }
+            }
+            if (response.position() < headerEnd + 4 + length) {
+                return 0;
+            }
+            response.clear();
+            return Integer.parseInt(text.substring(9, 12));
+        }
+    }
+}
@@ -0,0 +1,43 @@
+import supplychain.bench.Workload;
+
+// Order events against one market/product book holding `entities` resting bids: each run cancels
+// one bid and posts its replacement, and every eighth run also sells a few units into the top of
+// the book, so the depth stays roughly constant.
+public class OrderBookWorkload implements Workload, FillSink {
+    private static final int LEVELS = 64;
+
+    private final OrderBook book = new OrderBook();
+    private final Object owner = new Object();
+    private long[] orderIds;
+    private int cursor;
+    private long filled;
+
+    @Override
+    public void setUp(int entities) {
+        orderIds = new long[entities];
+        for (int i = 0; i < entities; i++) {
+            orderIds[i] = book.bid(owner, 1 + i % 5, priceFor(i));
+        }
+    }
+
+    @Override
+    public long run() {
+        int i = cursor;
+        cursor = BenchEconomy.next(i, orderIds.length);
+        book.cancel(orderIds[i]);
+        orderIds[i] = book.bid(owner, 1 + i % 5, priceFor(i * 31 + 7));
+        if ((i & 7) == 0) {
+            book.fill(3, 1, this);
+        }
+        return filled;
+    }
+
+    @Override
+    public void onFill(Object owner, int quantity, long price) {
+        filled += quantity;
+    }
+
+    private static long priceFor(int i) {
+        return 1000 + (i & (LEVELS - 1)) * 5;
+    }
+}
@@ -0,0 +1,27 @@
+import java.util.List;
+
+import supplychain.bench.Workload;
+
+// What ShopDialog does when it opens: lists the catalog's products and loads the first page of
+// offers for one of them
+public class ProductDiscoveryWorkload implements Workload {
+    private int[] productIds;
+    private int cursor;
+
+    @Override
+    public void setUp(int entities) {
+        BenchEconomy.stockedMarkets(entities);
+        List<String> products = Catalog.products();
+        productIds = new int[products.size()];
+        for (int i = 0; i < productIds.length; i++) {
+            productIds[i] = Symbols.find(products.get(i));
+        }
+    }
+
+    @Override
+    public long run() {
+        int i = cursor;
+        cursor = BenchEconomy.next(i, productIds.length);
+        return Catalog.products().size() + Catalog.offers(productIds[i], 0, ShopDialog.OFFER_PAGE).size();
+    }
+}
@@ -0,0 +1,121 @@
+import java.util.ArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Several planner threads queue tens of thousands of manufacturing jobs across thousands of
+// factories at once, then production ticks drain them on the common pool. Checks that every unit
+// was built exactly once from the right materials, that no factory ever built more than its
+// capacity in a tick, and that at each factory no job finished after a lower-priority one. Exits
+// with status 1 on any violation.
+//
+//   java -cp benchmarks/target/benchmarks.jar ProductionQueueStress [factories] [jobs] [planners]
+public class ProductionQueueStress {
+    private static final int CAPACITY = 500;
+    private static final int STEEL_PER_UNIT = 2;
+    private static final int PRIORITIES = 4;
+
+    public static void main(String[] args) throws InterruptedException {
+        int factoryCount = StressHarness.intArg(args, 0, 2_000);
+        int jobCount = StressHarness.intArg(args, 1, 50_000);
+        int planners = StressHarness.intArg(args, 2, 4);
+
+        ProductDesign[] designs = new ProductDesign[4];
+        for (int i = 0; i < designs.length; i++) {
+            designs[i] = new ProductDesign("Queued widget " + i, 1.0);
+            designs[i].addMaterial(new InputMaterial("Queue steel", STEEL_PER_UNIT));
+        }
+        FactoryExtended[] factories = new FactoryExtended[factoryCount];
+        for (int i = 0; i < factoryCount; i++) {
+            factories[i] = new FactoryExtended("Factory " + i, 0);
+            for (ProductDesign design : designs) {
+                factories[i].addDesign(design);
+            }
+            factories[i].addMaterial("Queue steel", 1 << 28);
+            factories[i].jobs.capacityPerTick = CAPACITY;
+        }
+
+        ArrayList<ManufacturingJob>[] queued = new ArrayList[planners];
+        for (int t = 0; t < planners; t++) {
+            queued[t] = new ArrayList<>();
+        }
+        long enqueueStart = System.nanoTime();
+        StressHarness.runOnce(planners, t -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int count = jobCount / planners + (t < jobCount % planners ? 1 : 0);
+            for (int i = 0; i < count; i++) {
+                queued[t].add(ProductionScheduler.enqueue(factories[random.nextInt(factoryCount)],
+                        designs[random.nextInt(designs.length)], 1 + random.nextInt(200), random.nextInt(PRIORITIES)));
+            }
+        });
+        long enqueueNanos = System.nanoTime() - enqueueStart;
+        ArrayList<ManufacturingJob> jobs = new ArrayList<>();
+        for (ArrayList<ManufacturingJob> mine : queued) {
+            jobs.addAll(mine);
+        }
+
+        long ordered = 0;
+        for (ManufacturingJob job : jobs) {
+            ordered += job.amount;
+        }
+        int[] finishedAt = new int[jobs.size()];
+        long[] builtBefore = new long[factoryCount];
+        int overCapacity = 0;
+        int ticks = 0;
+        long tickStart = System.nanoTime();
+        while (ProductionScheduler.pending() > 0) {
+            ProductionScheduler.tick();
+            ticks++;
+            for (int i = 0; i < jobs.size(); i++) {
+                if (finishedAt[i] == 0 && jobs.get(i).done()) {
+                    finishedAt[i] = ticks;
+                }
+            }
+            for (int f = 0; f < factoryCount; f++) {
+                long built = built(factories[f], designs);
+                if (built - builtBefore[f] > CAPACITY) {
+                    overCapacity++;
+                }
+                builtBefore[f] = built;
+            }
+        }
+        long tickNanos = System.nanoTime() - tickStart;
+
+        long built = 0;
+        long steelUsed = 0;
+        for (FactoryExtended factory : factories) {
+            built += built(factory, designs);
+            steelUsed += (1 << 28) - factory.materials.get("Queue steel");
+        }
+        // At one factory, a job that finished later than another must not have outranked it; the
+        // first jobs are compared against all the others to keep the check quadratic in a sample only
+        int inversions = 0;
+        for (int i = 0; i < Math.min(jobs.size(), 2_000); i++) {
+            for (int j = 0; j < jobs.size(); j++) {
+                ManufacturingJob a = jobs.get(i);
+                ManufacturingJob b = jobs.get(j);
+                if (a.factory == b.factory && a.priority > b.priority && finishedAt[i] > finishedAt[j]) {
+                    inversions++;
+                }
+            }
+        }
+
+        System.out.printf("%d jobs queued by %d planners in %d ms, %d units ordered%n",
+                jobs.size(), planners, enqueueNanos / 1_000_000, ordered);
+        System.out.printf("%d factories drained in %d ticks, %d ms (%.0f units/s)%n",
+                factoryCount, ticks, tickNanos / 1_000_000, built * 1e9 / tickNanos);
+        System.out.println("Built " + built + ", steel used " + steelUsed + ", ticks over capacity " + overCapacity
+                + ", priority inversions " + inversions);
+        StressHarness.verdict(built == ordered && steelUsed == built * STEEL_PER_UNIT && overCapacity == 0 && inversions == 0,
+                "units or materials miscounted, a tick over capacity, or a priority inversion");
+    }
+
+    private static long built(FactoryExtended factory, ProductDesign[] designs) {
+        long units = 0;
+        synchronized (factory) {
+            for (ProductDesign design : designs) {
+                InventoryItem item = factory.products.get(design.name);
+                units += item != null ? item.quantity : 0;
+            }
+        }
+        return units;
+    }
+}
@@ -0,0 +1,104 @@
+import java.util.concurrent.atomic.LongAdder;
+
+// Customers buy from tens of thousands of markets on many threads while the Replenisher runs its
+// cycles alongside, then checks that no unit of stock and no unit of money was created or lost and
+// that no product was restocked past its target, which a product queued twice would be. Reports how
+// many products each cycle visited and how long it took. Exits with status 1 on any violation.
+//
+//   java -cp benchmarks/target/benchmarks.jar ReplenishmentStress [markets] [threads] [seconds]
+public class ReplenishmentStress {
+    private static final int FACTORIES = 16;
+    private static final int PRODUCTS = 8;
+    private static final int CUSTOMERS = 10_000;
+    private static final int REORDER_POINT = 5;
+    private static final int TARGET = 20;
+    private static final long CYCLE_MILLIS = 10;
+
+    public static void main(String[] args) throws InterruptedException {
+        int marketCount = StressHarness.intArg(args, 0, 20_000);
+        int threads = StressHarness.intArg(args, 1, StressHarness.defaultThreads());
+        long seconds = StressHarness.longArg(args, 2, 5);
+
+        String[] products = new String[PRODUCTS];
+        for (int i = 0; i < PRODUCTS; i++) {
+            products[i] = "Replenished product " + i;
+        }
+        FactoryExtended[] factories = new FactoryExtended[FACTORIES];
+        for (int i = 0; i < FACTORIES; i++) {
+            factories[i] = new FactoryExtended("Factory " + i, 0);
+            for (String product : products) {
+                factories[i].addDesign(new ProductDesign(product, 1.0 + i % 4));
+                factories[i].addProduct(product, 1 << 28);
+            }
+        }
+        Market[] markets = new Market[marketCount];
+        for (int i = 0; i < marketCount; i++) {
+            markets[i] = new Market("Market " + i, 1e9);
+            for (String product : products) {
+                markets[i].stock.set(product, TARGET);
+                markets[i].setPrice(product, 1_000);
+                markets[i].setReorderLevel(product, REORDER_POINT, TARGET);
+            }
+        }
+        Customer[] customers = new Customer[CUSTOMERS];
+        for (int i = 0; i < CUSTOMERS; i++) {
+            customers[i] = new Customer("Customer " + i, 1e9);
+        }
+
+        StressHarness.Totals before = new StressHarness.Totals(markets, factories, customers, products);
+
+        LongAdder purchases = new LongAdder();
+        LongAdder rejected = new LongAdder();
+        // cycles, products visited, settlements, units restocked, total and slowest cycle nanos
+        long[] totals = new long[6];
+        StressHarness.run(threads, seconds, (thread, random) -> {
+            Market market = markets[random.nextInt(marketCount)];
+            Customer customer = customers[random.nextInt(CUSTOMERS)];
+            TradeResult result = customer.buyProduct(products[random.nextInt(PRODUCTS)], 1 + random.nextInt(4), 1_000, market);
+            (result.isOk() ? purchases : rejected).increment();
+        }, () -> {
+            try {
+                Thread.sleep(CYCLE_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            long began = System.nanoTime();
+            Replenisher.Cycle cycle = Replenisher.cycle();
+            long took = System.nanoTime() - began;
+            totals[0]++;
+            totals[1] += cycle.requests;
+            totals[2] += cycle.settlements;
+            totals[3] += cycle.units;
+            totals[4] += took;
+            totals[5] = Math.max(totals[5], took);
+        });
+        long cycles = totals[0];
+        // Settle what the last sales queued
+        long units = totals[3] + Replenisher.cycle().units;
+
+        StressHarness.Totals after = new StressHarness.Totals(markets, factories, customers, products);
+        int overfilled = 0;
+        int understocked = 0;
+        for (Market market : markets) {
+            for (String product : products) {
+                int stock = market.stock.get(product);
+                if (stock > TARGET) {
+                    overfilled++;
+                } else if (stock <= REORDER_POINT) {
+                    understocked++;
+                }
+            }
+        }
+
+        System.out.printf("%d markets, %d threads, %d s: %d purchases, %d rejected%n",
+                marketCount, threads, seconds, purchases.sum(), rejected.sum());
+        System.out.printf("%d cycles: %.1f products and %.1f settlements per cycle, %d units restocked, "
+                        + "%.2f ms per cycle (slowest %.2f ms)%n",
+                cycles, (double) totals[1] / cycles, (double) totals[2] / cycles, units,
+                totals[4] / 1e6 / cycles, totals[5] / 1e6);
+        boolean conserved = after.conserves(before);
+        System.out.println("Over target " + overfilled + ", at or below reorder point after the last cycle " + understocked);
+        StressHarness.verdict(conserved && overfilled == 0 && understocked == 0,
+                "stock or money not conserved, or a product over target or left below its reorder point");
+    }
+}
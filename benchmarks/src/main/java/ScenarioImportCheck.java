@@ -0,0 +1,136 @@
+import java.io.BufferedWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// Writes a generated scenario of the given number of customers as CSV and as JSON Lines, imports
+// each into empty lists, and checks the entity counts and money and stock totals. Reports rows per
+// second and the heap in use after each import, which stays near the size of the economy itself
+// rather than the file. Exits with status 1 on a mismatch.
+//
+//   java -cp benchmarks/target/benchmarks.jar ScenarioImportCheck [customers]
+public class ScenarioImportCheck {
+    private static final int MARKETS = 1000;
+    private static final int PRODUCTS = 64;
+
+    public static void main(String[] args) throws Exception {
+        int customers = StressHarness.intArg(args, 0, 2_000_000);
+        boolean ok = true;
+        for (boolean json : new boolean[] {false, true}) {
+            Path path = Files.createTempFile("scenario", json ? ".jsonl" : ".csv");
+            try {
+                long rows = write(path, customers, json);
+                clear();
+                long begin = System.nanoTime();
+                long imported = ScenarioImporter.importFile(path);
+                double seconds = (System.nanoTime() - begin) / 1e9;
+                System.gc();
+                Runtime runtime = Runtime.getRuntime();
+                System.out.printf("%s: %d rows (%.0f MB) in %.2f s, %.0f rows/s, %d MB heap in use%n",
+                        json ? "JSON Lines" : "CSV", imported, Files.size(path) / 1e6, seconds, imported / seconds,
+                        (runtime.totalMemory() - runtime.freeMemory()) >> 20);
+                ok &= imported == rows && check(customers);
+            } finally {
+                Files.deleteIfExists(path);
+            }
+        }
+        StressHarness.verdict(ok, "imported economy differs from the scenario");
+    }
+
+    private static long write(Path path, int customers, boolean json) throws Exception {
+        long rows = 0;
+        try (BufferedWriter out = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            out.write("# generated scenario\n");
+            for (int p = 0; p < PRODUCTS; p++) {
+                rows += row(out, json, "design", "name", "Product " + p, "cost", p + 1.5);
+                rows += row(out, json, "input", "design", "Product " + p, "material", "Ore, grade " + p % 4, "amount", 2);
+                if (p > 0 && p % 8 == 0) {
+                    rows += row(out, json, "component", "design", "Product " + p, "component", "Product " + (p - 1), "amount", 1);
+                }
+            }
+            for (int i = 0; i < MARKETS; i++) {
+                rows += row(out, json, "producer", "name", "Producer \"" + i + "\"", "balance", 1000);
+                rows += row(out, json, "material", "producer", "Producer \"" + i + "\"", "material", "Ore, grade " + i % 4, "quantity", 500);
+                rows += row(out, json, "factory", "name", "Factory " + i, "balance", 2000);
+                rows += row(out, json, "factory_design", "factory", "Factory " + i, "design", "Product " + i % PRODUCTS);
+                rows += row(out, json, "market", "name", "Market " + i, "balance", 5000);
+                rows += row(out, json, "stock", "market", "Market " + i, "product", "Product " + i % PRODUCTS, "quantity", 100);
+                rows += row(out, json, "price", "market", "Market " + i, "product", "Product " + i % PRODUCTS, "price", 12.25);
+            }
+            for (int i = 0; i < customers; i++) {
+                rows += row(out, json, "customer", "name", "Customer " + i, "balance", 800);
+            }
+        }
+        return rows;
+    }
+
+    private static int row(BufferedWriter out, boolean json, String type, Object... fields) throws Exception {
+        StringBuilder line = new StringBuilder();
+        if (json) {
+            line.append("{\"type\": \"").append(type).append('"');
+            for (int f = 0; f < fields.length; f += 2) {
+                line.append(", \"").append(fields[f]).append("\": ");
+                Object value = fields[f + 1];
+                line.append(value instanceof String ? '"' + ((String) value).replace("\"", "\\\"") + '"' : value);
+            }
+            line.append('}');
+        } else {
+            line.append(type);
+            for (int f = 1; f < fields.length; f += 2) {
+                String value = String.valueOf(fields[f]);
+                line.append(',').append(value.indexOf(',') >= 0 || value.indexOf('"') >= 0
+                        ? '"' + value.replace("\"", "\"\"") + '"' : value);
+            }
+        }
+        out.write(line.append('\n').toString());
+        return 1;
+    }
+
+    private static boolean check(int customers) {
+        long customerMoney = 0;
+        for (Customer c : SupplyChainSystemGUI.customers) {
+            customerMoney += c.balance.get();
+        }
+        long stock = 0;
+        long prices = 0;
+        for (Market m : SupplyChainSystemGUI.markets) {
+            long[] units = new long[2];
+            m.stock.forEach((id, quantity) -> units[0] += quantity);
+            m.stock.forEachPrice((id, price) -> units[1] += price);
+            stock += units[0];
+            prices += units[1];
+        }
+        long ore = 0;
+        for (Producer p : SupplyChainSystemGUI.producers) {
+            for (int s = p.materials.nextSlot(-1); s >= 0; s = p.materials.nextSlot(s)) {
+                ore += p.materials.nameAt(s).startsWith("Ore, grade ") ? p.materials.quantityAt(s) : 0;
+            }
+        }
+        int designed = 0;
+        for (FactoryExtended f : SupplyChainSystemGUI.factories) {
+            designed += f.designs.size();
+        }
+        ProductDesign last = SupplyChainSystemGUI.allDesigns.get(PRODUCTS - 1);
+        return SupplyChainSystemGUI.customers.size() == customers
+                && customerMoney == customers * 80_000L
+                && SupplyChainSystemGUI.allDesigns.size() == PRODUCTS
+                && SupplyChainSystemGUI.allDesigns.get(PRODUCTS / 2).materials.size() == 2
+                && last.cost == Money.cents(PRODUCTS + 0.5)
+                && SupplyChainSystemGUI.markets.size() == MARKETS
+                && stock == MARKETS * 100L
+                && prices == MARKETS * 1225L
+                && SupplyChainSystemGUI.producers.size() == MARKETS
+                && SupplyChainSystemGUI.producers.get(0).name.equals("Producer \"0\"")
+                && ore == MARKETS * 500L
+                && designed == MARKETS;
+    }
+
+    private static void clear() {
+        SupplyChainSystemGUI.producers.clear();
+        SupplyChainSystemGUI.factories.clear();
+        SupplyChainSystemGUI.markets.clear();
+        SupplyChainSystemGUI.customers.clear();
+        SupplyChainSystemGUI.allDesigns.clear();
+        System.gc();
+    }
+}
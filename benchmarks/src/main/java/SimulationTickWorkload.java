@@ -0,0 +1,57 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import supplychain.bench.Workload;
+
+// One Simulation tick over an economy of `entities` customers, with a market per 100 customers
+// and a factory per 1000. Factories start with plenty of material so production never stalls.
+public class SimulationTickWorkload implements Workload {
+    private static final int DESIGNS = 8;
+
+    private Simulation simulation;
+
+    @Override
+    public void setUp(int entities) {
+        List<Producer> producers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Producer p = new Producer("Producer " + i, BenchEconomy.RICH);
+            p.materials.set("Ore " + i, 0);
+            producers.add(p);
+        }
+
+        List<FactoryExtended> factories = new ArrayList<>();
+        for (int i = 0; i < Math.max(1, entities / 1000); i++) {
+            FactoryExtended f = new FactoryExtended("Factory " + i, BenchEconomy.RICH);
+            for (int d = 0; d < DESIGNS; d++) {
+                ProductDesign design = new ProductDesign(BenchEconomy.PRODUCT_NAMES[d], 1.0 + (i + d) % 5);
+                design.addMaterial(new InputMaterial("Ore " + d % 4, 1));
+                f.addDesign(design);
+            }
+            for (int m = 0; m < 4; m++) {
+                f.addMaterial("Ore " + m, BenchEconomy.PLENTY);
+            }
+            factories.add(f);
+        }
+
+        List<Market> markets = new ArrayList<>();
+        for (int i = 0; i < Math.max(1, entities / 100); i++) {
+            markets.add(new Market("Market " + i, BenchEconomy.RICH));
+        }
+
+        List<Customer> customers = new ArrayList<>(entities);
+        for (int i = 0; i < entities; i++) {
+            customers.add(new Customer("Customer " + i, BenchEconomy.RICH));
+        }
+
+        simulation = new Simulation(producers, factories, markets, customers, ForkJoinPool.commonPool());
+        // Warm the supply chain so measured ticks see stocked markets
+        simulation.run(3);
+    }
+
+    @Override
+    public long run() {
+        simulation.step();
+        return simulation.sold.sum();
+    }
+}
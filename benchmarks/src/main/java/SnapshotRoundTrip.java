@@ -0,0 +1,120 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// Builds an economy of about a million entities, writes it as a snapshot, then loads it back into
+// empty lists a few times, reporting the write and load times and checking that the loaded state
+// matches what was written. Exits with status 1 on a mismatch.
+//
+//   java -cp benchmarks/target/benchmarks.jar SnapshotRoundTrip [customers] [snapshot file]
+public class SnapshotRoundTrip {
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) throws Exception {
+        int customers = StressHarness.intArg(args, 0, 1_000_000);
+        Path path = args.length > 1 ? Path.of(args[1]) : Files.createTempFile("snapshot-round-trip", ".snapshot");
+        int holders = Math.max(1, customers / 1000);
+
+        ProductDesign[] designs = new ProductDesign[BenchEconomy.PRODUCTS];
+        for (int d = 0; d < designs.length; d++) {
+            designs[d] = new ProductDesign(BenchEconomy.PRODUCT_NAMES[d], 1 + d);
+            designs[d].addMaterial(new InputMaterial("Ore " + d % 4, 2));
+            if (d > 0 && d % 8 == 0) {
+                designs[d].addMaterial(new InputMaterial(designs[d - 1], 1));
+            }
+            SupplyChainSystemGUI.allDesigns.add(designs[d]);
+        }
+        for (int i = 0; i < holders; i++) {
+            Producer p = new Producer("Producer " + i, 1000 + i);
+            p.materials.set("Ore " + i % 4, 500 + i);
+            SupplyChainSystemGUI.producers.add(p);
+        }
+        for (FactoryExtended f : BenchEconomy.stockedFactories(holders)) {
+            f.materials.set("Ore " + f.entityId % 4, 10);
+            SupplyChainSystemGUI.factories.add(f);
+        }
+        for (Market m : BenchEconomy.stockedMarkets(holders)) {
+            SupplyChainSystemGUI.markets.add(m);
+        }
+        SupplyChainSystemGUI.customers.ensureCapacity(customers);
+        for (int i = 0; i < customers; i++) {
+            Customer c = new Customer("Customer " + i, 100 + i % 1000);
+            c.inventory.set(BenchEconomy.productFor(i), 1 + i % 7);
+            if (i % 3 == 0) {
+                c.inventory.set(BenchEconomy.productFor(i + 1), i % 5);
+            }
+            SupplyChainSystemGUI.customers.add(c);
+        }
+        long expected = digest();
+        int entities = designs.length + holders * 3 + customers;
+
+        long begin = System.nanoTime();
+        Snapshot.write(path, 1);
+        System.out.printf("Wrote %d entities in %.0f ms, %.1f MB%n", entities,
+                (System.nanoTime() - begin) / 1e6, Files.size(path) / 1e6);
+
+        boolean ok = true;
+        for (int round = 0; round < ROUNDS; round++) {
+            SupplyChainSystemGUI.producers.clear();
+            SupplyChainSystemGUI.factories.clear();
+            SupplyChainSystemGUI.markets.clear();
+            SupplyChainSystemGUI.customers.clear();
+            SupplyChainSystemGUI.allDesigns.clear();
+            System.gc();
+            begin = System.nanoTime();
+            Snapshot.load(path);
+            System.out.printf("Loaded in %.0f ms%n", (System.nanoTime() - begin) / 1e6);
+            ok &= digest() == expected;
+        }
+        Files.deleteIfExists(path);
+        StressHarness.verdict(ok, "loaded state differs from the state written");
+    }
+
+    // Order-sensitive over entities, order-insensitive within each entity's tables
+    private static long digest() {
+        long h = 0;
+        for (ProductDesign d : SupplyChainSystemGUI.allDesigns) {
+            h = mix(h, d.entityId, d.name.hashCode(), d.cost);
+            for (InputMaterial m : d.materials) {
+                h = mix(h, m.name.hashCode(), m.amount, m.component != null ? m.component.entityId : -1);
+            }
+        }
+        for (Producer p : SupplyChainSystemGUI.producers) {
+            h = mix(h, p.entityId, p.name.hashCode(), p.balance.get()) + inventory(p.materials);
+        }
+        for (FactoryExtended f : SupplyChainSystemGUI.factories) {
+            h = mix(h, f.entityId, f.name.hashCode(), f.balance.get()) + inventory(f.materials);
+            for (ProductDesign d : f.designs) {
+                h = mix(h, d.entityId, 0, 0);
+            }
+            for (InventoryItem item : f.products.values()) {
+                h += mix(0, item.name.hashCode(), item.quantity, 0);
+            }
+        }
+        for (Market m : SupplyChainSystemGUI.markets) {
+            h = mix(h, m.entityId, m.name.hashCode(), m.balance.get());
+            long[] stock = new long[1];
+            m.stock.forEach((id, quantity) -> stock[0] += mix(0, Symbols.name(id).hashCode(), quantity, 0));
+            m.stock.forEachPrice((id, price) -> stock[0] += mix(0, Symbols.name(id).hashCode(), price, 1));
+            h += stock[0];
+        }
+        for (Customer c : SupplyChainSystemGUI.customers) {
+            h = mix(h, c.entityId, c.name.hashCode(), c.balance.get()) + inventory(c.inventory);
+        }
+        return h;
+    }
+
+    private static long inventory(Inventory inventory) {
+        long h = 0;
+        for (int s = inventory.nextSlot(-1); s >= 0; s = inventory.nextSlot(s)) {
+            h += mix(0, inventory.nameAt(s).hashCode(), inventory.quantityAt(s), 2);
+        }
+        return h;
+    }
+
+    private static long mix(long h, long a, long b, long c) {
+        h = (h ^ a) * 0x9E3779B97F4A7C15L;
+        h = (h ^ b) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ c) * 0x94D049BB133111EBL;
+        return h ^ (h >>> 31);
+    }
+}
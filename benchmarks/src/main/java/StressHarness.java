@@ -0,0 +1,165 @@
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+
+// Shared driver of the stress checks. Workers start together, loop until the deadline and count
+// each step; a watchdog on the calling thread fails the run if no step completes for STALL_MILLIS,
+// which is how a lock-order deadlock shows. Every check ends in verdict(), so the build can run
+// them all and fail on the first exit status 1.
+final class StressHarness {
+    static final long STALL_MILLIS = 10_000;
+    private static final long WATCH_MILLIS = 100;
+
+    private StressHarness() {
+    }
+
+    // One step of a worker; thread is the worker's index, for per-thread fixtures
+    interface Step {
+        void run(int thread, ThreadLocalRandom random) throws Exception;
+    }
+
+    static int defaultThreads() {
+        return Math.max(8, Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    static int intArg(String[] args, int index, int fallback) {
+        return args.length > index ? Integer.parseInt(args[index]) : fallback;
+    }
+
+    static long longArg(String[] args, int index, long fallback) {
+        return args.length > index ? Long.parseLong(args[index]) : fallback;
+    }
+
+    // Runs step on every worker until seconds have passed and returns the steps taken. alongside,
+    // if not null, runs over and over on the calling thread meanwhile.
+    static long run(int threads, long seconds, Step step, Runnable alongside) throws InterruptedException {
+        LongAdder steps = new LongAdder();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        Thread[] workers = start(threads, thread -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            try {
+                while (System.nanoTime() < deadline) {
+                    step.run(thread, random);
+                    steps.increment();
+                }
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+
+        long seen = -1;
+        long progressAt = System.nanoTime();
+        while (alive(workers)) {
+            if (alongside != null && System.nanoTime() < deadline) {
+                alongside.run();
+            } else {
+                Thread.sleep(WATCH_MILLIS);
+            }
+            long now = System.nanoTime();
+            long count = steps.sum();
+            if (count != seen) {
+                seen = count;
+                progressAt = now;
+            } else if (now - progressAt > STALL_MILLIS * 1_000_000L) {
+                verdict(false, "no step completed for " + STALL_MILLIS + " ms, deadlock suspected");
+            }
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return steps.sum();
+    }
+
+    // Runs body once on each of threads workers, released together, and waits for all of them
+    static void runOnce(int threads, IntConsumer body) throws InterruptedException {
+        for (Thread worker : start(threads, body)) {
+            worker.join();
+        }
+    }
+
+    // Units of the products and cents held by the markets, factories and customers, counted by
+    // checks that no stock or money is created or lost. A market's bid escrow counts as its money,
+    // so money parked by a bid that never comes back shows as a leak.
+    static final class Totals {
+        final long units;
+        final long cents;
+
+        Totals(Market[] markets, FactoryExtended[] factories, Customer[] customers, String[] products) {
+            long units = 0;
+            long cents = 0;
+            for (Market market : markets) {
+                for (String product : products) {
+                    units += market.stock.get(product);
+                }
+                cents += market.balance.get() + market.escrow.get();
+            }
+            for (FactoryExtended factory : factories) {
+                synchronized (factory) {
+                    for (String product : products) {
+                        InventoryItem item = factory.products.get(product);
+                        units += item != null ? item.quantity : 0;
+                    }
+                }
+                cents += factory.balance.get();
+            }
+            for (Customer customer : customers) {
+                for (String product : products) {
+                    units += customer.inventory.get(product);
+                }
+                cents += customer.balance.get();
+            }
+            this.units = units;
+            this.cents = cents;
+        }
+
+        // Prints both totals beside before's and returns whether neither changed
+        boolean conserves(Totals before) {
+            System.out.println("Units before " + before.units + ", after " + units);
+            System.out.println("Money before " + before.cents + ", after " + cents);
+            return units == before.units && cents == before.cents;
+        }
+    }
+
+    // Prints the verdict; a failure exits with status 1
+    static void verdict(boolean ok, String failure) {
+        if (!ok) {
+            System.out.println("FAILED: " + failure);
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    private static Thread[] start(int threads, IntConsumer body) {
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                body.accept(thread);
+            }, "stress-" + t);
+            workers[t].setDaemon(true);
+            workers[t].setUncaughtExceptionHandler((failed, e) -> {
+                e.printStackTrace();
+                verdict(false, "worker " + thread + " threw " + e);
+            });
+            workers[t].start();
+        }
+        start.countDown();
+        return workers;
+    }
+
+    private static boolean alive(Thread[] workers) {
+        for (Thread worker : workers) {
+            if (worker.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,23 @@
+// The same lookups as SupplierSearchWorkload answered by scanning every factory, as the restock
+// dialog did before the supply index; the reference the indexed search is measured against
+public class SupplierScanWorkload extends SupplierSearchWorkload {
+    @Override
+    FactoryExtended find(String product, int amount) {
+        FactoryExtended best = null;
+        long bestCost = Long.MAX_VALUE;
+        for (FactoryExtended f : factories) {
+            synchronized (f) {
+                InventoryItem item = f.products.get(product);
+                if (item == null || item.quantity < amount) {
+                    continue;
+                }
+            }
+            long cost = MarketQueries.unitCost(f, product);
+            if (cost < bestCost) {
+                best = f;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,54 @@
+import java.util.ArrayList;
+import java.util.List;
+
+import supplychain.bench.Workload;
+
+// EditMarketPanel's supplier lookup: the cheapest factory holding at least the amount asked for.
+// Every product has many suppliers, entities * PRODUCTS_PER_HOLDER / PRODUCTS of them, with costs
+// and stock spread so the cheapest factories are often too short and the walk has to go past them.
+public class SupplierSearchWorkload implements Workload {
+    // Amounts asked for cycle through this many values, up to the largest stock a factory holds
+    static final int AMOUNTS = 1024;
+    static final int MAX_STOCK = 1000;
+
+    List<FactoryExtended> factories;
+    private final int[] amounts = new int[AMOUNTS];
+    private int cursor;
+
+    @Override
+    public void setUp(int entities) {
+        factories = new ArrayList<>(entities);
+        for (int i = 0; i < entities; i++) {
+            FactoryExtended f = new FactoryExtended("Factory " + i, BenchEconomy.RICH);
+            for (int k = 0; k < BenchEconomy.PRODUCTS_PER_HOLDER; k++) {
+                String product = BenchEconomy.productFor(i + k);
+                f.addDesign(new ProductDesign(product, 1.0 + mix(i, k) % 500 / 10.0));
+                f.addProduct(product, (int) (mix(k, i) % MAX_STOCK));
+            }
+            factories.add(f);
+        }
+        for (int i = 0; i < AMOUNTS; i++) {
+            amounts[i] = 1 + (int) (mix(i, -1) % MAX_STOCK);
+        }
+    }
+
+    @Override
+    public long run() {
+        int i = cursor;
+        cursor = BenchEconomy.next(i, AMOUNTS);
+        String product = BenchEconomy.productFor(i);
+        FactoryExtended supplier = find(product, amounts[i]);
+        return supplier != null ? MarketQueries.unitCost(supplier, product) : -1;
+    }
+
+    FactoryExtended find(String product, int amount) {
+        return MarketQueries.findSupplier(product, amount);
+    }
+
+    // Spreads small integers over the long range
+    private static long mix(int a, int b) {
+        long h = (a * 0x9E3779B97F4A7C15L) ^ (b * 0xC2B2AE3D27D4EB4FL);
+        h ^= h >>> 29;
+        return (h * 0xBF58476D1CE4E5B9L) >>> 1;
+    }
+}
@@ -0,0 +1,188 @@
+package supplychain.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// Hot paths of the domain layer at 10, 10k and 1M entities.
+//
+//   mvn -B package -pl benchmarks -am
+//   java -jar benchmarks/target/benchmarks.jar                      (everything)
+//   java -jar benchmarks/target/benchmarks.jar customerBuy -p entities=10000
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms3g", "-Xmx3g", "-Djava.awt.headless=true"})
+public class DomainBenchmarks {
+
+    @State(Scope.Thread)
+    public abstract static class WorkloadState {
+        @Param({"10", "10000", "1000000"})
+        public int entities;
+
+        Workload workload;
+
+        abstract String workloadClass();
+
+        @Setup(Level.Trial)
+        public void setUp() throws ReflectiveOperationException {
+            workload = (Workload) Class.forName(workloadClass()).getDeclaredConstructor().newInstance();
+            workload.setUp(entities);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class CustomerBuy extends WorkloadState {
+        String workloadClass() {
+            return "CustomerBuyWorkload";
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class JournaledBuy extends WorkloadState {
+        String workloadClass() {
+            return "JournaledBuyWorkload";
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class MarketBuy extends WorkloadState {
+        String workloadClass() {
+            return "MarketBuyWorkload";
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Manufacture extends WorkloadState {
+        String workloadClass() {
+            return "ManufactureWorkload";
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class NestedManufacture extends WorkloadState {
+        String workloadClass() {
+            return "NestedManufactureWorkload";
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class MaxProducible extends WorkloadState {
+        String workloadClass() {
+            return "MaxProducibleWorkload";
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ProductDiscovery extends WorkloadState {
+        String workloadClass() {
+            return "ProductDiscoveryWorkload";
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class SupplierSearch extends WorkloadState {
+        String workloadClass() {
+            return "SupplierSearchWorkload";
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class SupplierScan extends WorkloadState {
+        String workloadClass() {
+            return "SupplierScanWorkload";
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class OrderBookEvents extends WorkloadState {
+        String workloadClass() {
+            return "OrderBookWorkload";
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class SimulationTick extends WorkloadState {
+        String workloadClass() {
+            return "SimulationTickWorkload";
+        }
+    }
+
+    // Customer.buyProduct
+    @Benchmark
+    public long customerBuy(CustomerBuy state) {
+        return state.workload.run();
+    }
+
+    // Customer.buyProduct with each trade appended to the journal
+    @Benchmark
+    public long journaledBuy(JournaledBuy state) {
+        return state.workload.run();
+    }
+
+    // Market.buyProduct
+    @Benchmark
+    public long marketBuy(MarketBuy state) {
+        return state.workload.run();
+    }
+
+    // FactoryExtended.manufacture
+    @Benchmark
+    public long manufacture(Manufacture state) {
+        return state.workload.run();
+    }
+
+    // FactoryExtended.manufacture of a multi-level design
+    @Benchmark
+    public long nestedManufacture(NestedManufacture state) {
+        return state.workload.run();
+    }
+
+    // FactoryExtended.maxProducible
+    @Benchmark
+    public long maxProducible(MaxProducible state) {
+        return state.workload.run();
+    }
+
+    // Catalog listing and first offer page behind ShopDialog
+    @Benchmark
+    public long productDiscovery(ProductDiscovery state) {
+        return state.workload.run();
+    }
+
+    // Factory search behind EditMarketPanel's "Buy from Factory" button
+    @Benchmark
+    public long supplierSearch(SupplierSearch state) {
+        return state.workload.run();
+    }
+
+    // The same lookups by a scan over every factory, for reference
+    @Benchmark
+    public long supplierScan(SupplierScan state) {
+        return state.workload.run();
+    }
+
+    // Cancel/replace and fill events on one OrderBook; two or more events per op
+    @Benchmark
+    public long orderBook(OrderBookEvents state) {
+        return state.workload.run();
+    }
+
+    // One Simulation.step over the whole economy
+    @Benchmark
+    public long simulationTick(SimulationTick state) {
+        return state.workload.run();
+    }
+}
@@ -0,0 +1,12 @@
+package supplychain.bench;
+
+// One domain operation measured by DomainBenchmarks. The application classes live in the default
+// package, which a named package cannot import, so implementations sit in the default package of
+// this module and are loaded by name once per trial.
+public interface Workload {
+    // Builds an economy with the given number of entities
+    void setUp(int entities);
+
+    // Runs a single operation; the result is handed to JMH so the work cannot be optimised away
+    long run();
+}